@@ -1,6 +1,7 @@
 package org.rakam.collection.mapper.geoip.maxmind.ip2location;
 
 import io.airlift.configuration.Config;
+import io.airlift.units.Duration;
 
 import java.util.List;
 
@@ -9,6 +10,7 @@ public class GeoIPModuleConfig
     private List<String> attributes;
     private String databaseUrl = null;
     private int dbId = 3;
+    private Duration refreshInterval = Duration.valueOf("1d");
 
     @Config("plugin.geoip.database.url")
     public GeoIPModuleConfig setDatabaseUrl(String url)
@@ -33,4 +35,16 @@ public class GeoIPModuleConfig
     {
         return dbId;
     }
+
+    @Config("plugin.geoip.database.refresh-interval")
+    public GeoIPModuleConfig setRefreshInterval(String refreshInterval)
+    {
+        this.refreshInterval = Duration.valueOf(refreshInterval);
+        return this;
+    }
+
+    public Duration getRefreshInterval()
+    {
+        return refreshInterval;
+    }
 }
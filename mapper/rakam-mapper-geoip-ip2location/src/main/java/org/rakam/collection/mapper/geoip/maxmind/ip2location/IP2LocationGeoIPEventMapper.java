@@ -4,6 +4,8 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.cookie.Cookie;
@@ -19,16 +21,19 @@ import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.util.MapProxyGenericRecord;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.net.URL;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.stream.Collectors;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.rakam.collection.FieldType.STRING;
-import static org.rakam.collection.mapper.geoip.maxmind.ip2location.IP2LocationGeoIPModule.downloadOrGetFile;
+import static org.rakam.util.DatabaseDownloader.downloadIfModified;
+import static org.rakam.util.DatabaseDownloader.downloadOrGetFile;
 
 @Mapper(name = "IP2Location Event mapper", description = "Looks up geolocation data from _ip field using IP2Location and attaches geo-related attributed")
 public class IP2LocationGeoIPEventMapper
@@ -38,27 +43,57 @@ public class IP2LocationGeoIPEventMapper
     private final static List<String> CITY_DATABASE_ATTRIBUTES = ImmutableList
             .of("city", "region", "country_code", "latitude", "longitude");
 
-    private final IPReader lookup;
+    private final URL databaseUrl;
+    private volatile IPReader lookup;
+    private volatile long databaseTimestamp;
 
     public IP2LocationGeoIPEventMapper(GeoIPModuleConfig config)
             throws IOException
     {
         Preconditions.checkNotNull(config, "config is null");
 
-        lookup = getReader(config.getDatabaseUrl());
+        databaseUrl = new URL(config.getDatabaseUrl());
+        lookup = getReader(databaseUrl);
+
+        long refreshInterval = config.getRefreshInterval().toMillis();
+        if (refreshInterval > 0) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("ip2location-database-refresher").setDaemon(true).build());
+            executor.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, MILLISECONDS);
+        }
     }
 
-    private IPReader getReader(String url)
+    private IPReader getReader(URL url)
     {
         try {
-            FileInputStream cityDatabase = new FileInputStream(downloadOrGetFile(url));
-            return IPReader.build(cityDatabase);
+            File database = downloadOrGetFile(url);
+            databaseTimestamp = database.lastModified();
+            return IPReader.build(database);
         }
         catch (Exception e) {
             throw Throwables.propagate(e);
         }
     }
 
+    private void refresh()
+    {
+        try {
+            File database = downloadIfModified(databaseUrl, databaseTimestamp);
+            if (database == null) {
+                return;
+            }
+
+            // the index is built before the swap so the mapper uses the old database until the new one is ready.
+            IPReader reader = IPReader.build(database);
+            lookup = reader;
+            databaseTimestamp = database.lastModified();
+            LOGGER.info("Reloaded IP2Location database with %d ranges", reader.size());
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while refreshing IP2Location database");
+        }
+    }
+
     @Override
     public List<Cookie> map(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
@@ -67,10 +102,10 @@ public class IP2LocationGeoIPEventMapper
         InetAddress addr;
         if ((ip instanceof String)) {
             try {
-                // it may be slow because java performs reverse hostname lookup.
-                addr = Inet4Address.getByName((String) ip);
+                // parses the literal without resolving hostnames
+                addr = InetAddresses.forString((String) ip);
             }
-            catch (UnknownHostException e) {
+            catch (IllegalArgumentException e) {
                 return null;
             }
         }
@@ -118,10 +153,10 @@ public class IP2LocationGeoIPEventMapper
 
         if ((ip instanceof String)) {
             try {
-                // it may be slow because java performs reverse hostname lookup.
-                sourceAddress = Inet4Address.getByName((String) ip);
+                // parses the literal without resolving hostnames
+                sourceAddress = InetAddresses.forString((String) ip);
             }
-            catch (UnknownHostException e) {
+            catch (IllegalArgumentException e) {
                 return;
             }
         }
@@ -158,11 +193,16 @@ public class IP2LocationGeoIPEventMapper
 
     private void setGeoFields(InetAddress address, GenericRecord properties)
     {
-        GeoLocation city = lookup.lookup(address);
-        properties.put("_country_code", city.country);
-        properties.put("_region", city.stateProv);
-        properties.put("_city", city.city);
-        properties.put("_latitude", city.coordination.latitude);
-        properties.put("_longitude", city.coordination.longitude);
+        IPReader reader = lookup;
+        int idx = reader.find(address);
+        if (idx == -1) {
+            return;
+        }
+
+        properties.put("_country_code", reader.getCountry(idx));
+        properties.put("_region", reader.getRegion(idx));
+        properties.put("_city", reader.getCity(idx));
+        properties.put("_latitude", reader.getLatitude(idx));
+        properties.put("_longitude", reader.getLongitude(idx));
     }
 }
@@ -1,76 +1,427 @@
 package org.rakam.collection.mapper.geoip.maxmind.ip2location;
 
-import org.rakam.collection.mapper.geoip.maxmind.ip2location.utils.IP4Converter;
+import com.google.common.io.ByteStreams;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * Immutable interval index over an IP2Location CSV database.
+ * <p>
+ * Ranges are kept as sorted primitive arrays of 128-bit addresses (IPv4 addresses are stored in the low bits)
+ * and the string attributes are dictionary-encoded, so a lookup is a binary search that doesn't allocate.
+ * The high bits are only materialized when the database contains IPv6 ranges.
+ */
 public class IPReader
 {
-    private final NavigableMap<Long, CSV> ipLookup;
+    // IPv4-mapped IPv6 prefix (::ffff:0:0/96) that IP2Location uses for IPv4 ranges in IPv6 databases.
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+    private static final int NOT_FOUND = -1;
 
-    private IPReader(NavigableMap<Long, CSV> ipLookup)
+    private final long[] startHigh;
+    private final long[] startLow;
+    private final long[] endHigh;
+    private final long[] endLow;
+
+    private final String[] dictionary;
+    private final int[] country;
+    private final int[] region;
+    private final int[] city;
+    private final double[] latitude;
+    private final double[] longitude;
+
+    private IPReader(Builder builder)
     {
-        this.ipLookup = ipLookup;
+        int size = builder.size;
+        this.startHigh = builder.hasIPv6 ? Arrays.copyOf(builder.startHigh, size) : null;
+        this.endHigh = builder.hasIPv6 ? Arrays.copyOf(builder.endHigh, size) : null;
+        this.startLow = Arrays.copyOf(builder.startLow, size);
+        this.endLow = Arrays.copyOf(builder.endLow, size);
+        this.country = Arrays.copyOf(builder.country, size);
+        this.region = Arrays.copyOf(builder.region, size);
+        this.city = Arrays.copyOf(builder.city, size);
+        this.latitude = Arrays.copyOf(builder.latitude, size);
+        this.longitude = Arrays.copyOf(builder.longitude, size);
+        this.dictionary = builder.dictionary.toArray();
     }
 
     public static IPReader build(String dbPath)
             throws IOException
     {
-        File ipdb = new File(dbPath);
-        InputStream inputStream = new FileInputStream(ipdb);
-        return build(inputStream);
+        return build(new File(dbPath));
+    }
+
+    public static IPReader build(File database)
+            throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(database, "r");
+                FileChannel channel = file.getChannel()) {
+            return build(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
     }
 
     public static IPReader build(InputStream inputStream)
             throws IOException
     {
-        NavigableMap<Long, CSV> lookup = new ConcurrentSkipListMap<>();
+        try (InputStream stream = inputStream) {
+            return build(ByteBuffer.wrap(ByteStreams.toByteArray(stream)));
+        }
+    }
+
+    private static IPReader build(ByteBuffer buffer)
+    {
+        Builder builder = new Builder();
+        LineParser parser = new LineParser(buffer);
+        while (parser.next()) {
+            builder.add(parser);
+        }
+        builder.sortIfNecessary();
+        return new IPReader(builder);
+    }
+
+    public int size()
+    {
+        return startLow.length;
+    }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-        while (reader.ready()) {
-            CSV csv = CSV.parse(reader.readLine());
-            lookup.put(csv.ipStart, csv);
+    /**
+     * Returns the index of the range that contains the address or -1 if the database doesn't cover it.
+     * The attributes of the range can be fetched with {@link #getCountry(int)}, {@link #getRegion(int)},
+     * {@link #getCity(int)}, {@link #getLatitude(int)} and {@link #getLongitude(int)}.
+     */
+    public int find(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+        if (address instanceof Inet4Address) {
+            long ip = toLong(bytes, 0, 4);
+            int idx = find(0, ip);
+            // IPv6 databases store IPv4 ranges as IPv4-mapped addresses.
+            return idx == NOT_FOUND && startHigh != null ? find(0, IPV4_MAPPED_PREFIX | ip) : idx;
         }
-        reader.close();
 
-        return new IPReader(lookup);
+        return find(toLong(bytes, 0, 8), toLong(bytes, 8, 16));
+    }
+
+    private int find(long high, long low)
+    {
+        if (startHigh == null && high != 0) {
+            return NOT_FOUND;
+        }
+
+        // find the last range that starts before the address
+        int lo = 0;
+        int hi = startLow.length - 1;
+        int candidate = NOT_FOUND;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(startHigh == null ? 0 : startHigh[mid], startLow[mid], high, low) <= 0) {
+                candidate = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+
+        if (candidate == NOT_FOUND || compare(endHigh == null ? 0 : endHigh[candidate], endLow[candidate], high, low) < 0) {
+            return NOT_FOUND;
+        }
+
+        return candidate;
+    }
+
+    public String getCountry(int idx)
+    {
+        return dictionary[country[idx]];
+    }
+
+    public String getRegion(int idx)
+    {
+        return dictionary[region[idx]];
+    }
+
+    public String getCity(int idx)
+    {
+        return dictionary[city[idx]];
+    }
+
+    public double getLatitude(int idx)
+    {
+        return latitude[idx];
+    }
+
+    public double getLongitude(int idx)
+    {
+        return longitude[idx];
     }
 
-    public GeoLocation lookup(String ipAddress)
-            throws UnknownHostException
+    private static int compare(long high1, long low1, long high2, long low2)
     {
-        InetAddress inetAddress = InetAddress.getByName(ipAddress);
-        return lookup(inetAddress);
+        int compare = Long.compareUnsigned(high1, high2);
+        return compare != 0 ? compare : Long.compareUnsigned(low1, low2);
     }
 
-    public GeoLocation lookup(InetAddress inetAddress)
+    private static long toLong(byte[] address, int from, int to)
     {
-        return lookup(IP4Converter.toLong(inetAddress.getAddress()));
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 8) | (address[i] & 0xFF);
+        }
+        return value;
     }
 
-    private GeoLocation lookup(Long address)
+    private static class Builder
     {
-        Map.Entry<Long, CSV> entry = ipLookup.lowerEntry(address);
-        if (entry == null) {
-            return null;
+        private final Dictionary dictionary = new Dictionary();
+        private long[] startHigh = new long[1024];
+        private long[] startLow = new long[1024];
+        private long[] endHigh = new long[1024];
+        private long[] endLow = new long[1024];
+        private int[] country = new int[1024];
+        private int[] region = new int[1024];
+        private int[] city = new int[1024];
+        private double[] latitude = new double[1024];
+        private double[] longitude = new double[1024];
+        private boolean hasIPv6;
+        private boolean sorted = true;
+        private int size;
+
+        void add(LineParser line)
+        {
+            if (size == startLow.length) {
+                grow(size * 2);
+            }
+
+            line.parseAddress(0);
+            startHigh[size] = line.high;
+            startLow[size] = line.low;
+            line.parseAddress(1);
+            endHigh[size] = line.high;
+            endLow[size] = line.low;
+            hasIPv6 |= startHigh[size] != 0 || endHigh[size] != 0;
+
+            // the country code at index 2 is not exposed, we keep the country name as before.
+            country[size] = dictionary.encode(line.getString(3));
+            region[size] = dictionary.encode(line.getString(4));
+            city[size] = dictionary.encode(line.getString(5));
+            latitude[size] = Double.parseDouble(line.getString(6));
+            longitude[size] = Double.parseDouble(line.getString(7));
+
+            if (size > 0 && compare(startHigh[size - 1], startLow[size - 1], startHigh[size], startLow[size]) > 0) {
+                sorted = false;
+            }
+            size++;
+        }
+
+        void sortIfNecessary()
+        {
+            if (sorted) {
+                return;
+            }
+
+            // IP2Location ships the databases sorted, this is only a safety net for hand-crafted files.
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> compare(startHigh[a], startLow[a], startHigh[b], startLow[b]));
+
+            long[] startHigh = new long[size], startLow = new long[size], endHigh = new long[size], endLow = new long[size];
+            int[] country = new int[size], region = new int[size], city = new int[size];
+            double[] latitude = new double[size], longitude = new double[size];
+            for (int i = 0; i < size; i++) {
+                int from = order[i];
+                startHigh[i] = this.startHigh[from];
+                startLow[i] = this.startLow[from];
+                endHigh[i] = this.endHigh[from];
+                endLow[i] = this.endLow[from];
+                country[i] = this.country[from];
+                region[i] = this.region[from];
+                city[i] = this.city[from];
+                latitude[i] = this.latitude[from];
+                longitude[i] = this.longitude[from];
+            }
+
+            this.startHigh = startHigh;
+            this.startLow = startLow;
+            this.endHigh = endHigh;
+            this.endLow = endLow;
+            this.country = country;
+            this.region = region;
+            this.city = city;
+            this.latitude = latitude;
+            this.longitude = longitude;
         }
 
-        CSV csv = entry.getValue();
-        if (csv.ipEnd < address) {
-            return null;
+        private void grow(int capacity)
+        {
+            startHigh = Arrays.copyOf(startHigh, capacity);
+            startLow = Arrays.copyOf(startLow, capacity);
+            endHigh = Arrays.copyOf(endHigh, capacity);
+            endLow = Arrays.copyOf(endLow, capacity);
+            country = Arrays.copyOf(country, capacity);
+            region = Arrays.copyOf(region, capacity);
+            city = Arrays.copyOf(city, capacity);
+            latitude = Arrays.copyOf(latitude, capacity);
+            longitude = Arrays.copyOf(longitude, capacity);
+        }
+    }
+
+    private static class Dictionary
+    {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private String[] values = new String[256];
+
+        int encode(String value)
+        {
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+
+            id = ids.size();
+            if (id == values.length) {
+                values = Arrays.copyOf(values, id * 2);
+            }
+            values[id] = value;
+            ids.put(value, id);
+            return id;
         }
 
-        return GeoLocation.of(csv.country, csv.stateProv, csv.city, Coordination.of(csv.latitude, csv.longitude));
+        String[] toArray()
+        {
+            return Arrays.copyOf(values, ids.size());
+        }
     }
 
-    private Long toLong(byte[] address)
+    /**
+     * Parses the quoted CSV lines of IP2Location databases directly from the (memory-mapped) buffer
+     * without creating an intermediate String per line.
+     */
+    private static class LineParser
     {
-        return new BigInteger(address).longValue();
+        private static final int FIELD_COUNT = 8;
+
+        private final ByteBuffer buffer;
+        private final int[] fieldStart = new int[FIELD_COUNT];
+        private final int[] fieldEnd = new int[FIELD_COUNT];
+        private int lineStart;
+        private long high;
+        private long low;
+
+        LineParser(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        boolean next()
+        {
+            int limit = buffer.limit();
+            int position = buffer.position();
+
+            // skip empty lines
+            while (position < limit && (buffer.get(position) == '\n' || buffer.get(position) == '\r')) {
+                position++;
+            }
+            if (position >= limit) {
+                return false;
+            }
+
+            lineStart = position;
+            int field = 0;
+            boolean quoted = false;
+            int start = position;
+            while (position < limit) {
+                byte b = buffer.get(position);
+                if (b == '"') {
+                    quoted = !quoted;
+                }
+                else if (!quoted && (b == ',' || b == '\n' || b == '\r')) {
+                    if (field < FIELD_COUNT) {
+                        setField(field, start, position);
+                    }
+                    field++;
+                    start = position + 1;
+                    if (b != ',') {
+                        break;
+                    }
+                }
+                position++;
+            }
+
+            if (position == limit && field < FIELD_COUNT) {
+                setField(field++, start, position);
+            }
+
+            buffer.position(Math.min(position + 1, limit));
+
+            if (field < FIELD_COUNT) {
+                throw new IllegalArgumentException(String.format("CSV doesn't match the pattern. (%s)",
+                        decode(lineStart, position)));
+            }
+
+            return true;
+        }
+
+        private void setField(int field, int start, int end)
+        {
+            if (end - start >= 2 && buffer.get(start) == '"' && buffer.get(end - 1) == '"') {
+                start++;
+                end--;
+            }
+            fieldStart[field] = start;
+            fieldEnd[field] = end;
+        }
+
+        String getString(int field)
+        {
+            return decode(fieldStart[field], fieldEnd[field]);
+        }
+
+        void parseAddress(int field)
+        {
+            int start = fieldStart[field];
+            int end = fieldEnd[field];
+
+            // IPv4 and most of the IPv6 ranges fit in a signed long, use BigInteger only for the rest
+            if (end - start < 19) {
+                long value = 0;
+                for (int i = start; i < end; i++) {
+                    int digit = buffer.get(i) - '0';
+                    if (digit < 0 || digit > 9) {
+                        throw new IllegalArgumentException(String.format("CSV doesn't match the pattern. (%s)",
+                                decode(lineStart, end)));
+                    }
+                    value = value * 10 + digit;
+                }
+                high = 0;
+                low = value;
+            }
+            else {
+                BigInteger value = new BigInteger(getString(field));
+                high = value.shiftRight(64).longValue();
+                low = value.longValue();
+            }
+        }
+
+        private String decode(int start, int end)
+        {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
     }
 }
@@ -0,0 +1,53 @@
+package org.rakam.collection.mapper.geoip.maxmind.ip2location;
+
+import com.google.common.net.InetAddresses;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+
+public class TestIPReader
+{
+    private static final String IPV4_DATABASE = "" +
+            "\"0\",\"16777215\",\"-\",\"-\",\"-\",\"-\",\"0.000000\",\"0.000000\"\n" +
+            "\"134744064\",\"134744319\",\"US\",\"United States\",\"California\",\"Mountain View\",\"37.405992\",\"-122.078515\"\r\n" +
+            "\"3232235520\",\"3232301055\",\"KR\",\"Korea, Republic of\",\"Seoul\",\"Seoul\",\"37.566000\",\"126.978300\"";
+
+    private static final String IPV6_DATABASE = "" +
+            "\"281470816487424\",\"281470816487679\",\"US\",\"United States\",\"California\",\"Mountain View\",\"37.405992\",\"-122.078515\"\n" +
+            "\"42541956101370907050197289607612071936\",\"42541956180599069564461627201156022271\",\"US\",\"United States\",\"California\",\"Mountain View\",\"37.405992\",\"-122.078515\"\n";
+
+    @Test
+    public void testIPv4Lookup()
+            throws IOException
+    {
+        IPReader reader = IPReader.build(new ByteArrayInputStream(IPV4_DATABASE.getBytes(UTF_8)));
+        assertEquals(reader.size(), 3);
+
+        int idx = reader.find(InetAddresses.forString("8.8.8.8"));
+        assertEquals(reader.getCountry(idx), "United States");
+        assertEquals(reader.getRegion(idx), "California");
+        assertEquals(reader.getCity(idx), "Mountain View");
+        assertEquals(reader.getLatitude(idx), 37.405992);
+        assertEquals(reader.getLongitude(idx), -122.078515);
+
+        assertEquals(reader.getCountry(reader.find(InetAddresses.forString("192.168.1.1"))), "Korea, Republic of");
+        assertEquals(reader.find(InetAddresses.forString("9.9.9.9")), -1);
+        assertEquals(reader.find(InetAddresses.forString("2001:4860:4860::8888")), -1);
+    }
+
+    @Test
+    public void testIPv6Lookup()
+            throws IOException
+    {
+        IPReader reader = IPReader.build(new ByteArrayInputStream(IPV6_DATABASE.getBytes(UTF_8)));
+
+        assertEquals(reader.getCity(reader.find(InetAddresses.forString("2001:4860:4860::8888"))), "Mountain View");
+        // IPv4 addresses are looked up as IPv4-mapped addresses
+        assertEquals(reader.getCity(reader.find(InetAddresses.forString("8.8.8.8"))), "Mountain View");
+        assertEquals(reader.find(InetAddresses.forString("2001:4861::1")), -1);
+    }
+}
@@ -1,10 +1,15 @@
 package org.rakam.collection.mapper.geoip.maxmind;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.maxmind.db.Reader;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.AddressNotFoundException;
@@ -23,18 +28,21 @@ import org.rakam.collection.SchemaField;
 import org.rakam.plugin.SyncEventMapper;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
+import org.rakam.util.DatabaseDownloader;
 import org.rakam.util.MapProxyGenericRecord;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.URL;
-import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.stream.Collectors;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.rakam.collection.FieldType.STRING;
 
 @Mapper(name = "Maxmind Event mapper", description = "Looks up geolocation data from _ip field using Maxmind and attaches geo-related attributed")
@@ -48,16 +56,18 @@ public class MaxmindGeoIPEventMapper
             .of("city", "region", "country_code", "latitude", "longitude", "timezone");
 
     private final String[] attributes;
-    private final DatabaseReader connectionTypeLookup;
-    private final DatabaseReader ispLookup;
-    private final DatabaseReader cityLookup;
+    private final DatabaseHolder connectionTypeLookup;
+    private final DatabaseHolder ispLookup;
+    private final DatabaseHolder cityLookup;
+    private final Cache<InetAddress, GeoIPResult> cache;
+    private final ScheduledExecutorService executor;
 
     public MaxmindGeoIPEventMapper(MaxmindGeoIPModuleConfig config)
             throws IOException
     {
         Preconditions.checkNotNull(config, "config is null");
 
-        DatabaseReader connectionTypeLookup = null, ispLookup = null, cityLookup = null;
+        DatabaseHolder connectionTypeLookup = null, ispLookup = null, cityLookup = null;
         if (config.getAttributes() != null) {
             for (String attr : config.getAttributes()) {
                 if (CITY_DATABASE_ATTRIBUTES.contains(attr)) {
@@ -102,29 +112,87 @@ public class MaxmindGeoIPEventMapper
             }
         }
 
-        if (config.getIspDatabaseUrl() != null) {
+        if (config.getIspDatabaseUrl() != null && ispLookup == null) {
             ispLookup = getReader(config.getIspDatabaseUrl());
         }
-        if (config.getConnectionTypeDatabaseUrl() != null) {
+        if (config.getConnectionTypeDatabaseUrl() != null && connectionTypeLookup == null) {
             connectionTypeLookup = getReader(config.getConnectionTypeDatabaseUrl());
         }
 
         this.cityLookup = cityLookup;
         this.ispLookup = ispLookup;
         this.connectionTypeLookup = connectionTypeLookup;
+
+        // NAT'd clients share a few addresses, most of the lookups hit the same entries.
+        this.cache = config.getIpCacheSize() > 0 ?
+                CacheBuilder.newBuilder().maximumSize(config.getIpCacheSize()).build() : null;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("maxmind-database-refresher").setDaemon(true).build());
+        long refreshInterval = config.getRefreshInterval().toMillis();
+        if (refreshInterval > 0) {
+            executor.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, MILLISECONDS);
+        }
     }
 
-    private DatabaseReader getReader(URL url)
+    private DatabaseHolder getReader(URL url)
     {
         try {
-            FileInputStream cityDatabase = new FileInputStream(MaxmindGeoIPModule.downloadOrGetFile(url));
-            return new DatabaseReader.Builder(cityDatabase).fileMode(Reader.FileMode.MEMORY).build();
+            File database = DatabaseDownloader.downloadOrGetFile(url);
+            return new DatabaseHolder(url, openReader(database), database.lastModified());
         }
         catch (Exception e) {
             throw Throwables.propagate(e);
         }
     }
 
+    private static DatabaseReader openReader(File database)
+            throws IOException
+    {
+        // the database is mapped by the OS page cache instead of being copied to the heap
+        return new DatabaseReader.Builder(database).fileMode(Reader.FileMode.MEMORY_MAPPED).build();
+    }
+
+    private void refresh()
+    {
+        boolean updated = false;
+        for (DatabaseHolder holder : new DatabaseHolder[] {cityLookup, ispLookup, connectionTypeLookup}) {
+            if (holder == null) {
+                continue;
+            }
+
+            try {
+                File database = DatabaseDownloader.downloadIfModified(holder.url, holder.timestamp);
+                if (database == null) {
+                    continue;
+                }
+
+                DatabaseReader oldReader = holder.reader;
+                holder.reader = openReader(database);
+                holder.timestamp = database.lastModified();
+                updated = true;
+
+                // the lookups that are still using the old reader must finish before we unmap it.
+                executor.schedule(() -> {
+                    try {
+                        oldReader.close();
+                    }
+                    catch (IOException e) {
+                        LOGGER.warn(e, "Unable to close Maxmind database %s", holder.url);
+                    }
+                }, 1, MINUTES);
+                LOGGER.info("Reloaded Maxmind database %s", holder.url);
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while refreshing Maxmind database %s", holder.url);
+            }
+        }
+
+        if (updated && cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
     @Override
     public List<Cookie> map(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders)
     {
@@ -132,13 +200,7 @@ public class MaxmindGeoIPEventMapper
 
         InetAddress addr;
         if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                addr = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return null;
-            }
+            addr = parseAddress((String) ip);
         }
         else if (Boolean.TRUE == ip) {
             addr = sourceAddress;
@@ -159,18 +221,7 @@ public class MaxmindGeoIPEventMapper
             return null;
         }
 
-        if (connectionTypeLookup != null) {
-            setConnectionType(addr, event.properties());
-        }
-
-        if (ispLookup != null) {
-            setIsp(addr, event.properties());
-        }
-
-        if (cityLookup != null) {
-            setGeoFields(addr, event.properties());
-        }
-
+        setFields(addr, event.properties());
         return null;
     }
 
@@ -191,39 +242,97 @@ public class MaxmindGeoIPEventMapper
 
     public void mapInternal(ObjectNode data, InetAddress sourceAddress)
     {
-        Object ip = data.get("_ip");
+        JsonNode ip = data.get("_ip");
 
         if (ip == null) {
             return;
         }
 
-        if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                sourceAddress = Inet4Address.getByName((String) ip);
-            }
-            catch (UnknownHostException e) {
-                return;
-            }
+        if (ip.isTextual()) {
+            sourceAddress = parseAddress(ip.textValue());
         }
 
         if(sourceAddress == null) {
             return;
         }
 
-        GenericRecord record = new MapProxyGenericRecord(data);
+        setFields(sourceAddress, new MapProxyGenericRecord(data));
+    }
 
+    private static InetAddress parseAddress(String ip)
+    {
+        try {
+            // unlike InetAddress.getByName, it doesn't fall back to hostname resolution for invalid literals.
+            return InetAddresses.forString(ip);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void setFields(InetAddress address, GenericRecord properties)
+    {
+        GeoIPResult result;
+        if (cache != null) {
+            result = cache.getIfPresent(address);
+            if (result == null) {
+                result = lookup(address);
+                cache.put(address, result);
+            }
+        }
+        else {
+            result = lookup(address);
+        }
+
+        if (result.connectionType != null) {
+            properties.put("_connection_type", result.connectionType);
+        }
+
+        if (result.isp != null) {
+            properties.put("_isp", result.isp);
+        }
+
+        if (result.cityFound) {
+            for (String attribute : attributes) {
+                switch (attribute) {
+                    case "country_code":
+                        properties.put("_country_code", result.countryCode);
+                        break;
+                    case "region":
+                        properties.put("_region", result.region);
+                        break;
+                    case "city":
+                        properties.put("_city", result.city);
+                        break;
+                    case "latitude":
+                        properties.put("_latitude", result.latitude);
+                        break;
+                    case "longitude":
+                        properties.put("_longitude", result.longitude);
+                        break;
+                    case "timezone":
+                        properties.put("_timezone", result.timezone);
+                        break;
+                }
+            }
+        }
+    }
+
+    private GeoIPResult lookup(InetAddress address)
+    {
+        GeoIPResult result = new GeoIPResult();
         if (connectionTypeLookup != null) {
-            setConnectionType(sourceAddress, record);
+            setConnectionType(address, result);
         }
 
         if (ispLookup != null) {
-            setIsp(sourceAddress, record);
+            setIsp(address, result);
         }
 
         if (cityLookup != null) {
-            setGeoFields(sourceAddress, record);
+            setGeoFields(address, result);
         }
+        return result;
     }
 
     @Override
@@ -260,11 +369,11 @@ public class MaxmindGeoIPEventMapper
         }
     }
 
-    private void setConnectionType(InetAddress address, GenericRecord properties)
+    private void setConnectionType(InetAddress address, GeoIPResult result)
     {
         ConnectionTypeResponse connectionType;
         try {
-            connectionType = connectionTypeLookup.connectionType(address);
+            connectionType = connectionTypeLookup.reader.connectionType(address);
         }
         catch (AddressNotFoundException e) {
             return;
@@ -274,14 +383,14 @@ public class MaxmindGeoIPEventMapper
             return;
         }
 
-        properties.put("_connection_type", connectionType.getConnectionType().name());
+        result.connectionType = connectionType.getConnectionType().name();
     }
 
-    private void setIsp(InetAddress address, GenericRecord properties)
+    private void setIsp(InetAddress address, GeoIPResult result)
     {
         IspResponse isp;
         try {
-            isp = ispLookup.isp(address);
+            isp = ispLookup.reader.isp(address);
         }
         catch (AddressNotFoundException e) {
             return;
@@ -291,15 +400,15 @@ public class MaxmindGeoIPEventMapper
             return;
         }
 
-        properties.put("_isp", isp.getIsp());
+        result.isp = isp.getIsp();
     }
 
-    private void setGeoFields(InetAddress address, GenericRecord properties)
+    private void setGeoFields(InetAddress address, GeoIPResult result)
     {
         CityResponse city;
 
         try {
-            city = cityLookup.city(address);
+            city = cityLookup.reader.city(address);
         }
         catch (AddressNotFoundException e) {
             return;
@@ -309,27 +418,39 @@ public class MaxmindGeoIPEventMapper
             return;
         }
 
-        for (String attribute : attributes) {
-            switch (attribute) {
-                case "country_code":
-                    properties.put("_country_code", city.getCountry().getIsoCode());
-                    break;
-                case "region":
-                    properties.put("_region", city.getContinent().getName());
-                    break;
-                case "city":
-                    properties.put("_city", city.getCity().getName());
-                    break;
-                case "latitude":
-                    properties.put("_latitude", city.getLocation().getLatitude());
-                    break;
-                case "longitude":
-                    properties.put("_longitude", city.getLocation().getLongitude());
-                    break;
-                case "timezone":
-                    properties.put("_timezone", city.getLocation().getTimeZone());
-                    break;
-            }
+        result.cityFound = true;
+        result.countryCode = city.getCountry().getIsoCode();
+        result.region = city.getContinent().getName();
+        result.city = city.getCity().getName();
+        result.latitude = city.getLocation().getLatitude();
+        result.longitude = city.getLocation().getLongitude();
+        result.timezone = city.getLocation().getTimeZone();
+    }
+
+    private static class DatabaseHolder
+    {
+        private final URL url;
+        private volatile DatabaseReader reader;
+        private volatile long timestamp;
+
+        private DatabaseHolder(URL url, DatabaseReader reader, long timestamp)
+        {
+            this.url = url;
+            this.reader = reader;
+            this.timestamp = timestamp;
         }
     }
+
+    private static class GeoIPResult
+    {
+        private String connectionType;
+        private String isp;
+        private boolean cityFound;
+        private String countryCode;
+        private String region;
+        private String city;
+        private Double latitude;
+        private Double longitude;
+        private String timezone;
+    }
 }
@@ -5,6 +5,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import io.airlift.configuration.Config;
 import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -29,6 +30,8 @@ public class MaxmindGeoIPModuleConfig
     private URL ispDatabaseUrl;
     private URL connectionTypeDatabaseUrl;
     private boolean useExistingFields;
+    private Duration refreshInterval = Duration.valueOf("1d");
+    private int ipCacheSize = 100000;
 
     @Config("plugin.geoip.database.url")
     public MaxmindGeoIPModuleConfig setDatabaseUrl(URL url)
@@ -85,4 +88,28 @@ public class MaxmindGeoIPModuleConfig
     public boolean getUseExistingFields() {
         return useExistingFields;
     }
+
+    @Config("plugin.geoip.database.refresh-interval")
+    @ConfigDescription("The interval for checking the database urls for new versions, the updated databases are swapped without restart.")
+    public MaxmindGeoIPModuleConfig setRefreshInterval(String refreshInterval)
+    {
+        this.refreshInterval = Duration.valueOf(refreshInterval);
+        return this;
+    }
+
+    public Duration getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    @Config("plugin.geoip.ip-cache-size")
+    @ConfigDescription("The maximum number of ip addresses whose lookup results are cached, 0 disables the cache.")
+    public MaxmindGeoIPModuleConfig setIpCacheSize(int ipCacheSize)
+    {
+        this.ipCacheSize = ipCacheSize;
+        return this;
+    }
+
+    public int getIpCacheSize() {
+        return ipCacheSize;
+    }
 }
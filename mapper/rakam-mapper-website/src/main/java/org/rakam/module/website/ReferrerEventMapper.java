@@ -1,51 +1,50 @@
 package org.rakam.module.website;
 
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.snowplowanalytics.refererparser.CorruptYamlException;
-import com.snowplowanalytics.refererparser.Medium;
-import com.snowplowanalytics.refererparser.Parser;
-import com.snowplowanalytics.refererparser.Referer;
-import io.airlift.log.Logger;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.cookie.Cookie;
 import org.apache.avro.generic.GenericRecord;
 import org.rakam.Mapper;
 import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
-import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.SyncEventMapper;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
+import org.rakam.module.website.WebsiteMapperCache.ParsedReferrer;
+import org.rakam.module.website.WebsiteMapperCache.ReferrerKey;
 import org.rakam.util.MapProxyGenericRecord;
 
-import java.io.IOException;
+import javax.inject.Inject;
+
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Mapper(name = "Website Referrer Event mapper", description = "Parses referrer string and attaches new field related with the referrer of the user")
 public class ReferrerEventMapper
         implements SyncEventMapper, UserPropertyMapper
 {
-    private final static Logger LOGGER = Logger.get(ReferrerEventMapper.class);
-
-    private final Parser parser;
+    private final WebsiteMapperCache cache;
 
     public ReferrerEventMapper()
     {
-        try {
-            parser = new Parser();
-        }
-        catch (IOException | CorruptYamlException e) {
-            throw Throwables.propagate(e);
-        }
+        this(new WebsiteMapperCache(new WebsiteMapperConfig()));
+    }
+
+    @Inject
+    public ReferrerEventMapper(WebsiteMapperCache cache)
+    {
+        this.cache = cache;
     }
 
-    private void mapInternal(RequestParams extraProperties, Object referrer, Object host, GenericRecord record)
+    private void mapInternal(RequestParams extraProperties, Object referrer, Object host, GenericRecord record, Map<ReferrerKey, ParsedReferrer> parsedReferrers)
     {
         String hostUrl, referrerUrl;
         if (referrer instanceof Boolean && ((Boolean) referrer).booleanValue()) {
@@ -73,49 +72,41 @@ public class ReferrerEventMapper
             }
         }
 
-        Referer parse;
-        URI referrerUri;
+        if (referrerUrl == null) {
+            return;
+        }
 
-        if (referrerUrl != null) {
-            try {
-                referrerUri = new URI(referrerUrl);
-            }
-            catch (URISyntaxException e) {
-                return;
-            }
+        ParsedReferrer parse;
+        if (parsedReferrers == null) {
+            parse = cache.getReferrer(referrerUrl, hostUrl);
+        }
+        else {
+            parse = parsedReferrers.computeIfAbsent(new ReferrerKey(referrerUrl, hostUrl),
+                    key -> cache.getReferrer(key.referrer, key.host));
+        }
 
-            try {
-                parse = parser.parse(referrerUri, hostUrl);
-            }
-            catch (Exception e) {
-                LOGGER.warn(e, "Error while parsing referrer");
-                return;
-            }
+        if (parse == null) {
+            return;
+        }
 
-            if (parse == null) {
-                return;
-            }
+        if (record.get("_referrer_medium") == null) {
+            record.put("_referrer_medium", parse.medium);
+        }
+        if (record.get("_referrer_source") == null) {
+            record.put("_referrer_source", parse.source);
+        }
 
-            if (record.get("_referrer_medium") == null) {
-                record.put("_referrer_medium", parse.medium != null ? parse.medium.toString().toLowerCase() : null);
-            }
-            if (record.get("_referrer_source") == null) {
-                record.put("_referrer_source", parse.source);
-            }
+        if (record.get("_referrer_term") == null) {
+            record.put("_referrer_term", parse.term);
+        }
 
-            if (record.get("_referrer_term") == null) {
-                record.put("_referrer_term", parse.term);
+        if (parse.external) {
+            if (record.get("_referrer_domain") == null) {
+                record.put("_referrer_domain", parse.domain);
             }
 
-            if (parse.medium != Medium.INTERNAL) {
-                if (record.get("_referrer_domain") == null) {
-                    record.put("_referrer_domain", referrerUri.getHost());
-                }
-
-                if (record.get("_referrer_path") == null) {
-                    record.put("_referrer_path", referrerUri.getPath() +
-                            (referrerUri.getQuery() == null ? "" : ("?" + referrerUri.getQuery())));
-                }
+            if (record.get("_referrer_path") == null) {
+                record.put("_referrer_path", parse.path);
             }
         }
     }
@@ -125,24 +116,44 @@ public class ReferrerEventMapper
     {
         Object referrer = event.properties().get("_referrer");
         Object host = event.properties().get("_host");
-        mapInternal(extraProperties, referrer, host, event.properties());
+        mapInternal(extraProperties, referrer, host, event.properties(), null);
+        return null;
+    }
+
+    @Override
+    public List<Cookie> map(EventList events, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        // the events in a batch usually share the referrer so each distinct value is parsed once.
+        Map<ReferrerKey, ParsedReferrer> parsedReferrers = new HashMap<>();
+        for (Event event : events.events) {
+            GenericRecord properties = event.properties();
+            mapInternal(extraProperties, properties.get("_referrer"), properties.get("_host"), properties, parsedReferrers);
+        }
         return null;
     }
 
+    @Override
+    public CompletableFuture<List<Cookie>> mapAsync(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        List<Cookie> map = map(events, requestParams, sourceAddress, responseHeaders);
+        return map == null ? COMPLETED_EMPTY_FUTURE : CompletableFuture.completedFuture(map);
+    }
+
     @Override
     public List<Cookie> map(String project, List<? extends ISingleUserBatchOperation> user, RequestParams extraProperties, InetAddress sourceAddress)
     {
+        Map<ReferrerKey, ParsedReferrer> parsedReferrers = new HashMap<>();
         for (ISingleUserBatchOperation data : user) {
             if (data.getSetProperties() != null) {
-                mapInternal(extraProperties, data.getSetProperties().get("_referrer"),
-                        data.getSetProperties().get("_host"),
-                        new MapProxyGenericRecord(data.getSetProperties()));
+                mapInternal(extraProperties, WebsiteMapperCache.unwrap(data.getSetProperties().get("_referrer")),
+                        WebsiteMapperCache.unwrap(data.getSetProperties().get("_host")),
+                        new MapProxyGenericRecord(data.getSetProperties()), parsedReferrers);
             }
 
             if (data.getSetPropertiesOnce() != null) {
-                mapInternal(extraProperties, data.getSetPropertiesOnce().get("_referrer"),
-                        data.getSetPropertiesOnce().get("_host"),
-                        new MapProxyGenericRecord(data.getSetProperties()));
+                mapInternal(extraProperties, WebsiteMapperCache.unwrap(data.getSetPropertiesOnce().get("_referrer")),
+                        WebsiteMapperCache.unwrap(data.getSetPropertiesOnce().get("_host")),
+                        new MapProxyGenericRecord(data.getSetPropertiesOnce()), parsedReferrers);
             }
         }
         return null;
@@ -1,6 +1,5 @@
 package org.rakam.module.website;
 
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -8,50 +7,51 @@ import io.netty.handler.codec.http.cookie.Cookie;
 import org.apache.avro.generic.GenericRecord;
 import org.rakam.Mapper;
 import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
-import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.SyncEventMapper;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.util.MapProxyGenericRecord;
-import ua_parser.CachingParser;
 import ua_parser.Client;
-import ua_parser.Parser;
 
 import javax.inject.Inject;
-import java.io.IOException;
 import java.net.InetAddress;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Mapper(name = "User Agent Event mapper", description = "Parses user agent string and attaches new field related with the user agent of the user")
 public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper {
-    private final Parser uaParser;
+    private final WebsiteMapperCache cache;
     private final boolean trackSpiders;
 
-    @Inject
     public UserAgentEventMapper(WebsiteMapperConfig config) {
-        try {
-            uaParser = new CachingParser();
-        } catch (IOException e) {
-            throw Throwables.propagate(e);
-        }
+        this(config, new WebsiteMapperCache(config));
+    }
+
+    @Inject
+    public UserAgentEventMapper(WebsiteMapperConfig config, WebsiteMapperCache cache) {
+        this.cache = cache;
         this.trackSpiders = config.getTrackSpiders();
     }
 
     @Override
     public List<Cookie> map(String project, List<? extends ISingleUserBatchOperation> user, RequestParams requestParams, InetAddress sourceAddress) {
+        Map<String, Client> parsedAgents = new HashMap<>();
         for (ISingleUserBatchOperation data : user) {
             if(data.getSetProperties() != null) {
                 mapInternal(requestParams, new MapProxyGenericRecord(data.getSetProperties()),
-                        data.getSetProperties().get("_user_agent"));
+                        WebsiteMapperCache.unwrap(data.getSetProperties().get("_user_agent")), parsedAgents);
             }
 
             if(data.getSetPropertiesOnce() != null) {
                 mapInternal(requestParams, new MapProxyGenericRecord(data.getSetPropertiesOnce()),
-                        data.getSetPropertiesOnce().get("_user_agent"));
+                        WebsiteMapperCache.unwrap(data.getSetPropertiesOnce().get("_user_agent")), parsedAgents);
             }
         }
         return null;
@@ -60,11 +60,28 @@ public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper
     @Override
     public List<Cookie> map(Event event, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders) {
         GenericRecord properties = event.properties();
-        mapInternal(extraProperties, properties, properties.get("_user_agent"));
+        mapInternal(extraProperties, properties, properties.get("_user_agent"), null);
         return null;
     }
 
-    private void mapInternal(RequestParams extraProperties, GenericRecord properties, Object agent) {
+    @Override
+    public List<Cookie> map(EventList events, RequestParams extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+        // the events in a batch usually come from the same client so each distinct user agent is parsed once.
+        Map<String, Client> parsedAgents = new HashMap<>();
+        for (Event event : events.events) {
+            GenericRecord properties = event.properties();
+            mapInternal(extraProperties, properties, properties.get("_user_agent"), parsedAgents);
+        }
+        return null;
+    }
+
+    @Override
+    public CompletableFuture<List<Cookie>> mapAsync(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+        List<Cookie> map = map(events, requestParams, sourceAddress, responseHeaders);
+        return map == null ? COMPLETED_EMPTY_FUTURE : CompletableFuture.completedFuture(map);
+    }
+
+    private void mapInternal(RequestParams extraProperties, GenericRecord properties, Object agent, Map<String, Client> parsedAgents) {
         String userAgent;
         if (agent instanceof Boolean && ((Boolean) agent).booleanValue()) {
             userAgent = extraProperties.headers().get("User-Agent");
@@ -75,10 +92,9 @@ public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper
         }
 
         if (userAgent != null) {
-            Client parsed;
-            try {
-                parsed = uaParser.parse(userAgent);
-            } catch (Exception e) {
+            Client parsed = parsedAgents == null ? cache.getUserAgent(userAgent)
+                    : parsedAgents.computeIfAbsent(userAgent, cache::getUserAgent);
+            if (parsed == null) {
                 return;
             }
 
@@ -87,7 +103,7 @@ public class UserAgentEventMapper implements SyncEventMapper, UserPropertyMapper
                 throw new HttpRequestException("Spiders are not allowed in Rakam Analytics.", HttpResponseStatus.FORBIDDEN);
             }
 
-            if (properties.get("user_agent_family") == null) {
+            if (parsed.userAgent != null && properties.get("user_agent_family") == null) {
                 properties.put("_user_agent_family", parsed.userAgent.family);
             }
 
@@ -30,6 +30,7 @@ public class WebsiteEventMapperModule
         Multibinder<EventMapper> eventMappers = Multibinder.newSetBinder(binder, EventMapper.class);
 
         WebsiteMapperConfig config = buildConfigObject(WebsiteMapperConfig.class);
+        binder.bind(WebsiteMapperCache.class).in(Scopes.SINGLETON);
         if (config.getReferrer()) {
             eventMappers.addBinding().to(ReferrerEventMapper.class).in(Scopes.SINGLETON);
             userPropertyMappers.addBinding().to(ReferrerEventMapper.class).in(Scopes.SINGLETON);
@@ -0,0 +1,257 @@
+package org.rakam.module.website;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.snowplowanalytics.refererparser.CorruptYamlException;
+import com.snowplowanalytics.refererparser.Medium;
+import com.snowplowanalytics.refererparser.Referer;
+import io.airlift.log.Logger;
+import ua_parser.Client;
+import ua_parser.Parser;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Parse results of user agent and referrer values that are shared by the event and user property mappers.
+ * The same values repeat across the events of a batch and across the users of a website so the parsers
+ * are invoked once per distinct value as long as it stays in the cache.
+ */
+public class WebsiteMapperCache
+{
+    private final static Logger LOGGER = Logger.get(WebsiteMapperCache.class);
+    // approximate size of the parsed objects and the cache entry itself
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final ScheduledExecutorService STATS_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("website-mapper-cache-stats").setDaemon(true).build());
+
+    private final Parser userAgentParser;
+    private final com.snowplowanalytics.refererparser.Parser referrerParser;
+    private final Cache<String, Optional<Client>> userAgents;
+    private final Cache<ReferrerKey, Optional<ParsedReferrer>> referrers;
+    private final long reportInterval;
+    private ScheduledFuture<?> statsReporter;
+
+    @Inject
+    public WebsiteMapperCache(WebsiteMapperConfig config)
+    {
+        try {
+            userAgentParser = new Parser();
+            referrerParser = new com.snowplowanalytics.refererparser.Parser();
+        }
+        catch (IOException | CorruptYamlException e) {
+            throw Throwables.propagate(e);
+        }
+
+        long maximumWeight = config.getCacheSize().toBytes() / 2;
+        userAgents = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .<String, Optional<Client>>weigher((key, value) -> ENTRY_OVERHEAD + key.length() * 2)
+                .recordStats()
+                .build();
+        referrers = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .<ReferrerKey, Optional<ParsedReferrer>>weigher((key, value) -> ENTRY_OVERHEAD + key.weight() * 3)
+                .recordStats()
+                .build();
+
+        this.reportInterval = config.getCacheStatsInterval().toMillis();
+    }
+
+    /**
+     * Only the cache that is managed by the injector reports its statistics, the caches that are created
+     * by the mappers directly don't keep a scheduled task.
+     */
+    @PostConstruct
+    public synchronized void start()
+    {
+        if (reportInterval > 0 && statsReporter == null) {
+            statsReporter = STATS_EXECUTOR.scheduleAtFixedRate(this::reportStats, reportInterval, reportInterval, MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop()
+    {
+        if (statsReporter != null) {
+            statsReporter.cancel(false);
+            statsReporter = null;
+        }
+    }
+
+    /**
+     * Returns the parsed user agent or null if the value can't be parsed.
+     */
+    public Client getUserAgent(String userAgent)
+    {
+        try {
+            return userAgents.get(userAgent, () -> {
+                try {
+                    return Optional.ofNullable(userAgentParser.parse(userAgent));
+                }
+                catch (Exception e) {
+                    return Optional.empty();
+                }
+            }).orElse(null);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the parsed referrer or null if the value is not a valid URI or can't be parsed.
+     */
+    public ParsedReferrer getReferrer(String referrerUrl, String hostUrl)
+    {
+        try {
+            return referrers.get(new ReferrerKey(referrerUrl, hostUrl), () -> parseReferrer(referrerUrl, hostUrl)).orElse(null);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private Optional<ParsedReferrer> parseReferrer(String referrerUrl, String hostUrl)
+    {
+        URI referrerUri;
+        try {
+            referrerUri = new URI(referrerUrl);
+        }
+        catch (URISyntaxException e) {
+            return Optional.empty();
+        }
+
+        Referer parse;
+        try {
+            parse = referrerParser.parse(referrerUri, hostUrl);
+        }
+        catch (Exception e) {
+            LOGGER.warn(e, "Error while parsing referrer");
+            return Optional.empty();
+        }
+
+        if (parse == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new ParsedReferrer(
+                parse.medium != null ? parse.medium.toString().toLowerCase() : null,
+                parse.source,
+                parse.term,
+                parse.medium != Medium.INTERNAL,
+                referrerUri.getHost(),
+                referrerUri.getPath() + (referrerUri.getQuery() == null ? "" : ("?" + referrerUri.getQuery()))));
+    }
+
+    /**
+     * The user property mappers read the values from the JSON body, convert them to the Java types
+     * that the event mappers receive from the Avro record.
+     */
+    static Object unwrap(Object value)
+    {
+        if (value instanceof JsonNode) {
+            JsonNode node = (JsonNode) value;
+            if (node.isTextual()) {
+                return node.textValue();
+            }
+            if (node.isBoolean()) {
+                return node.booleanValue();
+            }
+            return null;
+        }
+        return value;
+    }
+
+    public CacheStats getUserAgentStats()
+    {
+        return userAgents.stats();
+    }
+
+    public CacheStats getReferrerStats()
+    {
+        return referrers.stats();
+    }
+
+    private void reportStats()
+    {
+        CacheStats userAgentStats = userAgents.stats();
+        CacheStats referrerStats = referrers.stats();
+        LOGGER.info("Website mapper cache: user agent hit rate %.2f (%d requests, %d entries), referrer hit rate %.2f (%d requests, %d entries)",
+                userAgentStats.hitRate(), userAgentStats.requestCount(), userAgents.size(),
+                referrerStats.hitRate(), referrerStats.requestCount(), referrers.size());
+    }
+
+    public static class ParsedReferrer
+    {
+        public final String medium;
+        public final String source;
+        public final String term;
+        public final boolean external;
+        public final String domain;
+        public final String path;
+
+        public ParsedReferrer(String medium, String source, String term, boolean external, String domain, String path)
+        {
+            this.medium = medium;
+            this.source = source;
+            this.term = term;
+            this.external = external;
+            this.domain = domain;
+            this.path = path;
+        }
+    }
+
+    static class ReferrerKey
+    {
+        final String referrer;
+        final String host;
+
+        ReferrerKey(String referrer, String host)
+        {
+            this.referrer = referrer;
+            this.host = host;
+        }
+
+        int weight()
+        {
+            return (referrer.length() + (host == null ? 0 : host.length())) * 2;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ReferrerKey)) {
+                return false;
+            }
+
+            ReferrerKey that = (ReferrerKey) o;
+            return referrer.equals(that.referrer) && (host == null ? that.host == null : host.equals(that.host));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * referrer.hashCode() + (host != null ? host.hashCode() : 0);
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package org.rakam.module.website;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
 
 public class WebsiteMapperConfig {
     private boolean userAgent = true;
     private boolean referrer = true;
     private boolean trackSpiders = false;
+    private DataSize cacheSize = new DataSize(32, DataSize.Unit.MEGABYTE);
+    private Duration cacheStatsInterval = Duration.valueOf("10m");
 
     @Config("module.website.mapper.user-agent")
     public WebsiteMapperConfig setUserAgent(boolean enabled) {
@@ -25,7 +30,7 @@ public class WebsiteMapperConfig {
     @Config("module.website.mapper.referrer")
     public WebsiteMapperConfig setReferrer(boolean referrer)
     {
-        this.referrer = true;
+        this.referrer = referrer;
         return this;
     }
 
@@ -37,7 +42,33 @@ public class WebsiteMapperConfig {
     @Config("module.website.mapper.user_agent.track_spiders")
     public WebsiteMapperConfig setTrackSpiders(boolean trackSpiders)
     {
-        this.trackSpiders = true;
+        this.trackSpiders = trackSpiders;
+        return this;
+    }
+
+    public DataSize getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    @Config("module.website.mapper.cache-size")
+    @ConfigDescription("Approximate memory used for caching the parsed user agent and referrer values")
+    public WebsiteMapperConfig setCacheSize(String cacheSize)
+    {
+        this.cacheSize = DataSize.valueOf(cacheSize);
+        return this;
+    }
+
+    public Duration getCacheStatsInterval()
+    {
+        return cacheStatsInterval;
+    }
+
+    @Config("module.website.mapper.cache-stats-interval")
+    @ConfigDescription("Interval for logging the hit rate of the user agent and referrer caches, 0s disables it")
+    public WebsiteMapperConfig setCacheStatsInterval(String cacheStatsInterval)
+    {
+        this.cacheStatsInterval = Duration.valueOf(cacheStatsInterval);
         return this;
     }
 }
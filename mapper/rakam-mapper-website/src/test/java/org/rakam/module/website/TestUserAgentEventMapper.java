@@ -7,6 +7,7 @@ import io.netty.handler.codec.http.cookie.Cookie;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.rakam.collection.Event;
+import org.rakam.collection.EventList;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.EventMapper;
@@ -151,4 +152,37 @@ public class TestUserAgentEventMapper {
             assertNull(event.getAttribute(field.getName()));
         }
     }
+
+    @Test()
+    public void testBatchParsesDistinctUserAgentsOnce() throws Exception {
+        WebsiteMapperConfig config = new WebsiteMapperConfig();
+        WebsiteMapperCache cache = new WebsiteMapperCache(config);
+        UserAgentEventMapper mapper = new UserAgentEventMapper(config, cache);
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mapper.addFieldDependency(builder);
+
+        ImmutableList<Schema.Field> build = ImmutableList.<Schema.Field>builder()
+                .addAll(builder.build().dependentFields.get("_user_agent").stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_user_agent", Schema.create(NULL), null, null))
+                .build();
+        Schema schema = Schema.createRecord(build);
+
+        ImmutableList.Builder<Event> events = ImmutableList.builder();
+        for (int i = 0; i < 100; i++) {
+            GenericData.Record properties = new GenericData.Record(schema);
+            properties.put("_user_agent", USER_AGENT);
+            events.add(new Event("testproject", "testcollection", null, null, properties));
+        }
+        EventList eventList = new EventList(Event.EventContext.empty(), "testproject", events.build());
+
+        List<Cookie> resp = mapper.mapAsync(eventList, EventMapper.RequestParams.EMPTY_PARAMS, InetAddress.getLocalHost(), null).join();
+
+        assertNull(resp);
+        for (Event event : eventList.events) {
+            assertEquals("Chrome", event.getAttribute("_user_agent_family"));
+            assertEquals("Mac OS X", event.getAttribute("_os"));
+        }
+        assertEquals(cache.getUserAgentStats().requestCount(), 1);
+    }
 }
@@ -17,6 +17,8 @@ import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.Select;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -29,9 +31,13 @@ import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static com.amazonaws.services.dynamodbv2.model.KeyType.HASH;
 import static java.lang.String.format;
@@ -47,6 +53,11 @@ public class DynamodbApiKeyService
             new AttributeDefinition().withAttributeName("project").withAttributeType(ScalarAttributeType.S)
     );
     private final DynamodbApiKeyConfig apiKeyConfig;
+    // the collector looks up the key of every request, the scans are only made for the keys that are not in memory
+    private final Cache<Map.Entry<String, AccessKeyType>, String> apiKeyReverseCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES).maximumSize(10000).build();
+    private final Cache<Map.Entry<String, AccessKeyType>, Boolean> invalidApiKeyCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES).maximumSize(10000).build();
 
     @Inject
     public DynamodbApiKeyService(AWSConfig config, DynamodbApiKeyConfig apiKeyConfig)
@@ -109,6 +120,15 @@ public class DynamodbApiKeyService
     @Override
     public String getProjectOfApiKey(String apiKey, AccessKeyType type)
     {
+        Map.Entry<String, AccessKeyType> key = new SimpleImmutableEntry<>(apiKey, type);
+        String cachedProject = apiKeyReverseCache.getIfPresent(key);
+        if (cachedProject != null) {
+            return cachedProject;
+        }
+        if (invalidApiKeyCache.getIfPresent(key) != null) {
+            throw new RakamException(HttpResponseStatus.FORBIDDEN);
+        }
+
         List<Map<String, AttributeValue>> project = dynamoDBClient.scan(new ScanRequest()
                 .withTableName(apiKeyConfig.getTableName())
                 .withConsistentRead(true)
@@ -117,10 +137,32 @@ public class DynamodbApiKeyService
                 .withExpressionAttributeValues(ImmutableMap.of(":apiKey", new AttributeValue(apiKey)))
                 .withFilterExpression(String.format("#K.%s = :apiKey", type.getKey()))).getItems();
         if (project.isEmpty()) {
+            invalidApiKeyCache.put(key, Boolean.TRUE);
             throw new RakamException(HttpResponseStatus.FORBIDDEN);
         }
 
-        return project.get(0).get("project").getS();
+        String projectName = project.get(0).get("project").getS();
+        apiKeyReverseCache.put(key, projectName);
+        return projectName;
+    }
+
+    @Override
+    public CompletableFuture<String> getProjectOfApiKeyAsync(String apiKey, AccessKeyType type, Executor executor)
+    {
+        if (apiKey != null && type != null) {
+            Map.Entry<String, AccessKeyType> key = new SimpleImmutableEntry<>(apiKey, type);
+            String project = apiKeyReverseCache.getIfPresent(key);
+            if (project != null) {
+                return CompletableFuture.completedFuture(project);
+            }
+            if (invalidApiKeyCache.getIfPresent(key) != null) {
+                CompletableFuture<String> future = new CompletableFuture<>();
+                future.completeExceptionally(new RakamException(HttpResponseStatus.FORBIDDEN));
+                return future;
+            }
+        }
+
+        return ApiKeyService.super.getProjectOfApiKeyAsync(apiKey, type, executor);
     }
 
     @Override
@@ -132,6 +174,7 @@ public class DynamodbApiKeyService
                 .withExpressionAttributeNames(ImmutableMap.of("#K", format("keys")))
                 .withExpressionAttributeValues(ImmutableMap.of(":V", new AttributeValue(masterKey)))
                 .withConditionExpression(format("#K.master_key = :V", masterKey)));
+        apiKeyReverseCache.invalidateAll();
     }
 
     @Override
@@ -139,5 +182,6 @@ public class DynamodbApiKeyService
     {
         dynamoDBClient.deleteItem(new DeleteItemRequest().withTableName(apiKeyConfig.getTableName())
                 .withKey(ImmutableMap.of("project", new AttributeValue(project))));
+        apiKeyReverseCache.invalidateAll();
     }
 }
@@ -2,6 +2,9 @@ package org.rakam.aws.dynamodb.config;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.Scopes;
+import com.google.inject.name.Names;
+import org.rakam.analysis.CachingConfigManager;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.aws.AWSConfig;
 import org.rakam.aws.dynamodb.user.DynamodbUserConfig;
@@ -21,7 +24,9 @@ public class DynamodbConfigManagerModule extends RakamModule
         configBinder(binder).bindConfig(DynamodbConfigManagerConfig.class);
         configBinder(binder).bindConfig(AWSConfig.class);
 
-        binder.bind(ConfigManager.class).to(DynamodbConfigManager.class);
+        binder.bind(ConfigManager.class).annotatedWith(Names.named(CachingConfigManager.DELEGATE))
+                .to(DynamodbConfigManager.class).in(Scopes.SINGLETON);
+        binder.bind(ConfigManager.class).to(CachingConfigManager.class).in(Scopes.SINGLETON);
     }
 
     @Override
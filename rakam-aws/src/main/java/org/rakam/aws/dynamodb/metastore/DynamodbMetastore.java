@@ -1,14 +1,19 @@
 package org.rakam.aws.dynamodb.metastore;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
 import com.amazonaws.services.dynamodbv2.model.Condition;
 import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
 import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.KeyType;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
@@ -18,13 +23,24 @@ import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
 import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.metadata.AbstractMetastore;
@@ -36,17 +52,25 @@ import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.amazonaws.services.dynamodbv2.model.ComparisonOperator.EQ;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class DynamodbMetastore
         extends AbstractMetastore
@@ -59,8 +83,18 @@ public class DynamodbMetastore
             new AttributeDefinition().withAttributeName("project").withAttributeType(ScalarAttributeType.S),
             new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S)
     );
+    // the item that marks the project, it also keeps the schema version of the project
+    private static final String PROJECT_ITEM = "|";
+    private static final int MAX_FIELD_ATTEMPTS = 100;
+    private static final int MAX_BATCH_WRITE_SIZE = 25;
+
     private final AmazonDynamoDBClient dynamoDBClient;
     private final DynamodbMetastoreConfig tableConfig;
+    private final long refreshInterval;
+    private final LoadingCache<String, ProjectSchema> schemaCache;
+    // the segments of the project scan are blocking calls so they don't run on the common pool
+    private final ExecutorService scanExecutor;
+    private volatile ProjectList projects;
 
     @Inject
     public DynamodbMetastore(AWSConfig config, DynamodbMetastoreConfig tableConfig, FieldDependencyBuilder.FieldDependency fieldDependency, EventBus eventBus)
@@ -73,6 +107,32 @@ public class DynamodbMetastore
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.tableConfig = tableConfig;
+        this.refreshInterval = tableConfig.getCacheRefreshInterval().toMillis();
+        this.scanExecutor = Executors.newFixedThreadPool(tableConfig.getScanSegments(), new ThreadFactoryBuilder()
+                .setNameFormat("dynamodb-metastore-scan-%d").setDaemon(true).build());
+
+        // the cached schemas are refreshed only if the schema version of the project is changed by another node
+        schemaCache = CacheBuilder.newBuilder()
+                .refreshAfterWrite(Math.max(refreshInterval, 1), MILLISECONDS)
+                .build(new CacheLoader<String, ProjectSchema>()
+                {
+                    @Override
+                    public ProjectSchema load(String project)
+                            throws Exception
+                    {
+                        return loadSchema(project);
+                    }
+
+                    @Override
+                    public ListenableFuture<ProjectSchema> reload(String project, ProjectSchema oldValue)
+                            throws Exception
+                    {
+                        if (getSchemaVersion(project) == oldValue.version) {
+                            return Futures.immediateFuture(oldValue);
+                        }
+                        return Futures.immediateFuture(loadSchema(project));
+                    }
+                });
     }
 
     @PostConstruct
@@ -94,6 +154,12 @@ public class DynamodbMetastore
         }
     }
 
+    @PreDestroy
+    public void destroy()
+    {
+        scanExecutor.shutdown();
+    }
+
     private void createTable()
     {
         dynamoDBClient.createTable(new CreateTableRequest()
@@ -108,92 +174,72 @@ public class DynamodbMetastore
     @Override
     public List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> newFields)
     {
-        List<SchemaField> fields = getCollection(project, collection);
-        int i = 0;
+        List<SchemaField> fields = new ArrayList<>(getCollection(project, collection));
+        boolean collectionExists = !fields.isEmpty();
+        List<SchemaField> createdFields = new ArrayList<>();
+
         for (SchemaField newField : newFields) {
-            Optional<SchemaField> existing = fields.stream().filter(e -> e.getName().equals(newField.getName())).findAny();
-            if (existing.isPresent()) {
-                if (!existing.get().getType().equals(newField.getType())) {
-                    throw new IllegalStateException(String.format("Multiple entries with same key for collection %s field %s: %s,%s", collection, newField.getName(), newField.getType(), existing.get().getType()));
+            for (int attempt = 0; ; attempt++) {
+                Optional<SchemaField> existing = fields.stream().filter(e -> e.getName().equals(newField.getName())).findAny();
+                if (existing.isPresent()) {
+                    if (!existing.get().getType().equals(newField.getType())) {
+                        throw new IllegalStateException(String.format("Multiple entries with same key for collection %s field %s: %s,%s", collection, newField.getName(), newField.getType(), existing.get().getType()));
+                    }
+                    break;
                 }
 
-                continue;
-            }
-
-            String rangeKey = collection + "|" + String.format("%06d", (fields.size() + i++));
-            try {
-                dynamoDBClient.putItem(new PutItemRequest()
-                        .withTableName(tableConfig.getTableName())
-                        .addExpectedEntry("id", new ExpectedAttributeValue().withExists(false))
-                        .withItem(ImmutableMap.<String, AttributeValue>builder()
-                                .put("project", new AttributeValue(project))
-                                .put("id", new AttributeValue(rangeKey))
-                                .put("collection", new AttributeValue(collection)).put("name", new AttributeValue(newField.getName()))
-                                .put("type", new AttributeValue(newField.getType().name())).build())
-                );
-                fields.add(newField);
-            }
-            catch (ConditionalCheckFailedException e) {
-                boolean isDone = false;
-                for (int i1 = 0; i1 < 5000; i1++) {
-                    rangeKey = collection + "|" + String.format("%06d", (fields.size() + i++));
-
-                    try {
-                        dynamoDBClient.putItem(new PutItemRequest()
-                                .withTableName(tableConfig.getTableName())
-                                .addExpectedEntry("id", new ExpectedAttributeValue().withExists(false))
-                                .withItem(ImmutableMap.<String, AttributeValue>builder()
-                                        .put("project", new AttributeValue(project))
-                                        .put("id", new AttributeValue(rangeKey))
-                                        .put("collection", new AttributeValue(collection)).put("name", new AttributeValue(newField.getName()))
-                                        .put("type", new AttributeValue(newField.getType().name())).build())
-                        );
-                    }
-                    catch (ConditionalCheckFailedException e1) {
-                        continue;
-                    }
+                if (attempt == MAX_FIELD_ATTEMPTS) {
+                    throw new RakamException("Unable to add new field", HttpResponseStatus.BAD_REQUEST);
+                }
 
+                String rangeKey = collection + "|" + String.format("%06d", fields.size());
+                try {
+                    dynamoDBClient.putItem(new PutItemRequest()
+                            .withTableName(tableConfig.getTableName())
+                            .addExpectedEntry("id", new ExpectedAttributeValue().withExists(false))
+                            .withItem(ImmutableMap.<String, AttributeValue>builder()
+                                    .put("project", new AttributeValue(project))
+                                    .put("id", new AttributeValue(rangeKey))
+                                    .put("collection", new AttributeValue(collection)).put("name", new AttributeValue(newField.getName()))
+                                    .put("type", new AttributeValue(newField.getType().name())).build())
+                    );
                     fields.add(newField);
-                    isDone = true;
+                    createdFields.add(newField);
                     break;
                 }
-
-                if (!isDone) {
-                    throw new RakamException("Unable to add new field", HttpResponseStatus.BAD_REQUEST);
+                catch (ConditionalCheckFailedException e) {
+                    // another node added a field to the collection, the field may be the same one
+                    schemaCache.invalidate(project);
+                    fields = new ArrayList<>(getCollection(project, collection));
                 }
             }
         }
 
+        if (!createdFields.isEmpty()) {
+            incrementSchemaVersion(project);
+            schemaCache.invalidate(project);
+
+            if (collectionExists) {
+                onCreateCollectionField(project, collection, createdFields);
+            }
+            else {
+                onCreateCollection(project, collection, fields);
+            }
+        }
+
         return getCollection(project, collection);
     }
 
     @Override
     public Map<String, List<SchemaField>> getCollections(String project)
     {
-        QueryResult query = dynamoDBClient.query(new QueryRequest()
-                .withTableName(tableConfig.getTableName())
-                .withKeyConditions(ImmutableMap.of("project", new Condition()
-                        .withComparisonOperator(EQ)
-                        .withAttributeValueList(new AttributeValue(project)))));
-
-        Map<String, List<SchemaField>> builder = new HashMap();
-        for (Map<String, AttributeValue> entry : query.getItems()) {
-            if (entry.get("id").getS().equals("|")) {
-                continue;
-            }
-            builder.computeIfAbsent(entry.get("collection").getS(),
-                    (k) -> new ArrayList<>()).add(new SchemaField(
-                    entry.get("name").getS(),
-                    FieldType.valueOf(entry.get("type").getS())));
-        }
-
-        return builder;
+        return getSchema(project).collections;
     }
 
     @Override
     public Set<String> getCollectionNames(String project)
     {
-        return getCollections(project).keySet();
+        return getSchema(project).collections.keySet();
     }
 
     @Override
@@ -205,39 +251,52 @@ public class DynamodbMetastore
                     .addExpectedEntry("id", new ExpectedAttributeValue().withExists(false))
                     .withItem(ImmutableMap.<String, AttributeValue>builder()
                             .put("project", new AttributeValue(project))
-                            .put("id", new AttributeValue("|")).build()
+                            .put("id", new AttributeValue(PROJECT_ITEM))
+                            .put("version", new AttributeValue().withN("0")).build()
                     ));
         }
         catch (ConditionalCheckFailedException e) {
             throw new AlreadyExistsException("Project", HttpResponseStatus.BAD_REQUEST);
         }
+
+        schemaCache.invalidate(project);
+        projects = null;
+        onCreateProject(project);
     }
 
     @Override
     public Set<String> getProjects()
     {
-        return dynamoDBClient.scan(new ScanRequest().withTableName(tableConfig.getTableName())
-                .withAttributesToGet("project")).getItems().stream()
-                .map(e -> e.get("project").getS())
-                .collect(Collectors.toSet());
+        ProjectList current = projects;
+        if (current != null && current.loadedAt + refreshInterval > System.currentTimeMillis()) {
+            return current.projects;
+        }
+
+        int totalSegments = tableConfig.getScanSegments();
+        List<CompletableFuture<List<String>>> segments = IntStream.range(0, totalSegments)
+                .mapToObj(segment -> CompletableFuture.supplyAsync(() -> scanProjects(segment, totalSegments), scanExecutor))
+                .collect(Collectors.toList());
+        Set<String> projectNames = segments.stream()
+                .flatMap(segment -> segment.join().stream())
+                .collect(Collectors.collectingAndThen(Collectors.toSet(), ImmutableSet::copyOf));
+        projects = new ProjectList(projectNames, System.currentTimeMillis());
+        return projectNames;
     }
 
     @Override
     public List<SchemaField> getCollection(String project, String collection)
     {
-        QueryResult query = dynamoDBClient.query(new QueryRequest()
-                .withTableName(tableConfig.getTableName())
-                .withKeyConditions(ImmutableMap.of("project", new Condition().withComparisonOperator(EQ).withAttributeValueList(new AttributeValue(project))))
-                .withQueryFilter(
-                        ImmutableMap.of("collection",
-                                new Condition().withComparisonOperator(EQ)
-                                        .withAttributeValueList(new AttributeValue(collection)))));
-
-        return query.getItems().stream()
-                .filter(e -> !e.get("id").getS().equals("|"))
-                .map(e -> new SchemaField(e.get("name").getS(),
-                        FieldType.valueOf(e.get("type").getS())))
-                .collect(Collectors.toList());
+        return getSchema(project).collections.getOrDefault(collection, ImmutableList.of());
+    }
+
+    @Override
+    public CompletableFuture<List<SchemaField>> getCollectionAsync(String project, String collection, Executor executor)
+    {
+        ProjectSchema schema = schemaCache.getIfPresent(project);
+        if (schema != null) {
+            return CompletableFuture.completedFuture(schema.collections.getOrDefault(collection, ImmutableList.of()));
+        }
+        return super.getCollectionAsync(project, collection, executor);
     }
 
     @Override
@@ -247,27 +306,142 @@ public class DynamodbMetastore
                 .withTableName(tableConfig.getTableName())
                 .withKey(
                         new AbstractMap.SimpleEntry<>("project", new AttributeValue(project)),
-                        new AbstractMap.SimpleEntry<>("id", new AttributeValue("|"))));
+                        new AbstractMap.SimpleEntry<>("id", new AttributeValue(PROJECT_ITEM))));
+
+        List<Map<String, AttributeValue>> items = queryProject(project, "id");
+        for (List<Map<String, AttributeValue>> batch : Lists.partition(items, MAX_BATCH_WRITE_SIZE)) {
+            Map<String, List<WriteRequest>> requests = ImmutableMap.of(tableConfig.getTableName(), batch.stream()
+                    .map(item -> new WriteRequest(new DeleteRequest(ImmutableMap.of(
+                            "project", new AttributeValue(project),
+                            "id", item.get("id")))))
+                    .collect(Collectors.toList()));
+
+            for (int i = 0; i < 100 && !requests.isEmpty(); i++) {
+                requests = dynamoDBClient.batchWriteItem(new BatchWriteItemRequest(requests)).getUnprocessedItems();
+            }
+
+            if (!requests.isEmpty()) {
+                throw new RakamException("Unable to delete project", HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            }
+        }
 
-        for (int i = 0; i < 100; i++) {
-            List<Map<String, AttributeValue>> items = dynamoDBClient.query(new QueryRequest()
+        schemaCache.invalidate(project);
+        projects = null;
+        onDeleteProject(project);
+    }
+
+    private ProjectSchema getSchema(String project)
+    {
+        try {
+            return schemaCache.get(project);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private ProjectSchema loadSchema(String project)
+    {
+        long version = -1;
+        Map<String, ImmutableList.Builder<SchemaField>> collections = new LinkedHashMap<>();
+        // the items are sorted by the range key so the fields are in the order they're created
+        for (Map<String, AttributeValue> item : queryProject(project)) {
+            if (item.get("id").getS().equals(PROJECT_ITEM)) {
+                version = getVersion(item);
+                continue;
+            }
+            collections.computeIfAbsent(item.get("collection").getS(), k -> ImmutableList.builder())
+                    .add(new SchemaField(item.get("name").getS(), FieldType.valueOf(item.get("type").getS())));
+        }
+
+        ImmutableMap.Builder<String, List<SchemaField>> builder = ImmutableMap.builder();
+        collections.forEach((collection, fields) -> builder.put(collection, fields.build()));
+        return new ProjectSchema(version, builder.build());
+    }
+
+    private long getSchemaVersion(String project)
+    {
+        Map<String, AttributeValue> item = dynamoDBClient.getItem(new GetItemRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKey(new AbstractMap.SimpleEntry<>("project", new AttributeValue(project)),
+                        new AbstractMap.SimpleEntry<>("id", new AttributeValue(PROJECT_ITEM)))
+                .withAttributesToGet("version")
+                .withConsistentRead(true)).getItem();
+        return item == null ? -1 : getVersion(item);
+    }
+
+    private static long getVersion(Map<String, AttributeValue> item)
+    {
+        AttributeValue version = item.get("version");
+        // the projects that are created before the schema versions are introduced
+        return version == null ? 0 : Long.parseLong(version.getN());
+    }
+
+    private void incrementSchemaVersion(String project)
+    {
+        try {
+            dynamoDBClient.updateItem(new UpdateItemRequest()
                     .withTableName(tableConfig.getTableName())
-                    .withKeyConditions(ImmutableMap.of("project",
-                            new Condition().withComparisonOperator(EQ)
-                                    .withAttributeValueList(new AttributeValue(project))))).getItems();
-            if (items == null || items.isEmpty()) {
-                return;
+                    .withKey(new AbstractMap.SimpleEntry<>("project", new AttributeValue(project)),
+                            new AbstractMap.SimpleEntry<>("id", new AttributeValue(PROJECT_ITEM)))
+                    .addExpectedEntry("id", new ExpectedAttributeValue(new AttributeValue(PROJECT_ITEM)))
+                    .addAttributeUpdatesEntry("version", new AttributeValueUpdate()
+                            .withAction(AttributeAction.ADD)
+                            .withValue(new AttributeValue().withN("1"))));
+        }
+        catch (ConditionalCheckFailedException e) {
+            // the project is deleted in the meantime
+        }
+    }
+
+    private List<Map<String, AttributeValue>> queryProject(String project, String... attributes)
+    {
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            QueryRequest request = new QueryRequest()
+                    .withTableName(tableConfig.getTableName())
+                    .withConsistentRead(true)
+                    .withKeyConditions(ImmutableMap.of("project", new Condition()
+                            .withComparisonOperator(EQ)
+                            .withAttributeValueList(new AttributeValue(project))))
+                    .withExclusiveStartKey(lastEvaluatedKey);
+            if (attributes.length > 0) {
+                request.withAttributesToGet(attributes);
             }
-            for (Map<String, AttributeValue> item : items) {
-                dynamoDBClient.deleteItem(new DeleteItemRequest()
-                        .withTableName(tableConfig.getTableName())
-                        .withKey(
-                                new AbstractMap.SimpleEntry<>("project", new AttributeValue(project)),
-                                new AbstractMap.SimpleEntry<>("id", new AttributeValue(item.get("id").getS()))));
+
+            QueryResult result = dynamoDBClient.query(request);
+            items.addAll(result.getItems());
+            lastEvaluatedKey = result.getLastEvaluatedKey();
+        }
+        while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+
+        return items;
+    }
+
+    private List<String> scanProjects(int segment, int totalSegments)
+    {
+        List<String> projectNames = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            ScanResult result = dynamoDBClient.scan(new ScanRequest()
+                    .withTableName(tableConfig.getTableName())
+                    .withSegment(segment)
+                    .withTotalSegments(totalSegments)
+                    .withScanFilter(ImmutableMap.of("id", new Condition()
+                            .withComparisonOperator(EQ)
+                            .withAttributeValueList(new AttributeValue(PROJECT_ITEM))))
+                    .withAttributesToGet("project")
+                    .withExclusiveStartKey(lastEvaluatedKey));
+
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                projectNames.add(item.get("project").getS());
             }
+            lastEvaluatedKey = result.getLastEvaluatedKey();
         }
+        while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
 
-        throw new RakamException("Unable to delete project", HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        return projectNames;
     }
 
     @VisibleForTesting
@@ -275,4 +449,28 @@ public class DynamodbMetastore
     {
         dynamoDBClient.deleteTable(tableConfig.getTableName());
     }
+
+    private static class ProjectSchema
+    {
+        private final long version;
+        private final Map<String, List<SchemaField>> collections;
+
+        private ProjectSchema(long version, Map<String, List<SchemaField>> collections)
+        {
+            this.version = version;
+            this.collections = collections;
+        }
+    }
+
+    private static class ProjectList
+    {
+        private final Set<String> projects;
+        private final long loadedAt;
+
+        private ProjectList(Set<String> projects, long loadedAt)
+        {
+            this.projects = projects;
+            this.loadedAt = loadedAt;
+        }
+    }
 }
@@ -1,12 +1,17 @@
 package org.rakam.aws.dynamodb.metastore;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class DynamodbMetastoreConfig
 {
     private String tableName = "metastore";
+    private Duration cacheRefreshInterval = Duration.valueOf("1m");
+    private int scanSegments = 4;
 
     @Config("metastore.adapter.dynamodb.table")
     public DynamodbMetastoreConfig setTableName(String tableName) {
@@ -19,4 +24,31 @@ public class DynamodbMetastoreConfig
     {
         return tableName;
     }
+
+    public Duration getCacheRefreshInterval()
+    {
+        return cacheRefreshInterval;
+    }
+
+    @Config("metastore.adapter.dynamodb.cache-refresh-interval")
+    @ConfigDescription("The interval for checking the schema version of the cached projects and refreshing the project list")
+    public DynamodbMetastoreConfig setCacheRefreshInterval(String cacheRefreshInterval)
+    {
+        this.cacheRefreshInterval = Duration.valueOf(cacheRefreshInterval);
+        return this;
+    }
+
+    @Min(1)
+    public int getScanSegments()
+    {
+        return scanSegments;
+    }
+
+    @Config("metastore.adapter.dynamodb.scan-segments")
+    @ConfigDescription("Number of segments that are scanned in parallel when the projects are listed")
+    public DynamodbMetastoreConfig setScanSegments(int scanSegments)
+    {
+        this.scanSegments = scanSegments;
+        return this;
+    }
 }
@@ -68,9 +68,15 @@ class DynamodbFilterQueryFormatter
     @Override
     protected String visitQualifiedNameReference(QualifiedNameReference node, Boolean unmangleNames)
     {
+        String name = node.getName().toString();
+        if (name.equals("id")) {
+            // the filter of a query can't use the key attributes
+            throw new RakamException("The users can't be filtered by their ids", BAD_REQUEST);
+        }
         String variableName = "#" + variable[0]++;
-        nameBuilder.put(variableName, node.getName().toString());
-        return variableName;
+        nameBuilder.put(variableName, name);
+        // the user properties are stored in the properties map of the item
+        return "properties." + variableName;
     }
 
     @Override
@@ -128,11 +134,7 @@ class DynamodbFilterQueryFormatter
             throw new IllegalArgumentException("inlined expressions are not supported");
         }
 
-        String variableName = "#" + variable[0]++;
-
-        nameBuilder.put(variableName, ((QualifiedNameReference) node.getValue()).getName().toString());
-
-        return format("attribute_exists(%s)", variableName);
+        return format("attribute_exists(%s)", process(node.getValue(), unmangleNames));
     }
 
     @Override
@@ -149,10 +151,7 @@ class DynamodbFilterQueryFormatter
             throw new IllegalArgumentException("inlined expressions are not supported");
         }
 
-        String variableName = "#" + variable[0]++;
-        nameBuilder.put(variableName, ((QualifiedNameReference) node.getValue()).getName().toString());
-
-        return "(#" + variableName + " BETWEEN " +
+        return "(" + process(node.getValue(), unmangleNames) + " BETWEEN " +
                 process(node.getMin(), unmangleNames) + " AND " + process(node.getMax(), unmangleNames) + ")";
     }
 
@@ -1,12 +1,16 @@
 package org.rakam.aws.dynamodb.user;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class DynamodbUserConfig
 {
     private String tableName;
+    private int maxInflightRequests = 16;
+    private int maxRetries = 8;
 
     @Config("plugin.user.storage.dynamodb.table")
     public DynamodbUserConfig setTableName(String tableName) {
@@ -19,4 +23,32 @@ public class DynamodbUserConfig
     {
         return tableName;
     }
+
+    @Min(1)
+    public int getMaxInflightRequests()
+    {
+        return maxInflightRequests;
+    }
+
+    @Config("plugin.user.storage.dynamodb.max-inflight-requests")
+    @ConfigDescription("Maximum number of write requests that are sent concurrently for a user batch")
+    public DynamodbUserConfig setMaxInflightRequests(int maxInflightRequests)
+    {
+        this.maxInflightRequests = maxInflightRequests;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    @Config("plugin.user.storage.dynamodb.max-retries")
+    @ConfigDescription("Maximum number of retries for the throttled writes and the unprocessed items of batch writes")
+    public DynamodbUserConfig setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = maxRetries;
+        return this;
+    }
 }
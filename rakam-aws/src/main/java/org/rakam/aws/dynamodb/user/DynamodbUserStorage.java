@@ -1,23 +1,31 @@
 package org.rakam.aws.dynamodb.user;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
-import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
-import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
-import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
 import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.dynamodbv2.model.PutRequest;
 import com.amazonaws.services.dynamodbv2.model.QueryRequest;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 import com.amazonaws.services.dynamodbv2.model.WriteRequest;
 import com.facebook.presto.sql.tree.Expression;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -27,9 +35,12 @@ import com.fasterxml.jackson.databind.node.DoubleNode;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.aws.AWSConfig;
 import org.rakam.collection.FieldType;
@@ -43,29 +54,53 @@ import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.amazonaws.services.dynamodbv2.model.KeyType.HASH;
 import static com.amazonaws.services.dynamodbv2.model.KeyType.RANGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.rakam.collection.FieldType.STRING;
 
+/**
+ * Stores the users in a DynamoDB table that is partitioned by the project. The requests are sent with the async
+ * client: batch writes are split into the 25 item limit of DynamoDB and the unprocessed items and throttled
+ * requests are retried with jittered exponential backoff and the updates of the users are pipelined. The searches
+ * query the partition of the project, the filters are evaluated by DynamoDB on the items that are read.
+ */
 public class DynamodbUserStorage
         implements UserStorage
 {
-    private final AmazonDynamoDBClient dynamoDBClient;
+    public static final String NEXT_OFFSET = "nextOffset";
+
+    private static final int BATCH_WRITE_LIMIT = 25;
+    private static final long BASE_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final AmazonDynamoDBAsyncClient dynamoDBClient;
     private static final List<KeySchemaElement> PROJECT_KEYSCHEMA = ImmutableList.of(
             new KeySchemaElement().withKeyType(HASH).withAttributeName("project"),
             new KeySchemaElement().withKeyType(RANGE).withAttributeName("id")
@@ -75,17 +110,20 @@ public class DynamodbUserStorage
             new AttributeDefinition().withAttributeName("id").withAttributeType(ScalarAttributeType.S)
     );
     private final DynamodbUserConfig tableConfig;
+    private final ScheduledExecutorService retryExecutor;
 
     @Inject
     public DynamodbUserStorage(AWSConfig config, DynamodbUserConfig tableConfig)
     {
-        dynamoDBClient = new AmazonDynamoDBClient(config.getCredentials());
+        dynamoDBClient = new AmazonDynamoDBAsyncClient(config.getCredentials());
         dynamoDBClient.setRegion(config.getAWSRegion());
 
         if (config.getDynamodbEndpoint() != null) {
             dynamoDBClient.setEndpoint(config.getDynamodbEndpoint());
         }
         this.tableConfig = tableConfig;
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("dynamodb-user-retry-%d").setDaemon(true).build());
     }
 
     @PostConstruct
@@ -109,6 +147,13 @@ public class DynamodbUserStorage
         }
     }
 
+    @PreDestroy
+    public void close()
+    {
+        retryExecutor.shutdown();
+        dynamoDBClient.shutdown();
+    }
+
     @Override
     public Object create(String project, Object id, ObjectNode properties)
     {
@@ -124,11 +169,13 @@ public class DynamodbUserStorage
         builder.put("id", new AttributeValue(id.toString()));
 
         Map<String, AttributeValue> props = new HashMap<>();
-        Iterator<Entry<String, JsonNode>> fields = properties.fields();
-        while (fields.hasNext()) {
-            Entry<String, JsonNode> next = fields.next();
+        if (properties != null) {
+            Iterator<Entry<String, JsonNode>> fields = properties.fields();
+            while (fields.hasNext()) {
+                Entry<String, JsonNode> next = fields.next();
 
-            props.put(next.getKey(), convertAttributeValue(next.getValue()));
+                props.put(next.getKey(), convertAttributeValue(next.getValue()));
+            }
         }
 
         builder.put("properties", new AttributeValue().withM(props));
@@ -162,7 +209,10 @@ public class DynamodbUserStorage
             }
             attr.setM(map);
         }
-        else if (!value.isNull()) {
+        else if (value.isNull()) {
+            attr.setNULL(true);
+        }
+        else {
             throw new IllegalStateException();
         }
 
@@ -172,51 +222,91 @@ public class DynamodbUserStorage
     @Override
     public List<Object> batchCreate(String project, List<User> users)
     {
-        List<WriteRequest> collect = users.stream()
-                .map(user -> new WriteRequest(new PutRequest(generatePutRequest(project, user.id, user.properties))))
-                .collect(Collectors.toList());
-        dynamoDBClient.batchWriteItem(new BatchWriteItemRequest().withRequestItems(ImmutableMap.of(project, collect)));
-        return null;
+        // the items of a batch write must be unique, the last value of a user wins
+        Map<String, WriteRequest> requests = new LinkedHashMap<>();
+        for (User user : users) {
+            if (user.id == null) {
+                throw new RakamException("User id is required", BAD_REQUEST);
+            }
+            requests.put(user.id.toString(),
+                    new WriteRequest(new PutRequest(generatePutRequest(project, user.id, user.properties))));
+        }
+
+        join(pipeline(Lists.partition(new ArrayList<>(requests.values()), BATCH_WRITE_LIMIT),
+                chunk -> batchWrite(chunk, 0)));
+        return users.stream().map(user -> user.id).collect(Collectors.toList());
     }
 
     @Override
     public CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset)
     {
-        QueryRequest scanRequest = new QueryRequest()
-                .withTableName(tableConfig.getTableName());
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        names.put("#pk", "project");
+        values.put(":pk", new AttributeValue(project));
+
+        String projection = null;
         if (columns != null && !columns.isEmpty()) {
-            scanRequest.withAttributesToGet(columns.stream().map(e -> "properties." + e).collect(Collectors.toList()));
+            List<String> attributes = new ArrayList<>();
+            attributes.add("id");
+            for (int i = 0; i < columns.size(); i++) {
+                names.put("#col" + i, columns.get(i));
+                attributes.add("properties.#col" + i);
+            }
+            projection = attributes.stream().collect(Collectors.joining(", "));
         }
-        scanRequest.withKeyConditions(ImmutableMap.of("project", new Condition()
-                .withComparisonOperator(ComparisonOperator.EQ)
-                .withAttributeValueList(new AttributeValue(project))));
 
-        final ImmutableMap.Builder<String, String> nameBuilder = ImmutableMap.builder();
-        final ImmutableMap.Builder<String, AttributeValue> valueBuilder = ImmutableMap.builder();
-        final char[] variable = {'a', 'a'};
+        // the users of a project are in the same partition so the search doesn't need to scan the table
+        QueryRequest request = new QueryRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKeyConditionExpression("#pk = :pk")
+                .withProjectionExpression(projection);
         if (filterExpression != null) {
+            ImmutableMap.Builder<String, String> nameBuilder = ImmutableMap.builder();
+            ImmutableMap.Builder<String, AttributeValue> valueBuilder = ImmutableMap.builder();
+            final char[] variable = {'a', 'a'};
             DynamodbFilterQueryFormatter formatter = new DynamodbFilterQueryFormatter(variable, nameBuilder, valueBuilder);
-            String expression = formatter.process(filterExpression, false);
+            request.withFilterExpression(formatter.process(filterExpression, false));
+            names.putAll(nameBuilder.build());
+            values.putAll(valueBuilder.build());
+        }
+        request.withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+        if (offset != null) {
+            request.withExclusiveStartKey(ImmutableMap.of(
+                    "project", new AttributeValue(project),
+                    "id", new AttributeValue(offset)));
+        }
 
-            scanRequest.withFilterExpression(expression);
-            ImmutableMap<String, String> names = nameBuilder.build();
-            if (!names.isEmpty()) {
-                scanRequest.withExpressionAttributeNames(names);
-            }
+        return query(request, new ArrayList<>(), limit).thenApply(result -> toQueryResult(result, limit));
+    }
 
-            ImmutableMap<String, AttributeValue> values = valueBuilder.build();
-            if (!values.isEmpty()) {
-                scanRequest.withExpressionAttributeValues(values);
+    /**
+     * Reads the pages of the query until the limit is reached. The limit of a page is the number of the items that
+     * are read so the pages of a filtered query may have less items.
+     */
+    private CompletableFuture<List<Map<String, AttributeValue>>> query(QueryRequest request, List<Map<String, AttributeValue>> items, long limit)
+    {
+        request.withLimit(Math.toIntExact(Math.min(limit - items.size(), Integer.MAX_VALUE)));
+        FutureHandler<QueryRequest, com.amazonaws.services.dynamodbv2.model.QueryResult> handler = new FutureHandler<>();
+        dynamoDBClient.queryAsync(request, handler);
+
+        return handler.future.thenCompose(result -> {
+            items.addAll(result.getItems());
+            if (items.size() >= limit || result.getLastEvaluatedKey() == null) {
+                return CompletableFuture.completedFuture(items);
             }
-        }
-
-        scanRequest.withLimit(Math.toIntExact(limit));
-        List<Map<String, AttributeValue>> scan = dynamoDBClient.query(scanRequest).getItems();
+            return query(request.withExclusiveStartKey(result.getLastEvaluatedKey()), items, limit);
+        });
+    }
 
-        Set<String> set = new HashSet<>();
-        for (Map<String, AttributeValue> entry : scan) {
-            for (Entry<String, AttributeValue> property : entry.get("properties").getM().entrySet()) {
-                set.add(property.getKey());
+    private QueryResult toQueryResult(List<Map<String, AttributeValue>> items, long limit)
+    {
+        Set<String> set = new LinkedHashSet<>();
+        for (Map<String, AttributeValue> entry : items) {
+            AttributeValue properties = entry.get("properties");
+            if (properties != null && properties.getM() != null) {
+                set.addAll(properties.getM().keySet());
             }
         }
 
@@ -226,8 +316,10 @@ public class DynamodbUserStorage
                 .build();
 
         List<List<Object>> result = new ArrayList<>();
-        for (Map<String, AttributeValue> entry : scan) {
-            Map<String, AttributeValue> properties = entry.get("properties").getM();
+        for (Map<String, AttributeValue> entry : items) {
+            AttributeValue propertiesValue = entry.get("properties");
+            Map<String, AttributeValue> properties = propertiesValue == null || propertiesValue.getM() == null ?
+                    Collections.emptyMap() : propertiesValue.getM();
 
             ArrayList<Object> row = new ArrayList<>();
             row.add(getJsonValue(entry.get("id")));
@@ -237,7 +329,12 @@ public class DynamodbUserStorage
             result.add(row);
         }
 
-        return CompletableFuture.completedFuture(new QueryResult(schemaFields, result));
+        Map<String, Object> resultProperties = new HashMap<>();
+        if (limit > 0 && items.size() >= limit) {
+            // the users of a project are read in the order of their ids so the next page starts after the last id
+            resultProperties.put(NEXT_OFFSET, items.get(items.size() - 1).get("id").getS());
+        }
+        return new QueryResult(schemaFields, result, resultProperties);
     }
 
     @Override
@@ -255,15 +352,21 @@ public class DynamodbUserStorage
     @Override
     public CompletableFuture<User> getUser(String project, Object userId)
     {
-        return CompletableFuture.supplyAsync(() -> {
-            GetItemResult item = dynamoDBClient.getItem("users", ImmutableMap.of(
-                    "project", new AttributeValue(project),
-                    "id", new AttributeValue(userId.toString())
-            ));
-            Map<String, AttributeValue> attrs = item.getItem().get("properties").getM();
+        FutureHandler<GetItemRequest, GetItemResult> handler = new FutureHandler<>();
+        dynamoDBClient.getItemAsync(new GetItemRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKey(getKey(project, userId)), handler);
+
+        return handler.future.thenApply(item -> {
+            if (item.getItem() == null) {
+                return null;
+            }
+            AttributeValue properties = item.getItem().get("properties");
             ObjectNode obj = JsonHelper.jsonObject();
-            for (Entry<String, AttributeValue> entry : attrs.entrySet()) {
-                obj.set(entry.getKey(), getJsonValue(entry.getValue()));
+            if (properties != null && properties.getM() != null) {
+                for (Entry<String, AttributeValue> entry : properties.getM().entrySet()) {
+                    obj.set(entry.getKey(), getJsonValue(entry.getValue()));
+                }
             }
             return new User(userId, null, obj);
         });
@@ -284,6 +387,13 @@ public class DynamodbUserStorage
             double v = Double.parseDouble(value.getN());
             return DoubleNode.valueOf(v);
         }
+        else if (value.getSS() != null) {
+            ArrayNode arr = JsonHelper.jsonArray();
+            for (String item : value.getSS()) {
+                arr.add(item);
+            }
+            return arr;
+        }
         else if (value.getL() != null) {
             ArrayNode arr = JsonHelper.jsonArray();
             for (AttributeValue attributeValue : value.getL()) {
@@ -300,7 +410,7 @@ public class DynamodbUserStorage
             return obj;
         }
         else {
-            if (!value.isNULL()) {
+            if (value.isNULL() == null || !value.isNULL()) {
                 throw new IllegalStateException();
             }
             else {
@@ -339,7 +449,8 @@ public class DynamodbUserStorage
     @Override
     public void setUserProperties(String project, Object user, ObjectNode properties)
     {
-        create(project, user, properties);
+        applyOperations(project,
+                ImmutableList.of(new BatchUserOperations(user, properties, null, null, null, null)));
     }
 
     @Override
@@ -349,111 +460,311 @@ public class DynamodbUserStorage
                 ImmutableList.of(new BatchUserOperations(user, null, properties, null, null, null)));
     }
 
+    @Override
+    public void batch(String project, List<? extends ISingleUserBatchOperation> operations)
+    {
+        applyOperations(project, operations);
+    }
+
+    /**
+     * Sends an update for each operation. The operations of different users are pipelined while the operations
+     * of the same user are applied in order.
+     */
     @Override
     public void applyOperations(String project, List<? extends ISingleUserBatchOperation> operations)
     {
-        Map<String, String> nameMap = new HashMap<>();
-        Map<String, AttributeValue> valueMap = new HashMap<>();
-        StringBuilder setBuilder = null;
-        StringBuilder addBuilder = null;
-        StringBuilder unsetBuilder = null;
-        List<UpdateItemRequest> setOnceBuilder = null;
-        char nameCur = 'a';
-        char valueCur = 'a';
+        Map<String, List<UpdateItemRequest>> requests = new LinkedHashMap<>();
         for (ISingleUserBatchOperation operation : operations) {
-            for (Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
-                if (addBuilder == null) {
-                    addBuilder = new StringBuilder();
-                }
-                else {
-                    addBuilder.append(", ");
-                }
-
-                String name = new String(new char[] {'#', nameCur++});
-                String value = new String(new char[] {':', valueCur++});
-                addBuilder.append("properties." + name + " " + value);
+            UpdateItemRequest request = getUpdateRequest(project, operation);
+            if (request != null) {
+                requests.computeIfAbsent(operation.getUser().toString(), key -> new ArrayList<>()).add(request);
+            }
+        }
 
-                nameMap.put(name, entry.getKey());
-                valueMap.put(value, new AttributeValue().withN(entry.getValue().toString()));
+        join(pipeline(new ArrayList<>(requests.values()), userRequests -> {
+            CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+            for (UpdateItemRequest request : userRequests) {
+                future = future.thenCompose(v -> updateUser(request, true));
             }
+            return future;
+        }));
+    }
+
+    private UpdateItemRequest getUpdateRequest(String project, ISingleUserBatchOperation operation)
+    {
+        Map<String, String> names = new HashMap<>();
+        Map<String, AttributeValue> values = new HashMap<>();
+        // the last action of a property wins since the paths of an update expression can't overlap
+        Map<String, String> actions = new LinkedHashMap<>();
 
+        if (operation.getSetProperties() != null) {
             Iterator<Entry<String, JsonNode>> fields = operation.getSetProperties().fields();
             while (fields.hasNext()) {
                 Entry<String, JsonNode> next = fields.next();
-                if (setBuilder == null) {
-                    setBuilder = new StringBuilder();
-                }
-                else {
-                    setBuilder.append(", ");
-                }
+                String value = ":v" + values.size();
+                values.put(value, convertAttributeValue(next.getValue()));
+                actions.put(next.getKey(), "%1$s = " + value);
+            }
+        }
 
-                String name = new String(new char[] {'#', nameCur++});
-                String value = new String(new char[] {':', valueCur++});
-                addBuilder.append("properties." + name + " = " + value);
+        if (operation.getSetPropertiesOnce() != null) {
+            Iterator<Entry<String, JsonNode>> fields = operation.getSetPropertiesOnce().fields();
+            while (fields.hasNext()) {
+                Entry<String, JsonNode> next = fields.next();
+                String value = ":v" + values.size();
+                values.put(value, convertAttributeValue(next.getValue()));
+                actions.put(next.getKey(), "%1$s = if_not_exists(%1$s, " + value + ")");
+            }
+        }
 
-                nameMap.put(name, next.getKey());
-                valueMap.put(value, convertAttributeValue(next.getValue()));
+        if (operation.getIncrementProperties() != null) {
+            for (Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
+                String value = ":v" + values.size();
+                values.put(value, new AttributeValue().withN(entry.getValue().toString()));
+                values.put(":zero", new AttributeValue().withN("0"));
+                // ADD can't update the nested attributes
+                actions.put(entry.getKey(), "%1$s = if_not_exists(%1$s, :zero) + " + value);
             }
+        }
 
-            Iterator<Entry<String, JsonNode>> setOncefields = operation.getSetPropertiesOnce().fields();
-            while (setOncefields.hasNext()) {
-                Entry<String, JsonNode> next = fields.next();
+        if (operation.getUnsetProperties() != null) {
+            for (String property : operation.getUnsetProperties()) {
+                actions.put(property, null);
+            }
+        }
 
-                if (setOnceBuilder == null) {
-                    setOnceBuilder = new ArrayList<>();
-                }
+        if (actions.isEmpty()) {
+            return null;
+        }
 
-                setOnceBuilder.add(new UpdateItemRequest()
-                        .withUpdateExpression("SET properties.#a = :a")
-                        .withExpressionAttributeNames(ImmutableMap.of("#a", next.getKey()))
-                        .withExpressionAttributeValues(ImmutableMap.of(":a", convertAttributeValue(next.getValue())))
-                        .withTableName(tableConfig.getTableName())
-                        .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
-                                new AttributeValue(operation.getUser().toString())))
-                );
+        List<String> sets = new ArrayList<>();
+        List<String> removes = new ArrayList<>();
+        for (Entry<String, String> entry : actions.entrySet()) {
+            String name = "#p" + names.size();
+            names.put(name, entry.getKey());
+            String path = "properties." + name;
+            if (entry.getValue() == null) {
+                removes.add(path);
+            }
+            else {
+                sets.add(String.format(entry.getValue(), path));
             }
+        }
 
-            for (String unsetProperty : operation.getUnsetProperties()) {
-                if (unsetBuilder == null) {
-                    unsetBuilder = new StringBuilder();
-                }
-                else {
-                    unsetBuilder.append(" , ");
-                }
+        StringBuilder expression = new StringBuilder();
+        if (!sets.isEmpty()) {
+            expression.append("SET ").append(sets.stream().collect(Collectors.joining(", ")));
+        }
+        if (!removes.isEmpty()) {
+            expression.append(expression.length() == 0 ? "" : " ")
+                    .append("REMOVE ").append(removes.stream().collect(Collectors.joining(", ")));
+        }
+
+        UpdateItemRequest request = new UpdateItemRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKey(getKey(project, operation.getUser()))
+                .withUpdateExpression(expression.toString())
+                .withExpressionAttributeNames(names);
+        if (!values.isEmpty()) {
+            request.withExpressionAttributeValues(values);
+        }
+        return request;
+    }
+
+    private CompletableFuture<Void> updateUser(UpdateItemRequest request, boolean createIfNotExists)
+    {
+        return withRetry(() -> {
+            FutureHandler<UpdateItemRequest, UpdateItemResult> handler = new FutureHandler<>();
+            dynamoDBClient.updateItemAsync(request, handler);
+            return handler.future;
+        }, 0).handle((result, ex) -> {
+            if (ex == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            Throwable cause = unwrap(ex);
+            // the nested paths can't be updated if the user doesn't exist so the user is created first
+            if (createIfNotExists && cause instanceof AmazonServiceException
+                    && "ValidationException".equals(((AmazonServiceException) cause).getErrorCode())) {
+                return createEmptyUser(request.getTableName(), request.getKey())
+                        .thenCompose(v -> updateUser(request, false));
+            }
 
-                String name = new String(new char[] {'#', nameCur++});
-                unsetBuilder.append("properties." + name);
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(Function.identity());
+    }
 
-                nameMap.put(name, unsetProperty);
+    private CompletableFuture<Void> createEmptyUser(String tableName, Map<String, AttributeValue> key)
+    {
+        Map<String, AttributeValue> item = new HashMap<>(key);
+        item.put("properties", new AttributeValue().withM(new HashMap<>()));
+        PutItemRequest request = new PutItemRequest()
+                .withTableName(tableName)
+                .withItem(item)
+                .withConditionExpression("attribute_not_exists(id)");
+
+        return withRetry(() -> {
+            FutureHandler<PutItemRequest, PutItemResult> handler = new FutureHandler<>();
+            dynamoDBClient.putItemAsync(request, handler);
+            return handler.future;
+        }, 0).handle((result, ex) -> {
+            if (ex != null && !(unwrap(ex) instanceof ConditionalCheckFailedException)) {
+                throw new CompletionException(unwrap(ex));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Writes the items and retries the unprocessed items with backoff until all the items are written.
+     */
+    private CompletableFuture<Void> batchWrite(List<WriteRequest> requests, int attempt)
+    {
+        String tableName = tableConfig.getTableName();
+        return withRetry(() -> {
+            FutureHandler<BatchWriteItemRequest, BatchWriteItemResult> handler = new FutureHandler<>();
+            dynamoDBClient.batchWriteItemAsync(new BatchWriteItemRequest()
+                    .withRequestItems(ImmutableMap.of(tableName, requests)), handler);
+            return handler.future;
+        }, 0).thenCompose(result -> {
+            List<WriteRequest> unprocessed = result.getUnprocessedItems() == null ? null :
+                    result.getUnprocessedItems().get(tableName);
+            if (unprocessed == null || unprocessed.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (attempt >= tableConfig.getMaxRetries()) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException(
+                        String.format("%d users couldn't be written to DynamoDB", unprocessed.size())));
+                return failed;
             }
+            return delay(getBackoff(attempt)).thenCompose(v -> batchWrite(unprocessed, attempt + 1));
+        });
+    }
 
-            StringBuilder query = new StringBuilder();
-            if (setBuilder != null) {
-                query.append("SET ").append(setBuilder);
+    private <T> CompletableFuture<T> withRetry(Supplier<CompletableFuture<T>> call, int attempt)
+    {
+        return call.get().handle((result, ex) -> {
+            if (ex == null) {
+                return CompletableFuture.completedFuture(result);
             }
-            if (unsetBuilder != null) {
-                query.append("DELETE ").append(unsetBuilder);
+
+            Throwable cause = unwrap(ex);
+            if (attempt < tableConfig.getMaxRetries() && isRetryable(cause)) {
+                return delay(getBackoff(attempt)).thenCompose(v -> withRetry(call, attempt + 1));
             }
-            if (addBuilder != null) {
-                query.append("ADD ").append(addBuilder);
+
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(cause);
+            return failed;
+        }).thenCompose(Function.identity());
+    }
+
+    private static boolean isRetryable(Throwable e)
+    {
+        if (e instanceof ProvisionedThroughputExceededException) {
+            return true;
+        }
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            return serviceException.getStatusCode() >= 500 || "ThrottlingException".equals(serviceException.getErrorCode());
+        }
+        return e instanceof AmazonClientException && ((AmazonClientException) e).isRetryable();
+    }
+
+    /**
+     * Exponential backoff with full jitter so that the retries of the concurrent requests are spread out.
+     */
+    private static long getBackoff(int attempt)
+    {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private CompletableFuture<Void> delay(long millis)
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        retryExecutor.schedule(() -> future.complete(null), millis, MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Runs the calls with at most {@link DynamodbUserConfig#getMaxInflightRequests()} calls in flight and fails
+     * with the first failure.
+     */
+    <T> CompletableFuture<Void> pipeline(List<T> items, Function<T, CompletableFuture<?>> call)
+    {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        if (items.isEmpty()) {
+            result.complete(null);
+            return result;
+        }
+
+        int workers = Math.min(tableConfig.getMaxInflightRequests(), items.size());
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            runNext(items, call, next, running, result);
+        }
+        return result;
+    }
+
+    private <T> void runNext(List<T> items, Function<T, CompletableFuture<?>> call, AtomicInteger next, AtomicInteger running, CompletableFuture<Void> result)
+    {
+        // the calls that are completed synchronously are run in the loop rather than in their callbacks,
+        // the stack would overflow if the next call was started from the callback of each completed call
+        while (!result.isDone()) {
+            int index = next.getAndIncrement();
+            if (index >= items.size()) {
+                if (running.decrementAndGet() == 0) {
+                    result.complete(null);
+                }
+                return;
             }
 
-            dynamoDBClient.updateItem(new UpdateItemRequest()
-                    .withTableName(tableConfig.getTableName())
-                    .withKey(ImmutableMap.of("project", new AttributeValue(project), "id",
-                            new AttributeValue(operation.getUser().toString())))
-                    .withUpdateExpression(query.toString()));
+            CompletableFuture<?> future;
+            try {
+                future = call.apply(items.get(index));
+            }
+            catch (Exception e) {
+                result.completeExceptionally(e);
+                return;
+            }
 
-            if (setOnceBuilder != null) {
-                setOnceBuilder.forEach(dynamoDBClient::updateItem);
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                continue;
             }
+
+            future.whenComplete((value, ex) -> {
+                if (ex != null) {
+                    result.completeExceptionally(unwrap(ex));
+                }
+                else {
+                    runNext(items, call, next, running, result);
+                }
+            });
+            return;
+        }
+    }
+
+    private static Throwable unwrap(Throwable e)
+    {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
         }
+        return e;
+    }
+
+    private static Map<String, AttributeValue> getKey(String project, Object user)
+    {
+        return ImmutableMap.of("project", new AttributeValue(project), "id", new AttributeValue(user.toString()));
     }
 
     @Override
     public void incrementProperty(String project, Object user, String property, double value)
     {
-
         applyOperations(project, ImmutableList.of(new BatchUserOperations(user,
                 null, null, ImmutableMap.of(property, value), null, null)));
     }
@@ -461,8 +772,28 @@ public class DynamodbUserStorage
     @Override
     public void dropProjectIfExists(String project)
     {
-        dynamoDBClient.deleteItem(new DeleteItemRequest()
-                .withKey(ImmutableMap.of("project", new AttributeValue(project))));
+        List<Map<String, AttributeValue>> users = join(query(new QueryRequest()
+                .withTableName(tableConfig.getTableName())
+                .withKeyConditionExpression("#pk = :pk")
+                .withProjectionExpression("id")
+                .withExpressionAttributeNames(ImmutableMap.of("#pk", "project"))
+                .withExpressionAttributeValues(ImmutableMap.of(":pk", new AttributeValue(project))),
+                new ArrayList<>(), Long.MAX_VALUE));
+
+        List<WriteRequest> deletes = users.stream()
+                .map(user -> new WriteRequest(new DeleteRequest(getKey(project, user.get("id").getS()))))
+                .collect(Collectors.toList());
+        join(pipeline(Lists.partition(deletes, BATCH_WRITE_LIMIT), chunk -> batchWrite(chunk, 0)));
+    }
+
+    private static <T> T join(CompletableFuture<T> future)
+    {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            throw Throwables.propagate(unwrap(e));
+        }
     }
 
     @Override
@@ -471,4 +802,22 @@ public class DynamodbUserStorage
         applyOperations(project, ImmutableList.of(
                 new BatchUserOperations(user, null, null, null, properties, null)));
     }
+
+    private static class FutureHandler<Q extends AmazonWebServiceRequest, R>
+            implements AsyncHandler<Q, R>
+    {
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        @Override
+        public void onError(Exception e)
+        {
+            future.completeExceptionally(e);
+        }
+
+        @Override
+        public void onSuccess(Q request, R result)
+        {
+            future.complete(result);
+        }
+    }
 }
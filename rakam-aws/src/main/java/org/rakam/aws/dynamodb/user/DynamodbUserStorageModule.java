@@ -7,6 +7,7 @@ import com.google.inject.name.Names;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.aws.dynamodb.user.DynamodbUserStorage;
 import org.rakam.plugin.RakamModule;
+import org.rakam.plugin.user.CachingUserStorage;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.util.ConditionalModule;
 
@@ -22,7 +23,9 @@ public class DynamodbUserStorageModule
     protected void setup(Binder binder)
     {
         configBinder(binder).bindConfig(DynamodbUserConfig.class);
-        binder.bind(UserStorage.class).to(DynamodbUserStorage.class)
+        binder.bind(UserStorage.class).annotatedWith(Names.named(CachingUserStorage.DELEGATE))
+                .to(DynamodbUserStorage.class).in(Scopes.SINGLETON);
+        binder.bind(UserStorage.class).to(CachingUserStorage.class)
                 .in(Scopes.SINGLETON);
     }
 
@@ -3,8 +3,10 @@ package org.rakam.aws.kinesis;
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
 import com.google.inject.Scopes;
+import com.google.inject.name.Names;
 import io.airlift.configuration.Config;
 import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.StatisticsRecordingEventStore;
 import org.rakam.aws.AWSConfig;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
@@ -19,7 +21,9 @@ public class AWSKinesisModule extends RakamModule {
     protected void setup(Binder binder) {
         configBinder(binder).bindConfig(AWSConfig.class);
         configBinder(binder).bindConfig(PrestoStreamConfig.class);
-        binder.bind(EventStore.class).to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).annotatedWith(Names.named(StatisticsRecordingEventStore.DELEGATE))
+                .to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).to(StatisticsRecordingEventStore.class).in(Scopes.SINGLETON);
     }
 
     @Override
@@ -1,5 +1,6 @@
 package org.rakam.aws.dynamodb;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
@@ -11,12 +12,20 @@ import org.rakam.aws.DynamodbUtil;
 import org.rakam.aws.dynamodb.metastore.DynamodbMetastore;
 import org.rakam.aws.dynamodb.metastore.DynamodbMetastoreConfig;
 import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
 import org.rakam.collection.TestMetastore;
 import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.Test;
 
 import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class TestDynamodbMetastore
 //        extends TestMetastore
@@ -24,6 +33,7 @@ public class TestDynamodbMetastore
     private final static Logger LOGGER = Logger.get(TestDynamodbMetastore.class);
 
     private DynamodbMetastore metastore;
+    private DynamodbMetastore otherMetastore;
     private DynamodbUtil.DynamodbProcess dynamodbProcess;
 
 //    @Override
@@ -46,6 +56,61 @@ public class TestDynamodbMetastore
                 new FieldDependencyBuilder.FieldDependency(ImmutableSet.of(), ImmutableMap.of()),
                 new EventBus());
         metastore.setup();
+        // simulates another node that shares the same table
+        otherMetastore = new DynamodbMetastore(config,
+                new DynamodbMetastoreConfig().setCacheRefreshInterval("0s").setScanSegments(2),
+                new FieldDependencyBuilder.FieldDependency(ImmutableSet.of(), ImmutableMap.of()),
+                new EventBus());
+    }
+
+    @Test
+    public void testSchemaChangesAreVisibleToOtherNodes()
+            throws InterruptedException
+    {
+        metastore.createProject("schema_version");
+        metastore.getOrCreateCollectionFieldList("schema_version", "test", ImmutableSet.of(new SchemaField("a", FieldType.STRING)));
+        assertEquals(otherMetastore.getCollection("schema_version", "test"), ImmutableList.of(new SchemaField("a", FieldType.STRING)));
+
+        metastore.getOrCreateCollectionFieldList("schema_version", "test", ImmutableSet.of(new SchemaField("b", FieldType.LONG)));
+        Thread.sleep(10);
+
+        assertEquals(otherMetastore.getCollection("schema_version", "test"),
+                ImmutableList.of(new SchemaField("a", FieldType.STRING), new SchemaField("b", FieldType.LONG)));
+        metastore.deleteProject("schema_version");
+    }
+
+    @Test
+    public void testConcurrentFieldsFromOtherNodes()
+    {
+        metastore.createProject("concurrent_fields");
+        metastore.getOrCreateCollectionFieldList("concurrent_fields", "test", ImmutableSet.of(new SchemaField("a", FieldType.STRING)));
+        // the cache of the other node doesn't have the field so it tries to use the same range key
+        otherMetastore.getCollection("concurrent_fields", "test");
+        metastore.getOrCreateCollectionFieldList("concurrent_fields", "test", ImmutableSet.of(new SchemaField("b", FieldType.LONG)));
+
+        List<SchemaField> fields = otherMetastore.getOrCreateCollectionFieldList("concurrent_fields", "test",
+                ImmutableSet.of(new SchemaField("b", FieldType.LONG), new SchemaField("c", FieldType.BOOLEAN)));
+        assertEquals(fields, ImmutableList.of(new SchemaField("a", FieldType.STRING),
+                new SchemaField("b", FieldType.LONG), new SchemaField("c", FieldType.BOOLEAN)));
+        metastore.deleteProject("concurrent_fields");
+    }
+
+    @Test
+    public void testParallelProjectScan()
+    {
+        for (int i = 0; i < 10; i++) {
+            metastore.createProject("scan_" + i);
+        }
+
+        Set<String> projects = otherMetastore.getProjects();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(projects.contains("scan_" + i));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            metastore.deleteProject("scan_" + i);
+        }
+        assertFalse(otherMetastore.getProjects().contains("scan_0"));
     }
 
     @AfterSuite
@@ -1,13 +1,31 @@
 package org.rakam.clickhouse;
 
 import java.net.URI;
+import java.util.List;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
 
 public class ClickHouseConfig
 {
     private URI address = URI.create("http://127.0.0.1:8123");
     private String hotStoragePrefix;
     private String coldStoragePrefix;
+    private boolean enableHttpCompression;
+    private boolean compressInserts = true;
+    private int insertBatchSize = 100000;
+    private int maxConcurrentInserts = 4;
+    private boolean insertDeduplicationToken;
+    private List<URI> insertAddresses = ImmutableList.of();
+    private boolean kinesisLoaderEnabled;
+    private Duration kinesisLoaderFlushInterval = Duration.valueOf("5s");
+    private int kinesisLoaderNodeIndex;
+    private int kinesisLoaderNodeCount = 1;
 
     @Config("clickhouse.address")
     public ClickHouseConfig setAddress(URI address)
@@ -44,4 +62,142 @@ public class ClickHouseConfig
         this.coldStoragePrefix = coldStoragePrefix;
         return this;
     }
+
+    @Config("clickhouse.enable-http-compression")
+    @ConfigDescription("Compress the query results with gzip, it saves bandwidth when ClickHouse is on a remote network")
+    public ClickHouseConfig setEnableHttpCompression(boolean enableHttpCompression)
+    {
+        this.enableHttpCompression = enableHttpCompression;
+        return this;
+    }
+
+    public boolean isEnableHttpCompression()
+    {
+        return enableHttpCompression;
+    }
+
+    @Config("clickhouse.compress-inserts")
+    @ConfigDescription("Compress the bodies of the INSERT requests with gzip")
+    public ClickHouseConfig setCompressInserts(boolean compressInserts)
+    {
+        this.compressInserts = compressInserts;
+        return this;
+    }
+
+    public boolean isCompressInserts()
+    {
+        return compressInserts;
+    }
+
+    @Config("clickhouse.insert-batch-size")
+    @ConfigDescription("The maximum number of the events that are sent in a single INSERT request, " +
+            "the larger batches are split and sent concurrently")
+    public ClickHouseConfig setInsertBatchSize(int insertBatchSize)
+    {
+        this.insertBatchSize = insertBatchSize;
+        return this;
+    }
+
+    public int getInsertBatchSize()
+    {
+        return insertBatchSize;
+    }
+
+    @Config("clickhouse.max-concurrent-inserts")
+    @ConfigDescription("The maximum number of the concurrent INSERT requests per ClickHouse server")
+    public ClickHouseConfig setMaxConcurrentInserts(int maxConcurrentInserts)
+    {
+        this.maxConcurrentInserts = maxConcurrentInserts;
+        return this;
+    }
+
+    public int getMaxConcurrentInserts()
+    {
+        return maxConcurrentInserts;
+    }
+
+    @Config("clickhouse.insert-deduplication-token")
+    @ConfigDescription("Sends a token with each INSERT request so that ClickHouse discards a retried batch if it's already " +
+            "inserted, the collection tables are created with a deduplication window. Requires ClickHouse 22.2 or later " +
+            "and it must be enabled for the Kinesis loader")
+    public ClickHouseConfig setInsertDeduplicationToken(boolean insertDeduplicationToken)
+    {
+        this.insertDeduplicationToken = insertDeduplicationToken;
+        return this;
+    }
+
+    public boolean isInsertDeduplicationToken()
+    {
+        return insertDeduplicationToken;
+    }
+
+    @Config("clickhouse.insert-addresses")
+    @ConfigDescription("The comma separated list of the replicas that the events are inserted into, " +
+            "clickhouse.address is used if it's not set")
+    public ClickHouseConfig setInsertAddresses(String insertAddresses)
+    {
+        this.insertAddresses = insertAddresses == null ? ImmutableList.of() :
+                ImmutableList.copyOf(Splitter.on(',').omitEmptyStrings().trimResults().splitToList(insertAddresses)
+                        .stream().map(URI::create).iterator());
+        return this;
+    }
+
+    public List<URI> getInsertAddresses()
+    {
+        return insertAddresses.isEmpty() ? ImmutableList.of(address) : insertAddresses;
+    }
+
+    @Config("clickhouse.kinesis-loader.enabled")
+    @ConfigDescription("Loads the events in the Kinesis stream of the event store into ClickHouse")
+    public ClickHouseConfig setKinesisLoaderEnabled(boolean kinesisLoaderEnabled)
+    {
+        this.kinesisLoaderEnabled = kinesisLoaderEnabled;
+        return this;
+    }
+
+    public boolean isKinesisLoaderEnabled()
+    {
+        return kinesisLoaderEnabled;
+    }
+
+    @Config("clickhouse.kinesis-loader.flush-interval")
+    @ConfigDescription("The maximum time that the records of a shard are buffered before they are inserted, " +
+            "the batches are also inserted when they reach clickhouse.insert-batch-size")
+    public ClickHouseConfig setKinesisLoaderFlushInterval(String kinesisLoaderFlushInterval)
+    {
+        this.kinesisLoaderFlushInterval = Duration.valueOf(kinesisLoaderFlushInterval);
+        return this;
+    }
+
+    public Duration getKinesisLoaderFlushInterval()
+    {
+        return kinesisLoaderFlushInterval;
+    }
+
+    @Config("clickhouse.kinesis-loader.node-index")
+    @ConfigDescription("The index of the node among the nodes that run the loader, the shards are split across the nodes")
+    public ClickHouseConfig setKinesisLoaderNodeIndex(int kinesisLoaderNodeIndex)
+    {
+        this.kinesisLoaderNodeIndex = kinesisLoaderNodeIndex;
+        return this;
+    }
+
+    @Min(0)
+    public int getKinesisLoaderNodeIndex()
+    {
+        return kinesisLoaderNodeIndex;
+    }
+
+    @Config("clickhouse.kinesis-loader.node-count")
+    public ClickHouseConfig setKinesisLoaderNodeCount(int kinesisLoaderNodeCount)
+    {
+        this.kinesisLoaderNodeCount = kinesisLoaderNodeCount;
+        return this;
+    }
+
+    @Min(1)
+    public int getKinesisLoaderNodeCount()
+    {
+        return kinesisLoaderNodeCount;
+    }
 }
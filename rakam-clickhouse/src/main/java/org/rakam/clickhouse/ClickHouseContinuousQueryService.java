@@ -1,5 +1,27 @@
 package org.rakam.clickhouse;
 
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.AllColumns;
+import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.GroupBy;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QueryBody;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.Select;
+import com.facebook.presto.sql.tree.SelectItem;
+import com.facebook.presto.sql.tree.SimpleGroupBy;
+import com.facebook.presto.sql.tree.SingleColumn;
+import com.facebook.presto.sql.tree.Statement;
+import com.facebook.presto.sql.tree.TableSubquery;
+import com.facebook.presto.sql.tree.Union;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
 import org.rakam.analysis.ContinuousQueryService;
@@ -11,19 +33,53 @@ import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
 import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.RakamException;
-import org.rakam.util.ValidationUtil;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
+import static com.facebook.presto.sql.RakamSqlFormatter.formatSql;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static java.lang.String.format;
+import static org.rakam.clickhouse.ClickHouseQueryExecutor.CONTINUOUS_QUERY_PREFIX;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
 
+/**
+ * Continuous queries are AggregatingMergeTree tables that keep the states of the aggregations. The states are
+ * inserted by a materialized view for each source of the query so that the table is updated when the events are
+ * inserted into the collections, the aggregations are read from the table with the -Merge combinators such as
+ * countMerge and uniqMerge.
+ */
 public class ClickHouseContinuousQueryService
         extends ContinuousQueryService
 {
+    private static final Map<String, String> STATE_FUNCTIONS = ImmutableMap.<String, String>builder()
+            .put("count", "countState")
+            .put("sum", "sumState")
+            .put("min", "minState")
+            .put("max", "maxState")
+            .put("avg", "avgState")
+            .put("any", "anyState")
+            .put("anylast", "anyLastState")
+            .put("uniq", "uniqState")
+            .put("uniqexact", "uniqExactState")
+            .put("approx_distinct", "uniqState")
+            .put("grouparray", "groupArrayState")
+            .put("groupuniqarray", "groupUniqArrayState")
+            .build();
+    // the materialized views that insert into the table are named after the table
+    private static final String VIEW_SEPARATOR = "$";
+
     private final QueryExecutor queryExecutor;
+    private final SqlParser sqlParser = new SqlParser();
 
     @Inject
     public ClickHouseContinuousQueryService(QueryExecutor queryExecutor, QueryMetadataStore database)
@@ -36,40 +92,290 @@ public class ClickHouseContinuousQueryService
     public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData)
             throws AlreadyExistsException
     {
+        test(project, report.query);
+        createTables(project, report, replayHistoricalData);
         database.createContinuousQuery(project, report);
-        String.format("CREATE MATERIALIZED VIEW %s.%s ENGINE = AggregatingMergeTree(`$date`, (`$date`), 8192) AS %s");
         return QueryExecution.completedQueryExecution(null, QueryResult.empty());
     }
 
     @Override
     public CompletableFuture<Boolean> delete(String project, String tableName)
     {
-        String prestoQuery = format("drop table %s.%s", project, ValidationUtil.checkCollection(tableName));
-        return queryExecutor.executeRawQuery(prestoQuery).getResult().thenApply(result -> {
-            if (result.getError() == null) {
-                database.deleteContinuousQuery(project, tableName);
-                return true;
-            } else {
-                throw new RakamException("Error while deleting continuous query:" + result.getError().message, BAD_REQUEST);
-            }
-        });
+        dropTables(project, tableName);
+        database.deleteContinuousQuery(project, tableName);
+        return CompletableFuture.completedFuture(true);
     }
 
     @Override
     public Map<String, List<SchemaField>> getSchemas(String project)
     {
-        return ImmutableMap.of();
+        Map<String, CompletableFuture<QueryResult>> results = new HashMap<>();
+        for (ContinuousQuery continuousQuery : list(project)) {
+            // the types of the merged aggregations are the types of the aggregations in the query
+            String query = build(project, rewrite(continuousQuery.getQuery(), false));
+            results.put(continuousQuery.tableName, queryExecutor.executeRawQuery(query + " LIMIT 0").getResult());
+        }
+
+        return results.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, entry -> {
+            QueryResult result = entry.getValue().join();
+            if (result.isFailed()) {
+                throw new RakamException("Error while fetching metadata: " + result.getError().message, INTERNAL_SERVER_ERROR);
+            }
+            return result.getMetadata();
+        }));
     }
 
     @Override
-    public boolean test(String project, String query)
+    public synchronized boolean test(String project, String query)
     {
-        return false;
+        Statement parsed = sqlParser.createStatement(query);
+        if (!(parsed instanceof Query)) {
+            throw new RakamException("The query must be SELECT.", BAD_REQUEST);
+        }
+
+        Query statement = (Query) parsed;
+        QueryBody queryBody = statement.getQueryBody();
+        if (!(queryBody instanceof QuerySpecification)) {
+            throw new RakamException("The query be in a form of SELECT col FROM.", BAD_REQUEST);
+        }
+
+        QuerySpecification specification = (QuerySpecification) queryBody;
+        if (!specification.getFrom().isPresent()) {
+            throw new RakamException("The query must have FROM clause.", BAD_REQUEST);
+        }
+        if (specification.getHaving().isPresent() || !specification.getOrderBy().isEmpty() || specification.getLimit().isPresent()
+                || !statement.getOrderBy().isEmpty() || statement.getLimit().isPresent()) {
+            throw new RakamException("HAVING, ORDER BY and LIMIT are not supported in continuous queries.", BAD_REQUEST);
+        }
+
+        for (SelectItem selectItem : specification.getSelect().getSelectItems()) {
+            if (selectItem instanceof AllColumns) {
+                throw new RakamException("Wildcard in SELECT is not supported.", BAD_REQUEST);
+            }
+
+            SingleColumn singleColumn = (SingleColumn) selectItem;
+            if (!singleColumn.getAlias().isPresent() && !(singleColumn.getExpression() instanceof QualifiedNameReference)
+                    && !(singleColumn.getExpression() instanceof DereferenceExpression)) {
+                throw new RakamException(format("Alias for %s is missing", singleColumn.toString()), BAD_REQUEST);
+            }
+
+            if (!getStateFunction(singleColumn.getExpression()).isPresent() && containsAggregation(singleColumn.getExpression())) {
+                throw new RakamException(format("The aggregation in %s must be a separate column since the states of " +
+                        "the aggregations are stored in the table", singleColumn.toString()), BAD_REQUEST);
+            }
+        }
+
+        return true;
     }
 
     @Override
     public QueryExecution refresh(String project, String tableName)
     {
-        return null;
+        ContinuousQuery continuousQuery = get(project, tableName);
+        dropTables(project, tableName);
+        createTables(project, continuousQuery, true);
+        return QueryExecution.completedQueryExecution(null, QueryResult.empty());
+    }
+
+    private void createTables(String project, ContinuousQuery report, boolean replayHistoricalData)
+    {
+        Query stateQuery = rewrite(report.getQuery(), true);
+        List<String> dimensions = getDimensions((QuerySpecification) report.getQuery().getQueryBody());
+        boolean aggregated = ((QuerySpecification) stateQuery.getQueryBody()).getSelect().getSelectItems().stream()
+                .anyMatch(item -> getStateFunction(((SingleColumn) item).getExpression()).isPresent());
+
+        String table = getTableName(project, report.tableName);
+        String engine = format("%s() ORDER BY %s", aggregated ? "AggregatingMergeTree" : "MergeTree",
+                dimensions.isEmpty() || !aggregated ? "tuple()" :
+                        "(" + dimensions.stream().map(e -> checkTableColumn(e, '`')).collect(Collectors.joining(", ")) + ")");
+
+        try {
+            queryExecutor.executeRawStatement(format("CREATE TABLE %s ENGINE = %s AS %s LIMIT 0", table, engine, build(project, stateQuery)));
+        }
+        catch (RakamException e) {
+            if (e.getMessage() != null && e.getMessage().contains("already exists")) {
+                throw new AlreadyExistsException("Continuous query", BAD_REQUEST);
+            }
+            throw e;
+        }
+
+        // the events are split by their time so that the events that are inserted while the historical data is
+        // replayed are aggregated either by the view or by the replay but not both
+        long cutover = Instant.now().getEpochSecond();
+        List<Query> sources = splitBySource(stateQuery);
+        for (int i = 0; i < sources.size(); i++) {
+            Optional<String> viewPredicate = replayHistoricalData ? Optional.of(format("_time >= toDateTime(%d)", cutover)) : Optional.empty();
+            queryExecutor.executeRawStatement(format("CREATE MATERIALIZED VIEW %s TO %s AS %s",
+                    getTableName(project, report.tableName + VIEW_SEPARATOR + i), table, build(project, sources.get(i), viewPredicate)));
+            if (replayHistoricalData) {
+                queryExecutor.executeRawStatement(format("INSERT INTO %s %s", table,
+                        build(project, sources.get(i), Optional.of(format("_time < toDateTime(%d)", cutover)))));
+            }
+        }
+    }
+
+    private void dropTables(String project, String tableName)
+    {
+        QueryResult views = queryExecutor.executeRawQuery(format("SELECT name FROM system.tables WHERE database = '%s' AND startsWith(name, '%s')",
+                checkLiteral(project), checkLiteral(CONTINUOUS_QUERY_PREFIX + tableName + VIEW_SEPARATOR))).getResult().join();
+        if (views.isFailed()) {
+            throw new RakamException("Error while deleting continuous query: " + views.getError().message, INTERNAL_SERVER_ERROR);
+        }
+
+        // the views are dropped first so that they don't insert into the dropped table
+        for (List<Object> view : views.getResult()) {
+            queryExecutor.executeRawStatement(format("DROP TABLE IF EXISTS %s.%s", project, checkCollection(view.get(0).toString(), '`')));
+        }
+        queryExecutor.executeRawStatement(format("DROP TABLE IF EXISTS %s", getTableName(project, tableName)));
+    }
+
+    private String build(String project, Query query)
+    {
+        return build(project, query, Optional.empty());
+    }
+
+    /**
+     * The collection references are replaced with the subqueries that filter the events if the predicate is set.
+     */
+    private String build(String project, Query query, Optional<String> collectionPredicate)
+    {
+        return formatSql(query, name -> {
+            if (name.getSuffix().equals("_all") && !name.getPrefix().isPresent()) {
+                throw new RakamException("_all is not supported in continuous queries, the collections must be referenced separately.", BAD_REQUEST);
+            }
+            String reference = queryExecutor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of(), "collection");
+            if (!collectionPredicate.isPresent() || !isCollection(name)) {
+                return reference;
+            }
+            return format("(SELECT * FROM %s WHERE %s)", reference, collectionPredicate.get());
+        }, '`');
+    }
+
+    private static boolean isCollection(QualifiedName name)
+    {
+        return name.getPrefix().map(prefix -> prefix.toString().equals("collection")).orElse(true);
+    }
+
+    private static String getTableName(String project, String tableName)
+    {
+        return project + "." + checkCollection(CONTINUOUS_QUERY_PREFIX + tableName, '`');
+    }
+
+    /**
+     * Replaces the aggregations with their -State combinators if the state is set, the query is grouped by the
+     * columns that are not aggregations since ClickHouse doesn't support the positions in GROUP BY.
+     */
+    static Query rewrite(Query query, boolean state)
+    {
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+
+        List<SelectItem> selectItems = new ArrayList<>();
+        List<Expression> dimensions = new ArrayList<>();
+        for (SelectItem item : specification.getSelect().getSelectItems()) {
+            SingleColumn column = (SingleColumn) item;
+            Optional<FunctionCall> stateFunction = getStateFunction(column.getExpression());
+            if (!stateFunction.isPresent()) {
+                // the grouping sets are formatted with the double quotes so the expressions are referenced by their aliases
+                dimensions.add(column.getAlias().<Expression>map(alias -> new QualifiedNameReference(QualifiedName.of(alias)))
+                        .orElse(column.getExpression()));
+                selectItems.add(column);
+            }
+            else {
+                selectItems.add(state ? new SingleColumn(stateFunction.get(), column.getAlias()) : column);
+            }
+        }
+
+        boolean aggregated = selectItems.size() != dimensions.size();
+        Optional<GroupBy> groupBy = aggregated && !dimensions.isEmpty() ?
+                Optional.of(new GroupBy(false, ImmutableList.of(new SimpleGroupBy(dimensions)))) : Optional.empty();
+
+        return new Query(query.getWith(), new QuerySpecification(
+                new Select(specification.getSelect().isDistinct(), selectItems),
+                specification.getFrom(), specification.getWhere(), groupBy, Optional.empty(), ImmutableList.of(), Optional.empty()),
+                ImmutableList.of(), Optional.empty());
+    }
+
+    /**
+     * The materialized views are triggered by the inserts into the first table of the query so the query is split
+     * into a query for each part of the UNION ALL relation.
+     */
+    static List<Query> splitBySource(Query query)
+    {
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        Relation from = specification.getFrom().get();
+        Relation relation = from instanceof AliasedRelation ? ((AliasedRelation) from).getRelation() : from;
+
+        if (!(relation instanceof TableSubquery) || !(((TableSubquery) relation).getQuery().getQueryBody() instanceof Union)) {
+            return ImmutableList.of(query);
+        }
+
+        ImmutableList.Builder<Query> queries = ImmutableList.builder();
+        for (Relation source : ((Union) ((TableSubquery) relation).getQuery().getQueryBody()).getRelations()) {
+            Relation sourceRelation = new TableSubquery(new Query(Optional.empty(), (QueryBody) source, ImmutableList.of(), Optional.empty()));
+            if (from instanceof AliasedRelation) {
+                sourceRelation = new AliasedRelation(sourceRelation, ((AliasedRelation) from).getAlias(), ((AliasedRelation) from).getColumnNames());
+            }
+
+            queries.add(new Query(query.getWith(), new QuerySpecification(specification.getSelect(), Optional.of(sourceRelation),
+                    specification.getWhere(), specification.getGroupBy(), Optional.empty(), ImmutableList.of(), Optional.empty()),
+                    ImmutableList.of(), Optional.empty()));
+        }
+        return queries.build();
+    }
+
+    private static List<String> getDimensions(QuerySpecification specification)
+    {
+        return specification.getSelect().getSelectItems().stream()
+                .map(item -> (SingleColumn) item)
+                .filter(column -> !getStateFunction(column.getExpression()).isPresent())
+                .map(column -> column.getAlias().orElseGet(() -> column.getExpression() instanceof DereferenceExpression ?
+                        ((DereferenceExpression) column.getExpression()).getFieldName() :
+                        ((QualifiedNameReference) column.getExpression()).getName().getSuffix()))
+                .collect(Collectors.toList());
+    }
+
+    static Optional<FunctionCall> getStateFunction(Expression expression)
+    {
+        if (!(expression instanceof FunctionCall)) {
+            return Optional.empty();
+        }
+
+        FunctionCall functionCall = (FunctionCall) expression;
+        String name = functionCall.getName().toString().toLowerCase();
+        if (functionCall.getWindow().isPresent()) {
+            return Optional.empty();
+        }
+        if (name.endsWith("state")) {
+            return Optional.of(functionCall);
+        }
+        if (functionCall.isDistinct()) {
+            if (!name.equals("count")) {
+                throw new RakamException(format("DISTINCT is not supported in %s", name), BAD_REQUEST);
+            }
+            return Optional.of(new FunctionCall(QualifiedName.of("uniqExactState"), functionCall.getArguments()));
+        }
+
+        String stateFunction = STATE_FUNCTIONS.get(name);
+        if (stateFunction == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new FunctionCall(QualifiedName.of(stateFunction), functionCall.getArguments()));
+    }
+
+    private static boolean containsAggregation(Expression expression)
+    {
+        boolean[] found = {false};
+        new DefaultExpressionTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitFunctionCall(FunctionCall node, Void context)
+            {
+                if (getStateFunction(node).isPresent()) {
+                    found[0] = true;
+                }
+                return super.visitFunctionCall(node, context);
+            }
+        }.process(expression, null);
+        return found[0];
     }
 }
@@ -1,37 +1,235 @@
 package org.rakam.clickhouse;
 
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.Query;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
+import io.airlift.http.client.HttpClient;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.clickhouse.analysis.ClickHouseQueryExecution;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.plugin.MaterializedView;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.rakam.util.AlreadyExistsException;
+import org.rakam.util.RakamException;
 
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static com.facebook.presto.sql.RakamSqlFormatter.formatSql;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+import static org.rakam.report.QueryStats.State.FINISHED;
+import static org.rakam.report.QueryStats.State.RUNNING;
 
 public class ClickHouseMaterializedViewService extends MaterializedViewService
 {
+    private final QueryMetadataStore database;
+    private final QueryExecutor queryExecutor;
+    private final HttpClient httpClient;
+    private final ClickHouseConfig config;
+
     @Inject
-    public ClickHouseMaterializedViewService(QueryMetadataStore database, QueryExecutor queryExecutor)
+    public ClickHouseMaterializedViewService(QueryMetadataStore database, QueryExecutor queryExecutor, @ForClickHouse HttpClient httpClient, ClickHouseConfig config)
     {
         super(database, queryExecutor, '`');
+        this.database = database;
+        this.queryExecutor = queryExecutor;
+        this.httpClient = httpClient;
+        this.config = config;
     }
 
     @Override
     public CompletableFuture<Void> create(String project, MaterializedView materializedView)
     {
-        return null;
+        materializedView.validateQuery();
+
+        String query = formatSql(parse(materializedView.query), name -> queryExecutor.formatTableReference(project, name,
+                Optional.empty(), ImmutableMap.of(), "collection"), '`');
+
+        try {
+            queryExecutor.executeRawStatement(format("CREATE TABLE %s ENGINE = MergeTree() ORDER BY tuple() AS %s LIMIT 0",
+                    getTableReference(project, materializedView.tableName), query));
+        }
+        catch (RakamException e) {
+            if (e.getMessage() != null && e.getMessage().contains("already exists")) {
+                throw new AlreadyExistsException("Materialized view", BAD_REQUEST);
+            }
+            throw e;
+        }
+
+        database.createMaterializedView(project, materializedView);
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
     public CompletableFuture<QueryResult> delete(String project, String name)
     {
-        return null;
+        MaterializedView materializedView = database.getMaterializedView(project, name);
+        database.deleteMaterializedView(project, name);
+        return queryExecutor.executeRawStatement(format("DROP TABLE IF EXISTS %s",
+                getTableReference(project, materializedView.tableName))).getResult();
     }
 
     @Override
     public MaterializedViewExecution lockAndUpdateView(String project, MaterializedView materializedView)
     {
-        return null;
+        CompletableFuture<Instant> f = new CompletableFuture<>();
+
+        String tableName = getTableReference(project, materializedView.tableName);
+        Query statement = parse(materializedView.query);
+
+        if (!materializedView.incremental) {
+            if (!materializedView.needsUpdate(Clock.systemUTC()) || !database.updateMaterializedView(project, materializedView, f)) {
+                return new MaterializedViewExecution(null, tableName);
+            }
+
+            String query = formatSql(statement, name -> queryExecutor.formatTableReference(project, name,
+                    Optional.empty(), ImmutableMap.of(), "collection"), '`');
+
+            // the table is built next to the current one and swapped so that the readers don't see a partial table
+            String newTable = getTableReference(project, materializedView.tableName + "$new");
+            String oldTable = getTableReference(project, materializedView.tableName + "$old");
+            QueryExecution execution = execute(f, null, recoverPreviousVersion(tableName, oldTable),
+                    format("DROP TABLE IF EXISTS %s", newTable),
+                    format("CREATE TABLE %s AS %s", newTable, tableName),
+                    format("INSERT INTO %s %s", newTable, query),
+                    format("RENAME TABLE %s TO %s, %s TO %s", tableName, oldTable, newTable, tableName),
+                    format("DROP TABLE %s", oldTable));
+            return new MaterializedViewExecution(execution, tableName);
+        }
+        else {
+            Instant lastUpdated = materializedView.lastUpdate;
+            Instant now = Instant.now();
+
+            QueryExecution queryExecution;
+            if (database.updateMaterializedView(project, materializedView, f)) {
+                String query = formatSql(statement, name -> {
+                    String reference = queryExecutor.formatTableReference(project, name, Optional.empty(), ImmutableMap.of(), "collection");
+                    if (!isCollection(name)) {
+                        return reference;
+                    }
+
+                    // the collection tables are partitioned by $date so only the partitions of the interval are read
+                    String predicate = lastUpdated != null ?
+                            format("`$date` >= toDate(toDateTime(%d)) AND _time > toDateTime(%d) AND ", lastUpdated.getEpochSecond(), lastUpdated.getEpochSecond()) : "";
+                    return format("(SELECT * FROM %s WHERE %s`$date` <= toDate(toDateTime(%d)) AND _time <= toDateTime(%d))",
+                            reference, predicate, now.getEpochSecond(), now.getEpochSecond());
+                }, '`');
+
+                queryExecution = execute(f, now, CompletableFuture.completedFuture(null), format("INSERT INTO %s %s", tableName, query));
+            }
+            else {
+                queryExecution = QueryExecution.completedQueryExecution("", QueryResult.empty());
+                f.complete(lastUpdated);
+            }
+
+            return new MaterializedViewExecution(queryExecution, tableName);
+        }
+    }
+
+    /**
+     * The tables are renamed one by one so a refresh that fails during the swap may leave the previous version
+     * in the old table. The previous version is restored if the view table doesn't exist, otherwise the old table is dropped.
+     */
+    private CompletableFuture<String> recoverPreviousVersion(String tableName, String oldTable)
+    {
+        return ClickHouseQueryExecution.runStatementAsync(httpClient, config, format("EXISTS TABLE %s", tableName))
+                .thenCompose(exists -> ClickHouseQueryExecution.runStatementAsync(httpClient, config, exists.trim().equals("1") ?
+                        format("DROP TABLE IF EXISTS %s", oldTable) :
+                        format("RENAME TABLE %s TO %s", oldTable, tableName)));
+    }
+
+    /**
+     * The statements are sent one after another after the given future without blocking the caller, the lock is released
+     * with the update time when the last one succeeds or with null if any of them fails.
+     */
+    private QueryExecution execute(CompletableFuture<Instant> lock, Instant updateTime, CompletableFuture<String> previous, String... statements)
+    {
+        CompletableFuture<String> future = previous;
+        for (String statement : statements) {
+            future = future.thenCompose(body -> ClickHouseQueryExecution.runStatementAsync(httpClient, config, statement));
+        }
+
+        CompletableFuture<QueryResult> result = future.handle((body, ex) -> {
+            if (ex != null) {
+                lock.complete(null);
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                return QueryResult.errorResult(QueryError.create(cause.getMessage()));
+            }
+
+            lock.complete(updateTime == null ? Instant.now() : updateTime);
+            return QueryResult.empty();
+        });
+        return new StatementExecution(statements[statements.length - 1], result);
+    }
+
+    private String getTableReference(String project, String tableName)
+    {
+        return queryExecutor.formatTableReference(project, QualifiedName.of("materialized", tableName),
+                Optional.empty(), ImmutableMap.of(), "collection");
+    }
+
+    private static boolean isCollection(QualifiedName name)
+    {
+        return name.getPrefix().map(prefix -> prefix.toString().equals("collection")).orElse(true)
+                && !name.getSuffix().equals("_all");
+    }
+
+    private static Query parse(String query)
+    {
+        synchronized (sqlParser) {
+            return (Query) sqlParser.createStatement(query);
+        }
+    }
+
+    private static class StatementExecution
+            implements QueryExecution
+    {
+        private final String query;
+        private final CompletableFuture<QueryResult> result;
+
+        public StatementExecution(String query, CompletableFuture<QueryResult> result)
+        {
+            this.query = query;
+            this.result = result;
+        }
+
+        @Override
+        public QueryStats currentStats()
+        {
+            return new QueryStats(result.isDone() ? FINISHED : RUNNING);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult()
+        {
+            return result;
+        }
+
+        @Override
+        public String getQuery()
+        {
+            return query;
+        }
+
+        @Override
+        public void kill()
+        {
+            // the statements are not interrupted since the swap of the tables must not be left halfway
+        }
     }
 }
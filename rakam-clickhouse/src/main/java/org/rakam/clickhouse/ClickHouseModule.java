@@ -3,10 +3,13 @@ package org.rakam.clickhouse;
 import com.google.auto.service.AutoService;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Binder;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Names;
+import io.airlift.http.client.HttpClient;
 import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
@@ -15,12 +18,14 @@ import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.FunnelQueryExecutor;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.RealtimeService;
 import org.rakam.analysis.RealtimeService.RealtimeAggregations;
 import org.rakam.analysis.RetentionQueryExecutor;
 import org.rakam.analysis.TimestampToEpochFunction;
 import org.rakam.analysis.metadata.JDBCQueryMetadata;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.analysis.metadata.StatisticsRecordingEventStore;
 import org.rakam.aws.dynamodb.metastore.DynamodbMetastore;
 import org.rakam.clickhouse.analysis.ClickHouseEventExplorer;
 import org.rakam.clickhouse.analysis.ClickHouseFunnelQueryExecutor;
@@ -28,6 +33,7 @@ import org.rakam.clickhouse.analysis.ClickHouseMetastore;
 import org.rakam.clickhouse.analysis.ClickHouseRetentionQueryExecutor;
 import org.rakam.clickhouse.collection.AWSKinesisClickhouseEventStore;
 import org.rakam.clickhouse.collection.ClickHouseEventStore;
+import org.rakam.clickhouse.collection.KinesisClickHouseLoader;
 import org.rakam.config.MetadataConfig;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
@@ -39,11 +45,15 @@ import org.rakam.plugin.user.UserStorage;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.eventexplorer.EventExplorerConfig;
 import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.util.ConditionalModule;
+import org.rakam.util.RakamException;
+import org.rakam.util.SharedHttpClients;
 
 import java.util.List;
 
 import static io.airlift.configuration.ConfigBinder.configBinder;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
 import static org.rakam.report.realtime.AggregationType.COUNT;
 import static org.rakam.report.realtime.AggregationType.COUNT_UNIQUE;
@@ -64,10 +74,21 @@ public class ClickHouseModule
 
         binder.bind(char.class).annotatedWith(EscapeIdentifier.class).toInstance('`');
 
+        Provider<SharedHttpClients> httpClients = binder.getProvider(SharedHttpClients.class);
+        binder.bind(HttpClient.class).annotatedWith(ForClickHouse.class)
+                .toProvider(() -> httpClients.get().getClient("clickhouse-query")).in(Scopes.SINGLETON);
+
         binder.bind(QueryExecutor.class).to(ClickHouseQueryExecutor.class);
-        binder.bind(EventStore.class).to(AWSKinesisClickhouseEventStore.class);
+        binder.bind(ClickHouseEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).annotatedWith(Names.named(StatisticsRecordingEventStore.DELEGATE))
+                .to(AWSKinesisClickhouseEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).to(StatisticsRecordingEventStore.class).in(Scopes.SINGLETON);
+        if (buildConfigObject(ClickHouseConfig.class).isKinesisLoaderEnabled()) {
+            binder.bind(KinesisClickHouseLoader.class).asEagerSingleton();
+        }
         binder.bind(ContinuousQueryService.class).to(ClickHouseContinuousQueryService.class);
         binder.bind(MaterializedViewService.class).to(ClickHouseMaterializedViewService.class);
+        binder.bind(RealtimeService.class).to(ClickHouseRealtimeService.class);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class)
                 .toInstance("toUnixTimestamp");
 
@@ -116,4 +137,60 @@ public class ClickHouseModule
     {
         return "Rakam backend for big-data.";
     }
+
+    /**
+     * The continuous queries keep the states of the aggregations so the realtime reports are merged with the
+     * -Merge combinators of the aggregations.
+     */
+    public static class ClickHouseRealtimeService
+            extends RealtimeService
+    {
+        @Inject
+        public ClickHouseRealtimeService(ContinuousQueryService service, QueryExecutor executor, @RealtimeAggregations List<AggregationType> aggregationTypes, RealTimeConfig config, @TimestampToEpochFunction String timestampToEpochFunction, @EscapeIdentifier char escapeIdentifier)
+        {
+            super(service, executor, aggregationTypes, config, timestampToEpochFunction, escapeIdentifier);
+        }
+
+        @Override
+        public String getIntermediateFunction(AggregationType type)
+        {
+            switch (type) {
+                case MAXIMUM:
+                    return "max(%s)";
+                case MINIMUM:
+                    return "min(%s)";
+                case COUNT:
+                    return "count(%s)";
+                case SUM:
+                    return "sum(%s)";
+                case APPROXIMATE_UNIQUE:
+                    return "uniq(%s)";
+                case COUNT_UNIQUE:
+                    return "uniqExact(%s)";
+                default:
+                    throw new RakamException("Aggregation type couldn't found.", BAD_REQUEST);
+            }
+        }
+
+        @Override
+        public String combineFunction(AggregationType aggregationType)
+        {
+            switch (aggregationType) {
+                case COUNT:
+                    return "countMerge(%s)";
+                case SUM:
+                    return "sumMerge(%s)";
+                case MINIMUM:
+                    return "minMerge(%s)";
+                case MAXIMUM:
+                    return "maxMerge(%s)";
+                case APPROXIMATE_UNIQUE:
+                    return "uniqMerge(%s)";
+                case COUNT_UNIQUE:
+                    return "uniqExactMerge(%s)";
+                default:
+                    throw new RakamException("Aggregation type couldn't found.", BAD_REQUEST);
+            }
+        }
+    }
 }
@@ -2,6 +2,7 @@ package org.rakam.clickhouse;
 
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.google.inject.Inject;
+import io.airlift.http.client.HttpClient;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.clickhouse.analysis.ClickHouseQueryExecution;
 import org.rakam.collection.SchemaField;
@@ -23,12 +24,17 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 
 public class ClickHouseQueryExecutor implements QueryExecutor
 {
+    public static final String CONTINUOUS_QUERY_PREFIX = "$continuous_";
+    public static final String MATERIALIZED_VIEW_PREFIX = "$materialized_";
+
+    private final HttpClient httpClient;
     private final ClickHouseConfig config;
     private final Metastore metastore;
 
     @Inject
-    public ClickHouseQueryExecutor(ClickHouseConfig config, Metastore metastore)
+    public ClickHouseQueryExecutor(@ForClickHouse HttpClient httpClient, ClickHouseConfig config, Metastore metastore)
     {
+        this.httpClient = httpClient;
         this.config = config;
         this.metastore = metastore;
     }
@@ -36,13 +42,13 @@ public class ClickHouseQueryExecutor implements QueryExecutor
     @Override
     public QueryExecution executeRawQuery(String sqlQuery)
     {
-        return new ClickHouseQueryExecution(config, sqlQuery);
+        return new ClickHouseQueryExecution(httpClient, config, sqlQuery);
     }
 
     @Override
     public QueryExecution executeRawStatement(String sqlQuery)
     {
-        ClickHouseQueryExecution.runStatement(config, sqlQuery);
+        ClickHouseQueryExecution.runStatement(httpClient, config, sqlQuery);
         return QueryExecution.completedQueryExecution(sqlQuery, QueryResult.empty());
     }
 
@@ -53,9 +59,9 @@ public class ClickHouseQueryExecutor implements QueryExecutor
         if (node.getPrefix().isPresent()) {
             String prefix = node.getPrefix().get().toString();
             if (prefix.equals("continuous")) {
-                return ".`" + project + "`.`$continuous_" + checkCollection(node.getSuffix(), '`');
+                return project + "." + checkCollection(CONTINUOUS_QUERY_PREFIX + node.getSuffix(), '`');
             } else if (prefix.equals("materialized")) {
-                return ".`" + project + "`.`$materialized_" + checkCollection(node.getSuffix(), '`');
+                return project + "." + checkCollection(MATERIALIZED_VIEW_PREFIX + node.getSuffix(), '`');
             } else if (prefix.equals("user")) {
                 throw new IllegalArgumentException();
             } else if (!prefix.equals("collection")) {
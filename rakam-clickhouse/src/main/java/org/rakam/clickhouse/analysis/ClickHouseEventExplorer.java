@@ -238,6 +238,10 @@ public class ClickHouseEventExplorer
                 return "uniqExact(%s)";
             case APPROXIMATE_UNIQUE:
                 return "uniq(distinct %s)";
+            case APPROXIMATE_MEDIAN:
+            case APPROXIMATE_PERCENTILE_90:
+            case APPROXIMATE_PERCENTILE_99:
+                return "quantile(" + aggType.getQuantile() + ")(%s)";
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
@@ -2,9 +2,11 @@ package org.rakam.clickhouse.analysis;
 
 import com.google.common.eventbus.EventBus;
 import com.google.inject.Inject;
+import io.airlift.http.client.HttpClient;
 import io.airlift.http.client.StringResponseHandler.StringResponse;
 import org.rakam.analysis.metadata.AbstractMetastore;
 import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.clickhouse.ForClickHouse;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -31,19 +33,26 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public class ClickHouseMetastore
         extends AbstractMetastore
 {
+    /**
+     * The number of the last inserted blocks of a collection table that ClickHouse keeps the tokens of.
+     */
+    public static final int DEDUPLICATION_WINDOW = 1000;
+
+    private final HttpClient httpClient;
     private final ClickHouseConfig config;
 
     @Inject
-    public ClickHouseMetastore(ClickHouseConfig config, EventBus eventBus)
+    public ClickHouseMetastore(@ForClickHouse HttpClient httpClient, ClickHouseConfig config, EventBus eventBus)
     {
         super(eventBus);
+        this.httpClient = httpClient;
         this.config = config;
     }
 
     @Override
     public Map<String, List<SchemaField>> getCollections(String project)
     {
-        List<List<Object>> data = new ClickHouseQueryExecution(config, format("select table, name, type from system.columns where database = '%s'",
+        List<List<Object>> data = new ClickHouseQueryExecution(httpClient, config, format("select table, name, type from system.columns where database = '%s'",
                 project)).getResult().join().getResult();
 
         HashMap<String, List<SchemaField>> map = new HashMap<>();
@@ -60,7 +69,7 @@ public class ClickHouseMetastore
     @Override
     public Set<String> getCollectionNames(String project)
     {
-        List<List<Object>> data = new ClickHouseQueryExecution(config, format("select name from system.columns where database = '%s' and name not like '$%%'",
+        List<List<Object>> data = new ClickHouseQueryExecution(httpClient, config, format("select name from system.columns where database = '%s' and name not like '$%%'",
                 project)).getResult().join().getResult();
         return data.stream().map(e -> e.get(0).toString()).collect(Collectors.toSet());
     }
@@ -68,7 +77,7 @@ public class ClickHouseMetastore
     @Override
     public void createProject(String project)
     {
-        StringResponse resp = ClickHouseQueryExecution.runStatementSafe(config, format("CREATE DATABASE `%s`", project));
+        StringResponse resp = ClickHouseQueryExecution.runStatementSafe(httpClient, config, format("CREATE DATABASE `%s`", project));
         if(resp.getStatusCode() != 200) {
             if(resp.getBody().startsWith("Code: 82")) {
                 throw new AlreadyExistsException("Project", BAD_REQUEST);
@@ -82,14 +91,14 @@ public class ClickHouseMetastore
     @Override
     public Set<String> getProjects()
     {
-        List<List<Object>> databases = new ClickHouseQueryExecution(config, "SHOW DATABASES").getResult().join().getResult();
+        List<List<Object>> databases = new ClickHouseQueryExecution(httpClient, config, "SHOW DATABASES").getResult().join().getResult();
         return databases.stream().map(e -> e.get(0).toString()).collect(Collectors.toSet());
     }
 
     @Override
     public List<SchemaField> getCollection(String project, String collection)
     {
-        List<List<Object>> data = new ClickHouseQueryExecution(config, format("select name, type from system.columns where database = '%s' and table = '%s' and name not like '$%%'",
+        List<List<Object>> data = new ClickHouseQueryExecution(httpClient, config, format("select name, type from system.columns where database = '%s' and table = '%s' and name not like '$%%'",
                 project, collection)).getResult().join().getResult();
 
         return data.stream().map(list -> new SchemaField(list.get(0).toString(),
@@ -134,7 +143,14 @@ public class ClickHouseMetastore
             Optional<SchemaField> userColumn = fields.stream().filter(f -> f.getName().equals("_user")).findAny();
 
             String properties;
-            if(userColumn.isPresent()) {
+            if (config.isInsertDeduplicationToken()) {
+                // the tables that are not replicated discard the blocks with the same token only if the window is set
+                String sampling = userColumn.map(f -> (f.getType().isNumeric() ? "intHash32" : "cityHash64") + "(_user)").orElse(null);
+                properties = format("ENGINE = MergeTree PARTITION BY toYYYYMM(`$date`) ORDER BY (`$date`%s) %s" +
+                                "SETTINGS index_granularity = 8192, non_replicated_deduplication_window = %d",
+                        sampling == null ? "" : ", " + sampling, sampling == null ? "" : "SAMPLE BY " + sampling + " ",
+                        DEDUPLICATION_WINDOW);
+            } else if(userColumn.isPresent()) {
                 String hashFunction = userColumn.get().getType().isNumeric() ? "intHash32" : "cityHash64";
                 properties = format("ENGINE = MergeTree(`$date`, %s(_user), (`$date`, %s(_user)), 8192)", hashFunction, hashFunction);
             } else {
@@ -144,7 +160,7 @@ public class ClickHouseMetastore
             query = format("CREATE TABLE %s.%s (`$date` Date, %s) %s ",
                     project, checkCollection(collection, '`'), queryEnd, properties);
 
-            StringResponse join = ClickHouseQueryExecution.runStatementSafe(config, query);
+            StringResponse join = ClickHouseQueryExecution.runStatementSafe(httpClient, config, query);
 
             if (join.getStatusCode() != 200) {
                 if (join.getBody().startsWith("Code: 44") || join.getBody().startsWith("Code: 57")) {
@@ -172,7 +188,7 @@ public class ClickHouseMetastore
                                  project, checkCollection(collection, '`'),
                                 f.getName(), toClickHouseType(f.getType()));
 
-                        StringResponse join = ClickHouseQueryExecution.runStatementSafe(config, q);
+                        StringResponse join = ClickHouseQueryExecution.runStatementSafe(httpClient, config, q);
                         if (join.getStatusCode() != 200) {
                             if (!getCollection(project, collection).stream().anyMatch(e -> e.getName().equals(f.getName()))) {
                                 throw new IllegalStateException(join.getBody());
@@ -1,21 +1,18 @@
 package org.rakam.clickhouse.analysis;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
-import com.google.common.net.HostAndPort;
+import com.google.common.io.LittleEndianDataInputStream;
 import com.google.common.util.concurrent.ListenableFuture;
-import io.airlift.http.client.HttpClientConfig;
+import io.airlift.http.client.HttpClient;
 import io.airlift.http.client.Request;
 import io.airlift.http.client.Response;
 import io.airlift.http.client.ResponseHandler;
 import io.airlift.http.client.StringResponseHandler;
-import io.airlift.http.client.jetty.JettyHttpClient;
-import io.airlift.http.client.jetty.JettyIoPool;
-import io.airlift.http.client.jetty.JettyIoPoolConfig;
 import io.airlift.log.Logger;
-import io.airlift.units.Duration;
 import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.clickhouse.analysis.ClickHouseQueryResult.ClickHouseColumn;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryExecution;
@@ -26,34 +23,37 @@ import org.rakam.util.RakamException;
 
 import javax.ws.rs.core.UriBuilder;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.ProxySelector;
+import java.io.PushbackInputStream;
 import java.net.URI;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
+import static com.google.common.net.HttpHeaders.ACCEPT_ENCODING;
+import static com.google.common.net.HttpHeaders.CONTENT_ENCODING;
 import static io.airlift.http.client.StaticBodyGenerator.createStaticBodyGenerator;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static java.lang.String.format;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.time.ZoneOffset.UTC;
-import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.rakam.report.QueryStats.State.FINISHED;
 import static org.rakam.report.QueryStats.State.RUNNING;
 
@@ -65,76 +65,125 @@ public class ClickHouseQueryExecution
     public static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     private final CompletableFuture<ClickHouseQueryResult> result;
-    protected static final JettyHttpClient HTTP_CLIENT = new JettyHttpClient(
-            new HttpClientConfig()
-                    .setConnectTimeout(new Duration(10, SECONDS))
-                    .setSocksProxy(getSystemSocksProxy()), new JettyIoPool("rakam-clickhouse", new JettyIoPoolConfig()),
-            ImmutableSet.of());
-    private static Pattern CLICKHOUSE_TYPE_PATTERN = Pattern.compile("^([A-Za-z0-9]+)\\(([A-Za-z0-9]+)\\)$");
-
+    private static Pattern CLICKHOUSE_TYPE_PATTERN = Pattern.compile("^([A-Za-z0-9]+)\\((.+)\\)$");
+    private static Pattern ENUM_VALUE_PATTERN = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'\\s*=\\s*(-?[0-9]+)");
+    private static final Pattern EXCEPTION_PATTERN = Pattern.compile("Code: [0-9]+[.,] ");
+    // long enough for the code of the exception
+    private static final int EXCEPTION_PREFIX_LENGTH = 32;
+    private static final String PROGRESS_HEADER = "X-ClickHouse-Progress";
+    // the progress headers are accumulated until the first block of the result is sent so the interval is kept long
+    private static final int PROGRESS_INTERVAL_MILLIS = 1000;
+
+    private final HttpClient httpClient;
     private final String query;
     private final String queryId;
     private final ClickHouseConfig config;
+    private volatile QueryStats progress;
 
-    public ClickHouseQueryExecution(ClickHouseConfig config, String query)
+    public ClickHouseQueryExecution(HttpClient httpClient, ClickHouseConfig config, String query)
     {
+        this.httpClient = httpClient;
         this.query = query;
         this.queryId = UUID.randomUUID().toString();
         this.config = config;
-        URI uri = UriBuilder
+        UriBuilder uriBuilder = UriBuilder
                 .fromUri(config.getAddress())
-                .queryParam("query_id", queryId).build();
+                .queryParam("query_id", queryId)
+                .queryParam("send_progress_in_http_headers", 1)
+                .queryParam("http_headers_progress_interval_ms", PROGRESS_INTERVAL_MILLIS);
+
+        Request.Builder request = Request.builder()
+                .setMethod("POST")
+                .setBodyGenerator(createStaticBodyGenerator(query + " format " + QueryResponseHandler.FORMAT, UTF_8));
+        if (config.isEnableHttpCompression()) {
+            uriBuilder.queryParam("enable_http_compression", 1);
+            request.setHeader(ACCEPT_ENCODING, "gzip");
+        }
 
-        result = convertCompletableFuture(HTTP_CLIENT.executeAsync(
-                Request.builder()
-                        .setUri(uri)
-                        .setMethod("POST")
-                        .setBodyGenerator(createStaticBodyGenerator(query + " format " + QueryResponseHandler.FORMAT, UTF_8))
-                        .build(),
-                new QueryResponseHandler()));
+        result = convertCompletableFuture(httpClient.executeAsync(request.setUri(uriBuilder.build()).build(),
+                new QueryResponseHandler(stats -> progress = stats)));
     }
 
-    public static String runStatement(ClickHouseConfig config, String query)
+    public static String runStatement(HttpClient httpClient, ClickHouseConfig config, String query)
     {
-        StringResponseHandler.StringResponse run = runStatementSafe(config, query);
+        StringResponseHandler.StringResponse run = runStatementSafe(httpClient, config, query);
         if (run.getStatusCode() != 200) {
             throw new RakamException("Error executing query: " + run.getBody(), INTERNAL_SERVER_ERROR);
         }
         return run.getBody();
     }
 
-    public static StringResponseHandler.StringResponse runStatementSafe(ClickHouseConfig config, String query)
+    public static StringResponseHandler.StringResponse runStatementSafe(HttpClient httpClient, ClickHouseConfig config, String query)
     {
         URI uri = UriBuilder
                 .fromUri(config.getAddress()).queryParam("query", query).build();
 
-        return HTTP_CLIENT.execute(Request.builder()
+        return httpClient.execute(Request.builder()
                         .setUri(uri).setMethod("POST").build(),
                 StringResponseHandler.createStringResponseHandler());
     }
 
+    public static CompletableFuture<String> runStatementAsync(HttpClient httpClient, ClickHouseConfig config, String query)
+    {
+        URI uri = UriBuilder
+                .fromUri(config.getAddress()).queryParam("query", query).build();
+
+        return convertCompletableFuture(httpClient.executeAsync(Request.builder()
+                        .setUri(uri).setMethod("POST").build(),
+                StringResponseHandler.createStringResponseHandler()))
+                .thenApply(response -> {
+                    if (response.getStatusCode() != 200) {
+                        throw new RakamException("Error executing query: " + response.getBody(), INTERNAL_SERVER_ERROR);
+                    }
+                    return response.getBody();
+                });
+    }
+
+    private static ClickHouseQueryResult runQuery(HttpClient httpClient, ClickHouseConfig config, String query)
+    {
+        URI uri = UriBuilder
+                .fromUri(config.getAddress()).build();
+
+        return httpClient.execute(Request.builder()
+                        .setUri(uri).setMethod("POST")
+                        .setBodyGenerator(createStaticBodyGenerator(query + " format " + QueryResponseHandler.FORMAT, UTF_8))
+                        .build(),
+                new QueryResponseHandler(stats -> {}));
+    }
+
     @Override
     public QueryStats currentStats()
     {
+        QueryStats progress = this.progress;
         if (result.isDone()) {
-            return new QueryStats(100, FINISHED, null, null, null, null, null, null);
+            return new QueryStats(100, FINISHED, null,
+                    progress == null ? null : progress.processedRows,
+                    progress == null ? null : progress.processedBytes, null, null, null);
         }
-        else {
-            String status = runStatement(config, format("select rows_read, bytes_read, total_rows_approx, memory_usage from system.processes where query_id = '%s' format "
-                    + QueryResponseHandler.FORMAT, queryId));
-            if (status.isEmpty()) {
-                if (result.isDone()) {
-                    return currentStats();
-                }
-                else {
-                    return new QueryStats(null, RUNNING, null, null, null, null, null, null);
-                }
+
+        // the progress headers are available once ClickHouse starts sending the result
+        if (progress != null) {
+            return progress;
+        }
+
+        List<List<Object>> status = runQuery(httpClient, config, format("select rows_read, bytes_read, total_rows_approx from system.processes where query_id = '%s'", queryId)).data;
+        if (status.isEmpty()) {
+            if (result.isDone()) {
+                return currentStats();
+            }
+            else {
+                return new QueryStats(null, RUNNING, null, null, null, null, null, null);
             }
-            ClickHouseQueryResult read = JsonHelper.read(status, ClickHouseQueryResult.class);
-            int percentage = (((Number) read.data.get(0)).intValue() * 100) / ((Number) read.data.get(2)).intValue();
-            return new QueryStats(percentage, RUNNING, null, ((Number) read.data.get(1)).longValue(), ((Number) read.data.get(2)).longValue(),
-                    null, null, null);
         }
+
+        List<Object> row = status.get(0);
+        return getProgress(((Number) row.get(0)).longValue(), ((Number) row.get(1)).longValue(), ((Number) row.get(2)).longValue());
+    }
+
+    private static QueryStats getProgress(long readRows, long readBytes, long totalRows)
+    {
+        Integer percentage = totalRows > 0 ? (int) Math.min(100, (readRows * 100) / totalRows) : null;
+        return new QueryStats(percentage, RUNNING, null, readRows, readBytes, null, null, null);
     }
 
     @Override
@@ -148,69 +197,7 @@ public class ClickHouseQueryExecution
         List<SchemaField> columns = queryResult.meta.stream().map(f -> new SchemaField(f.name, parseClickhouseType(f.type)))
                 .collect(Collectors.toList());
 
-        ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
-        if (queryResult.totals != null) {
-            builder.put("totals", queryResult.totals);
-        }
-        if (queryResult.extremes != null) {
-            builder.put("extremes", queryResult.extremes);
-        }
-
-        return new QueryResult(columns, transformResultData(columns, queryResult.data),
-                builder.build());
-    }
-
-    private List<List<Object>> transformResultData(List<SchemaField> columns, List<List<Object>> data)
-    {
-        for (List<Object> objects : data) {
-            for (int i = 0; i < columns.size(); i++) {
-                String value = objects.get(i).toString();
-                if (value == null) {
-                    continue;
-                }
-
-                FieldType type = columns.get(i).getType();
-                switch (type) {
-                    case STRING:
-                        break;
-                    case LONG:
-                        objects.set(i, Long.parseLong(value));
-                        break;
-                    case INTEGER:
-                        objects.set(i, Integer.parseInt(value));
-                        break;
-                    case BOOLEAN:
-                        objects.set(i, value.equals("true"));
-                        break;
-                    case TIMESTAMP:
-                        objects.set(i, LocalDateTime.parse(value, DATE_TIME_FORMATTER).toInstant(UTC));
-                        break;
-                    case DATE:
-                        objects.set(i, LocalDate.parse(value));
-                        break;
-                    case TIME:
-                        objects.set(i, LocalTime.parse(value, TIME_FORMATTER));
-                        break;
-                    case BINARY:
-                        objects.set(i, value.getBytes(UTF_8));
-                        break;
-                    case DECIMAL:
-                    case DOUBLE:
-                        objects.set(i, Double.parseDouble(value));
-                        break;
-                    default:
-                        if (type.isArray()) {
-
-                        }
-
-                        if (type.isMap()) {
-
-                        }
-                }
-            }
-        }
-
-        return data;
+        return new QueryResult(columns, queryResult.data);
     }
 
     @Override
@@ -236,7 +223,14 @@ public class ClickHouseQueryExecution
     private static class QueryResponseHandler
             implements ResponseHandler<ClickHouseQueryResult, RuntimeException>
     {
-        private static final String FORMAT = "JSONCompact";
+        private static final String FORMAT = "RowBinaryWithNamesAndTypes";
+
+        private final Consumer<QueryStats> progressConsumer;
+
+        public QueryResponseHandler(Consumer<QueryStats> progressConsumer)
+        {
+            this.progressConsumer = progressConsumer;
+        }
 
         @Override
         public ClickHouseQueryResult handleException(Request request, Exception exception)
@@ -252,7 +246,7 @@ public class ClickHouseQueryExecution
         {
             if (response.getStatusCode() != 200) {
                 try {
-                    String message = CharStreams.toString(new InputStreamReader(response.getInputStream()));
+                    String message = CharStreams.toString(new InputStreamReader(getInputStream(response)));
                     message = message.split(", Stack trace:\n", 2)[0];
                     throw new RakamException(message, BAD_GATEWAY);
                 }
@@ -261,28 +255,118 @@ public class ClickHouseQueryExecution
                 }
             }
 
+            List<String> progressHeaders = response.getHeaders(PROGRESS_HEADER);
+            if (!progressHeaders.isEmpty()) {
+                Map<String, Object> progress = JsonHelper.read(progressHeaders.get(progressHeaders.size() - 1), Map.class);
+                progressConsumer.accept(getProgress(parseLong(progress.get("read_rows")),
+                        parseLong(progress.get("read_bytes")), parseLong(progress.get("total_rows_to_read"))));
+            }
+
             try {
-                return JsonHelper.read(response.getInputStream(), ClickHouseQueryResult.class);
+                return readResult(getInputStream(response));
             }
-            catch (IOException e) {
+            catch (IOException | IllegalStateException e) {
                 LOGGER.error(e, "An error occurred while reading query results");
                 throw new RakamException("An error occurred while reading query results: " + e.getMessage(),
                         INTERNAL_SERVER_ERROR);
             }
         }
+
+        private static long parseLong(Object value)
+        {
+            return value == null ? 0 : Long.parseLong(value.toString());
+        }
+
+        private static InputStream getInputStream(Response response)
+                throws IOException
+        {
+            InputStream inputStream = response.getInputStream();
+            if (!"gzip".equalsIgnoreCase(response.getHeader(CONTENT_ENCODING))) {
+                return inputStream;
+            }
+
+            // the http client may have already decoded the content
+            PushbackInputStream pushback = new PushbackInputStream(inputStream, 2);
+            byte[] magic = new byte[2];
+            int read = ByteStreams.read(pushback, magic, 0, 2);
+            pushback.unread(magic, 0, read);
+            if (read == 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+                return new GZIPInputStream(pushback);
+            }
+            return pushback;
+        }
     }
 
-    public static HostAndPort getSystemSocksProxy()
+    /**
+     * Reads the result in RowBinaryWithNamesAndTypes format. If the query fails after ClickHouse starts sending the
+     * result, the status code is already sent so the exception is appended to the body after the last complete row.
+     * The rows are decoded from the stream, only a short prefix is read ahead when a row may be the exception.
+     */
+    static ClickHouseQueryResult readResult(InputStream inputStream)
+            throws IOException
     {
-        URI uri = URI.create("socket://0.0.0.0:80");
-        for (Proxy proxy : ProxySelector.getDefault().select(uri)) {
-            if (proxy.type() == Proxy.Type.SOCKS &&
-                    proxy.address() instanceof InetSocketAddress) {
-                InetSocketAddress address = (InetSocketAddress) proxy.address();
-                return HostAndPort.fromParts(address.getHostString(), address.getPort());
+        BufferedInputStream stream = new BufferedInputStream(inputStream);
+        LittleEndianDataInputStream input = new LittleEndianDataInputStream(stream);
+
+        int columnCount = readVarInt(input);
+        String[] names = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = readString(input);
+        }
+        List<ClickHouseColumn> columns = new ArrayList<>(columnCount);
+        List<String> types = new ArrayList<>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            String type = readString(input);
+            columns.add(new ClickHouseColumn(names[i], type));
+            types.add(type);
+        }
+
+        List<ValueReader> readers = types.stream().map(ClickHouseQueryExecution::createReader).collect(Collectors.toList());
+        List<List<Object>> data = new ArrayList<>();
+        while (true) {
+            stream.mark(1);
+            int next = stream.read();
+            if (next == -1) {
+                break;
+            }
+            stream.reset();
+
+            if (next == 'C' || next == '\n') {
+                String exception = readException(stream);
+                if (exception != null) {
+                    throw new RakamException(exception, BAD_GATEWAY);
+                }
+            }
+
+            List<Object> row = new ArrayList<>(columnCount);
+            for (ValueReader reader : readers) {
+                row.add(reader.read(input));
             }
+            data.add(row);
         }
-        return null;
+
+        return new ClickHouseQueryResult(columns, data);
+    }
+
+    /**
+     * Returns the exception if the rest of the stream is the exception text, the stream is reset to the start of the row otherwise.
+     */
+    private static String readException(BufferedInputStream stream)
+            throws IOException
+    {
+        stream.mark(EXCEPTION_PREFIX_LENGTH);
+        byte[] prefix = new byte[EXCEPTION_PREFIX_LENGTH];
+        int length = ByteStreams.read(stream, prefix, 0, prefix.length);
+        int start = length > 0 && prefix[0] == '\n' ? 1 : 0;
+        if (!EXCEPTION_PATTERN.matcher(new String(prefix, start, length - start, UTF_8)).lookingAt()) {
+            stream.reset();
+            return null;
+        }
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        text.write(prefix, start, length - start);
+        ByteStreams.copy(stream, text);
+        return new String(text.toByteArray(), UTF_8).split(", Stack trace", 2)[0].trim();
     }
 
     static <T> CompletableFuture<T> convertCompletableFuture(final ListenableFuture<T> listenableFuture)
@@ -317,74 +401,159 @@ public class ClickHouseQueryExecution
             throws IOException
     {
         ArrayList<Object> list = new ArrayList<>(types.size());
-        for (String s : types) {
-            Object value;
-            switch (s) {
-                case "Enum":
-                    throw new UnsupportedOperationException();
-                case "UInt64":
-                case "Int64":
-                    value = input.readLong();
-                    break;
-                case "UInt16":
-                case "Int16":
-                    value = input.readShort();
-                    break;
-                case "Float32":
-                    value = input.readFloat();
-                    break;
-                case "Float64":
-                    value = input.readDouble();
-                    break;
-                case "String":
-                    byte[] bytes = new byte[readVarInt(input)];
-                    input.readFully(bytes);
-                    value = new String(bytes, UTF_8);
-                    break;
-                case "Int32":
-                case "UInt32":
-                    value = input.readInt();
-                    break;
-                case "UInt8":
-                case "Int8":
-                    value = (int) input.readByte();
-                    break;
-                case "DateTime":
-                    value = Instant.ofEpochMilli(input.readInt() * 1000);
-                    break;
-                case "Date":
-                    value = LocalDate.ofEpochDay(input.readShort());
-                    break;
-                default:
-                    Matcher matcher = Pattern.compile("([A-Za-z0-9]+)\\(([0-9]+)\\)$").matcher(s);
-                    if (matcher.find()) {
-                        String type = matcher.group(1);
-                        String group = matcher.group(2);
-                        int variable = Integer.parseInt(group);
-                        switch (type) {
-                            case "FixedString":
-                                bytes = new byte[variable];
-                                input.readFully(bytes);
-                                value = new String(bytes, UTF_8);
-                                break;
-                            case "Array":
-                                for (int i = 0; i < readVarInt(input); i++) {
-
-                                }
-                            default:
-                                throw new IllegalStateException();
-                        }
-                        // Nested
-                    }
-                    else {
-                        throw new IllegalStateException();
+        for (String type : types) {
+            list.add(createReader(type).read(input));
+        }
+
+        return list;
+    }
+
+    interface ValueReader
+    {
+        Object read(DataInput input)
+                throws IOException;
+    }
+
+    /**
+     * Creates the reader of the RowBinary representation of the type, the values are read as the Java types of
+     * the {@link FieldType} that {@link #parseClickhouseType(String)} returns for the type.
+     */
+    static ValueReader createReader(String type)
+    {
+        switch (type) {
+            case "Int64":
+                return DataInput::readLong;
+            case "UInt64":
+                return input -> {
+                    long value = input.readLong();
+                    if (value < 0) {
+                        throw new IllegalStateException(format("The UInt64 value %s is out of the range of the LONG type, " +
+                                "cast it to Int64 or String in the query", Long.toUnsignedString(value)));
                     }
+                    return value;
+                };
+            case "UInt32":
+                return input -> input.readInt() & 0xFFFFFFFFL;
+            case "Int32":
+                return DataInput::readInt;
+            case "UInt16":
+                return DataInput::readUnsignedShort;
+            case "Int16":
+                return input -> (int) input.readShort();
+            case "UInt8":
+                return DataInput::readUnsignedByte;
+            case "Int8":
+                return input -> (int) input.readByte();
+            case "Float32":
+                return input -> (double) input.readFloat();
+            case "Float64":
+                return DataInput::readDouble;
+            case "String":
+                return ClickHouseQueryExecution::readString;
+            case "DateTime":
+                return input -> Instant.ofEpochSecond(input.readInt() & 0xFFFFFFFFL);
+            case "Date":
+                return input -> LocalDate.ofEpochDay(input.readUnsignedShort());
+            default:
+                Matcher matcher = CLICKHOUSE_TYPE_PATTERN.matcher(type);
+                if (!matcher.find()) {
+                    throw new IllegalStateException("The type cannot be identified: " + type);
+                }
+
+                String parameter = matcher.group(2);
+                switch (matcher.group(1)) {
+                    case "FixedString":
+                        int length = Integer.parseInt(parameter);
+                        return input -> {
+                            byte[] bytes = new byte[length];
+                            input.readFully(bytes);
+                            return new String(bytes, UTF_8);
+                        };
+                    case "Array":
+                        ValueReader elementReader = createReader(parameter);
+                        return input -> {
+                            int size = readVarInt(input);
+                            List<Object> list = new ArrayList<>(size);
+                            for (int i = 0; i < size; i++) {
+                                list.add(elementReader.read(input));
+                            }
+                            return list;
+                        };
+                    case "Nullable":
+                        ValueReader valueReader = createReader(parameter);
+                        return input -> input.readByte() == 1 ? null : valueReader.read(input);
+                    case "LowCardinality":
+                        return createReader(parameter);
+                    case "DateTime":
+                        return createReader("DateTime");
+                    case "Enum8":
+                        Map<Integer, String> values8 = parseEnumValues(parameter);
+                        return input -> values8.get((int) input.readByte());
+                    case "Enum16":
+                        Map<Integer, String> values16 = parseEnumValues(parameter);
+                        return input -> values16.get((int) input.readShort());
+                    case "Nested":
+                        // the nested columns that are not flattened are sent as Array(Tuple(Key, Value))
+                        ValueReader mapValueReader = createReader(getNestedMapValueType(type, parameter));
+                        return input -> {
+                            int size = readVarInt(input);
+                            Map<String, Object> map = new HashMap<>(size);
+                            for (int i = 0; i < size; i++) {
+                                map.put(readString(input), mapValueReader.read(input));
+                            }
+                            return map;
+                        };
+                    default:
+                        throw new IllegalStateException("The parametrized type cannot be identified: " + type);
+                }
+        }
+    }
+
+    /**
+     * The maps are stored as Nested(Key String, Value T) columns, the other nested structures are not supported.
+     */
+    private static String getNestedMapValueType(String type, String parameter)
+    {
+        List<String> fields = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < parameter.length(); i++) {
+            char c = parameter.charAt(i);
+            if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                depth--;
+            }
+            else if (c == ',' && depth == 0) {
+                fields.add(parameter.substring(start, i).trim());
+                start = i + 1;
             }
+        }
+        fields.add(parameter.substring(start).trim());
 
-            list.add(value);
+        if (fields.size() != 2 || !fields.get(0).equals("Key String") || !fields.get(1).startsWith("Value ")) {
+            throw new IllegalStateException("Only the Nested(Key String, Value T) columns are supported: " + type);
         }
+        return fields.get(1).substring("Value ".length()).trim();
+    }
 
-        return list;
+    private static Map<Integer, String> parseEnumValues(String parameter)
+    {
+        Map<Integer, String> values = new HashMap<>();
+        Matcher matcher = ENUM_VALUE_PATTERN.matcher(parameter);
+        while (matcher.find()) {
+            values.put(Integer.parseInt(matcher.group(2)), matcher.group(1).replaceAll("\\\\(.)", "$1"));
+        }
+        return values;
+    }
+
+    private static String readString(DataInput input)
+            throws IOException
+    {
+        byte[] bytes = new byte[readVarInt(input)];
+        input.readFully(bytes);
+        return new String(bytes, UTF_8);
     }
 
     public static FieldType parseClickhouseType(String type)
@@ -404,8 +573,10 @@ public class ClickHouseQueryExecution
                 return FieldType.DOUBLE;
             case "String":
                 return FieldType.STRING;
-            case "Int32":
             case "UInt32":
+                // the values above Integer.MAX_VALUE don't fit in INTEGER
+                return FieldType.LONG;
+            case "Int32":
             case "UInt8":
             case "Int8":
                 return FieldType.INTEGER;
@@ -420,11 +591,18 @@ public class ClickHouseQueryExecution
                     String group = matcher.group(2);
                     switch (actualType) {
                         case "FixedString":
+                        case "Enum8":
+                        case "Enum16":
                             return FieldType.STRING;
+                        case "DateTime":
+                            return FieldType.TIMESTAMP;
+                        case "Nullable":
+                        case "LowCardinality":
+                            return parseClickhouseType(group);
                         case "Array":
                             return parseClickhouseType(group).convertToArrayType();
                         case "Nested":
-                            return FieldType.MAP_STRING;
+                            return parseClickhouseType(getNestedMapValueType(type, group)).convertToMapValueType();
                         default:
                             throw new IllegalStateException("The parametrized type cannot be identified: " + type);
                     }
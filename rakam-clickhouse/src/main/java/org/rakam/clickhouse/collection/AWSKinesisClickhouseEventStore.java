@@ -13,7 +13,6 @@ import io.airlift.log.Logger;
 import org.apache.avro.generic.GenericRecord;
 import org.rakam.aws.AWSConfig;
 import org.rakam.aws.kinesis.KinesisUtils;
-import org.rakam.clickhouse.ClickHouseConfig;
 import org.rakam.collection.Event;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.SyncEventStore;
@@ -44,7 +43,7 @@ public class AWSKinesisClickhouseEventStore
 //    private final KinesisProducer producer;
 
     @Inject
-    public AWSKinesisClickhouseEventStore(AWSConfig config, ClickHouseConfig clickHouseConfig)
+    public AWSKinesisClickhouseEventStore(AWSConfig config, ClickHouseEventStore bulkClient)
     {
         kinesis = new AmazonKinesisClient(config.getCredentials());
         kinesis.setRegion(config.getAWSRegion());
@@ -52,7 +51,7 @@ public class AWSKinesisClickhouseEventStore
             kinesis.setEndpoint(config.getKinesisEndpoint());
         }
         this.config = config;
-        this.bulkClient = new ClickHouseEventStore(clickHouseConfig);
+        this.bulkClient = bulkClient;
 
         KinesisProducerConfiguration producerConfiguration = new KinesisProducerConfiguration()
                 .setRegion(config.getRegion())
@@ -0,0 +1,74 @@
+package org.rakam.clickhouse.collection;
+
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsRequest;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.GetShardIteratorRequest;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.ShardIteratorType;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+import org.rakam.aws.AWSConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class AmazonKinesisShardReader
+        implements KinesisShardReader
+{
+    private final AmazonKinesisClient kinesis;
+    private final String streamName;
+
+    public AmazonKinesisShardReader(AWSConfig awsConfig)
+    {
+        this.streamName = awsConfig.getEventStoreStreamName();
+        kinesis = new AmazonKinesisClient(awsConfig.getCredentials());
+        kinesis.setRegion(awsConfig.getAWSRegion());
+        if (awsConfig.getKinesisEndpoint() != null) {
+            kinesis.setEndpoint(awsConfig.getKinesisEndpoint());
+        }
+    }
+
+    @Override
+    public Map<String, Shard> getShards()
+    {
+        Map<String, Shard> shards = new LinkedHashMap<>();
+        String lastShardId = null;
+        StreamDescription description;
+        do {
+            description = kinesis.describeStream(new DescribeStreamRequest()
+                    .withStreamName(streamName)
+                    .withExclusiveStartShardId(lastShardId)).getStreamDescription();
+            for (Shard shard : description.getShards()) {
+                shards.put(shard.getShardId(), shard);
+                lastShardId = shard.getShardId();
+            }
+        }
+        while (description.getHasMoreShards());
+        return shards;
+    }
+
+    @Override
+    public String getIterator(String shardId, String sequenceNumber)
+    {
+        GetShardIteratorRequest request = new GetShardIteratorRequest()
+                .withStreamName(streamName)
+                .withShardId(shardId);
+        if (sequenceNumber == null) {
+            request.withShardIteratorType(ShardIteratorType.TRIM_HORIZON);
+        }
+        else {
+            request.withShardIteratorType(ShardIteratorType.AFTER_SEQUENCE_NUMBER)
+                    .withStartingSequenceNumber(sequenceNumber);
+        }
+        return kinesis.getShardIterator(request).getShardIterator();
+    }
+
+    @Override
+    public GetRecordsResult getRecords(String iterator, int limit)
+    {
+        return kinesis.getRecords(new GetRecordsRequest()
+                .withShardIterator(iterator)
+                .withLimit(limit));
+    }
+}
@@ -3,17 +3,15 @@ package org.rakam.clickhouse.collection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.io.LittleEndianDataOutputStream;
 import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import io.airlift.http.client.BodyGenerator;
 import io.airlift.http.client.HttpClient.HttpResponseFuture;
-import io.airlift.http.client.HttpClientConfig;
 import io.airlift.http.client.Request;
 import io.airlift.http.client.StringResponseHandler.StringResponse;
 import io.airlift.http.client.jetty.JettyHttpClient;
-import io.airlift.http.client.jetty.JettyIoPool;
-import io.airlift.http.client.jetty.JettyIoPoolConfig;
 import io.airlift.log.Logger;
 import io.airlift.units.Duration;
 import org.apache.avro.generic.GenericRecord;
@@ -24,9 +22,11 @@ import org.rakam.collection.SchemaField;
 import org.rakam.plugin.EventStore;
 import org.rakam.report.QueryExecution;
 import org.rakam.util.ProjectCollection;
+import org.rakam.util.SharedHttpClients;
 
 import javax.ws.rs.core.UriBuilder;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
@@ -34,25 +34,26 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static io.airlift.http.client.StringResponseHandler.createStringResponseHandler;
 import static java.lang.String.format;
 import static java.util.concurrent.TimeUnit.MINUTES;
-import static java.util.concurrent.TimeUnit.SECONDS;
-import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.getSystemSocksProxy;
 import static org.rakam.collection.FieldType.DATE;
 import static org.rakam.collection.FieldType.STRING;
 import static org.rakam.util.ValidationUtil.checkCollection;
@@ -64,78 +65,126 @@ public class ClickHouseEventStore
 
     private static final byte[] EMPTY_ARRAY = new byte[]{};
     private static final String EMPTY_STRING = "";
-    final JettyHttpClient HTTP_CLIENT = new JettyHttpClient(
-            new HttpClientConfig()
-                    .setConnectTimeout(new Duration(10, SECONDS))
-                    .setSocksProxy(getSystemSocksProxy()), new JettyIoPool("rakam-clickhouse", new JettyIoPoolConfig()),
-            ImmutableSet.of());
+    private static final int MAX_RETRIES = 3;
 
-    final Map<ProjectCollection, List<Event>> queuedEvents;
+    private final JettyHttpClient httpClient;
+    final Map<ProjectCollection, QueuedBatch> queuedEvents;
     private final ClickHouseConfig config;
-    Map<ProjectCollection, CompletableFuture<Void>> currentFutureSingle;
+    private final List<URI> addresses;
+    private final AtomicInteger nextAddress = new AtomicInteger();
 
     @Inject
-    public ClickHouseEventStore(ClickHouseConfig config)
+    public ClickHouseEventStore(ClickHouseConfig config, SharedHttpClients httpClients)
     {
         this.config = config;
+        this.addresses = config.getInsertAddresses();
         queuedEvents = new ConcurrentHashMap<>();
-        currentFutureSingle = new ConcurrentHashMap<>();
+
+        // the requests over the limit are queued by the client so the concurrency is bounded for each replica
+        this.httpClient = httpClients.getClient("clickhouse-insert", httpClients.createConfig()
+                        .setRequestTimeout(new Duration(5, MINUTES))
+                        .setMaxConnectionsPerServer(config.getMaxConcurrentInserts()),
+                ImmutableSet.of());
 
         Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
             try {
-                Iterator<Map.Entry<ProjectCollection, List<Event>>> iterator = queuedEvents.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry<ProjectCollection, List<Event>> next = iterator.next();
-                    List<Event> value = next.getValue();
-                    iterator.remove();
-                    CompletableFuture<Void> remove = currentFutureSingle.remove(next.getKey());
-
-                    List<SchemaField> schema = value.get(0).schema();
-
-                    executeRequest(next.getKey(), schema, next.getValue(), remove, false);
+                for (ProjectCollection key : queuedEvents.keySet()) {
+                    // the writers add the events in compute so the batch is not modified once it's removed
+                    QueuedBatch batch = queuedEvents.remove(key);
+                    if (batch != null) {
+                        insert(key, batch);
+                    }
                 }
             }
             catch (Exception e) {
-                e.printStackTrace();
+                LOGGER.error(e, "Error while flushing the events to ClickHouse");
             }
         }, 1, 1, TimeUnit.SECONDS);
     }
 
-    private void executeRequest(ProjectCollection collection, List<SchemaField> schema, List<Event> events, CompletableFuture<Void> future, boolean tried) {
-        HttpResponseFuture<StringResponse> f = HTTP_CLIENT.executeAsync(Request.builder()
-                .setUri(buildInsertUri(collection, schema))
+    private void insert(ProjectCollection collection, QueuedBatch batch)
+    {
+        List<SchemaField> schema = batch.events.get(0).schema();
+
+        // the large batches are split and inserted concurrently, the events of a batch have the same schema.
+        // each part completes the futures of its own events so that only the failed ones are retried by the clients
+        List<List<Event>> parts = Lists.partition(batch.events, config.getInsertBatchSize());
+        for (int i = 0; i < parts.size(); i++) {
+            // the token is kept for the retries so that ClickHouse discards the batch if it's already inserted
+            executeRequest(collection, schema, new BinaryRawGenerator(parts.get(i), schema, config.isCompressInserts()),
+                    parts.get(i).size(), UUID.randomUUID().toString(), batch.futures.get(i), 0);
+        }
+    }
+
+    /**
+     * Inserts the rows that are already serialized in RowBinary format with the date column in the beginning.
+     * The batch is discarded by ClickHouse if a batch with the same deduplication token is already inserted.
+     */
+    CompletableFuture<Void> insertRowBinary(ProjectCollection collection, List<SchemaField> schema, List<ByteBuffer> rows, String deduplicationToken)
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        executeRequest(collection, schema, new RowBinaryGenerator(rows, config.isCompressInserts()), rows.size(),
+                deduplicationToken, future, 0);
+        return future;
+    }
+
+    private void executeRequest(ProjectCollection collection, List<SchemaField> schema, BodyGenerator body, int rowCount,
+            String deduplicationToken, CompletableFuture<Void> future, int tried)
+    {
+        Request.Builder request = Request.builder()
+                .setUri(buildInsertUri(nextAddress(), collection, schema, config.isInsertDeduplicationToken() ? deduplicationToken : null))
                 .setMethod("POST")
-                .setBodyGenerator(new BinaryRawGenerator(events, schema))
-                .build(), createStringResponseHandler());
+                .setBodyGenerator(body);
+        if (config.isCompressInserts()) {
+            request.setHeader("Content-Encoding", "gzip");
+        }
+
+        HttpResponseFuture<StringResponse> f = httpClient.executeAsync(request.build(), createStringResponseHandler());
 
         f.addListener(() -> {
+            Exception exception;
             try {
-                StringResponse stringResponse = f.get(1L, MINUTES);
+                StringResponse stringResponse = f.get();
                 if (stringResponse.getStatusCode() == 200) {
                     future.complete(null);
+                    return;
                 }
-                else {
-                    RuntimeException ex = new RuntimeException(stringResponse.getStatusMessage() + " : "
-                            + stringResponse.getBody().split("\n", 2)[0]);
-                    future.completeExceptionally(ex);
+
+                exception = new RuntimeException(stringResponse.getStatusMessage() + " : "
+                        + stringResponse.getBody().split("\n", 2)[0]);
+                // the query is not valid so there is no point in retrying it
+                if (stringResponse.getStatusCode() < 500) {
+                    future.completeExceptionally(exception);
+                    return;
                 }
             }
-            catch (InterruptedException|ExecutionException|TimeoutException e) {
-                if(!tried) {
-                    executeRequest(collection, schema, events, future, true);
-                } else {
-                    future.completeExceptionally(e);
-                    LOGGER.error(e);
-                }
+            catch (InterruptedException | ExecutionException e) {
+                exception = e;
+            }
 
+            if (tried < MAX_RETRIES) {
+                // the next request is sent to the next replica
+                executeRequest(collection, schema, body, rowCount, deduplicationToken, future, tried + 1);
+            }
+            else {
+                future.completeExceptionally(exception);
+                LOGGER.error(exception, "Unable to insert %d events to %s.%s", rowCount, collection.project, collection.collection);
             }
         }, Runnable::run);
     }
 
-    private URI buildInsertUri(ProjectCollection collection, List<SchemaField> schema)
+    private URI nextAddress()
+    {
+        return addresses.get(Math.abs(nextAddress.getAndIncrement() % addresses.size()));
+    }
+
+    private static URI buildInsertUri(URI address, ProjectCollection collection, List<SchemaField> schema, String deduplicationToken)
     {
-        return UriBuilder
-                .fromUri(config.getAddress())
+        UriBuilder builder = UriBuilder.fromUri(address);
+        if (deduplicationToken != null) {
+            builder.queryParam("insert_deduplication_token", deduplicationToken);
+        }
+        return builder
                 .queryParam("query", format("INSERT INTO %s.%s (`$date`, %s) FORMAT RowBinary",
                         collection.project, checkCollection(collection.collection, '`'),
                         schema.stream().flatMap(f -> f.getType().isMap() ? Stream.of(checkCollection(f.getName(), '`') + ".Key", checkCollection(f.getName(), '`') + ".Value") : Stream.of(checkCollection(f.getName(), '`')))
@@ -157,8 +206,8 @@ public class ClickHouseEventStore
                 if (futures[i].isCompletedExceptionally()) {
                     if (ints == null) {
                         ints = new ArrayList();
-                        ints.add(i);
                     }
+                    ints.add(i);
                 }
             }
 
@@ -175,10 +224,13 @@ public class ClickHouseEventStore
     public CompletableFuture<Void> storeAsync(Event event)
     {
         ProjectCollection tuple = new ProjectCollection(event.project(), event.collection());
-        CompletableFuture<Void> future = currentFutureSingle.computeIfAbsent(tuple, (k) -> new CompletableFuture<>());
-
-        queuedEvents.computeIfAbsent(tuple, (k) -> Collections.synchronizedList(new ArrayList<>())).add(event);
-        return future;
+        CompletableFuture<Void>[] future = new CompletableFuture[1];
+        queuedEvents.compute(tuple, (k, current) -> {
+            QueuedBatch queued = current == null ? new QueuedBatch() : current;
+            future[0] = queued.add(event, config.getInsertBatchSize());
+            return queued;
+        });
+        return future[0];
     }
 
     public static void writeValue(Object value, FieldType type, DataOutput out)
@@ -265,18 +317,22 @@ public class ClickHouseEventStore
     {
         private final List<Event> value;
         private final List<SchemaField> schema;
+        private final boolean compress;
 
-        public BinaryRawGenerator(List<Event> value, List<SchemaField> schema)
+        public BinaryRawGenerator(List<Event> value, List<SchemaField> schema, boolean compress)
         {
             this.value = value;
             this.schema = schema;
+            this.compress = compress;
         }
 
         @Override
         public void write(OutputStream outputStream)
                 throws Exception
         {
-            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(outputStream);
+            // the body is streamed to the server in chunks while it's serialized
+            OutputStream stream = compress ? new GZIPOutputStream(outputStream, 8192) : new BufferedOutputStream(outputStream, 8192);
+            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(stream);
 
             for (Event event : value) {
                 GenericRecord record = event.properties();
@@ -287,6 +343,58 @@ public class ClickHouseEventStore
                     writeValue(record.get(i), schema.get(i).getType(), out);
                 }
             }
+
+            if (stream instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) stream).finish();
+            }
+            stream.flush();
+        }
+    }
+
+    private static class RowBinaryGenerator
+            implements BodyGenerator
+    {
+        private final List<ByteBuffer> rows;
+        private final boolean compress;
+
+        public RowBinaryGenerator(List<ByteBuffer> rows, boolean compress)
+        {
+            this.rows = rows;
+            this.compress = compress;
+        }
+
+        @Override
+        public void write(OutputStream outputStream)
+                throws Exception
+        {
+            OutputStream stream = compress ? new GZIPOutputStream(outputStream, 8192) : new BufferedOutputStream(outputStream, 8192);
+            WritableByteChannel channel = Channels.newChannel(stream);
+
+            for (ByteBuffer row : rows) {
+                // the buffers are duplicated since the body is written again when the request is retried
+                channel.write(row.duplicate());
+            }
+
+            if (stream instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) stream).finish();
+            }
+            stream.flush();
+        }
+    }
+
+    static class QueuedBatch
+    {
+        final List<Event> events = new ArrayList<>();
+        // the futures of the parts that the events are split into when they're inserted
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        CompletableFuture<Void> add(Event event, int partSize)
+        {
+            if (events.size() % partSize == 0) {
+                futures.add(new CompletableFuture<>());
+            }
+            events.add(event);
+            return futures.get(futures.size() - 1);
         }
     }
 }
@@ -0,0 +1,110 @@
+package org.rakam.clickhouse.collection;
+
+import com.google.common.base.Splitter;
+import io.airlift.http.client.HttpClient;
+import org.rakam.clickhouse.ClickHouseConfig;
+
+import java.util.List;
+
+import static java.lang.String.format;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.runStatement;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+
+/**
+ * Keeps the sequence numbers of the Kinesis shards that are loaded into ClickHouse. The checkpoints are appended to
+ * a ReplacingMergeTree table and the last version of each shard is used so that the table doesn't need updates.
+ */
+public class KinesisCheckpointStore
+{
+    static final String SHARD_END = "SHARD_END";
+    private static final String TABLE = "default.rakam_kinesis_checkpoints";
+
+    private final HttpClient httpClient;
+    private final ClickHouseConfig config;
+    private final String stream;
+
+    public KinesisCheckpointStore(HttpClient httpClient, ClickHouseConfig config, String stream)
+    {
+        this.httpClient = httpClient;
+        this.config = config;
+        this.stream = stream;
+    }
+
+    public void createTable()
+    {
+        runStatement(httpClient, config, format("CREATE TABLE IF NOT EXISTS %s (stream String, shard String, " +
+                "sequence_number String, pending_sequence_number String, token String, version UInt64) " +
+                "ENGINE = ReplacingMergeTree(version) ORDER BY (stream, shard)", TABLE));
+    }
+
+    public Checkpoint getCheckpoint(String shard)
+    {
+        String result = runStatement(httpClient, config, format("SELECT argMax(sequence_number, version), argMax(pending_sequence_number, version), " +
+                        "argMax(token, version), max(version) FROM %s WHERE stream = '%s' AND shard = '%s' FORMAT TabSeparated",
+                TABLE, checkLiteral(stream), checkLiteral(shard)));
+
+        List<String> values = Splitter.on('\t').splitToList(result.trim());
+        if (values.size() != 4) {
+            throw new IllegalStateException(format("Unable to read the checkpoint of shard %s: %s", shard, result));
+        }
+
+        return new Checkpoint(emptyToNull(values.get(0)), emptyToNull(values.get(1)), emptyToNull(values.get(2)),
+                Long.parseLong(values.get(3)));
+    }
+
+    /**
+     * Writes the new state of the shard, the version of the checkpoint must be greater than the previous one.
+     */
+    public void setCheckpoint(String shard, Checkpoint checkpoint)
+    {
+        runStatement(httpClient, config, format("INSERT INTO %s VALUES ('%s', '%s', '%s', '%s', '%s', %d)",
+                TABLE, checkLiteral(stream), checkLiteral(shard),
+                checkpoint.sequenceNumber == null ? "" : checkLiteral(checkpoint.sequenceNumber),
+                checkpoint.pendingSequenceNumber == null ? "" : checkLiteral(checkpoint.pendingSequenceNumber),
+                checkpoint.token == null ? "" : checkLiteral(checkpoint.token),
+                checkpoint.version));
+    }
+
+    private static String emptyToNull(String value)
+    {
+        return value.isEmpty() ? null : value;
+    }
+
+    public static class Checkpoint
+    {
+        // the last sequence number that is inserted, null if the shard is read from the beginning
+        public final String sequenceNumber;
+        // the last sequence number of the batch that is being inserted, null if there is no batch in progress
+        public final String pendingSequenceNumber;
+        public final String token;
+        public final long version;
+
+        public Checkpoint(String sequenceNumber, String pendingSequenceNumber, String token, long version)
+        {
+            this.sequenceNumber = sequenceNumber;
+            this.pendingSequenceNumber = pendingSequenceNumber;
+            this.token = token;
+            this.version = version;
+        }
+
+        public boolean isShardEnd()
+        {
+            return SHARD_END.equals(sequenceNumber);
+        }
+
+        public Checkpoint pending(String pendingSequenceNumber, String token)
+        {
+            return new Checkpoint(sequenceNumber, pendingSequenceNumber, token, nextVersion());
+        }
+
+        public Checkpoint commit(String sequenceNumber)
+        {
+            return new Checkpoint(sequenceNumber, null, null, nextVersion());
+        }
+
+        private long nextVersion()
+        {
+            return Math.max(version + 1, System.currentTimeMillis());
+        }
+    }
+}
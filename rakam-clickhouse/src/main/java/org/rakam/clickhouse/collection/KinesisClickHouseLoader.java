@@ -0,0 +1,168 @@
+package org.rakam.clickhouse.collection;
+
+import com.amazonaws.services.kinesis.model.Shard;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import io.airlift.http.client.HttpClient;
+import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.aws.AWSConfig;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.clickhouse.ForClickHouse;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.lang.String.format;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.runStatement;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+
+/**
+ * Loads the events in the Kinesis stream of the event store into ClickHouse in micro batches. Each shard is read by a
+ * single thread that buffers the records until the batch is full or the flush interval is passed, see
+ * {@link KinesisShardLoader} for the checkpoints of the batches. The loader is exactly-once only because ClickHouse
+ * discards the blocks of a batch that is inserted again, so it doesn't start unless the insert deduplication tokens
+ * are enabled and the collection tables deduplicate the inserts.
+ */
+@Singleton
+public class KinesisClickHouseLoader
+{
+    private final static Logger LOGGER = Logger.get(KinesisClickHouseLoader.class);
+
+    private final ClickHouseConfig config;
+    private final String streamName;
+    private final KinesisShardReader reader;
+    private final KinesisShardLoader.BlockWriter writer;
+    private final Metastore metastore;
+    private final KinesisCheckpointStore checkpointStore;
+    private final Supplier<List<String>> nonDeduplicatingTables;
+    private final Map<String, KinesisShardLoader> loaders = new ConcurrentHashMap<>();
+    private final Set<String> finishedShards = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private volatile boolean running;
+
+    @Inject
+    public KinesisClickHouseLoader(ClickHouseConfig config, AWSConfig awsConfig, ClickHouseEventStore eventStore, Metastore metastore,
+            @ForClickHouse HttpClient httpClient)
+    {
+        this(config, awsConfig.getEventStoreStreamName(), new AmazonKinesisShardReader(awsConfig), eventStore::insertRowBinary,
+                metastore, new KinesisCheckpointStore(httpClient, config, awsConfig.getEventStoreStreamName()),
+                () -> getNonDeduplicatingTables(httpClient, config, metastore));
+    }
+
+    KinesisClickHouseLoader(ClickHouseConfig config, String streamName, KinesisShardReader reader, KinesisShardLoader.BlockWriter writer,
+            Metastore metastore, KinesisCheckpointStore checkpointStore, Supplier<List<String>> nonDeduplicatingTables)
+    {
+        this.config = config;
+        this.streamName = streamName;
+        this.reader = reader;
+        this.writer = writer;
+        this.metastore = metastore;
+        this.checkpointStore = checkpointStore;
+        this.nonDeduplicatingTables = nonDeduplicatingTables;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("kinesis-loader-coordinator").build());
+        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("kinesis-loader-%d").build());
+    }
+
+    @PostConstruct
+    public void start()
+    {
+        // the uncommitted batch is inserted again after a failure, it's duplicated unless ClickHouse discards the blocks
+        checkState(config.isInsertDeduplicationToken(),
+                "The Kinesis loader requires clickhouse.insert-deduplication-token to be enabled");
+        List<String> tables = nonDeduplicatingTables.get();
+        checkState(tables.isEmpty(), "The Kinesis loader requires the collection tables to deduplicate the inserts but " +
+                "the tables %s are neither replicated nor have non_replicated_deduplication_window", tables);
+
+        checkpointStore.createTable();
+        running = true;
+        // the new shards are picked up when the stream is resharded
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                assignShards();
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Unable to fetch the shards of Kinesis stream %s", streamName);
+            }
+        }, 0, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        running = false;
+        scheduler.shutdownNow();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<String> getNonDeduplicatingTables(HttpClient httpClient, ClickHouseConfig config, Metastore metastore)
+    {
+        List<String> tables = new ArrayList<>();
+        for (String project : metastore.getProjects()) {
+            Set<String> collections = metastore.getCollectionNames(project);
+            if (collections.isEmpty()) {
+                continue;
+            }
+
+            String result = runStatement(httpClient, config, format("SELECT name FROM system.tables WHERE database = '%s' " +
+                            "AND name IN (%s) AND engine NOT LIKE 'Replicated%%' " +
+                            "AND position(engine_full, 'non_replicated_deduplication_window') = 0 FORMAT TabSeparated",
+                    checkLiteral(project),
+                    collections.stream().map(name -> "'" + checkLiteral(name) + "'").collect(Collectors.joining(", "))));
+            for (String table : Splitter.on('\n').omitEmptyStrings().split(result)) {
+                tables.add(project + "." + table);
+            }
+        }
+        return tables;
+    }
+
+    private void assignShards()
+    {
+        Map<String, Shard> shards = reader.getShards();
+        for (Shard shard : shards.values()) {
+            String shardId = shard.getShardId();
+            // the shards are split across the nodes statically so that a shard is never loaded by two nodes
+            if (Math.floorMod(shardId.hashCode(), config.getKinesisLoaderNodeCount()) != config.getKinesisLoaderNodeIndex()
+                    || finishedShards.contains(shardId) || loaders.containsKey(shardId)) {
+                continue;
+            }
+
+            KinesisShardLoader loader = new KinesisShardLoader(shard, shards.keySet(), reader, checkpointStore, writer,
+                    metastore, config, finishedShards, () -> running);
+            loaders.put(shardId, loader);
+            executor.execute(() -> {
+                try {
+                    loader.run();
+                }
+                finally {
+                    loaders.remove(shardId);
+                }
+            });
+        }
+    }
+}
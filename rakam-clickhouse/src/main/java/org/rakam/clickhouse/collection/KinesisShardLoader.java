@@ -0,0 +1,327 @@
+package org.rakam.clickhouse.collection;
+
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.clickhouse.collection.KinesisCheckpointStore.Checkpoint;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.ProjectCollection;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.String.format;
+
+/**
+ * Loads a single shard into ClickHouse. The end of the batch and a token is checkpointed before the insert and the
+ * batch is committed after the insert succeeds. If the node fails in the middle, the uncommitted batch is read again
+ * and inserted with the same deduplication tokens so ClickHouse discards the blocks that are already inserted.
+ */
+class KinesisShardLoader
+        implements Runnable
+{
+    private final static Logger LOGGER = Logger.get(KinesisShardLoader.class);
+    private static final int MAX_RECORDS_PER_REQUEST = 10000;
+    // Kinesis allows five read requests per second for each shard
+    private static final long IDLE_SLEEP_MILLIS = 1000;
+    private static final long BUSY_SLEEP_MILLIS = 200;
+
+    private final Shard shard;
+    private final Set<String> streamShards;
+    private final KinesisShardReader reader;
+    private final KinesisCheckpointStore checkpointStore;
+    private final BlockWriter writer;
+    private final Metastore metastore;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Set<String> finishedShards;
+    private final BooleanSupplier running;
+    private Checkpoint checkpoint;
+
+    public KinesisShardLoader(Shard shard, Set<String> streamShards, KinesisShardReader reader, KinesisCheckpointStore checkpointStore,
+            BlockWriter writer, Metastore metastore, ClickHouseConfig config, Set<String> finishedShards, BooleanSupplier running)
+    {
+        this.shard = shard;
+        this.streamShards = streamShards;
+        this.reader = reader;
+        this.checkpointStore = checkpointStore;
+        this.writer = writer;
+        this.metastore = metastore;
+        this.batchSize = config.getInsertBatchSize();
+        this.flushIntervalMillis = config.getKinesisLoaderFlushInterval().toMillis();
+        this.finishedShards = finishedShards;
+        this.running = running;
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            load();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            // the shard is assigned again in the next run of the coordinator
+            LOGGER.error(e, "Error while loading the shard %s from Kinesis", shard.getShardId());
+        }
+    }
+
+    private void load()
+            throws InterruptedException
+    {
+        // the records of the parents must be inserted first to preserve the order of the events
+        if (!waitForParent(shard.getParentShardId()) || !waitForParent(shard.getAdjacentParentShardId())) {
+            return;
+        }
+
+        checkpoint = checkpointStore.getCheckpoint(shard.getShardId());
+        if (checkpoint.isShardEnd()) {
+            finishedShards.add(shard.getShardId());
+            return;
+        }
+
+        if (checkpoint.pendingSequenceNumber != null) {
+            LOGGER.info("Inserting the uncommitted batch of shard %s again", shard.getShardId());
+            List<Record> records = readUntil(checkpoint.pendingSequenceNumber);
+            insert(records, checkpoint.pendingSequenceNumber, checkpoint.token);
+        }
+
+        String iterator = reader.getIterator(shard.getShardId(), checkpoint.sequenceNumber);
+        List<Record> buffer = new ArrayList<>();
+        long batchStart = System.currentTimeMillis();
+
+        while (running.getAsBoolean()) {
+            GetRecordsResult result;
+            try {
+                result = reader.getRecords(iterator, MAX_RECORDS_PER_REQUEST);
+            }
+            catch (ProvisionedThroughputExceededException e) {
+                Thread.sleep(IDLE_SLEEP_MILLIS);
+                continue;
+            }
+            catch (ExpiredIteratorException e) {
+                // the buffered records are not checkpointed yet so the iterator continues after the last one
+                iterator = reader.getIterator(shard.getShardId(), buffer.isEmpty() ? checkpoint.sequenceNumber : getLast(buffer).getSequenceNumber());
+                continue;
+            }
+
+            buffer.addAll(result.getRecords());
+            iterator = result.getNextShardIterator();
+
+            if (!buffer.isEmpty() && (buffer.size() >= batchSize
+                    || System.currentTimeMillis() - batchStart >= flushIntervalMillis || iterator == null)) {
+                String endSequenceNumber = getLast(buffer).getSequenceNumber();
+                insert(buffer, endSequenceNumber, UUID.randomUUID().toString());
+                buffer = new ArrayList<>();
+            }
+
+            if (buffer.isEmpty()) {
+                batchStart = System.currentTimeMillis();
+            }
+
+            if (iterator == null) {
+                // the shard is closed after the resharding and all its records are inserted
+                checkpoint = checkpoint.commit(KinesisCheckpointStore.SHARD_END);
+                checkpointStore.setCheckpoint(shard.getShardId(), checkpoint);
+                finishedShards.add(shard.getShardId());
+                LOGGER.info("Finished loading the closed shard %s", shard.getShardId());
+                return;
+            }
+
+            Thread.sleep(result.getRecords().isEmpty() ? IDLE_SLEEP_MILLIS : BUSY_SLEEP_MILLIS);
+        }
+    }
+
+    private boolean waitForParent(String parentShardId)
+            throws InterruptedException
+    {
+        if (parentShardId == null || !streamShards.contains(parentShardId)) {
+            // the parent is already deleted by the retention policy of the stream
+            return true;
+        }
+
+        while (running.getAsBoolean()) {
+            if (finishedShards.contains(parentShardId) || checkpointStore.getCheckpoint(parentShardId).isShardEnd()) {
+                return true;
+            }
+            Thread.sleep(flushIntervalMillis);
+        }
+        return false;
+    }
+
+    /**
+     * Reads the records after the checkpoint up to the given sequence number, the records must be the same
+     * as the batch that was inserted before so that the same blocks are generated.
+     */
+    private List<Record> readUntil(String endSequenceNumber)
+            throws InterruptedException
+    {
+        List<Record> records = new ArrayList<>();
+        String iterator = reader.getIterator(shard.getShardId(), checkpoint.sequenceNumber);
+        while (iterator != null) {
+            GetRecordsResult result;
+            try {
+                result = reader.getRecords(iterator, MAX_RECORDS_PER_REQUEST);
+            }
+            catch (ProvisionedThroughputExceededException e) {
+                Thread.sleep(IDLE_SLEEP_MILLIS);
+                continue;
+            }
+
+            for (Record record : result.getRecords()) {
+                if (compare(record.getSequenceNumber(), endSequenceNumber) > 0) {
+                    return records;
+                }
+                records.add(record);
+            }
+
+            if (!records.isEmpty() && compare(getLast(records).getSequenceNumber(), endSequenceNumber) == 0) {
+                return records;
+            }
+
+            if (result.getRecords().isEmpty() && Objects.equals(result.getMillisBehindLatest(), 0L)) {
+                LOGGER.warn("The uncommitted batch of shard %s is not in the stream anymore", shard.getShardId());
+                return records;
+            }
+            iterator = result.getNextShardIterator();
+            Thread.sleep(BUSY_SLEEP_MILLIS);
+        }
+        return records;
+    }
+
+    private void insert(List<Record> records, String endSequenceNumber, String token)
+            throws InterruptedException
+    {
+        if (checkpoint.pendingSequenceNumber == null) {
+            checkpoint = checkpoint.pending(endSequenceNumber, token);
+            checkpointStore.setCheckpoint(shard.getShardId(), checkpoint);
+        }
+
+        // the batch is retried with the same tokens until it succeeds, the next records are not read meanwhile
+        while (true) {
+            try {
+                insertBlocks(records, token);
+                break;
+            }
+            catch (Exception e) {
+                if (!running.getAsBoolean()) {
+                    throw new InterruptedException("The loader is stopped before the batch is inserted");
+                }
+                LOGGER.error(e, "Unable to insert %d records of shard %s, the batch will be retried", records.size(), shard.getShardId());
+                Thread.sleep(flushIntervalMillis);
+            }
+        }
+
+        checkpoint = checkpoint.commit(endSequenceNumber);
+        checkpointStore.setCheckpoint(shard.getShardId(), checkpoint);
+    }
+
+    private void insertBlocks(List<Record> records, String token)
+    {
+        Map<ProjectCollection, List<SchemaField>> schemas = new HashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Block block : toBlocks(records, token)) {
+            List<SchemaField> schema = schemas.computeIfAbsent(block.collection,
+                    k -> metastore.getCollection(k.project, k.collection));
+            if (schema.size() < block.fieldCount) {
+                throw new IllegalStateException(format("The collection %s.%s has %d fields but the events have %d fields",
+                        block.collection.project, block.collection.collection, schema.size(), block.fieldCount));
+            }
+
+            futures.add(writer.insert(block.collection, schema.subList(0, block.fieldCount), block.rows, block.token));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+    }
+
+    /**
+     * The rows are already serialized in RowBinary format so they're grouped by the collection and the number of
+     * fields that are written by the event store without deserializing the events. The token of each block is derived
+     * from the token of the batch so that the same blocks have the same tokens when the batch is inserted again.
+     */
+    static List<Block> toBlocks(List<Record> records, String token)
+    {
+        Map<String, List<ByteBuffer>> groups = new LinkedHashMap<>();
+        for (Record record : records) {
+            ByteBuffer data = record.getData().duplicate();
+            int fieldCount = readVarInt(data);
+            groups.computeIfAbsent(record.getPartitionKey() + "|" + fieldCount, key -> new ArrayList<>())
+                    .add(data.slice());
+        }
+
+        List<Block> blocks = new ArrayList<>(groups.size());
+        for (Map.Entry<String, List<ByteBuffer>> group : groups.entrySet()) {
+            String key = group.getKey();
+            int collectionIndex = key.indexOf('|');
+            int fieldCountIndex = key.lastIndexOf('|');
+            ProjectCollection collection = new ProjectCollection(key.substring(0, collectionIndex),
+                    key.substring(collectionIndex + 1, fieldCountIndex));
+            int fieldCount = Integer.parseInt(key.substring(fieldCountIndex + 1));
+            blocks.add(new Block(collection, fieldCount, group.getValue(), token + ":" + key));
+        }
+        return blocks;
+    }
+
+    static int readVarInt(ByteBuffer buffer)
+    {
+        int result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return result;
+    }
+
+    static int compare(String sequenceNumber, String other)
+    {
+        // the sequence numbers are increasing in a shard but they don't have the same length
+        return new BigInteger(sequenceNumber).compareTo(new BigInteger(other));
+    }
+
+    private static Record getLast(List<Record> records)
+    {
+        return records.get(records.size() - 1);
+    }
+
+    static class Block
+    {
+        public final ProjectCollection collection;
+        public final int fieldCount;
+        public final List<ByteBuffer> rows;
+        public final String token;
+
+        public Block(ProjectCollection collection, int fieldCount, List<ByteBuffer> rows, String token)
+        {
+            this.collection = collection;
+            this.fieldCount = fieldCount;
+            this.rows = rows;
+            this.token = token;
+        }
+    }
+
+    interface BlockWriter
+    {
+        CompletableFuture<Void> insert(ProjectCollection collection, List<SchemaField> schema, List<ByteBuffer> rows, String deduplicationToken);
+    }
+}
@@ -0,0 +1,25 @@
+package org.rakam.clickhouse.collection;
+
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Shard;
+
+import java.util.Map;
+
+/**
+ * The Kinesis operations that are used by the loader, the tests replace it with an in-memory stream.
+ */
+interface KinesisShardReader
+{
+    Map<String, Shard> getShards();
+
+    /**
+     * @param sequenceNumber the records after the sequence number are read, the shard is read from the beginning if it's null
+     */
+    String getIterator(String shardId, String sequenceNumber);
+
+    /**
+     * @throws com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException if the read limit of the shard is exceeded
+     * @throws com.amazonaws.services.kinesis.model.ExpiredIteratorException if the iterator is expired
+     */
+    GetRecordsResult getRecords(String iterator, int limit);
+}
@@ -0,0 +1,87 @@
+package org.rakam.clickhouse;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.FunctionCall;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.google.common.collect.ImmutableList;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.util.Optional;
+
+import static org.rakam.clickhouse.ClickHouseContinuousQueryService.getStateFunction;
+import static org.rakam.clickhouse.ClickHouseContinuousQueryService.rewrite;
+import static org.rakam.clickhouse.ClickHouseContinuousQueryService.splitBySource;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+public class TestClickHouseContinuousQueryService
+{
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    @Test
+    public void testStateFunctions()
+    {
+        assertEquals(getStateFunction(SQL_PARSER.createExpression("count(*)")).map(FunctionCall::getName),
+                Optional.of(QualifiedName.of("countState")));
+        assertEquals(getStateFunction(SQL_PARSER.createExpression("approx_distinct(_user)")),
+                Optional.of(SQL_PARSER.createExpression("uniqState(_user)")));
+        assertEquals(getStateFunction(SQL_PARSER.createExpression("count(distinct _user)")),
+                Optional.of(SQL_PARSER.createExpression("uniqExactState(_user)")));
+        // the states are kept as they are
+        assertEquals(getStateFunction(SQL_PARSER.createExpression("uniqState(_user)")),
+                Optional.of(SQL_PARSER.createExpression("uniqState(_user)")));
+
+        assertFalse(getStateFunction(SQL_PARSER.createExpression("lower(platform)")).isPresent());
+        assertFalse(getStateFunction(SQL_PARSER.createExpression("sum(amount) over ()")).isPresent());
+        assertFalse(getStateFunction(SQL_PARSER.createExpression("platform")).isPresent());
+
+        try {
+            getStateFunction(SQL_PARSER.createExpression("sum(distinct amount)"));
+            fail();
+        }
+        catch (RakamException e) {
+            // only count supports distinct
+        }
+    }
+
+    @Test
+    public void testRewriteWithStates()
+    {
+        assertEquals(rewrite(parse("select platform, count(*) as total, sum(amount) as amount from pageview"), true),
+                parse("select platform, countState(*) as total, sumState(amount) as amount from pageview group by platform"));
+        // the expressions are grouped by their aliases
+        assertEquals(rewrite(parse("select lower(platform) as p, count(distinct _user) as users from pageview where amount > 0"), true),
+                parse("select lower(platform) as p, uniqExactState(_user) as users from pageview where amount > 0 group by p"));
+    }
+
+    @Test
+    public void testRewriteWithoutStates()
+    {
+        assertEquals(rewrite(parse("select platform, count(*) as total from pageview"), false),
+                parse("select platform, count(*) as total from pageview group by platform"));
+        // the queries without aggregations are not grouped
+        assertEquals(rewrite(parse("select platform, amount from pageview"), true),
+                parse("select platform, amount from pageview"));
+    }
+
+    @Test
+    public void testSplitBySource()
+    {
+        assertEquals(splitBySource(parse("select a, countState(*) as c from (select a from pageview " +
+                        "union all select a from purchase) t group by a")),
+                ImmutableList.of(
+                        parse("select a, countState(*) as c from (select a from pageview) t group by a"),
+                        parse("select a, countState(*) as c from (select a from purchase) t group by a")));
+
+        Query query = parse("select a, countState(*) as c from pageview group by a");
+        assertEquals(splitBySource(query), ImmutableList.of(query));
+    }
+
+    private static Query parse(String query)
+    {
+        return (Query) SQL_PARSER.createStatement(query);
+    }
+}
@@ -0,0 +1,241 @@
+package org.rakam.clickhouse.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.LittleEndianDataInputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.rakam.collection.FieldType;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.createReader;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.parseClickhouseType;
+import static org.rakam.clickhouse.analysis.ClickHouseQueryExecution.readResult;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestClickHouseQueryExecution
+{
+    @Test
+    public void testResult()
+            throws IOException
+    {
+        ResultBuilder builder = new ResultBuilder()
+                .header(ImmutableList.of("name", "value", "tags", "time", "date", "level"),
+                        ImmutableList.of("String", "Nullable(Int32)", "Array(UInt8)", "DateTime", "Date", "Enum8('low' = 1, 'high' = 2)"));
+        builder.string("a").nullable(false).out.writeInt(-5);
+        builder.varInt(2).out.write(new byte[] {1, (byte) 200});
+        builder.out.writeInt(1477000000);
+        builder.out.writeShort(17000);
+        builder.out.writeByte(2);
+
+        builder.string("b").nullable(true);
+        builder.varInt(0);
+        builder.out.writeInt(0);
+        builder.out.writeShort(0);
+        builder.out.writeByte(1);
+
+        ClickHouseQueryResult result = readResult(builder.build());
+        assertEquals(result.meta.size(), 6);
+        assertEquals(result.data, ImmutableList.of(
+                Arrays.asList("a", -5, ImmutableList.of(1, 200), Instant.ofEpochSecond(1477000000), LocalDate.ofEpochDay(17000), "high"),
+                Arrays.asList("b", null, ImmutableList.of(), Instant.ofEpochSecond(0), LocalDate.ofEpochDay(0), "low")));
+    }
+
+    @Test
+    public void testUnsignedIntegers()
+            throws IOException
+    {
+        assertEquals(parseClickhouseType("UInt32"), FieldType.LONG);
+        assertEquals(parseClickhouseType("Array(UInt32)"), FieldType.ARRAY_LONG);
+        assertEquals(read("UInt32", out -> out.writeInt(-1)), 4294967295L);
+        assertEquals(read("UInt16", out -> out.writeShort(-1)), 65535);
+        assertEquals(read("UInt8", out -> out.writeByte(-1)), 255);
+        assertEquals(read("UInt64", out -> out.writeLong(Long.MAX_VALUE)), Long.MAX_VALUE);
+
+        try {
+            read("UInt64", out -> out.writeLong(-1));
+            fail();
+        }
+        catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("18446744073709551615"));
+        }
+    }
+
+    @Test
+    public void testNestedMap()
+            throws IOException
+    {
+        assertEquals(parseClickhouseType("Nested(Key String, Value Int64)"), FieldType.MAP_LONG);
+        assertEquals(parseClickhouseType("Nested(Key String, Value Enum8('a' = 1, 'b' = 2))"), FieldType.MAP_STRING);
+
+        Object value = read("Nested(Key String, Value Int64)", out -> {
+            ResultBuilder.writeVarInt(out, 2);
+            ResultBuilder.writeString(out, "a");
+            out.writeLong(1);
+            ResultBuilder.writeString(out, "b");
+            out.writeLong(2);
+        });
+        assertEquals(value, ImmutableMap.of("a", 1L, "b", 2L));
+
+        try {
+            parseClickhouseType("Nested(id UInt64, name String)");
+            fail();
+        }
+        catch (IllegalStateException e) {
+            // only the maps are supported
+        }
+    }
+
+    @Test
+    public void testExceptionAfterRows()
+            throws IOException
+    {
+        ResultBuilder builder = new ResultBuilder().header(ImmutableList.of("name"), ImmutableList.of("String"));
+        builder.string("a");
+        builder.string("b");
+        // the exception text would also be read as a string value if it's not detected
+        builder.out.write("Code: 241. DB::Exception: Memory limit (for query) exceeded, Stack trace:\n0. clickhouse-server\n".getBytes(UTF_8));
+
+        try {
+            readResult(builder.build());
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getMessage(), "Code: 241. DB::Exception: Memory limit (for query) exceeded");
+        }
+    }
+
+    @Test
+    public void testExceptionAfterFixedWidthRows()
+            throws IOException
+    {
+        ResultBuilder builder = new ResultBuilder().header(ImmutableList.of("value"), ImmutableList.of("Int32"));
+        builder.out.writeInt(1);
+        // the length of the text is a multiple of the row size so the exception would be read as rows
+        builder.out.write("\nCode: 241. DB::Exception: Memory limit is exceeded\n".getBytes(UTF_8));
+
+        try {
+            readResult(builder.build());
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getMessage(), "Code: 241. DB::Exception: Memory limit is exceeded");
+        }
+    }
+
+    @Test
+    public void testLargeResult()
+            throws IOException
+    {
+        ResultBuilder builder = new ResultBuilder().header(ImmutableList.of("value"), ImmutableList.of("Int32"));
+        for (int i = 0; i < 100000; i++) {
+            // the rows start with 'C'
+            builder.out.writeInt(0x43 + (i << 8));
+        }
+
+        List<List<Object>> data = readResult(builder.build()).data;
+        assertEquals(data.size(), 100000);
+        assertEquals(data.get(99999), ImmutableList.of(0x43 + (99999 << 8)));
+    }
+
+    @Test
+    public void testValueLikeException()
+            throws IOException
+    {
+        ResultBuilder builder = new ResultBuilder().header(ImmutableList.of("message"), ImmutableList.of("String"));
+        builder.string("Code: 241. DB::Exception: this is a value");
+
+        assertEquals(readResult(builder.build()).data, ImmutableList.of(ImmutableList.of("Code: 241. DB::Exception: this is a value")));
+    }
+
+    private static Object read(String type, ValueWriter writer)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(new LittleEndianDataOutputStream(bytes));
+        LittleEndianDataInputStream input = new LittleEndianDataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object value = createReader(type).read(input);
+        assertEquals(input.available(), 0);
+        return value;
+    }
+
+    private interface ValueWriter
+    {
+        void write(LittleEndianDataOutputStream out)
+                throws IOException;
+    }
+
+    private static class ResultBuilder
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+
+        public ResultBuilder header(List<String> names, List<String> types)
+                throws IOException
+        {
+            varInt(names.size());
+            for (String name : names) {
+                string(name);
+            }
+            for (String type : types) {
+                string(type);
+            }
+            return this;
+        }
+
+        public ResultBuilder varInt(int value)
+                throws IOException
+        {
+            writeVarInt(out, value);
+            return this;
+        }
+
+        public ResultBuilder string(String value)
+                throws IOException
+        {
+            writeString(out, value);
+            return this;
+        }
+
+        public ResultBuilder nullable(boolean isNull)
+                throws IOException
+        {
+            out.writeByte(isNull ? 1 : 0);
+            return this;
+        }
+
+        public ByteArrayInputStream build()
+        {
+            return new ByteArrayInputStream(bytes.toByteArray());
+        }
+
+        public static void writeVarInt(LittleEndianDataOutputStream out, int value)
+                throws IOException
+        {
+            while (value > 0x7f) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        public static void writeString(LittleEndianDataOutputStream out, String value)
+                throws IOException
+        {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.rakam.clickhouse.collection;
+
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.clickhouse.ClickHouseConfig;
+import org.rakam.clickhouse.collection.KinesisCheckpointStore.Checkpoint;
+import org.rakam.clickhouse.collection.KinesisShardLoader.Block;
+import org.rakam.clickhouse.collection.KinesisShardLoader.BlockWriter;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.ProjectCollection;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.rakam.clickhouse.collection.ClickHouseEventStore.writeVarInt;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestKinesisShardLoader
+{
+    private static final String PROJECT = "test";
+    private static final Shard SHARD = new Shard().withShardId("shardId-000000000000");
+
+    @Test
+    public void testReadVarInt()
+            throws IOException
+    {
+        for (int value : new int[] {0, 1, 127, 128, 300, 16384, 1 << 21, Integer.MAX_VALUE}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeVarInt(value, new DataOutputStream(out));
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(KinesisShardLoader.readVarInt(buffer), value);
+            assertEquals(buffer.remaining(), 0);
+        }
+    }
+
+    @Test
+    public void testCompareSequenceNumbers()
+    {
+        assertTrue(KinesisShardLoader.compare("9", "10") < 0);
+        assertTrue(KinesisShardLoader.compare("49568167373333333333333333333333333333333333333333333334", "9") > 0);
+        assertEquals(KinesisShardLoader.compare("12", "12"), 0);
+    }
+
+    @Test
+    public void testBlocks()
+            throws IOException
+    {
+        List<Record> records = ImmutableList.of(
+                record("1", "pageview", 2, 1),
+                record("2", "purchase", 2, 2),
+                record("3", "pageview", 3, 3),
+                record("4", "pageview", 2, 4));
+
+        List<Block> blocks = KinesisShardLoader.toBlocks(records, "token");
+        assertEquals(blocks.size(), 3);
+
+        assertEquals(blocks.get(0).collection, new ProjectCollection(PROJECT, "pageview"));
+        assertEquals(blocks.get(0).fieldCount, 2);
+        assertEquals(blocks.get(0).token, "token:test|pageview|2");
+        assertEquals(rows(blocks.get(0)), ImmutableList.of(1, 4));
+
+        assertEquals(blocks.get(1).token, "token:test|purchase|2");
+        assertEquals(rows(blocks.get(1)), ImmutableList.of(2));
+
+        assertEquals(blocks.get(2).fieldCount, 3);
+        assertEquals(blocks.get(2).token, "token:test|pageview|3");
+        assertEquals(rows(blocks.get(2)), ImmutableList.of(3));
+
+        // the batch that is inserted again generates the same blocks
+        assertEquals(KinesisShardLoader.toBlocks(records, "token").stream().map(block -> block.token).collect(Collectors.toList()),
+                blocks.stream().map(block -> block.token).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testCheckpointVersions()
+    {
+        Checkpoint initial = new Checkpoint(null, null, null, 0);
+        Checkpoint pending = initial.pending("10", "token");
+        assertNull(pending.sequenceNumber);
+        assertEquals(pending.pendingSequenceNumber, "10");
+        assertEquals(pending.token, "token");
+        assertTrue(pending.version > initial.version);
+
+        Checkpoint committed = pending.commit("10");
+        assertEquals(committed.sequenceNumber, "10");
+        assertNull(committed.pendingSequenceNumber);
+        assertNull(committed.token);
+        assertTrue(committed.version > pending.version);
+
+        // the version is increased even if the clock goes back
+        Checkpoint future = new Checkpoint("10", null, null, Long.MAX_VALUE - 1);
+        assertEquals(future.pending("11", "token").version, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testReplayAfterFailedInsert()
+            throws Exception
+    {
+        InMemoryShard stream = new InMemoryShard();
+        stream.add(record("1", "pageview", 1, 1));
+        stream.add(record("2", "purchase", 1, 2));
+        stream.add(record("3", "pageview", 1, 3));
+        stream.add(record("4", "purchase", 1, 4));
+
+        InMemoryCheckpointStore checkpoints = new InMemoryCheckpointStore();
+        DeduplicatingTable table = new DeduplicatingTable();
+        ClickHouseConfig config = new ClickHouseConfig().setInsertBatchSize(4).setKinesisLoaderFlushInterval("100ms");
+
+        // the node fails after the first block of the batch is inserted
+        AtomicBoolean running = new AtomicBoolean(true);
+        BlockWriter failingWriter = (collection, schema, rows, token) -> {
+            if (collection.collection.equals("purchase")) {
+                running.set(false);
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                future.completeExceptionally(new IllegalStateException("Connection reset"));
+                return future;
+            }
+            return table.insert(collection, schema, rows, token);
+        };
+        createLoader(stream, checkpoints, failingWriter, config, running::get).run();
+        // the loader interrupts the thread when it's stopped in the middle of a batch
+        assertTrue(Thread.interrupted());
+
+        Checkpoint checkpoint = checkpoints.getCheckpoint(SHARD.getShardId());
+        assertNull(checkpoint.sequenceNumber);
+        assertEquals(checkpoint.pendingSequenceNumber, "4");
+        assertEquals(table.getRows(), ImmutableSet.of(1, 3));
+
+        // the records after the uncommitted batch must not be in the batch that is inserted again
+        stream.add(record("5", "pageview", 1, 5));
+        stream.add(record("6", "purchase", 1, 6));
+
+        AtomicBoolean otherRunning = new AtomicBoolean(true);
+        Thread thread = new Thread(createLoader(stream, checkpoints, table::insert, config, otherRunning::get));
+        thread.start();
+        try {
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (!"6".equals(checkpoints.getCheckpoint(SHARD.getShardId()).sequenceNumber)) {
+                assertTrue(System.currentTimeMillis() < deadline, "The loader didn't commit the records");
+                Thread.sleep(50);
+            }
+        }
+        finally {
+            otherRunning.set(false);
+            thread.join();
+        }
+
+        // the block of the first batch that is already inserted is discarded by its token
+        assertEquals(table.getInsertedBlocks(), 4);
+        assertEquals(table.getDuplicateBlocks(), 1);
+        assertEquals(table.getRows(), ImmutableSet.of(1, 2, 3, 4, 5, 6));
+        assertEquals(table.getRowCount(), 6);
+        assertEquals(checkpoints.getHistory().stream().map(c -> c.pendingSequenceNumber).filter(c -> c != null)
+                .collect(Collectors.toList()), ImmutableList.of("4", "6"));
+    }
+
+    private static KinesisShardLoader createLoader(KinesisShardReader reader, KinesisCheckpointStore checkpoints, BlockWriter writer,
+            ClickHouseConfig config, BooleanSupplier running)
+    {
+        InMemoryMetastore metastore = new InMemoryMetastore(null);
+        metastore.createProject(PROJECT);
+        ImmutableSet<SchemaField> fields = ImmutableSet.of(new SchemaField("a", STRING), new SchemaField("b", STRING), new SchemaField("c", STRING));
+        metastore.getOrCreateCollectionFields(PROJECT, "pageview", fields);
+        metastore.getOrCreateCollectionFields(PROJECT, "purchase", fields);
+
+        return new KinesisShardLoader(SHARD, ImmutableSet.of(SHARD.getShardId()), reader, checkpoints, writer, metastore,
+                config, ConcurrentHashMap.newKeySet(), running);
+    }
+
+    private static Record record(String sequenceNumber, String collection, int fieldCount, int row)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(out);
+        writeVarInt(fieldCount, output);
+        output.writeInt(row);
+        return new Record().withSequenceNumber(sequenceNumber)
+                .withPartitionKey(PROJECT + "|" + collection)
+                .withData(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static List<Integer> rows(Block block)
+    {
+        return block.rows.stream().map(row -> row.duplicate().getInt()).collect(Collectors.toList());
+    }
+
+    /**
+     * A single open shard, the iterators are the positions of the next records.
+     */
+    private static class InMemoryShard
+            implements KinesisShardReader
+    {
+        private final List<Record> records = new ArrayList<>();
+
+        public synchronized void add(Record record)
+        {
+            records.add(record);
+        }
+
+        @Override
+        public Map<String, Shard> getShards()
+        {
+            return ImmutableMap.of(SHARD.getShardId(), SHARD);
+        }
+
+        @Override
+        public synchronized String getIterator(String shardId, String sequenceNumber)
+        {
+            int position = 0;
+            if (sequenceNumber != null) {
+                while (position < records.size() && KinesisShardLoader.compare(records.get(position).getSequenceNumber(), sequenceNumber) <= 0) {
+                    position++;
+                }
+            }
+            return String.valueOf(position);
+        }
+
+        @Override
+        public synchronized GetRecordsResult getRecords(String iterator, int limit)
+        {
+            int position = Integer.parseInt(iterator);
+            int end = Math.min(records.size(), position + limit);
+            return new GetRecordsResult()
+                    .withRecords(new ArrayList<>(records.subList(position, end)))
+                    .withNextShardIterator(String.valueOf(end))
+                    .withMillisBehindLatest(end == records.size() ? 0L : 1000L);
+        }
+    }
+
+    private static class InMemoryCheckpointStore
+            extends KinesisCheckpointStore
+    {
+        private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+        private final List<Checkpoint> history = new ArrayList<>();
+
+        public InMemoryCheckpointStore()
+        {
+            super(null, "test");
+        }
+
+        @Override
+        public void createTable()
+        {
+        }
+
+        @Override
+        public Checkpoint getCheckpoint(String shard)
+        {
+            return checkpoints.getOrDefault(shard, new Checkpoint(null, null, null, 0));
+        }
+
+        @Override
+        public synchronized void setCheckpoint(String shard, Checkpoint checkpoint)
+        {
+            Checkpoint previous = checkpoints.put(shard, checkpoint);
+            assertTrue(previous == null || previous.version < checkpoint.version);
+            history.add(checkpoint);
+        }
+
+        public synchronized List<Checkpoint> getHistory()
+        {
+            return ImmutableList.copyOf(history);
+        }
+    }
+
+    /**
+     * Replaces a ClickHouse table that deduplicates the inserts, the blocks with the tokens that are already inserted
+     * are discarded. The loader doesn't start if the collection tables don't deduplicate.
+     */
+    private static class DeduplicatingTable
+    {
+        private final Set<String> tokens = new HashSet<>();
+        private final List<Integer> rows = new ArrayList<>();
+        private int duplicateBlocks;
+
+        public synchronized CompletableFuture<Void> insert(ProjectCollection collection, List<SchemaField> schema, List<ByteBuffer> rows, String token)
+        {
+            if (!tokens.add(token)) {
+                duplicateBlocks++;
+            }
+            else {
+                for (ByteBuffer row : rows) {
+                    this.rows.add(row.duplicate().getInt());
+                }
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        public synchronized Set<Integer> getRows()
+        {
+            return ImmutableSet.copyOf(rows);
+        }
+
+        public synchronized int getRowCount()
+        {
+            return rows.size();
+        }
+
+        public synchronized int getInsertedBlocks()
+        {
+            return tokens.size();
+        }
+
+        public synchronized int getDuplicateBlocks()
+        {
+            return duplicateBlocks;
+        }
+    }
+}
@@ -1,24 +1,42 @@
 package org.rakam.postgresql;
 
 import com.google.common.base.Throwables;
+import com.google.common.eventbus.EventBus;
 import com.google.inject.name.Named;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.plugin.SystemEvents.ConfigChangedEvent;
 import org.rakam.util.JsonHelper;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.sql.SQLException;
 import java.util.Locale;
 
 public class PostgresqlConfigManager implements ConfigManager {
+    // the nodes that cache the configs listen this channel in order to invalidate the changed values
+    private static final String CHANGE_CHANNEL = "rakam_config_changed";
 
     private final DBI dbi;
+    private final EventBus eventBus;
+    private final PostgresqlNotificationListener changeListener;
+
+    public PostgresqlConfigManager(JDBCPoolDataSource dataSource) {
+        this(dataSource, null);
+    }
 
     @Inject
-    public PostgresqlConfigManager(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource) {
+    public PostgresqlConfigManager(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, EventBus eventBus) {
         this.dbi = new DBI(dataSource);
+        this.eventBus = eventBus;
+        // the changes of this node are already written through the cache so its own notifications are skipped
+        this.changeListener = new PostgresqlNotificationListener(dataSource, CHANGE_CHANNEL,
+                key -> eventBus.post(new ConfigChangedEvent(key.get(0), key.get(1))),
+                // the changes may be missed while the listener is not connected
+                () -> eventBus.post(new ConfigChangedEvent(null, null)));
     }
 
     @PostConstruct
@@ -32,6 +50,23 @@ public class PostgresqlConfigManager implements ConfigManager {
                     "  )")
                     .execute();
         }
+
+        if (eventBus != null) {
+            changeListener.start();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        changeListener.close();
+    }
+
+    private void notifyChange(Handle handle, String project, String configName) {
+        try {
+            changeListener.publish(handle.getConnection(), project, configName);
+        } catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
     }
 
     @Override
@@ -56,6 +91,7 @@ public class PostgresqlConfigManager implements ConfigManager {
                             .bind("project", project)
                             .bind("name", configName.toUpperCase(Locale.ENGLISH))
                             .bind("value", JsonHelper.encode(value)).execute();
+                    notifyChange(handle, project, configName);
                     return value;
                 } catch (Exception e) {
                     // handle race condition
@@ -76,6 +112,7 @@ public class PostgresqlConfigManager implements ConfigManager {
     {
         try (Handle handle = dbi.open()) {
             handle.createStatement("DELETE FROM config").execute();
+            notifyChange(handle, null, null);
         }
     }
 
@@ -93,6 +130,7 @@ public class PostgresqlConfigManager implements ConfigManager {
                         .bind("name", configName.toUpperCase(Locale.ENGLISH))
                         .bind("value", JsonHelper.encode(value)).execute();
             }
+            notifyChange(handle, project, configName);
         }
     }
 }
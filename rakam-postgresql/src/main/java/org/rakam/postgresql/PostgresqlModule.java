@@ -10,9 +10,11 @@ import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
+import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
 import io.airlift.configuration.AbstractConfigurationAwareModule;
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.CachingConfigManager;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
@@ -23,9 +25,11 @@ import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.RealtimeService;
 import org.rakam.analysis.RetentionQueryExecutor;
 import org.rakam.analysis.TimestampToEpochFunction;
+import org.rakam.analysis.metadata.CollectionStatisticsStore;
 import org.rakam.analysis.metadata.JDBCQueryMetadata;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.analysis.metadata.StatisticsRecordingEventStore;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.JDBCConfig;
@@ -34,12 +38,15 @@ import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.SystemEvents;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserPluginConfig;
+import org.rakam.postgresql.analysis.PostgresqlCollectionStatisticsStore;
 import org.rakam.postgresql.analysis.PostgresqlConfig;
 import org.rakam.postgresql.analysis.PostgresqlEventStore;
 import org.rakam.postgresql.analysis.PostgresqlFunnelQueryExecutor;
 import org.rakam.postgresql.analysis.PostgresqlMaterializedViewService;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
 import org.rakam.postgresql.analysis.PostgresqlRetentionQueryExecutor;
+import org.rakam.postgresql.analysis.PostgresqlTimePartitioner;
+import org.rakam.postgresql.analysis.PostgresqlTimePartitioner.Partition;
 import org.rakam.postgresql.plugin.user.AbstractPostgresqlUserStorage;
 import org.rakam.postgresql.plugin.user.PostgresqlUserService;
 import org.rakam.postgresql.plugin.user.PostgresqlUserStorage;
@@ -59,7 +66,9 @@ import java.net.URISyntaxException;
 import java.util.List;
 import java.util.Set;
 
+import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
 import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -90,7 +99,13 @@ public class PostgresqlModule
 
         binder.bind(RealtimeService.class).to(PostgresqlRealtimeService.class);
 
-        binder.bind(EventStore.class).to(PostgresqlEventStore.class).in(Scopes.SINGLETON);
+        configBinder(binder).bindConfig(PostgresqlConfig.class);
+        binder.bind(PostgresqlTimePartitioner.class).asEagerSingleton();
+        binder.bind(EventStore.class).annotatedWith(Names.named(StatisticsRecordingEventStore.DELEGATE))
+                .to(PostgresqlEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).to(StatisticsRecordingEventStore.class).in(Scopes.SINGLETON);
+        OptionalBinder.newOptionalBinder(binder, CollectionStatisticsStore.class)
+                .setBinding().to(PostgresqlCollectionStatisticsStore.class).in(Scopes.SINGLETON);
         binder.bind(new TypeLiteral<List<AggregationType>>() {}).annotatedWith(RealtimeService.RealtimeAggregations.class).toInstance(ImmutableList.of(AggregationType.COUNT,
                 AggregationType.SUM,
                 AggregationType.MINIMUM,
@@ -103,7 +118,9 @@ public class PostgresqlModule
                     .annotatedWith(Names.named("report.metadata.store.jdbc"))
                     .toInstance(orCreateDataSource);
 
-            binder.bind(ConfigManager.class).to(PostgresqlConfigManager.class);
+            binder.bind(ConfigManager.class).annotatedWith(Names.named(CachingConfigManager.DELEGATE))
+                    .to(PostgresqlConfigManager.class).in(Scopes.SINGLETON);
+            binder.bind(ConfigManager.class).to(CachingConfigManager.class).in(Scopes.SINGLETON);
             binder.bind(QueryMetadataStore.class).to(JDBCQueryMetadata.class)
                     .in(Scopes.SINGLETON);
         }
@@ -199,12 +216,14 @@ public class PostgresqlModule
     private static class CollectionFieldIndexerListener
     {
         private final PostgresqlQueryExecutor executor;
+        private final PostgresqlTimePartitioner partitioner;
         boolean postgresql9_5;
 
         @Inject
-        public CollectionFieldIndexerListener(PostgresqlQueryExecutor executor)
+        public CollectionFieldIndexerListener(PostgresqlQueryExecutor executor, PostgresqlTimePartitioner partitioner)
         {
             this.executor = executor;
+            this.partitioner = partitioner;
             try {
                 String version = executor.executeRawQuery("SHOW server_version")
                         .getResult().join().getResult().get(0).get(0).toString();
@@ -230,13 +249,22 @@ public class PostgresqlModule
         }
 
         public void onCreateCollectionFields(String project, String collection, List<SchemaField> fields)
+        {
+            createIndexes(project, collection, fields);
+            // the partitions that are created later copy the indexes of the collection table
+            for (Partition partition : partitioner.getPartitions(project, collection)) {
+                createIndexes(project, partition.name, fields);
+            }
+        }
+
+        private void createIndexes(String project, String table, List<SchemaField> fields)
         {
             for (SchemaField field : fields) {
                 try {
                     executor.executeRawStatement(String.format("CREATE INDEX %s %s ON %s.%s USING %s(%s)",
                             postgresql9_5 ? "IF NOT EXISTS" : "",
-                            checkCollection(String.format("%s_%s_%s_auto_index", project, collection, field.getName())),
-                            project, checkCollection(collection),
+                            checkCollection(String.format("%s_%s_%s_auto_index", project, table, field.getName())),
+                            project, checkCollection(table),
 //                            (postgresql9_5 && brinSupportedTypes.contains(field.getType())) ? "BRIN" : "BTREE",
                             (postgresql9_5 && field.getName().equals("_time")) ? "BRIN" : "BTREE",
                             checkTableColumn(field.getName())));
@@ -254,9 +282,16 @@ public class PostgresqlModule
                 FieldType.STRING, FieldType.TIMESTAMP, FieldType.TIME);
     }
 
+    /**
+     * The unique counts are kept as k-minimum-values sketches: the smallest hashes of the values in the bucket. The
+     * sketches of the buckets are merged by keeping the smallest hashes of the union so that they don't grow with
+     * the number of the values, the standard error of the estimate is about 1 / sqrt(k - 2).
+     */
     public static class PostgresqlRealtimeService
             extends RealtimeService
     {
+        private static final int UNIQUE_SKETCH_SIZE = 1024;
+
         @Inject
         public PostgresqlRealtimeService(ContinuousQueryService service, QueryExecutor executor, @RealtimeAggregations List<AggregationType> aggregationTypes, RealTimeConfig config, @TimestampToEpochFunction String timestampToEpochFunction, @EscapeIdentifier char escapeIdentifier)
         {
@@ -267,6 +302,18 @@ public class PostgresqlModule
                     "   ,STYPE    = int[]\n" +
                     "   ,INITCOND = '{}'\n" +
                     ");").getResult().join();
+            executor.executeRawStatement(format("CREATE OR REPLACE FUNCTION kmv_union(int[], int[]) RETURNS int[] " +
+                    "AS 'SELECT ($1 | $2)[1:%d]' LANGUAGE sql IMMUTABLE STRICT", UNIQUE_SKETCH_SIZE)).getResult().join();
+            executor.executeRawStatement("CREATE AGGREGATE kmv_union_agg (int[]) (\n" +
+                    "    SFUNC    = kmv_union\n" +
+                    "   ,STYPE    = int[]\n" +
+                    "   ,INITCOND = '{}'\n" +
+                    ");").getResult().join();
+            // the hashes are uniformly distributed so the k-th smallest one is expected to be at k / (n + 1) of the range
+            executor.executeRawStatement(format("CREATE OR REPLACE FUNCTION kmv_cardinality(int[]) RETURNS bigint " +
+                    "AS 'SELECT CASE WHEN coalesce(array_length($1, 1), 0) < %1$d THEN coalesce(array_length($1, 1), 0) " +
+                    "ELSE round((%1$d - 1) / (($1[%1$d]::numeric + 2147483648) / 4294967296))::bigint END' LANGUAGE sql IMMUTABLE",
+                    UNIQUE_SKETCH_SIZE)).getResult().join();
         }
 
         @Override
@@ -293,7 +340,7 @@ public class PostgresqlModule
                     format = "sum(%s)";
                     break;
                 case APPROXIMATE_UNIQUE:
-                    format = "array_agg(distinct hashtext(%s))";
+                    format = "(sort(array_agg(distinct hashtext(%s))))[1:" + UNIQUE_SKETCH_SIZE + "]";
                     break;
                 default:
                     throw new RakamException("Aggregation type couldn't found.", BAD_REQUEST);
@@ -314,7 +361,7 @@ public class PostgresqlModule
                 case MAXIMUM:
                     return "max(%s)";
                 case APPROXIMATE_UNIQUE:
-                    return "array_length(array_agg_int(%s), 1)";
+                    return "kmv_cardinality(kmv_union_agg(%s))";
                 default:
                     throw new RakamException("Aggregation type couldn't found.", BAD_REQUEST);
             }
@@ -0,0 +1,117 @@
+package org.rakam.postgresql;
+
+import io.airlift.log.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.util.JsonHelper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Listens a notification channel of Postgresql and passes the values that are published by the other nodes to the
+ * handler. The notifications carry the id of the node that publishes them so that a node doesn't process the
+ * changes that it made itself.
+ */
+public class PostgresqlNotificationListener
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlNotificationListener.class);
+    private static final long LISTEN_POLL_INTERVAL = 1000;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final JDBCPoolDataSource dataSource;
+    private final String channel;
+    private final Consumer<List<String>> handler;
+    private final Runnable onReconnect;
+    private volatile boolean closed;
+
+    /**
+     * @param onReconnect called when the listener is connected since the changes may be missed while it's not connected
+     */
+    public PostgresqlNotificationListener(JDBCPoolDataSource dataSource, String channel, Consumer<List<String>> handler, Runnable onReconnect)
+    {
+        this.dataSource = dataSource;
+        this.channel = channel;
+        this.handler = handler;
+        this.onReconnect = onReconnect;
+    }
+
+    public void start()
+    {
+        Thread listener = new Thread(this::listen, channel + "-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * The notification is delivered when the transaction of the connection is committed.
+     */
+    public void publish(Connection connection, String... values)
+            throws SQLException
+    {
+        List<String> payload = new ArrayList<>(values.length + 1);
+        payload.add(nodeId);
+        payload.addAll(Arrays.asList(values));
+
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+            statement.setString(1, channel);
+            statement.setString(2, JsonHelper.encode(payload));
+            statement.execute();
+        }
+    }
+
+    private void listen()
+    {
+        while (!closed) {
+            // a separated connection that is not returned to the pool since the notifications are delivered to the listening session
+            try (Connection conn = dataSource.getConnection(true)) {
+                PGConnection pgConnection = conn.unwrap(PGConnection.class);
+                try (Statement statement = conn.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                    onReconnect.run();
+
+                    while (!closed) {
+                        statement.execute("SELECT 1");
+                        PGNotification[] notifications = pgConnection.getNotifications();
+                        if (notifications != null) {
+                            for (PGNotification notification : notifications) {
+                                List<String> payload = JsonHelper.read(notification.getParameter(), List.class);
+                                if (!nodeId.equals(payload.get(0))) {
+                                    handler.accept(payload.subList(1, payload.size()));
+                                }
+                            }
+                        }
+                        Thread.sleep(LISTEN_POLL_INTERVAL);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Exception e) {
+                LOGGER.warn(e, "Error while listening the channel %s, reconnecting", channel);
+                try {
+                    Thread.sleep(LISTEN_POLL_INTERVAL * 5);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.rakam.postgresql.analysis;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -22,7 +23,9 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
@@ -35,6 +38,9 @@ public class JDBCApiKeyService
     private final LoadingCache<String, List<Set<String>>> apiKeyCache;
     protected final JDBCPoolDataSource connectionPool;
     private final LoadingCache<ApiKey, String> apiKeyReverseCache;
+    // invalid keys are not cached by the loading cache, keep them for a while so that the clients
+    // with wrong keys don't hit the database on every request.
+    private final Cache<ApiKey, Boolean> invalidApiKeyCache;
 
     public JDBCApiKeyService(JDBCPoolDataSource connectionPool)
     {
@@ -72,6 +78,9 @@ public class JDBCApiKeyService
                 }
             }
         });
+
+        invalidApiKeyCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES)
+                .maximumSize(100000).build();
     }
 
     @PostConstruct
@@ -129,14 +138,40 @@ public class JDBCApiKeyService
         if (apiKey == null) {
             throw new RakamException(type.getKey() + " is missing", FORBIDDEN);
         }
+        ApiKey key = new ApiKey(apiKey, type);
+        if (invalidApiKeyCache.getIfPresent(key) != null) {
+            throw new RakamException(type.getKey() + " is invalid", FORBIDDEN);
+        }
         try {
-            return apiKeyReverseCache.getUnchecked(new ApiKey(apiKey, type));
+            return apiKeyReverseCache.getUnchecked(key);
         }
         catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RakamException && ((RakamException) e.getCause()).getStatusCode() == FORBIDDEN) {
+                invalidApiKeyCache.put(key, Boolean.TRUE);
+            }
             throw Throwables.propagate(e.getCause());
         }
     }
 
+    @Override
+    public CompletableFuture<String> getProjectOfApiKeyAsync(String apiKey, AccessKeyType type, Executor executor)
+    {
+        if (apiKey != null && type != null) {
+            ApiKey key = new ApiKey(apiKey, type);
+            String project = apiKeyReverseCache.getIfPresent(key);
+            if (project != null) {
+                return CompletableFuture.completedFuture(project);
+            }
+            if (invalidApiKeyCache.getIfPresent(key) != null) {
+                CompletableFuture<String> future = new CompletableFuture<>();
+                future.completeExceptionally(new RakamException(type.getKey() + " is invalid", FORBIDDEN));
+                return future;
+            }
+        }
+
+        return ApiKeyService.super.getProjectOfApiKeyAsync(apiKey, type, executor);
+    }
+
     @Override
     public void revokeApiKeys(String project, String masterKey)
     {
@@ -145,6 +180,7 @@ public class JDBCApiKeyService
             ps.setString(1, project);
             ps.setString(2, masterKey);
             ps.execute();
+            apiKeyReverseCache.invalidateAll();
         }
         catch (SQLException e) {
             throw Throwables.propagate(e);
@@ -158,6 +194,7 @@ public class JDBCApiKeyService
             PreparedStatement ps = conn.prepareStatement("DELETE FROM api_key WHERE project = ?");
             ps.setString(1, project);
             ps.execute();
+            apiKeyReverseCache.invalidateAll();
         }
         catch (SQLException e) {
             throw Throwables.propagate(e);
@@ -0,0 +1,252 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.base.Throwables;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.CollectionStatistics;
+import org.rakam.analysis.metadata.CollectionStatisticsStore;
+import org.rakam.util.JsonHelper;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps the statistics of the collections in the event database so that they're shared by all the nodes. The
+ * statistics of a day are merged in a transaction that creates and locks the row since the sketches can't be merged
+ * in SQL.
+ */
+public class PostgresqlCollectionStatisticsStore
+        implements CollectionStatisticsStore
+{
+    private static final Comparator<CollectionDay> LOCK_ORDER = Comparator.<CollectionDay, String>comparing(key -> key.project)
+            .thenComparing(key -> key.collection).thenComparing(key -> key.day);
+
+    private final JDBCPoolDataSource connectionPool;
+
+    @Inject
+    public PostgresqlCollectionStatisticsStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool)
+    {
+        this.connectionPool = connectionPool;
+    }
+
+    @PostConstruct
+    public void setup()
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            Statement statement = conn.createStatement();
+            statement.execute("CREATE TABLE IF NOT EXISTS public._collection_statistics (" +
+                    "  project TEXT NOT NULL," +
+                    "  collection TEXT NOT NULL," +
+                    "  day DATE NOT NULL," +
+                    "  row_count BIGINT NOT NULL," +
+                    "  statistics TEXT NOT NULL," +
+                    "  PRIMARY KEY (project, collection, day)" +
+                    "  )");
+            statement.execute("CREATE TABLE IF NOT EXISTS public._collection_statistics_coverage (" +
+                    "  project TEXT NOT NULL," +
+                    "  collection TEXT NOT NULL," +
+                    "  complete_since DATE NOT NULL," +
+                    "  PRIMARY KEY (project, collection)" +
+                    "  )");
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public void merge(Map<CollectionDay, CollectionStatistics> statistics, LocalDate completeSince)
+    {
+        List<CollectionDay> keys = new ArrayList<>(statistics.keySet());
+        // the rows are locked in the same order by all the nodes
+        keys.sort(LOCK_ORDER);
+
+        try (Connection conn = connectionPool.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // the missing rows are created first since FOR UPDATE doesn't lock the rows that don't exist yet
+                PreparedStatement insert = conn.prepareStatement("INSERT INTO public._collection_statistics " +
+                        "(project, collection, day, row_count, statistics) VALUES (?, ?, ?, 0, ?) " +
+                        "ON CONFLICT (project, collection, day) DO NOTHING");
+                PreparedStatement select = conn.prepareStatement("SELECT statistics FROM public._collection_statistics " +
+                        "WHERE project = ? AND collection = ? AND day = ? FOR UPDATE");
+                PreparedStatement update = conn.prepareStatement("UPDATE public._collection_statistics " +
+                        "SET row_count = ?, statistics = ? WHERE project = ? AND collection = ? AND day = ?");
+                PreparedStatement coverage = conn.prepareStatement("INSERT INTO public._collection_statistics_coverage " +
+                        "(project, collection, complete_since) VALUES (?, ?, ?) ON CONFLICT (project, collection) DO NOTHING");
+                String empty = JsonHelper.encode(new CollectionStatistics());
+
+                for (CollectionDay key : keys) {
+                    insert.setString(1, key.project);
+                    insert.setString(2, key.collection);
+                    insert.setDate(3, Date.valueOf(key.day));
+                    insert.setString(4, empty);
+                    insert.executeUpdate();
+
+                    select.setString(1, key.project);
+                    select.setString(2, key.collection);
+                    select.setDate(3, Date.valueOf(key.day));
+                    ResultSet resultSet = select.executeQuery();
+                    if (!resultSet.next()) {
+                        throw new IllegalStateException("The statistics row is deleted while it's merged");
+                    }
+
+                    CollectionStatistics merged = JsonHelper.read(resultSet.getString(1), CollectionStatistics.class);
+                    merged.merge(statistics.get(key));
+
+                    update.setLong(1, merged.getRowCount());
+                    update.setString(2, JsonHelper.encode(merged));
+                    update.setString(3, key.project);
+                    update.setString(4, key.collection);
+                    update.setDate(5, Date.valueOf(key.day));
+                    update.addBatch();
+
+                    coverage.setString(1, key.project);
+                    coverage.setString(2, key.collection);
+                    coverage.setDate(3, Date.valueOf(completeSince));
+                    coverage.addBatch();
+                }
+
+                update.executeBatch();
+                coverage.executeBatch();
+                conn.commit();
+            }
+            catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public Map<LocalDate, CollectionStatistics> getStatistics(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            ResultSet resultSet = getDays(conn, "statistics", project, collection, startDate, endDate);
+            Map<LocalDate, CollectionStatistics> days = new HashMap<>();
+            while (resultSet.next()) {
+                days.put(resultSet.getDate(1).toLocalDate(), JsonHelper.read(resultSet.getString(2), CollectionStatistics.class));
+            }
+            return days;
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public Map<LocalDate, Long> getRowCounts(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            ResultSet resultSet = getDays(conn, "row_count", project, collection, startDate, endDate);
+            Map<LocalDate, Long> days = new HashMap<>();
+            while (resultSet.next()) {
+                days.put(resultSet.getDate(1).toLocalDate(), resultSet.getLong(2));
+            }
+            return days;
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private ResultSet getDays(Connection conn, String column, String project, String collection, LocalDate startDate, LocalDate endDate)
+            throws SQLException
+    {
+        PreparedStatement ps = conn.prepareStatement("SELECT day, " + column + " FROM public._collection_statistics " +
+                "WHERE project = ? AND collection = ? AND day BETWEEN ? AND ?");
+        ps.setString(1, project);
+        ps.setString(2, collection);
+        ps.setDate(3, Date.valueOf(startDate));
+        ps.setDate(4, Date.valueOf(endDate));
+        return ps.executeQuery();
+    }
+
+    @Override
+    public Optional<LocalDate> getCompleteSince(String project, String collection)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            PreparedStatement ps = conn.prepareStatement("SELECT complete_since FROM public._collection_statistics_coverage " +
+                    "WHERE project = ? AND collection = ?");
+            ps.setString(1, project);
+            ps.setString(2, collection);
+            ResultSet resultSet = ps.executeQuery();
+            return resultSet.next() ? Optional.of(resultSet.getDate(1).toLocalDate()) : Optional.empty();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public void setCompleteSince(String project, String collection, LocalDate day)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            PreparedStatement ps = conn.prepareStatement("INSERT INTO public._collection_statistics_coverage " +
+                    "(project, collection, complete_since) VALUES (?, ?, ?) " +
+                    "ON CONFLICT (project, collection) DO UPDATE SET complete_since = EXCLUDED.complete_since");
+            ps.setString(1, project);
+            ps.setString(2, collection);
+            ps.setDate(3, Date.valueOf(day));
+            ps.executeUpdate();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public void deleteDays(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            PreparedStatement ps = conn.prepareStatement("DELETE FROM public._collection_statistics " +
+                    "WHERE project = ? AND collection = ? AND day BETWEEN ? AND ?");
+            ps.setString(1, project);
+            ps.setString(2, collection);
+            ps.setDate(3, Date.valueOf(startDate));
+            ps.setDate(4, Date.valueOf(endDate));
+            ps.executeUpdate();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public void deleteProject(String project)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            for (String table : new String[] {"_collection_statistics", "_collection_statistics_coverage"}) {
+                PreparedStatement ps = conn.prepareStatement("DELETE FROM public." + table + " WHERE project = ?");
+                ps.setString(1, project);
+                ps.executeUpdate();
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    @Override
+    public boolean isShared()
+    {
+        return true;
+    }
+}
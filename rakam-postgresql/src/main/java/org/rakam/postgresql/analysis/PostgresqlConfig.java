@@ -1,10 +1,19 @@
 package org.rakam.postgresql.analysis;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+import static java.util.Locale.ENGLISH;
 
 public class PostgresqlConfig {
 
     private boolean autoIndexColumns = true;
+    private TimePartitioning timePartitioning = TimePartitioning.NONE;
+    private int partitionsAhead = 2;
+    private Duration partitionRetention;
 
     @Config("postgresql.auto-index-columns")
     public PostgresqlConfig setAutoIndexColumns(boolean indexColumns)
@@ -16,4 +25,50 @@ public class PostgresqlConfig {
     public boolean isAutoIndexColumns() {
         return autoIndexColumns;
     }
+
+    public TimePartitioning getTimePartitioning()
+    {
+        return timePartitioning;
+    }
+
+    @Config("postgresql.time-partitioning")
+    @ConfigDescription("The default time partitioning of the event tables of the projects (none, day or month), " +
+            "the partitioning of a project is fixed when its first event is stored")
+    public PostgresqlConfig setTimePartitioning(String timePartitioning)
+    {
+        this.timePartitioning = TimePartitioning.valueOf(timePartitioning.toUpperCase(ENGLISH));
+        return this;
+    }
+
+    @Min(0)
+    public int getPartitionsAhead()
+    {
+        return partitionsAhead;
+    }
+
+    @Config("postgresql.partitions-ahead")
+    @ConfigDescription("Number of the future partitions that are created before the events of them are collected")
+    public PostgresqlConfig setPartitionsAhead(int partitionsAhead)
+    {
+        this.partitionsAhead = partitionsAhead;
+        return this;
+    }
+
+    public Duration getPartitionRetention()
+    {
+        return partitionRetention;
+    }
+
+    @Config("postgresql.partition-retention")
+    @ConfigDescription("The partitions that end before this period are dropped, they're kept forever if it's not set")
+    public PostgresqlConfig setPartitionRetention(String partitionRetention)
+    {
+        this.partitionRetention = partitionRetention == null ? null : Duration.valueOf(partitionRetention);
+        return this;
+    }
+
+    public enum TimePartitioning
+    {
+        NONE, DAY, MONTH
+    }
 }
@@ -33,7 +33,8 @@ import java.time.LocalTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,12 +52,19 @@ public class PostgresqlEventStore
 
     private final Set<String> sourceFields;
     private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlTimePartitioner partitioner;
     public static final Calendar UTC_CALENDAR = Calendar.getInstance(TimeZone.getTimeZone(ZoneId.of("UTC")));
 
+    public PostgresqlEventStore(JDBCPoolDataSource connectionPool, FieldDependency fieldDependency)
+    {
+        this(connectionPool, fieldDependency, null);
+    }
+
     @Inject
-    public PostgresqlEventStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, FieldDependency fieldDependency)
+    public PostgresqlEventStore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, FieldDependency fieldDependency, PostgresqlTimePartitioner partitioner)
     {
         this.connectionPool = connectionPool;
+        this.partitioner = partitioner;
         this.sourceFields = fieldDependency.dependentFields.keySet();
     }
 
@@ -66,7 +74,8 @@ public class PostgresqlEventStore
         GenericRecord record = event.properties();
         try (Connection connection = connectionPool.getConnection()) {
             Schema schema = event.properties().getSchema();
-            PreparedStatement ps = connection.prepareStatement(getQuery(event.project(), event.collection(), schema));
+            String table = getTable(event.project(), event.collection(), record);
+            PreparedStatement ps = connection.prepareStatement(getQuery(event.project(), table, schema));
             bindParam(connection, ps, event.schema(), record);
             ps.executeUpdate();
         }
@@ -81,56 +90,72 @@ public class PostgresqlEventStore
         Map<String, List<Event>> groupedByCollection = events.stream()
                 .collect(Collectors.groupingBy(Event::collection));
 
-        Map<String, Integer> successfulCollections = new HashMap<>(groupedByCollection.size());
+        Set<String> committedCollections = new HashSet<>(groupedByCollection.size());
         try (Connection connection = connectionPool.getConnection()) {
-            for (Map.Entry<String, List<Event>> entry : groupedByCollection.entrySet()) {
-                connection.setAutoCommit(false);
-                // last event must have the last schema
-                List<Event> eventsForCollection = entry.getValue();
-                Event lastEvent = getLastEvent(eventsForCollection);
+            try {
+                for (Map.Entry<String, List<Event>> entry : groupedByCollection.entrySet()) {
+                    connection.setAutoCommit(false);
+                    // last event must have the last schema
+                    Event lastEvent = getLastEvent(entry.getValue());
 
-                PreparedStatement ps = connection.prepareStatement(getQuery(lastEvent.project(),
-                        entry.getKey(), lastEvent.properties().getSchema()));
+                    // the events are inserted into their time partitions directly, each partition gets its own batch
+                    Map<String, List<Event>> groupedByTable = entry.getValue().stream()
+                            .collect(Collectors.groupingBy(event -> getTable(event.project(), event.collection(), event.properties()),
+                                    LinkedHashMap::new, Collectors.toList()));
 
-                for (int i = 0; i < eventsForCollection.size(); i++) {
-                    Event event = eventsForCollection.get(i);
-                    GenericRecord properties = event.properties();
-                    bindParam(connection, ps, lastEvent.schema(), properties);
-                    ps.addBatch();
-                    if (i > 0 && i % 5000 == 0) {
-                        ps.executeBatch();
+                    int i = 0;
+                    for (Map.Entry<String, List<Event>> table : groupedByTable.entrySet()) {
+                        PreparedStatement ps = connection.prepareStatement(getQuery(lastEvent.project(),
+                                table.getKey(), lastEvent.properties().getSchema()));
 
-                        Integer value = successfulCollections.get(entry.getKey());
-                        if(value == null) {
-                            successfulCollections.put(entry.getKey(), i);
-                        } else {
-                            successfulCollections.put(entry.getKey(), i + value);
+                        for (Event event : table.getValue()) {
+                            GenericRecord properties = event.properties();
+                            bindParam(connection, ps, lastEvent.schema(), properties);
+                            ps.addBatch();
+                            if (i > 0 && i % 5000 == 0) {
+                                ps.executeBatch();
+                            }
+                            i++;
                         }
+
+                        ps.executeBatch();
                     }
-                }
 
-                ps.executeBatch();
+                    connection.commit();
+                    committedCollections.add(entry.getKey());
+                }
 
-                connection.commit();
-                successfulCollections.compute(entry.getKey(), (k, v) -> eventsForCollection.size());
+                connection.setAutoCommit(true);
+                return EventStore.SUCCESSFUL_BATCH;
+            }
+            catch (SQLException | RuntimeException e) {
+                // the partitions may not be created, the events of the collection that is not committed are rolled back
+                // so that the connection is not returned to the pool in the middle of a transaction
+                connection.rollback();
+                connection.setAutoCommit(true);
+                throw e;
             }
-
-            connection.setAutoCommit(true);
-            return EventStore.SUCCESSFUL_BATCH;
         }
-        catch (SQLException e) {
+        catch (SQLException | RuntimeException e) {
             List<Event> sample = events.size() > 5 ? events.subList(0, 5) : events;
 
-            LOGGER.error(e.getNextException() != null ? e.getNextException() : e,
-                    "Error while storing events in Postgresql batch query: " + sample);
+            Throwable cause = e instanceof SQLException && ((SQLException) e).getNextException() != null ?
+                    ((SQLException) e).getNextException() : e;
+            LOGGER.error(cause, "Error while storing events in Postgresql batch query: " + sample);
 
-            return IntStream.range(0, events.size()).filter(idx -> {
-                Event event = events.get(idx);
-                Integer checkpointPosition = successfulCollections.get(event.collection());
-                return checkpointPosition == null ||
-                        groupedByCollection.get(event.collection()).indexOf(event) > checkpointPosition;
-            }).toArray();
+            // only the collections that are committed are stored
+            return IntStream.range(0, events.size())
+                    .filter(idx -> !committedCollections.contains(events.get(idx).collection()))
+                    .toArray();
+        }
+    }
+
+    private String getTable(String project, String collection, GenericRecord properties)
+    {
+        if (partitioner == null) {
+            return collection;
         }
+        return partitioner.getTable(project, collection, properties.get("_time"));
     }
 
     // get the event with the last schema
@@ -215,12 +240,12 @@ public class PostgresqlEventStore
         }
     }
 
-    private String getQuery(String project, String collection, Schema schema)
+    private String getQuery(String project, String table, Schema schema)
     {
         StringBuilder query = new StringBuilder("INSERT INTO ")
                 .append(project)
                 .append(".")
-                .append(ValidationUtil.checkCollection(collection));
+                .append(ValidationUtil.checkCollection(table));
         StringBuilder params = new StringBuilder();
         List<Schema.Field> fields = schema.getFields();
 
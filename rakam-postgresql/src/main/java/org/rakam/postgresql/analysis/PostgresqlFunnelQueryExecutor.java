@@ -89,10 +89,15 @@ public class PostgresqlFunnelQueryExecutor
                 name -> formatIdentifier("step" + idx, '"') + "." + name.getParts().stream()
                         .map(e -> formatIdentifier(e, '"')).collect(Collectors.joining(".")), '"'));
 
-        return format("SELECT %s %s, %d as step, _time from %s %s %s",
+        // the time filter of the funnel is repeated in the steps so that only the partitions in the range are scanned,
+        // it's widened by a day since the range of the funnel is in the time zone of the user
+        String timeFilter = format("_time between timestamp '%s' and timestamp '%s'",
+                startDate.minusDays(1), endDate.plusDays(2));
+
+        return format("SELECT %s %s, %d as step, _time from %s %s where %s %s",
                 dimension.map(ValidationUtil::checkTableColumn).map(v -> v + ",").orElse(""), connectorField, idx + 1, table,
-                "step" + idx,
-                filterExp.map(v -> "where " + v).orElse(""));
+                "step" + idx, timeFilter,
+                filterExp.map(v -> "and (" + v + ")").orElse(""));
     }
 }
 
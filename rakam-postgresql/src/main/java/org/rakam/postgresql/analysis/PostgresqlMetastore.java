@@ -9,16 +9,22 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
+import io.airlift.units.Duration;
 import org.postgresql.core.BaseConnection;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.AbstractMetastore;
+import org.rakam.analysis.metadata.SchemaEvolutionCoordinator;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.postgresql.PostgresqlNotificationListener;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.ProjectCollection;
 import org.rakam.util.RakamException;
 import org.rakam.util.ValidationUtil;
+import org.rakam.util.lock.PostgresqlLockService;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
 
@@ -35,7 +41,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -51,15 +59,24 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public class PostgresqlMetastore
         extends AbstractMetastore
 {
+    private static final Duration SCHEMA_CHANGE_WINDOW = new Duration(100, TimeUnit.MILLISECONDS);
+    private static final Duration SCHEMA_CHANGE_TIMEOUT = new Duration(1, TimeUnit.MINUTES);
+    // the other nodes drop the schemas that they cached when a collection is changed
+    private static final String SCHEMA_CHANGE_CHANNEL = "rakam_schema_changed";
+
     private LoadingCache<ProjectCollection, List<SchemaField>> schemaCache;
     private LoadingCache<String, Set<String>> collectionCache;
     private final JDBCPoolDataSource connectionPool;
+    private final PostgresqlNotificationListener schemaChangeListener;
 
     @Inject
     public PostgresqlMetastore(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool, EventBus eventBus)
     {
         super(eventBus);
         this.connectionPool = connectionPool;
+        // the collector nodes share the database so the schema changes are serialized with its advisory locks
+        setSchemaEvolutionCoordinator(new SchemaEvolutionCoordinator(new PostgresqlLockService(connectionPool),
+                SCHEMA_CHANGE_WINDOW, SCHEMA_CHANGE_TIMEOUT));
 
         schemaCache = CacheBuilder.newBuilder().expireAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<ProjectCollection, List<SchemaField>>()
         {
@@ -107,6 +124,27 @@ public class PostgresqlMetastore
                 }
             }
         });
+
+        schemaChangeListener = new PostgresqlNotificationListener(connectionPool, SCHEMA_CHANGE_CHANNEL, key -> {
+            schemaCache.invalidate(new ProjectCollection(key.get(0), key.get(1)));
+            collectionCache.invalidate(key.get(0));
+        }, () -> {
+            schemaCache.invalidateAll();
+            collectionCache.invalidateAll();
+        });
+    }
+
+    @PostConstruct
+    @Override
+    public void setup()
+    {
+        schemaChangeListener.start();
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        schemaChangeListener.close();
     }
 
     @Override
@@ -181,6 +219,16 @@ public class PostgresqlMetastore
         }
     }
 
+    @Override
+    public CompletableFuture<List<SchemaField>> getCollectionAsync(String project, String collection, Executor executor)
+    {
+        List<SchemaField> fields = schemaCache.getIfPresent(new ProjectCollection(project, collection));
+        if (fields != null) {
+            return CompletableFuture.completedFuture(fields);
+        }
+        return super.getCollectionAsync(project, collection, executor);
+    }
+
     private List<SchemaField> getSchema(Connection connection, String project, String collection)
             throws SQLException
     {
@@ -271,6 +319,7 @@ public class PostgresqlMetastore
             }
 
             connection.createStatement().execute(query);
+            schemaChangeListener.publish(connection, project, collection);
             connection.commit();
             connection.setAutoCommit(true);
             schemaCache.put(new ProjectCollection(project, collection), currentFields);
@@ -286,7 +335,7 @@ public class PostgresqlMetastore
                 // column or table already exists
                 if (e.getMessage().contains("already exists")) {
                     // TODO: should we try again until this operation is done successfully, what about infinite loops?
-                    return getOrCreateCollectionFieldList(project, collection, fields);
+                    return getOrCreateCollectionFields(project, collection, fields);
                 }
                 else {
                     throw new IllegalStateException(e.getMessage());
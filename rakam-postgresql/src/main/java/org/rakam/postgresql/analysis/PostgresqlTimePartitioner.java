@@ -0,0 +1,285 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+import org.rakam.analysis.ConfigManager;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.postgresql.analysis.PostgresqlConfig.TimePartitioning;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.TimePartitioning.NONE;
+import static org.rakam.util.ValidationUtil.checkCollection;
+
+/**
+ * Partitions the event tables by the _time column using table inheritance. The partitions have CHECK constraints
+ * on their time ranges so that the planner skips the partitions that are outside of the time filters of the
+ * queries on the collection tables (constraint_exclusion = partition). The partitions are created ahead of the
+ * ingestion and the ones that are older than the retention period are dropped periodically.
+ */
+@Singleton
+public class PostgresqlTimePartitioner
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlTimePartitioner.class);
+
+    public static final String TIME_PARTITIONING = "TIME_PARTITIONING";
+
+    private static final long DAY_MILLIS = DAYS.toMillis(1);
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final String DUPLICATE_TABLE = "42P07";
+    private static final String UNIQUE_VIOLATION = "23505";
+    // the identifiers that are longer than this are truncated by Postgresql
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+
+    private final JDBCPoolDataSource connectionPool;
+    private final ConfigManager configManager;
+    private final Metastore metastore;
+    private final PostgresqlConfig config;
+    private final CollectionStatisticsService statistics;
+    private final Set<String> createdPartitions = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    public PostgresqlTimePartitioner(@Named("store.adapter.postgresql") JDBCPoolDataSource connectionPool,
+            ConfigManager configManager, Metastore metastore, PostgresqlConfig config, CollectionStatisticsService statistics)
+    {
+        this.connectionPool = connectionPool;
+        this.configManager = configManager;
+        this.metastore = metastore;
+        this.config = config;
+        this.statistics = statistics;
+
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("postgresql-partition-maintenance").setDaemon(true).build())
+                .scheduleWithFixedDelay(this::maintain, 0, 1, HOURS);
+    }
+
+    /**
+     * Returns the partitioning of the project, the default partitioning is set for the project when it's first used.
+     */
+    public TimePartitioning getPartitioning(String project)
+    {
+        return TimePartitioning.valueOf(configManager.setConfigOnce(project, TIME_PARTITIONING, config.getTimePartitioning().name()));
+    }
+
+    /**
+     * Returns the table that the event that has the given time should be inserted into, the partition is created
+     * if it doesn't exist. The events that don't have a time are inserted into the collection table.
+     */
+    public String getTable(String project, String collection, Object time)
+    {
+        if (!(time instanceof Number) || ((Number) time).longValue() < 0) {
+            return collection;
+        }
+
+        TimePartitioning partitioning = getPartitioning(project);
+        if (partitioning == NONE) {
+            return collection;
+        }
+
+        LocalDate start = getPartitionStart(partitioning, LocalDate.ofEpochDay(Math.floorDiv(((Number) time).longValue(), DAY_MILLIS)));
+        return createPartition(project, collection, partitioning, start);
+    }
+
+    public List<Partition> getPartitions(String project, String collection)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            PreparedStatement ps = conn.prepareStatement("SELECT c.relname FROM pg_catalog.pg_inherits i\n" +
+                    "    JOIN pg_catalog.pg_class c ON (c.oid = i.inhrelid)\n" +
+                    "    JOIN pg_catalog.pg_class p ON (p.oid = i.inhparent)\n" +
+                    "    JOIN pg_catalog.pg_namespace n ON (n.oid = p.relnamespace)\n" +
+                    "    WHERE n.nspname = ? AND p.relname = ?");
+            ps.setString(1, project);
+            ps.setString(2, collection);
+            ResultSet resultSet = ps.executeQuery();
+
+            ImmutableList.Builder<Partition> builder = ImmutableList.builder();
+            while (resultSet.next()) {
+                Partition partition = Partition.parse(resultSet.getString(1));
+                if (partition != null) {
+                    builder.add(partition);
+                }
+            }
+            return builder.build();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private String createPartition(String project, String collection, TimePartitioning partitioning, LocalDate start)
+    {
+        String name = getPartitionName(collection, partitioning, start);
+        if (createdPartitions.contains(project + "." + name)) {
+            return name;
+        }
+
+        LocalDate end = partitioning == TimePartitioning.DAY ? start.plusDays(1) : start.plusMonths(1);
+        try (Connection conn = connectionPool.getConnection()) {
+            // the indexes of the collection table are copied so that the partitions are indexed the same way
+            conn.createStatement().execute(format("CREATE TABLE IF NOT EXISTS \"%1$s\".%2$s (LIKE \"%1$s\".%3$s INCLUDING INDEXES, " +
+                            "CHECK (_time >= timestamp '%4$s' AND _time < timestamp '%5$s')) INHERITS (\"%1$s\".%3$s)",
+                    project, checkCollection(name), checkCollection(collection), start, end));
+            if (!config.isAutoIndexColumns()) {
+                conn.createStatement().execute(format("CREATE INDEX IF NOT EXISTS %s ON \"%s\".%s USING BRIN(_time)",
+                        checkCollection(name + "_t"), project, checkCollection(name)));
+            }
+        }
+        catch (SQLException e) {
+            // another node may create the same partition concurrently, IF NOT EXISTS fails with a unique violation
+            // on the catalog if the other transaction is not committed yet
+            if (!DUPLICATE_TABLE.equals(e.getSQLState()) && !UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        createdPartitions.add(project + "." + name);
+        return name;
+    }
+
+    private void maintain()
+    {
+        Set<String> projects;
+        try {
+            projects = metastore.getProjects();
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while listing the projects for partition maintenance");
+            return;
+        }
+
+        for (String project : projects) {
+            try {
+                String partitioning = configManager.getConfig(project, TIME_PARTITIONING, String.class);
+                if (partitioning == null || TimePartitioning.valueOf(partitioning) == NONE) {
+                    continue;
+                }
+                maintain(project, TimePartitioning.valueOf(partitioning));
+            }
+            catch (Exception e) {
+                LOGGER.error(e, "Error while maintaining the partitions of project %s", project);
+            }
+        }
+    }
+
+    private void maintain(String project, TimePartitioning partitioning)
+    {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        Duration retention = config.getPartitionRetention();
+
+        for (String collection : metastore.getCollectionNames(project)) {
+            if (metastore.getCollection(project, collection).stream().noneMatch(field -> field.getName().equals("_time"))) {
+                continue;
+            }
+
+            LocalDate start = getPartitionStart(partitioning, today);
+            for (int i = 0; i <= config.getPartitionsAhead(); i++) {
+                createPartition(project, collection, partitioning, start);
+                start = partitioning == TimePartitioning.DAY ? start.plusDays(1) : start.plusMonths(1);
+            }
+
+            if (retention == null) {
+                continue;
+            }
+
+            LocalDate expiration = Instant.now().minusMillis(retention.toMillis()).atZone(ZoneOffset.UTC).toLocalDate();
+            for (Partition partition : getPartitions(project, collection)) {
+                if (!partition.end.isAfter(expiration)) {
+                    dropPartition(project, partition.name);
+                    // the statistics of the dropped days would prune the queries to the days that don't have events
+                    statistics.deleteDays(project, collection, partition.start, partition.end.minusDays(1));
+                }
+            }
+        }
+    }
+
+    private void dropPartition(String project, String name)
+    {
+        try (Connection conn = connectionPool.getConnection()) {
+            conn.createStatement().execute(format("DROP TABLE IF EXISTS \"%s\".%s", project, checkCollection(name)));
+            createdPartitions.remove(project + "." + name);
+            LOGGER.info("Dropped partition %s.%s since it's older than the retention period", project, name);
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static LocalDate getPartitionStart(TimePartitioning partitioning, LocalDate day)
+    {
+        return partitioning == TimePartitioning.DAY ? day : day.withDayOfMonth(1);
+    }
+
+    static String getPartitionName(String collection, TimePartitioning partitioning, LocalDate start)
+    {
+        String suffix = "_p" + (partitioning == TimePartitioning.DAY ? DAY_FORMAT : MONTH_FORMAT).format(start);
+        String prefix = "_" + collection;
+        // the index of the time column is named after the partition
+        if (prefix.length() + suffix.length() + 2 > MAX_IDENTIFIER_LENGTH) {
+            // the truncated names of the long collection names may collide so the hash of the name is appended
+            prefix = prefix.substring(0, 40) + "_" + Integer.toHexString(collection.hashCode());
+        }
+        return prefix + suffix;
+    }
+
+    public static class Partition
+    {
+        public final String name;
+        public final LocalDate start;
+        public final LocalDate end;
+
+        public Partition(String name, LocalDate start, LocalDate end)
+        {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        static Partition parse(String name)
+        {
+            int index = name.lastIndexOf("_p");
+            if (index == -1) {
+                return null;
+            }
+
+            String suffix = name.substring(index + 2);
+            try {
+                if (suffix.length() == 8) {
+                    LocalDate start = LocalDate.parse(suffix, DAY_FORMAT);
+                    return new Partition(name, start, start.plusDays(1));
+                }
+                if (suffix.length() == 6) {
+                    LocalDate start = LocalDate.parse(suffix + "01", DAY_FORMAT);
+                    return new Partition(name, start, start.plusMonths(1));
+                }
+            }
+            catch (RuntimeException e) {
+                // not a partition that is created by the partitioner
+            }
+            return null;
+        }
+    }
+}
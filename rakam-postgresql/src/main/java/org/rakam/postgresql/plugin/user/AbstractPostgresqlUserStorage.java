@@ -1,7 +1,9 @@
 package org.rakam.postgresql.plugin.user;
 
 import com.facebook.presto.sql.ExpressionFormatter;
+import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
 import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.DoubleNode;
@@ -15,8 +17,13 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 import org.postgresql.util.PGobject;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.InternalConfig;
@@ -24,6 +31,7 @@ import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
 import org.rakam.plugin.user.User;
+import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.postgresql.analysis.PostgresqlMetastore;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
@@ -38,6 +46,8 @@ import org.rakam.util.RakamException;
 
 import javax.annotation.Nullable;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -50,20 +60,27 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.rakam.analysis.InternalConfig.USER_TYPE;
 import static org.rakam.collection.SchemaField.stripName;
 import static org.rakam.report.QueryResult.TOTAL_RESULT;
@@ -74,13 +91,27 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public abstract class AbstractPostgresqlUserStorage
         implements UserStorage
 {
+    private final static Logger LOGGER = Logger.get(AbstractPostgresqlUserStorage.class);
+    public static final String NEXT_OFFSET = "nextOffset";
+
     private final QueryExecutorService queryExecutorService;
     private final PostgresqlQueryExecutor queryExecutor;
     private final Cache<String, Map<String, FieldType>> propertyCache;
     private final LoadingCache<String, Optional<FieldType>> userTypeCache;
     private final ConfigManager configManager;
+    private final UserPluginConfig userPluginConfig;
+    private final LoadingCache<UserCountKey, Long> countCache;
+    private final ConcurrentHashMultiset<Map.Entry<String, String>> columnUsage;
+    private final ExecutorService backgroundExecutor;
+    // the index builds can take long so they don't share the threads of the count refreshes
+    private final ExecutorService indexExecutor;
 
     public AbstractPostgresqlUserStorage(QueryExecutorService queryExecutorService, PostgresqlQueryExecutor queryExecutor, ConfigManager configManager)
+    {
+        this(queryExecutorService, queryExecutor, configManager, new UserPluginConfig());
+    }
+
+    public AbstractPostgresqlUserStorage(QueryExecutorService queryExecutorService, PostgresqlQueryExecutor queryExecutor, ConfigManager configManager, UserPluginConfig userPluginConfig)
     {
         this.queryExecutorService = queryExecutorService;
         this.queryExecutor = queryExecutor;
@@ -95,6 +126,28 @@ public abstract class AbstractPostgresqlUserStorage
                 return Optional.ofNullable(configManager.getConfig(key, USER_TYPE.name(), FieldType.class));
             }
         });
+
+        this.userPluginConfig = userPluginConfig;
+        this.columnUsage = ConcurrentHashMultiset.create();
+        this.backgroundExecutor = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+                .setNameFormat("user-search-background-%d").setDaemon(true).build());
+        this.indexExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("user-search-index").setDaemon(true).build());
+        // the counts are served from the cache and refreshed in the background, an expired count is counted again
+        long refreshInterval = userPluginConfig.getSearchCountRefreshInterval().toMillis();
+        this.countCache = CacheBuilder.newBuilder()
+                .maximumSize(10000)
+                .refreshAfterWrite(Math.max(refreshInterval, 1), MILLISECONDS)
+                .expireAfterWrite(Math.max(refreshInterval * 10, 1), MILLISECONDS)
+                .build(CacheLoader.asyncReloading(new CacheLoader<UserCountKey, Long>()
+                {
+                    @Override
+                    public Long load(UserCountKey key)
+                            throws Exception
+                    {
+                        return countUsers(key);
+                    }
+                }, backgroundExecutor));
     }
 
     public Map<String, FieldType> loadColumns(String project)
@@ -118,16 +171,16 @@ public abstract class AbstractPostgresqlUserStorage
             propertyCache.put(project, columns);
         }
 
-        boolean created = false;
+        Map<String, JsonNode> missingColumns = new LinkedHashMap<>();
         for (Map.Entry<String, JsonNode> entry : fields) {
             FieldType fieldType = columns.get(entry.getKey());
             if (fieldType == null && entry.getValue() != null && !entry.getKey().equals("created_at")) {
-                created = true;
-                createColumn(project, id, entry.getKey(), entry.getValue());
+                missingColumns.put(entry.getKey(), entry.getValue());
             }
         }
 
-        if (created) {
+        if (!missingColumns.isEmpty()) {
+            createColumns(project, id, missingColumns);
             columns = loadColumns(project);
             propertyCache.put(project, columns);
         }
@@ -388,43 +441,66 @@ public abstract class AbstractPostgresqlUserStorage
     @Override
     public List<Object> batchCreate(String project, List<User> users)
     {
-        // may use transaction when we start to use Postgresql 9.5. Since we use insert or merge, it doesn't work right now.
-        return users.stream()
-                .map(user -> {
-                    Object o = create(project, user.id, user.properties);
-                    if (user.api != null) {
-                        throw new RakamException("api property in User object is not allowed in batch endpoint", BAD_REQUEST);
-                    }
-                    return o;
-                })
-                .collect(Collectors.toList());
+        for (User user : users) {
+            if (user.api != null) {
+                throw new RakamException("api property in User object is not allowed in batch endpoint", BAD_REQUEST);
+            }
+        }
+
+        if (users.stream().anyMatch(user -> user.id == null)) {
+            // the ids are generated by the database so the users are inserted one by one
+            return users.stream()
+                    .map(user -> create(project, user.id, user.properties))
+                    .collect(Collectors.toList());
+        }
+
+        PostgresqlUserBatch batch = new PostgresqlUserBatch();
+        for (User user : users) {
+            batch.add(user.id);
+            if (user.properties != null) {
+                for (Map.Entry<String, JsonNode> entry : strip(() -> user.properties.fields())) {
+                    batch.set(user.id, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        applyBatch(project, batch);
+
+        return users.stream().map(user -> user.id).collect(Collectors.toList());
     }
 
-    private void createColumn(String project, Object id, String column, JsonNode value)
+    private void createColumns(String project, Object id, Map<String, JsonNode> columns)
     {
-        createColumnInternal(project, id, column, value, true);
+        createColumnsInternal(project, id, columns, true);
     }
 
-    private void createColumnInternal(String project, Object id, String column, JsonNode value, boolean retry)
+    /**
+     * Adds the columns with a single ALTER TABLE so that the table is locked and rewritten in the catalog once.
+     */
+    private void createColumnsInternal(String project, Object id, Map<String, JsonNode> columns, boolean retry)
     {
+        String additions = columns.entrySet().stream()
+                .filter(entry -> !entry.getValue().equals(NullNode.getInstance()))
+                .map(entry -> format("add column %s %s", checkTableColumn(entry.getKey()), getPostgresqlType(entry.getValue())))
+                .collect(Collectors.joining(", "));
+        if (additions.isEmpty()) {
+            return;
+        }
+
         // it must be called from a separated transaction, otherwise it may lock table and the other insert may cause deadlock.
         try (Connection conn = queryExecutor.getConnection()) {
             try {
-                if (value.equals(NullNode.getInstance())) {
-                    return;
-                }
-                conn.createStatement().execute(format("alter table %s add column %s %s",
-                        getUserTable(project, false), checkTableColumn(column), getPostgresqlType(value)));
+                conn.createStatement().execute(format("alter table %s %s", getUserTable(project, false), additions));
             }
             catch (SQLException e) {
+                // some of the columns may be created by another node concurrently
                 Map<String, FieldType> fields = loadColumns(project);
-                if (fields.containsKey(column)) {
-                    return;
-                }
-
-                if (getMetadata(project).stream()
-                        .anyMatch(col -> col.getName().equals(column))) {
-                    // what if the type does not match?
+                Map<String, JsonNode> missingColumns = new LinkedHashMap<>();
+                columns.forEach((column, value) -> {
+                    if (!fields.containsKey(column)) {
+                        missingColumns.put(column, value);
+                    }
+                });
+                if (missingColumns.isEmpty()) {
                     return;
                 }
 
@@ -435,7 +511,7 @@ public abstract class AbstractPostgresqlUserStorage
 
                     createProjectIfNotExists(project, fieldType.isNumeric());
 
-                    createColumnInternal(project, id, column, value, false);
+                    createColumnsInternal(project, id, missingColumns, false);
                 }
                 else {
                     throw e;
@@ -449,8 +525,30 @@ public abstract class AbstractPostgresqlUserStorage
 
     public abstract List<String> getEventFilterPredicate(String project, List<EventFilter> eventFilter);
 
+    /**
+     * Returns the predicate that filters the members of the segment from the users table.
+     */
+    protected String getSegmentPredicate(String project, String segment)
+    {
+        throw new RakamException("Segments are not supported by the user storage", BAD_REQUEST);
+    }
+
     @Override
     public CompletableFuture<QueryResult> searchUsers(String project, List<String> selectColumns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset)
+    {
+        return search(project, selectColumns, filterExpression, eventFilter, null, sortColumn, limit, offset);
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> searchUsers(String project, List<String> selectColumns, Expression filterExpression, List<EventFilter> eventFilter, String segment, Sorting sortColumn, long limit, String offset)
+    {
+        if (segment == null) {
+            return searchUsers(project, selectColumns, filterExpression, eventFilter, sortColumn, limit, offset);
+        }
+        return search(project, selectColumns, filterExpression, eventFilter, segment, sortColumn, limit, offset);
+    }
+
+    private CompletableFuture<QueryResult> search(String project, List<String> selectColumns, Expression filterExpression, List<EventFilter> eventFilter, String segment, Sorting sortColumn, long limit, String offset)
     {
         checkProject(project);
         List<SchemaField> metadata = getMetadata(project);
@@ -458,9 +556,17 @@ public abstract class AbstractPostgresqlUserStorage
         if (metadata.isEmpty()) {
             return CompletableFuture.completedFuture(QueryResult.empty());
         }
+
+        if (sortColumn != null && !metadata.stream().anyMatch(col -> col.getName().equals(sortColumn.column))) {
+            throw new IllegalArgumentException(format("sorting column does not exist: %s", sortColumn.column));
+        }
+
+        // the id and the sort column are needed for the offset of the next page
         Stream<SchemaField> projectColumns = metadata.stream();
         if (selectColumns != null) {
-            projectColumns = projectColumns.filter(column -> selectColumns.contains(column.getName()));
+            projectColumns = projectColumns.filter(column -> selectColumns.contains(column.getName())
+                    || column.getName().equals(PRIMARY_KEY)
+                    || (sortColumn != null && column.getName().equals(sortColumn.column)));
         }
         // TODO: fail id column is not exist.
         String columns = Joiner.on(", ").join(projectColumns.map(col -> checkTableColumn(col.getName()))
@@ -471,49 +577,60 @@ public abstract class AbstractPostgresqlUserStorage
             filters.add(new ExpressionFormatter.Formatter(Optional.empty()).process(filterExpression, true));
         }
 
+        if (segment != null) {
+            filters.add(getSegmentPredicate(project, segment));
+        }
+
         if (eventFilter != null && !eventFilter.isEmpty()) {
             filters.addAll(getEventFilterPredicate(project, eventFilter));
         }
 
-        if (sortColumn != null && !metadata.stream().anyMatch(col -> col.getName().equals(sortColumn.column))) {
-            throw new IllegalArgumentException(format("sorting column does not exist: %s", sortColumn.column));
+        String sortReference = sortColumn == null ? null : checkTableColumn(sortColumn.column);
+        Ordering ordering = sortColumn == null || sortColumn.order == null ? Ordering.asc : sortColumn.order;
+        String idReference = checkTableColumn(PRIMARY_KEY);
+
+        List<String> pageFilters = new ArrayList<>(filters);
+        UserSearchCursor cursor = UserSearchCursor.decode(offset);
+        if (cursor != null) {
+            pageFilters.add(cursor.getPredicate(idReference, sortReference, ordering));
         }
 
-        String orderBy = sortColumn == null ? "" : format(" ORDER BY %s %s", sortColumn.column, sortColumn.order);
+        recordColumnUsage(project, filterExpression, sortColumn);
 
         boolean isEventFilterActive = eventFilter != null && !eventFilter.isEmpty();
 
         QueryExecution query = (isEventFilterActive ? getExecutorForWithEventFilter() : queryExecutorService)
-                .executeQuery(project, format("SELECT %s FROM _users %s %s LIMIT %s",
-                        columns, filters.isEmpty() ? "" : " WHERE "
-                                + Joiner.on(" AND ").join(filters), orderBy, limit, offset));
+                .executeQuery(project, format("SELECT %s FROM _users %s ORDER BY %s LIMIT %s",
+                        columns, pageFilters.isEmpty() ? "" : " WHERE "
+                                + Joiner.on(" AND ").join(pageFilters),
+                        UserSearchCursor.getOrderBy(idReference, sortReference, ordering), limit));
 
-        CompletableFuture<QueryResult> dataResult = query.getResult();
+        CompletableFuture<QueryResult> dataResult = query.getResult()
+                .thenApply(data -> withNextOffset(data, sortColumn, limit));
 
         if (!isEventFilterActive) {
-            StringBuilder builder = new StringBuilder();
-            builder.append("SELECT count(*) FROM _users");
-            if (filterExpression != null) {
-                builder.append(" WHERE ").append(filters.get(0));
-            }
-
-            QueryExecution totalResult = queryExecutorService.executeQuery(project, builder.toString());
+            UserCountKey countKey = new UserCountKey(project, filters.isEmpty() ? null : Joiner.on(" AND ").join(filters));
+            CompletableFuture<Long> totalResult = CompletableFuture.supplyAsync(() -> countCache.getUnchecked(countKey), backgroundExecutor);
 
             CompletableFuture<QueryResult> result = new CompletableFuture<>();
-            CompletableFuture.allOf(dataResult, totalResult.getResult()).whenComplete((__, ex) -> {
-                QueryResult data = dataResult.join();
-                QueryResult totalResultData = totalResult.getResult().join();
-                if (ex == null && !data.isFailed() && !totalResultData.isFailed()) {
-                    Object v1 = totalResultData.getResult().get(0).get(0);
-                    result.complete(new QueryResult(data.getMetadata(), data.getResult(),
-                            ImmutableMap.of(TOTAL_RESULT, v1)));
-                }
-                else if (ex != null) {
+            dataResult.whenComplete((data, ex) -> {
+                if (ex != null) {
                     result.complete(QueryResult.errorResult(new QueryError(ex.getMessage(), null, 0, null, null)));
+                    return;
                 }
-                else {
+                if (data.isFailed()) {
                     result.complete(data);
+                    return;
                 }
+
+                totalResult.whenComplete((total, totalEx) -> {
+                    if (totalEx != null) {
+                        result.complete(data);
+                        return;
+                    }
+                    data.setProperty(TOTAL_RESULT, total);
+                    result.complete(data);
+                });
             });
 
             return result;
@@ -523,6 +640,130 @@ public abstract class AbstractPostgresqlUserStorage
         }
     }
 
+    private QueryResult withNextOffset(QueryResult data, Sorting sortColumn, long limit)
+    {
+        if (data.isFailed() || data.getResult().isEmpty() || data.getResult().size() < limit) {
+            return data;
+        }
+
+        int idIndex = -1;
+        int sortIndex = -1;
+        for (int i = 0; i < data.getMetadata().size(); i++) {
+            String name = data.getMetadata().get(i).getName();
+            if (name.equals(PRIMARY_KEY)) {
+                idIndex = i;
+            }
+            if (sortColumn != null && name.equals(sortColumn.column)) {
+                sortIndex = i;
+            }
+        }
+        if (idIndex == -1 || (sortColumn != null && (sortIndex == -1 || !isSeekable(data.getMetadata().get(sortIndex).getType())))) {
+            return data;
+        }
+
+        List<Object> lastRow = data.getResult().get(data.getResult().size() - 1);
+        String nextOffset = new UserSearchCursor(sortIndex == -1 ? null : lastRow.get(sortIndex), lastRow.get(idIndex)).encode();
+
+        data.setProperty(NEXT_OFFSET, nextOffset);
+        return data;
+    }
+
+    private static boolean isSeekable(FieldType type)
+    {
+        return !type.isArray() && !type.isMap();
+    }
+
+    private long countUsers(UserCountKey key)
+    {
+        if (key.filter == null) {
+            long estimate = getEstimatedUserCount(key.project);
+            if (estimate >= userPluginConfig.getSearchEstimatedCountThreshold()) {
+                return estimate;
+            }
+        }
+
+        QueryResult result = queryExecutorService.executeQuery(key.project, "SELECT count(*) FROM _users" +
+                (key.filter == null ? "" : " WHERE " + key.filter)).getResult().join();
+        if (result.isFailed()) {
+            throw new RakamException(result.getError().message, BAD_REQUEST);
+        }
+        return ((Number) result.getResult().get(0).get(0)).longValue();
+    }
+
+    private long getEstimatedUserCount(String project)
+    {
+        try (Connection conn = queryExecutor.getConnection();
+                PreparedStatement statement = conn.prepareStatement("SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(?)")) {
+            statement.setString(1, getUserTable(project, false));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : -1;
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void recordColumnUsage(String project, Expression filterExpression, Sorting sortColumn)
+    {
+        Set<String> columns = new HashSet<>();
+        if (sortColumn != null) {
+            columns.add(sortColumn.column);
+        }
+        if (filterExpression != null) {
+            new DefaultExpressionTraversalVisitor<Void, Void>()
+            {
+                @Override
+                protected Void visitQualifiedNameReference(QualifiedNameReference node, Void context)
+                {
+                    if (node.getName().getParts().size() == 1) {
+                        columns.add(node.getName().getParts().get(0));
+                    }
+                    return null;
+                }
+            }.process(filterExpression, null);
+        }
+
+        for (String column : columns) {
+            if (column.equals(PRIMARY_KEY)) {
+                continue;
+            }
+            SimpleImmutableEntry<String, String> key = new SimpleImmutableEntry<>(project, column);
+            if (columnUsage.add(key, 1) + 1 == userPluginConfig.getSearchAutoIndexThreshold()) {
+                indexExecutor.execute(() -> createSearchIndex(project, column));
+            }
+        }
+    }
+
+    private void createSearchIndex(String project, String column)
+    {
+        Map<String, FieldType> columns = loadColumns(project);
+        FieldType type = columns.get(column);
+        if (type == null || !isSeekable(type)) {
+            return;
+        }
+
+        String query = format("CREATE INDEX CONCURRENTLY IF NOT EXISTS %s ON %s (%s)",
+                checkTableColumn(stripName(column, "property") + "_search_index"),
+                getUserTable(project, false), checkTableColumn(column));
+
+        if (!userPluginConfig.getSearchAutoIndex()) {
+            LOGGER.info("User property %s of project %s is frequently used in user search, consider creating an index: %s",
+                    column, project, query);
+            return;
+        }
+
+        // CONCURRENTLY doesn't block the writes but it can't be executed in a transaction
+        try (Connection conn = queryExecutor.getConnection();
+                Statement statement = conn.createStatement()) {
+            statement.execute(query);
+            LOGGER.info("Created index for user property %s of project %s", column, project);
+        }
+        catch (SQLException e) {
+            LOGGER.warn(e, "Unable to create index for user property %s of project %s", column, project);
+        }
+    }
+
     @Override
     public List<SchemaField> getMetadata(String project)
     {
@@ -851,7 +1092,7 @@ public abstract class AbstractPostgresqlUserStorage
 
         FieldType fieldType = columns.get(property);
         if (fieldType == null) {
-            createColumn(project, userId, property, JsonHelper.numberNode(0));
+            createColumns(project, userId, ImmutableMap.of(property, JsonHelper.numberNode(0)));
         }
 
         if (!fieldType.isNumeric()) {
@@ -860,9 +1101,10 @@ public abstract class AbstractPostgresqlUserStorage
         }
 
         String tableRef = checkTableColumn(stripName(property, "table column"));
-        Statement statement = conn.createStatement();
-        int execute = statement.executeUpdate("update " + getUserTable(project, false) +
-                " set " + tableRef + " = " + value + " + coalesce(" + tableRef + ", 0)");
+        PreparedStatement statement = conn.prepareStatement("update " + getUserTable(project, false) +
+                " set " + tableRef + " = " + value + " + coalesce(" + tableRef + ", 0) where " + PRIMARY_KEY + " = ?");
+        setUserId(project, statement, userId, 1);
+        int execute = statement.executeUpdate();
         if (execute == 0) {
             create(project, userId, JsonHelper.jsonObject().put(property, value));
         }
@@ -871,35 +1113,119 @@ public abstract class AbstractPostgresqlUserStorage
     @Override
     public void batch(String project, List<? extends ISingleUserBatchOperation> operations)
     {
-        try (Connection conn = queryExecutor.getConnection()) {
-            conn.setAutoCommit(false);
+        PostgresqlUserBatch batch = new PostgresqlUserBatch();
+        for (ISingleUserBatchOperation operation : operations) {
+            Object user = operation.getUser();
+            if (user == null) {
+                throw new RakamException("User id is not set.", BAD_REQUEST);
+            }
 
-            int i = 1;
-            for (ISingleUserBatchOperation operation : operations) {
-                    if (operation.getSetProperties() != null) {
-                        setUserProperties(conn, project, operation.getUser(), () -> operation.getSetProperties().fields(), false);
-                    }
-                    if (operation.getSetPropertiesOnce() != null) {
-                        setUserProperties(conn, project, operation.getUser(), () -> operation.getSetPropertiesOnce().fields(), true);
-                    }
-                    if (operation.getUnsetProperties() != null) {
-                        unsetProperties(conn, project, operation.getUser(), operation.getUnsetProperties());
-                    }
-                    if (operation.getIncrementProperties() != null) {
-                        for (Map.Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
-                            incrementProperty(conn, project, operation.getUser(), entry.getKey(), entry.getValue());
-                        }
-                    }
+            if (operation.getSetProperties() != null) {
+                for (Map.Entry<String, JsonNode> entry : strip(() -> operation.getSetProperties().fields())) {
+                    batch.set(user, entry.getKey(), entry.getValue());
+                }
+            }
+            if (operation.getSetPropertiesOnce() != null) {
+                for (Map.Entry<String, JsonNode> entry : strip(() -> operation.getSetPropertiesOnce().fields())) {
+                    batch.setOnce(user, entry.getKey(), entry.getValue());
+                }
+            }
+            if (operation.getUnsetProperties() != null) {
+                for (String property : operation.getUnsetProperties()) {
+                    batch.unset(user, stripName(property, "property"));
+                }
+            }
+            if (operation.getIncrementProperties() != null) {
+                for (Map.Entry<String, Double> entry : operation.getIncrementProperties().entrySet()) {
+                    batch.increment(user, stripName(entry.getKey(), "property"), entry.getValue());
+                }
+            }
+        }
 
-                    if (i++ % 5000 == 0) {
-                        conn.commit();
-                    }
+        applyBatch(project, batch);
+    }
+
+    /**
+     * Stages the folded rows into a temporary table with COPY and applies them with an insert for the new users
+     * and a single update for all the properties. The missing columns are created once for the batch before
+     * the transaction since ALTER TABLE locks the user table.
+     */
+    private void applyBatch(String project, PostgresqlUserBatch batch)
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Map<String, FieldType> columns = createMissingColumns(project, batch.getSampleUser(), batch.getColumnSamples().entrySet());
+
+        Map<String, FieldType> staged = new LinkedHashMap<>();
+        for (Map.Entry<String, PostgresqlUserBatch.ColumnUsage> entry : batch.getColumns().entrySet()) {
+            FieldType fieldType = columns.get(entry.getKey());
+            if (fieldType == null) {
+                // the property is only unset and it doesn't exist in the table
+                continue;
             }
+            if (entry.getValue().increment && !fieldType.isNumeric()) {
+                throw new RakamException(String.format("The property the is %s and it can't be incremented.", fieldType.name()),
+                        BAD_REQUEST);
+            }
+            staged.put(entry.getKey(), fieldType);
+        }
 
-            conn.commit();
-            conn.setAutoCommit(true);
+        String table = getUserTable(project, false);
+        StringBuilder stageColumns = new StringBuilder(PRIMARY_KEY + ", created_at");
+        List<String> updates = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<String, FieldType> entry : staged.entrySet()) {
+            PostgresqlUserBatch.ColumnUsage usage = batch.getColumns().get(entry.getKey());
+            String column = checkTableColumn(entry.getKey());
+            String value = "u." + column;
+            if (usage.once) {
+                stageColumns.append(format(", %s as once_%d", column, i));
+                value = format("coalesce(%s, s.once_%d)", value, i);
+            }
+            if (usage.set) {
+                stageColumns.append(format(", %s as set_%d, true as set_flag_%d", column, i, i));
+                value = format("case when s.set_flag_%d then s.set_%d else %s end", i, i, value);
+            }
+            if (usage.increment) {
+                stageColumns.append(format(", 0::float8 as increment_%d", i));
+                value = format("case when s.increment_%d is null then %s else coalesce(%s, 0) + s.increment_%d end", i, value, value, i);
+            }
+            updates.add(column + " = " + value);
+            i++;
         }
-        catch (SQLException e) {
+
+        boolean numericId = userTypeCache.getUnchecked(project).map(FieldType::isNumeric).orElse(false);
+
+        try (Connection conn = queryExecutor.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Statement statement = conn.createStatement();
+                statement.execute(format("CREATE TEMPORARY TABLE user_batch ON COMMIT DROP AS SELECT %s FROM %s WITH NO DATA",
+                        stageColumns, table));
+
+                CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+                copyManager.copyIn("COPY user_batch FROM STDIN", new StringReader(batch.toCopyText(staged, numericId)));
+
+                statement.executeUpdate(format("INSERT INTO %s (%s, created_at) SELECT %s, coalesce(created_at, now()) FROM user_batch ON CONFLICT (%s) DO NOTHING",
+                        table, PRIMARY_KEY, PRIMARY_KEY, PRIMARY_KEY));
+                if (!updates.isEmpty()) {
+                    statement.executeUpdate(format("UPDATE %s u SET %s FROM user_batch s WHERE u.%s = s.%s",
+                            table, String.join(", ", updates), PRIMARY_KEY, PRIMARY_KEY));
+                }
+
+                conn.commit();
+            }
+            catch (SQLException | IOException e) {
+                conn.rollback();
+                throw e;
+            }
+            finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        catch (SQLException | IOException e) {
             throw Throwables.propagate(e);
         }
     }
@@ -928,4 +1254,36 @@ public abstract class AbstractPostgresqlUserStorage
             throw new IllegalArgumentException();
         }
     }
+
+    private static class UserCountKey
+    {
+        private final String project;
+        private final String filter;
+
+        private UserCountKey(String project, String filter)
+        {
+            this.project = project;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof UserCountKey)) {
+                return false;
+            }
+
+            UserCountKey that = (UserCountKey) o;
+            return project.equals(that.project) && Objects.equals(filter, that.filter);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, filter);
+        }
+    }
 }
@@ -0,0 +1,310 @@
+package org.rakam.postgresql.plugin.user;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import org.rakam.collection.FieldType;
+import org.rakam.util.DateTimeUtils;
+import org.rakam.util.JsonHelper;
+
+import java.sql.Time;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Folds the operations of a user batch into a single row per user so that the batch can be staged with COPY
+ * and applied with set-based statements. The operations of a user are folded in the order they are added:
+ * the last set or unset of a property wins, set once values are kept only if the property is not set or
+ * incremented earlier in the batch and the increments are summed.
+ */
+class PostgresqlUserBatch
+{
+    // the sessions of the user storage use the UTC time zone
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneOffset.UTC);
+
+    private final Map<String, UserRow> rows = new LinkedHashMap<>();
+    private final Map<String, ColumnUsage> columns = new LinkedHashMap<>();
+    private Object sampleUser;
+
+    void add(Object user)
+    {
+        row(user);
+    }
+
+    void set(Object user, String column, JsonNode value)
+    {
+        UserRow row = row(user);
+        if (column.equals("created_at")) {
+            // created_at is never overridden once it's set
+            row.setCreatedAt(value);
+            return;
+        }
+
+        usage(column, value).set = true;
+        row.once.remove(column);
+        row.increments.remove(column);
+        row.values.put(column, value == null ? NullNode.getInstance() : value);
+    }
+
+    void setOnce(Object user, String column, JsonNode value)
+    {
+        UserRow row = row(user);
+        if (column.equals("created_at")) {
+            row.setCreatedAt(value);
+            return;
+        }
+
+        ColumnUsage usage = usage(column, value);
+        if (row.values.containsKey(column) || row.increments.containsKey(column) || row.once.containsKey(column)) {
+            return;
+        }
+        usage.once = true;
+        row.once.put(column, value == null ? NullNode.getInstance() : value);
+    }
+
+    void unset(Object user, String column)
+    {
+        set(user, column, NullNode.getInstance());
+    }
+
+    void increment(Object user, String column, double value)
+    {
+        UserRow row = row(user);
+        usage(column, new DoubleNode(value)).increment = true;
+        row.increments.merge(column, value, Double::sum);
+    }
+
+    boolean isEmpty()
+    {
+        return rows.isEmpty();
+    }
+
+    Object getSampleUser()
+    {
+        return sampleUser;
+    }
+
+    /**
+     * A value for each property that is used to create the missing columns once for the whole batch.
+     */
+    Map<String, JsonNode> getColumnSamples()
+    {
+        Map<String, JsonNode> samples = new LinkedHashMap<>();
+        for (Map.Entry<String, ColumnUsage> entry : columns.entrySet()) {
+            samples.put(entry.getKey(), entry.getValue().sample);
+        }
+        return samples;
+    }
+
+    Map<String, ColumnUsage> getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Renders the rows in the text format of COPY. The columns are id, created_at and for each staged column
+     * the set value and flag, the set once value and the increment depending on the operations of the column.
+     */
+    String toCopyText(Map<String, FieldType> staged, boolean numericId)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (UserRow row : rows.values()) {
+            appendValue(builder, userId(row.user, numericId));
+            builder.append('\t');
+            appendValue(builder, row.createdAt == null ? null : formatTimestamp(row.createdAt));
+
+            for (Map.Entry<String, FieldType> column : staged.entrySet()) {
+                ColumnUsage usage = columns.get(column.getKey());
+                if (usage.set) {
+                    JsonNode value = row.values.get(column.getKey());
+                    builder.append('\t');
+                    appendValue(builder, value == null ? null : toText(column.getValue(), value));
+                    builder.append('\t');
+                    appendValue(builder, value == null ? "f" : "t");
+                }
+                if (usage.once) {
+                    JsonNode value = row.once.get(column.getKey());
+                    builder.append('\t');
+                    appendValue(builder, value == null ? null : toText(column.getValue(), value));
+                }
+                if (usage.increment) {
+                    Double value = row.increments.get(column.getKey());
+                    builder.append('\t');
+                    appendValue(builder, value == null ? null : value.toString());
+                }
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private UserRow row(Object user)
+    {
+        if (sampleUser == null) {
+            sampleUser = user;
+        }
+        return rows.computeIfAbsent(user instanceof Number ? String.valueOf(((Number) user).longValue()) : user.toString(),
+                key -> new UserRow(user));
+    }
+
+    private ColumnUsage usage(String column, JsonNode value)
+    {
+        ColumnUsage usage = columns.computeIfAbsent(column, key -> new ColumnUsage());
+        if (value != null && !value.isNull() && (usage.sample == null || usage.sample.isNull())) {
+            usage.sample = value;
+        }
+        else if (usage.sample == null) {
+            usage.sample = NullNode.getInstance();
+        }
+        return usage;
+    }
+
+    private static String userId(Object user, boolean numericId)
+    {
+        if (numericId && user instanceof Number) {
+            return String.valueOf(((Number) user).longValue());
+        }
+        return user.toString();
+    }
+
+    /**
+     * Converts the value to the input format of the column type, the conversions are the same with
+     * {@link AbstractPostgresqlUserStorage#getJDBCValue(FieldType, JsonNode, java.sql.Connection)}
+     */
+    static String toText(FieldType type, JsonNode value)
+    {
+        if (value == null || value.isNull()) {
+            return null;
+        }
+        if (type.isArray()) {
+            if (!value.isArray()) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder("{");
+            for (int i = 0; i < value.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                String item = toText(type.getArrayElementType(), value.get(i));
+                if (item == null) {
+                    builder.append("NULL");
+                }
+                else {
+                    builder.append('"').append(item.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                }
+            }
+            return builder.append('}').toString();
+        }
+        if (type.isMap()) {
+            return value.isObject() ? JsonHelper.encode(value) : null;
+        }
+
+        switch (type) {
+            case TIMESTAMP:
+            case DATE:
+                try {
+                    return formatTimestamp(DateTimeUtils.parseTimestamp(value.isNumber() ? value.numberValue()
+                            : value.textValue()));
+                }
+                catch (Exception e) {
+                    return null;
+                }
+            case LONG:
+                return String.valueOf(value.asLong());
+            case DECIMAL:
+            case DOUBLE:
+                return String.valueOf(value.asDouble());
+            case INTEGER:
+                return String.valueOf(value.asInt());
+            case STRING:
+                return value.asText();
+            case TIME:
+                if (!value.isTextual()) {
+                    return null;
+                }
+                try {
+                    return Time.valueOf(value.textValue()).toString();
+                }
+                catch (Exception e) {
+                    return null;
+                }
+            case BOOLEAN:
+                return value.asBoolean() ? "t" : "f";
+            default:
+                throw new UnsupportedOperationException();
+        }
+    }
+
+    static String formatTimestamp(long millis)
+    {
+        return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    private static void appendValue(StringBuilder builder, String value)
+    {
+        if (value == null) {
+            builder.append("\\N");
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+    }
+
+    static class ColumnUsage
+    {
+        boolean set;
+        boolean once;
+        boolean increment;
+        JsonNode sample;
+    }
+
+    private static class UserRow
+    {
+        private final Object user;
+        private final Map<String, JsonNode> values = new HashMap<>();
+        private final Map<String, JsonNode> once = new HashMap<>();
+        private final Map<String, Double> increments = new HashMap<>();
+        private Long createdAt;
+
+        UserRow(Object user)
+        {
+            this.user = user;
+        }
+
+        void setCreatedAt(JsonNode value)
+        {
+            if (createdAt != null || value == null || value.isNull()) {
+                return;
+            }
+            try {
+                createdAt = DateTimeUtils.parseTimestamp(value.isNumber() ? value.numberValue() : value.textValue());
+            }
+            catch (Exception e) {
+                createdAt = Instant.now().toEpochMilli();
+            }
+        }
+    }
+}
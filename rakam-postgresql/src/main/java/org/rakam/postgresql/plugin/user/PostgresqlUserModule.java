@@ -18,6 +18,7 @@ import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.name.Names;
 import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.plugin.user.CachingUserStorage;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.util.ConditionalModule;
 import org.rakam.config.JDBCConfig;
@@ -36,7 +37,9 @@ public class PostgresqlUserModule extends RakamModule {
                 .toInstance(JDBCPoolDataSource.getOrCreateDataSource(config));
 
         binder.bind(PostgresqlQueryExecutor.class).in(Scopes.SINGLETON);
-        binder.bind(UserStorage.class).to(AbstractPostgresqlUserStorage.class)
+        binder.bind(UserStorage.class).annotatedWith(Names.named(CachingUserStorage.DELEGATE))
+                .to(AbstractPostgresqlUserStorage.class);
+        binder.bind(UserStorage.class).to(CachingUserStorage.class)
                 .in(Scopes.SINGLETON);
 
         binder.bind(boolean.class).annotatedWith(Names.named("user.storage.postgresql"))
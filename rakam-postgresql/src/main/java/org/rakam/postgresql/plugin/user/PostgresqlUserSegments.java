@@ -0,0 +1,339 @@
+package org.rakam.postgresql.plugin.user;
+
+import com.facebook.presto.sql.RakamSqlFormatter;
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.Parameter;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.Query;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.rakam.util.RakamException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.facebook.presto.sql.tree.ComparisonExpressionType.GREATER_THAN_OR_EQUAL;
+import static com.facebook.presto.sql.tree.LogicalBinaryExpression.Type.AND;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static java.lang.String.format;
+import static org.rakam.postgresql.report.PostgresqlQueryExecutor.SEGMENT_PREFIX;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkProject;
+
+/**
+ * Keeps the members of the user segments in tables so that the searches that target a segment read the
+ * members instead of evaluating the filters against the event history. The segments are refreshed when they
+ * are used after their interval passes: the segments that only require a single event are refreshed
+ * incrementally from the events that are collected since the last refresh, the other segments are
+ * evaluated again and only the difference is applied to the members table. The incremental segments are also
+ * evaluated again daily so that the members of the events that are collected later than the late event window
+ * are added.
+ */
+class PostgresqlUserSegments
+{
+    private final static Logger LOGGER = Logger.get(PostgresqlUserSegments.class);
+
+    static final String SEGMENT_TABLE = "_segments";
+    // the events are usually collected shortly after they occur, the incremental refresh re-reads this window and
+    // the later ones are picked up by the full refresh
+    private static final Duration LATE_EVENT_WINDOW = Duration.ofHours(1);
+    private static final Duration FULL_REFRESH_INTERVAL = Duration.ofDays(1);
+    private static final Expression TIME_PREDICATE = new ComparisonExpression(GREATER_THAN_OR_EQUAL,
+            new QualifiedNameReference(QualifiedName.of("_time")), new Parameter(0));
+
+    private final PostgresqlQueryExecutor queryExecutor;
+    private final SqlParser sqlParser = new SqlParser();
+    private final Set<SegmentKey> refreshing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refreshExecutor;
+
+    PostgresqlUserSegments(PostgresqlQueryExecutor queryExecutor)
+    {
+        this.queryExecutor = queryExecutor;
+        this.refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("user-segment-refresh-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @param query the query that returns the ids of the members
+     * @param incrementalQuery the query that returns the ids of the users that become members with the events,
+     * the events are filtered by their _time when the segment is refreshed. Null if the membership is not monotonic
+     */
+    void create(String project, String name, String tableName, String query, String incrementalQuery, Duration interval)
+    {
+        checkProject(project);
+        String formattedQuery = formatQuery(project, parse(query));
+        String formattedIncrementalQuery = incrementalQuery == null ? null :
+                formatQuery(project, withTimePredicate(parse(incrementalQuery)));
+
+        try (Connection conn = queryExecutor.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement statement = conn.createStatement()) {
+                statement.execute(format("CREATE TABLE IF NOT EXISTS %s (" +
+                        "  table_name text NOT NULL,\n" +
+                        "  name text NOT NULL,\n" +
+                        "  query text NOT NULL,\n" +
+                        "  incremental_query text,\n" +
+                        "  refresh_interval bigint NOT NULL,\n" +
+                        "  last_update timestamp,\n" +
+                        "  last_full_update timestamp,\n" +
+                        "  PRIMARY KEY (table_name)" +
+                        ")", getDefinitionTable(project)));
+
+                PreparedStatement ps = conn.prepareStatement(format("INSERT INTO %s (table_name, name, query, incremental_query, refresh_interval) " +
+                        "VALUES (?, ?, ?, ?, ?) ON CONFLICT (table_name) DO NOTHING", getDefinitionTable(project)));
+                ps.setString(1, tableName);
+                ps.setString(2, name);
+                ps.setString(3, formattedQuery);
+                ps.setString(4, formattedIncrementalQuery);
+                ps.setLong(5, interval.getSeconds());
+                if (ps.executeUpdate() == 0) {
+                    throw new RakamException(format("Segment %s already exists", tableName), BAD_REQUEST);
+                }
+
+                statement.execute(format("CREATE TABLE %s AS SELECT id FROM %s._users WITH NO DATA",
+                        getMemberTable(project, tableName), project));
+                statement.execute(format("ALTER TABLE %s ADD PRIMARY KEY (id)", getMemberTable(project, tableName)));
+                conn.commit();
+            }
+            catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+        catch (SQLException e) {
+            throw new RakamException("Couldn't create segment: " + e.getMessage(), INTERNAL_SERVER_ERROR);
+        }
+
+        refresh(project, tableName);
+    }
+
+    /**
+     * Returns the predicate that filters the users in the segment. The predicate reads the current members,
+     * if the segment is stale it's refreshed in the background.
+     */
+    String getPredicate(String project, String tableName)
+    {
+        checkProject(project);
+        SegmentState state = getState(project, tableName);
+
+        if (state.lastUpdate == null) {
+            // the initial build of the segment failed, the members table is empty
+            refresh(project, tableName);
+        }
+        else if (state.isStale()) {
+            SegmentKey key = new SegmentKey(project, tableName);
+            if (refreshing.add(key)) {
+                refreshExecutor.execute(() -> {
+                    try {
+                        refresh(project, tableName);
+                    }
+                    catch (Exception e) {
+                        LOGGER.error(e, "Error while refreshing segment %s of project %s", tableName, project);
+                    }
+                    finally {
+                        refreshing.remove(key);
+                    }
+                });
+            }
+        }
+
+        return format("id IN (SELECT id FROM segment.%s)", checkCollection(tableName));
+    }
+
+    private SegmentState getState(String project, String tableName)
+    {
+        try (Connection conn = queryExecutor.getConnection()) {
+            PreparedStatement ps = conn.prepareStatement(format("SELECT last_update, refresh_interval, " +
+                    "(now() at time zone 'UTC') FROM %s WHERE table_name = ?", getDefinitionTable(project)));
+            ps.setString(1, tableName);
+            ResultSet resultSet = ps.executeQuery();
+            if (!resultSet.next()) {
+                throw new RakamException(format("Segment %s does not exist", tableName), BAD_REQUEST);
+            }
+            return new SegmentState(resultSet.getTimestamp(1), resultSet.getLong(2), resultSet.getTimestamp(3));
+        }
+        catch (SQLException e) {
+            if ("42P01".equals(e.getSQLState())) {
+                throw new RakamException(format("Segment %s does not exist", tableName), BAD_REQUEST);
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Refreshes the segment if it's stale. The refresh is claimed by moving the last update time of the
+     * segment in the same transaction so that only one node refreshes a segment at a time and the claim is
+     * rolled back with the refresh if it fails.
+     */
+    void refresh(String project, String tableName)
+    {
+        try (Connection conn = queryExecutor.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                PreparedStatement claim = conn.prepareStatement(format("UPDATE %1$s s SET last_update = (now() at time zone 'UTC') " +
+                        "FROM (SELECT table_name, last_update FROM %1$s WHERE table_name = ? FOR UPDATE) p " +
+                        "WHERE s.table_name = p.table_name AND (p.last_update IS NULL OR " +
+                        "p.last_update < (now() at time zone 'UTC') - s.refresh_interval * interval '1 second') " +
+                        "RETURNING p.last_update, s.query, s.incremental_query, " +
+                        "(s.last_full_update IS NULL OR s.last_full_update < (now() at time zone 'UTC') - ? * interval '1 second')",
+                        getDefinitionTable(project)));
+                claim.setString(1, tableName);
+                claim.setLong(2, FULL_REFRESH_INTERVAL.getSeconds());
+                ResultSet resultSet = claim.executeQuery();
+                if (!resultSet.next()) {
+                    conn.rollback();
+                    return;
+                }
+
+                Timestamp previousUpdate = resultSet.getTimestamp(1);
+                String query = resultSet.getString(2);
+                String incrementalQuery = resultSet.getString(3);
+                boolean fullRefresh = resultSet.getBoolean(4);
+                String memberTable = getMemberTable(project, tableName);
+
+                if (previousUpdate != null && incrementalQuery != null && !fullRefresh) {
+                    PreparedStatement ps = conn.prepareStatement(format("INSERT INTO %s SELECT DISTINCT id FROM (%s) members " +
+                            "WHERE id IS NOT NULL ON CONFLICT (id) DO NOTHING", memberTable, incrementalQuery));
+                    ps.setTimestamp(1, new Timestamp(previousUpdate.getTime() - LATE_EVENT_WINDOW.toMillis()));
+                    ps.executeUpdate();
+                }
+                else {
+                    try (Statement statement = conn.createStatement()) {
+                        statement.execute(format("CREATE TEMPORARY TABLE segment_members ON COMMIT DROP AS %s", query));
+                        statement.execute(format("DELETE FROM %s s WHERE NOT EXISTS " +
+                                "(SELECT 1 FROM segment_members m WHERE m.id = s.id)", memberTable));
+                        statement.execute(format("INSERT INTO %s SELECT DISTINCT id FROM segment_members " +
+                                "WHERE id IS NOT NULL ON CONFLICT (id) DO NOTHING", memberTable));
+                    }
+                    PreparedStatement ps = conn.prepareStatement(format("UPDATE %s SET last_full_update = last_update WHERE table_name = ?",
+                            getDefinitionTable(project)));
+                    ps.setString(1, tableName);
+                    ps.executeUpdate();
+                }
+                conn.commit();
+            }
+            catch (SQLException | RuntimeException e) {
+                // the claim is rolled back as well so that the segment is refreshed on the next read
+                conn.rollback();
+                throw e;
+            }
+        }
+        catch (SQLException e) {
+            throw new RakamException(format("Couldn't refresh segment %s: %s", tableName, e.getMessage()), INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    private Query parse(String query)
+    {
+        synchronized (sqlParser) {
+            return (Query) sqlParser.createStatement(query);
+        }
+    }
+
+    /**
+     * Adds a _time predicate to the query, the parameter is bound to the start of the refreshed time range.
+     */
+    static Query withTimePredicate(Query query)
+    {
+        QuerySpecification specification = (QuerySpecification) query.getQueryBody();
+        Expression where = specification.getWhere()
+                .<Expression>map(predicate -> new LogicalBinaryExpression(AND, predicate, TIME_PREDICATE))
+                .orElse(TIME_PREDICATE);
+
+        return new Query(query.getWith(), new QuerySpecification(specification.getSelect(), specification.getFrom(),
+                Optional.of(where), specification.getGroupBy(), specification.getHaving(), specification.getOrderBy(),
+                specification.getLimit()), query.getOrderBy(), query.getLimit());
+    }
+
+    private String formatQuery(String project, Query statement)
+    {
+        StringBuilder builder = new StringBuilder();
+        Map<String, String> sessionParameters = new HashMap<>();
+        new RakamSqlFormatter.Formatter(builder, name -> queryExecutor.formatTableReference(project, name,
+                Optional.empty(), sessionParameters, "collection"), '"').process(statement, 1);
+        if (!sessionParameters.isEmpty()) {
+            throw new RakamException("Segments can only use the collections of the project", BAD_REQUEST);
+        }
+        return builder.toString();
+    }
+
+    private static String getDefinitionTable(String project)
+    {
+        return project + "." + SEGMENT_TABLE;
+    }
+
+    private static String getMemberTable(String project, String tableName)
+    {
+        return project + "." + checkCollection(SEGMENT_PREFIX + tableName);
+    }
+
+    private static class SegmentState
+    {
+        private final Timestamp lastUpdate;
+        private final long refreshInterval;
+        private final Timestamp now;
+
+        private SegmentState(Timestamp lastUpdate, long refreshInterval, Timestamp now)
+        {
+            this.lastUpdate = lastUpdate;
+            this.refreshInterval = refreshInterval;
+            this.now = now;
+        }
+
+        private boolean isStale()
+        {
+            return lastUpdate.getTime() + refreshInterval * 1000 < now.getTime();
+        }
+    }
+
+    private static class SegmentKey
+    {
+        private final String project;
+        private final String tableName;
+
+        private SegmentKey(String project, String tableName)
+        {
+            this.project = project;
+            this.tableName = tableName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SegmentKey)) {
+                return false;
+            }
+
+            SegmentKey that = (SegmentKey) o;
+            return project.equals(that.project) && tableName.equals(that.tableName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * project.hashCode() + tableName.hashCode();
+        }
+    }
+}
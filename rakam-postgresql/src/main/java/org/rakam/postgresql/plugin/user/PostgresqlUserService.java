@@ -9,6 +9,7 @@ import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.ISingleUserBatchOperation;
+import org.rakam.plugin.user.UserStorage;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
@@ -42,11 +43,22 @@ public class PostgresqlUserService
     private final Metastore metastore;
     private final PostgresqlQueryExecutor executor;
     private final PostgresqlUserStorage storage;
+    private final UserStorage userStorage;
 
-    @Inject
     public PostgresqlUserService(PostgresqlUserStorage storage, Metastore metastore, PostgresqlQueryExecutor executor)
     {
-        super(storage);
+        this(storage, storage, metastore, executor);
+    }
+
+    /**
+     * @param userStorage the storage that the user operations go through, it's the caching storage that wraps the
+     * Postgresql storage when the user profile cache is enabled.
+     */
+    @Inject
+    public PostgresqlUserService(UserStorage userStorage, PostgresqlUserStorage storage, Metastore metastore, PostgresqlQueryExecutor executor)
+    {
+        super(userStorage);
+        this.userStorage = userStorage;
         this.storage = storage;
         this.metastore = metastore;
         this.executor = executor;
@@ -123,6 +135,6 @@ public class PostgresqlUserService
     @Override
     public void batch(String project, List<? extends ISingleUserBatchOperation> batchUserOperations)
     {
-        storage.batch(project, batchUserOperations);
+        userStorage.batch(project, batchUserOperations);
     }
 }
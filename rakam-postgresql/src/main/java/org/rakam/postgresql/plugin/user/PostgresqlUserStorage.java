@@ -2,13 +2,12 @@ package org.rakam.postgresql.plugin.user;
 
 import com.facebook.presto.sql.ExpressionFormatter;
 import com.facebook.presto.sql.tree.Expression;
-import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ConfigManager;
-import org.rakam.analysis.MaterializedViewService;
-import org.rakam.plugin.MaterializedView;
+import org.rakam.plugin.user.UserPluginConfig;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.postgresql.report.PostgresqlQueryExecutor;
 import org.rakam.report.QueryExecutor;
+import org.rakam.util.RakamException;
 import org.rakam.report.QueryExecutorService;
 
 import javax.inject.Inject;
@@ -16,10 +15,10 @@ import javax.inject.Inject;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
 import static org.rakam.report.realtime.AggregationType.COUNT;
 import static org.rakam.util.ValidationUtil.checkCollection;
@@ -28,19 +27,29 @@ public class PostgresqlUserStorage
         extends AbstractPostgresqlUserStorage
 {
     public static final String USER_TABLE = "_users";
-    private final MaterializedViewService materializedViewService;
+    private static final Duration DEFAULT_SEGMENT_INTERVAL = Duration.ofHours(1);
+
     private final QueryExecutorService queryExecutorService;
+    private final PostgresqlUserSegments segments;
 
-    @Inject
     public PostgresqlUserStorage(
             QueryExecutorService queryExecutorService,
-            MaterializedViewService materializedViewService,
             ConfigManager configManager,
             PostgresqlQueryExecutor queryExecutor)
     {
-        super(queryExecutorService, queryExecutor, configManager);
+        this(queryExecutorService, configManager, queryExecutor, new UserPluginConfig());
+    }
+
+    @Inject
+    public PostgresqlUserStorage(
+            QueryExecutorService queryExecutorService,
+            ConfigManager configManager,
+            PostgresqlQueryExecutor queryExecutor,
+            UserPluginConfig userPluginConfig)
+    {
+        super(queryExecutorService, queryExecutor, configManager, userPluginConfig);
         this.queryExecutorService = queryExecutorService;
-        this.materializedViewService = materializedViewService;
+        this.segments = new PostgresqlUserSegments(queryExecutor);
     }
 
     @Override
@@ -107,17 +116,36 @@ public class PostgresqlUserStorage
     @Override
     public void createSegment(String project, String name, String tableName, Expression filterExpression, List<EventFilter> eventFilter, Duration interval)
     {
-        StringBuilder builder = new StringBuilder("select distinct id from _users where ");
-
+        List<String> filters = new ArrayList<>();
         if (filterExpression != null) {
-            builder.append(filterExpression.toString());
+            filters.add(new ExpressionFormatter.Formatter(Optional.empty()).process(filterExpression, true));
+        }
+        if (eventFilter != null && !eventFilter.isEmpty()) {
+            filters.addAll(getEventFilterPredicate(project, eventFilter));
         }
+        if (filters.isEmpty()) {
+            throw new RakamException("At least one predicate is required", BAD_REQUEST);
+        }
+
+        String query = "select id from _users where " + filters.stream().collect(Collectors.joining(" AND "));
 
-        if (eventFilter != null) {
-            builder.append(getEventFilterPredicate(project, eventFilter).stream().collect(Collectors.joining(" AND ")));
+        // a user who did the event stays in the segment, so the new members can be found from the new events
+        String incrementalQuery = null;
+        if (filterExpression == null && eventFilter.size() == 1
+                && eventFilter.get(0).aggregation == null && eventFilter.get(0).timeframe == null) {
+            EventFilter filter = eventFilter.get(0);
+            incrementalQuery = format("select \"_user\" as id from %s%s", checkCollection(filter.collection),
+                    filter.filterExpression == null ? "" :
+                            " where " + new ExpressionFormatter.Formatter(Optional.empty()).process(filter.getExpression(), true));
         }
 
-        materializedViewService.create(project, new MaterializedView(tableName,
-                "Users who did " + (tableName == null ? "at least one event" : tableName + " event"), builder.toString(), interval, null, ImmutableMap.of()));
+        segments.create(project, name, tableName, query, incrementalQuery,
+                interval == null ? DEFAULT_SEGMENT_INTERVAL : interval);
+    }
+
+    @Override
+    protected String getSegmentPredicate(String project, String segment)
+    {
+        return segments.getPredicate(project, segment);
     }
 }
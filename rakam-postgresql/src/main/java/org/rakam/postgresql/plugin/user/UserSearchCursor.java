@@ -0,0 +1,120 @@
+package org.rakam.postgresql.plugin.user;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.rakam.plugin.user.UserStorage.Ordering;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.RakamException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.lang.String.format;
+import static org.rakam.util.ValidationUtil.checkLiteral;
+
+/**
+ * The offset of user search pages. It keeps the sort value and the id of the last user of the page so that the
+ * next page seeks to the position using the index instead of skipping the previous rows. The users are
+ * ordered by the id after the sort column and the null values of the sort column come last.
+ */
+class UserSearchCursor
+{
+    private final Object sortValue;
+    private final Object id;
+
+    UserSearchCursor(Object sortValue, Object id)
+    {
+        this.sortValue = toCursorValue(sortValue);
+        this.id = toCursorValue(id);
+    }
+
+    static UserSearchCursor decode(String offset)
+    {
+        if (offset == null || offset.isEmpty()) {
+            return null;
+        }
+
+        JsonNode values;
+        try {
+            values = JsonHelper.read(new String(Base64.getUrlDecoder().decode(offset), StandardCharsets.UTF_8));
+        }
+        catch (Exception e) {
+            throw new RakamException("Offset is invalid", BAD_REQUEST);
+        }
+
+        if (!values.isArray() || values.size() != 2 || values.get(1).isNull()) {
+            throw new RakamException("Offset is invalid", BAD_REQUEST);
+        }
+        return new UserSearchCursor(fromJson(values.get(0)), fromJson(values.get(1)));
+    }
+
+    String encode()
+    {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(JsonHelper.encodeAsBytes(Arrays.asList(sortValue, id)));
+    }
+
+    /**
+     * @param sortColumn the escaped sort column or null if the users are ordered by the id
+     */
+    String getPredicate(String idColumn, String sortColumn, Ordering ordering)
+    {
+        String operator = ordering == Ordering.desc ? "<" : ">";
+        String idPredicate = format("%s %s %s", idColumn, operator, toLiteral(id));
+        if (sortColumn == null) {
+            return idPredicate;
+        }
+
+        if (sortValue == null) {
+            return format("(%s IS NULL AND %s)", sortColumn, idPredicate);
+        }
+
+        String sortLiteral = toLiteral(sortValue);
+        return format("(%s %s %s OR (%s = %s AND %s) OR %s IS NULL)",
+                sortColumn, operator, sortLiteral, sortColumn, sortLiteral, idPredicate, sortColumn);
+    }
+
+    static String getOrderBy(String idColumn, String sortColumn, Ordering ordering)
+    {
+        String direction = ordering == Ordering.desc ? "DESC" : "ASC";
+        if (sortColumn == null) {
+            return format("%s %s", idColumn, direction);
+        }
+        return format("%s %s NULLS LAST, %s %s", sortColumn, direction, idColumn, direction);
+    }
+
+    private static Object toCursorValue(Object value)
+    {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        // timestamps, dates and times are compared with their text representation that Postgresql can cast
+        return value.toString();
+    }
+
+    private static Object fromJson(JsonNode value)
+    {
+        if (value.isNull()) {
+            return null;
+        }
+        if (value.isNumber()) {
+            return value.numberValue();
+        }
+        if (value.isBoolean()) {
+            return value.booleanValue();
+        }
+        if (value.isTextual()) {
+            return value.textValue();
+        }
+        throw new RakamException("Offset is invalid", BAD_REQUEST);
+    }
+
+    private static String toLiteral(Object value)
+    {
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        return "'" + checkLiteral(value.toString()) + "'";
+    }
+}
@@ -16,6 +16,7 @@ package org.rakam.postgresql.report;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
@@ -56,16 +57,22 @@ public class PostgresqlEventExplorer
             .build();
     private final QueryExecutorService executorService;
 
-    @Inject
     public PostgresqlEventExplorer(QueryExecutorService service, MaterializedViewService materializedViewService,
             ContinuousQueryService continuousQueryService)
     {
-        super(service, materializedViewService, continuousQueryService, timestampMapping);
+        this(service, materializedViewService, continuousQueryService, null);
+    }
+
+    @Inject
+    public PostgresqlEventExplorer(QueryExecutorService service, MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService, CollectionStatisticsService statistics)
+    {
+        super(service, materializedViewService, continuousQueryService, statistics, timestampMapping);
         this.executorService = service;
     }
 
     @Override
-    public CompletableFuture<QueryResult> getEventStatistics(String project, Optional<Set<String>> collections, Optional<String> dimension, Instant startDate, Instant endDate)
+    public CompletableFuture<QueryResult> getEventStatistics(String project, Optional<Set<String>> collections, Optional<String> dimension, Instant startDate, Instant endDate, Accuracy accuracy)
     {
         checkProject(project);
 
@@ -77,6 +84,11 @@ public class PostgresqlEventExplorer
             checkReference(timestampMapping, dimension.get(), startDate, endDate, collections.map(v -> v.size()).orElse(10));
         }
 
+        Optional<QueryResult> statisticsResult = getEventStatisticsFromStatistics(project, collections, dimension, startDate, endDate, accuracy);
+        if (statisticsResult.isPresent()) {
+            return CompletableFuture.completedFuture(statisticsResult.get());
+        }
+
         String timePredicate = format("\"_time\" between timestamp '%s' and timestamp '%s' + interval '1' day",
                 TIMESTAMP_FORMATTER.format(startDate), TIMESTAMP_FORMATTER.format(endDate));
 
@@ -121,6 +133,10 @@ public class PostgresqlEventExplorer
                 return "count(distinct %s)";
             case APPROXIMATE_UNIQUE:
                 return "count(distinct %s)";
+            case APPROXIMATE_MEDIAN:
+            case APPROXIMATE_PERCENTILE_90:
+            case APPROXIMATE_PERCENTILE_99:
+                return "percentile_cont(" + aggType.getQuantile() + ") within group (order by %s)";
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
@@ -49,6 +49,7 @@ public class PostgresqlQueryExecutor
     private final static Logger LOGGER = Logger.get(PostgresqlQueryExecutor.class);
     public final static String MATERIALIZED_VIEW_PREFIX = "$materialized_";
     public final static String CONTINUOUS_QUERY_PREFIX = "$view_";
+    public final static String SEGMENT_PREFIX = "$segment_";
 
     private final JDBCPoolDataSource connectionPool;
     protected static final ExecutorService QUERY_EXECUTOR = Executors.newWorkStealingPool();
@@ -116,6 +117,11 @@ public class PostgresqlQueryExecutor
                     return project + "." + checkCollection(CONTINUOUS_QUERY_PREFIX + name.getSuffix());
                 case "materialized":
                     return project + "." + checkCollection(MATERIALIZED_VIEW_PREFIX + name.getSuffix());
+                case "segment":
+                    if (userServiceIsPostgresql) {
+                        return project + "." + checkCollection(SEGMENT_PREFIX + name.getSuffix());
+                    }
+                    throw new RakamException("User implementation is not supported", EXPECTATION_FAILED);
                 default:
                     if (customDataSource == null) {
                         throw new RakamException("Schema does not exist: " + name.getPrefix().get().toString(), BAD_REQUEST);
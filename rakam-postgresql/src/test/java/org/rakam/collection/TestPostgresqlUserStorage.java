@@ -50,7 +50,7 @@ public class TestPostgresqlUserStorage
         QueryExecutorService queryExecutorService = new QueryExecutorService(queryExecutor, metastore, materializedViewService, Clock.systemUTC(), '"');
         configManager = new PostgresqlConfigManager(dataSource);
         configManager.setup();
-        PostgresqlUserStorage userStorage = new PostgresqlUserStorage(queryExecutorService, materializedViewService, configManager, queryExecutor);
+        PostgresqlUserStorage userStorage = new PostgresqlUserStorage(queryExecutorService, configManager, queryExecutor);
         userService = new PostgresqlUserService(userStorage, metastore, queryExecutor);
         super.setUp();
     }
@@ -0,0 +1,67 @@
+package org.rakam.postgresql.analysis;
+
+import com.google.common.base.Strings;
+import org.rakam.postgresql.analysis.PostgresqlTimePartitioner.Partition;
+import org.testng.annotations.Test;
+
+import java.time.LocalDate;
+
+import static org.rakam.postgresql.analysis.PostgresqlConfig.TimePartitioning.DAY;
+import static org.rakam.postgresql.analysis.PostgresqlConfig.TimePartitioning.MONTH;
+import static org.rakam.postgresql.analysis.PostgresqlTimePartitioner.getPartitionName;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlTimePartitioner
+{
+    private static final LocalDate START = LocalDate.of(2016, 10, 1);
+
+    @Test
+    public void testPartitionName()
+    {
+        assertEquals(getPartitionName("pageview", DAY, START), "_pageview_p20161001");
+        assertEquals(getPartitionName("pageview", MONTH, START), "_pageview_p201610");
+    }
+
+    @Test
+    public void testLongPartitionName()
+    {
+        String first = Strings.repeat("a", 60) + "first";
+        String second = Strings.repeat("a", 60) + "second";
+
+        String name = getPartitionName(first, DAY, START);
+        // the index of the time column is named after the partition
+        assertTrue((name + "_t").length() <= 63);
+        assertTrue(name.endsWith("_p20161001"));
+        assertNotEquals(name, getPartitionName(second, DAY, START));
+    }
+
+    @Test
+    public void testParse()
+    {
+        Partition day = Partition.parse(getPartitionName("page_prices", DAY, START));
+        assertEquals(day.name, "_page_prices_p20161001");
+        assertEquals(day.start, START);
+        assertEquals(day.end, START.plusDays(1));
+
+        Partition month = Partition.parse(getPartitionName("page_prices", MONTH, START));
+        assertEquals(month.start, START);
+        assertEquals(month.end, START.plusMonths(1));
+
+        Partition truncated = Partition.parse(getPartitionName(Strings.repeat("a", 70), MONTH, START));
+        assertEquals(truncated.start, START);
+        assertEquals(truncated.end, START.plusMonths(1));
+    }
+
+    @Test
+    public void testParseInvalid()
+    {
+        // the tables that are not created by the partitioner
+        assertNull(Partition.parse("_pageview"));
+        assertNull(Partition.parse("_pageview_pending"));
+        assertNull(Partition.parse("_pageview_p2016ab01"));
+        assertNull(Partition.parse("_pageview_p201613"));
+    }
+}
@@ -0,0 +1,85 @@
+package org.rakam.postgresql.plugin.user;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.FieldType;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.Test;
+
+import java.util.TimeZone;
+
+import static org.rakam.util.JsonHelper.textNode;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestPostgresqlUserBatch
+{
+    @Test
+    public void testFoldRepeatedUsers()
+    {
+        PostgresqlUserBatch batch = new PostgresqlUserBatch();
+        batch.set(1L, "name", textNode("first"));
+        batch.setOnce(1, "plan", textNode("free"));
+        batch.set(1, "name", textNode("second"));
+        batch.setOnce(1L, "plan", textNode("paid"));
+        batch.increment(1L, "visits", 1);
+        batch.increment(1, "visits", 2);
+        batch.set(2L, "plan", textNode("paid"));
+
+        PostgresqlUserBatch.ColumnUsage plan = batch.getColumns().get("plan");
+        assertTrue(plan.set);
+        assertTrue(plan.once);
+        assertFalse(plan.increment);
+
+        // the last set wins, the first set once wins and the increments are summed
+        String text = batch.toCopyText(ImmutableMap.of("name", FieldType.STRING, "plan", FieldType.STRING, "visits", FieldType.DOUBLE), true);
+        assertEquals(text, "1\t\\N\tsecond\tt\t\\N\tf\tfree\t3.0\n" +
+                "2\t\\N\t\\N\tf\tpaid\tt\t\\N\t\\N\n");
+    }
+
+    @Test
+    public void testUnsetOverridesSet()
+    {
+        PostgresqlUserBatch batch = new PostgresqlUserBatch();
+        batch.set("user", "name", textNode("name"));
+        batch.unset("user", "name");
+
+        // the null value is set explicitly
+        assertEquals(batch.toCopyText(ImmutableMap.of("name", FieldType.STRING), false), "user\t\\N\t\\N\tt\n");
+    }
+
+    @Test
+    public void testCopyEscaping()
+    {
+        PostgresqlUserBatch batch = new PostgresqlUserBatch();
+        ArrayNode tags = JsonHelper.jsonArray();
+        tags.add("a\"b");
+        tags.add("c\\d");
+        tags.add(NullNode.getInstance());
+        batch.set("id\t1", "note", textNode("line1\nline2\\\r"));
+        batch.set("id\t1", "tags", tags);
+
+        String text = batch.toCopyText(ImmutableMap.of("note", FieldType.STRING, "tags", FieldType.ARRAY_STRING), false);
+        assertEquals(text, "id\\t1\t\\N\tline1\\nline2\\\\\\r\tt\t{\"a\\\\\"b\",\"c\\\\\\\\d\",NULL}\tt\n");
+    }
+
+    @Test
+    public void testTimestampIsFormattedInUTC()
+    {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+        try {
+            PostgresqlUserBatch batch = new PostgresqlUserBatch();
+            batch.set("user", "created_at", JsonHelper.numberNode(0));
+            batch.set("user", "last_seen", JsonHelper.numberNode(1475316930500L));
+
+            assertEquals(batch.toCopyText(ImmutableMap.of("last_seen", FieldType.TIMESTAMP), false),
+                    "user\t1970-01-01 00:00:00.000\t2016-10-01 10:15:30.500\tt\n");
+        }
+        finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.rakam.postgresql.plugin.user;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.Query;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import org.rakam.TestingEnvironment;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.datasource.CustomDataSourceService;
+import org.rakam.postgresql.analysis.PostgresqlMetastore;
+import org.rakam.postgresql.report.PostgresqlQueryExecutor;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.lang.String.format;
+import static org.rakam.postgresql.plugin.user.PostgresqlUserSegments.withTimePredicate;
+import static org.testng.Assert.assertEquals;
+
+public class TestPostgresqlUserSegments
+{
+    private static final String PROJECT = "testsegments";
+    private static final SqlParser SQL_PARSER = new SqlParser();
+
+    private JDBCPoolDataSource dataSource;
+    private PostgresqlUserSegments segments;
+
+    @BeforeClass
+    public void setUp()
+            throws Exception
+    {
+        TestingEnvironment testingEnvironment = new TestingEnvironment();
+        dataSource = JDBCPoolDataSource.getOrCreateDataSource(testingEnvironment.getPostgresqlConfig(), "set time zone 'UTC'");
+        PostgresqlMetastore metastore = new PostgresqlMetastore(dataSource, new EventBus());
+        segments = new PostgresqlUserSegments(new PostgresqlQueryExecutor(dataSource, metastore, new CustomDataSourceService(dataSource), true));
+
+        execute("CREATE SCHEMA %s",
+                "CREATE TABLE %s._users (id text PRIMARY KEY, plan text)",
+                "CREATE TABLE %s.pageview (_user text, _time timestamp)",
+                "INSERT INTO %s._users VALUES ('a', 'paid'), ('b', 'paid'), ('c', 'free')");
+    }
+
+    @AfterClass
+    public void tearDown()
+            throws Exception
+    {
+        execute("DROP SCHEMA %s CASCADE");
+    }
+
+    @Test
+    public void testTimePredicate()
+    {
+        assertEquals(withTimePredicate(parse("select \"_user\" as id from pageview where platform = 'web'")),
+                parse("select \"_user\" as id from pageview where platform = 'web' and \"_time\" >= ?"));
+        assertEquals(withTimePredicate(parse("select \"_user\" as id from pageview")),
+                parse("select \"_user\" as id from pageview where \"_time\" >= ?"));
+    }
+
+    @Test
+    public void testIncrementalRefresh()
+            throws Exception
+    {
+        execute("DELETE FROM %s.pageview",
+                "INSERT INTO %s.pageview VALUES ('a', now() at time zone 'UTC')");
+        createEventSegment("visitors");
+        assertEquals(getMembers("visitors"), ImmutableSet.of("a"));
+
+        execute("INSERT INTO %s.pageview VALUES ('b', now() at time zone 'UTC')",
+                // collected later than the late event window
+                "INSERT INTO %s.pageview VALUES ('c', now() at time zone 'UTC' - interval '3 days')");
+        expire("visitors", "last_update");
+        segments.refresh(PROJECT, "visitors");
+        assertEquals(getMembers("visitors"), ImmutableSet.of("a", "b"));
+
+        // the late events are picked up by the full refresh
+        expire("visitors", "last_update");
+        expire("visitors", "last_full_update");
+        segments.refresh(PROJECT, "visitors");
+        assertEquals(getMembers("visitors"), ImmutableSet.of("a", "b", "c"));
+    }
+
+    @Test
+    public void testRefreshIsSkippedInInterval()
+            throws Exception
+    {
+        execute("DELETE FROM %s.pageview",
+                "INSERT INTO %s.pageview VALUES ('a', now() at time zone 'UTC')");
+        createEventSegment("recent_visitors");
+
+        execute("INSERT INTO %s.pageview VALUES ('b', now() at time zone 'UTC')");
+        segments.refresh(PROJECT, "recent_visitors");
+        assertEquals(getMembers("recent_visitors"), ImmutableSet.of("a"));
+    }
+
+    @Test
+    public void testFullRefresh()
+            throws Exception
+    {
+        segments.create(PROJECT, "Paid users", "paid", "select id from _users where plan = 'paid'", null, Duration.ofHours(1));
+        assertEquals(getMembers("paid"), ImmutableSet.of("a", "b"));
+
+        // the users that no longer match are removed
+        execute("UPDATE %s._users SET plan = 'free' WHERE id = 'a'");
+        expire("paid", "last_update");
+        segments.refresh(PROJECT, "paid");
+        assertEquals(getMembers("paid"), ImmutableSet.of("b"));
+
+        execute("UPDATE %s._users SET plan = 'paid' WHERE id = 'a'");
+    }
+
+    private void createEventSegment(String tableName)
+    {
+        segments.create(PROJECT, tableName, tableName, "select id from _users where id in (select \"_user\" from pageview)",
+                "select \"_user\" as id from pageview", Duration.ofHours(1));
+    }
+
+    private void expire(String tableName, String column)
+            throws SQLException
+    {
+        execute(format("UPDATE %%s._segments SET %s = %s - interval '2 days' WHERE table_name = '%s'", column, column, tableName));
+    }
+
+    private Set<String> getMembers(String tableName)
+            throws SQLException
+    {
+        try (Connection conn = dataSource.getConnection()) {
+            ResultSet resultSet = conn.createStatement().executeQuery(format("SELECT id FROM %s.\"$segment_%s\"", PROJECT, tableName));
+            Set<String> members = new HashSet<>();
+            while (resultSet.next()) {
+                members.add(resultSet.getString(1));
+            }
+            return members;
+        }
+    }
+
+    private void execute(String... queries)
+            throws SQLException
+    {
+        try (Connection conn = dataSource.getConnection()) {
+            Statement statement = conn.createStatement();
+            for (String query : queries) {
+                statement.execute(format(query, PROJECT));
+            }
+        }
+    }
+
+    private static Query parse(String query)
+    {
+        return (Query) SQL_PARSER.createStatement(query);
+    }
+}
@@ -0,0 +1,49 @@
+package org.rakam.postgresql.plugin.user;
+
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import static org.rakam.plugin.user.UserStorage.Ordering.asc;
+import static org.rakam.plugin.user.UserStorage.Ordering.desc;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestUserSearchCursor
+{
+    @Test
+    public void testRoundTrip()
+    {
+        String offset = new UserSearchCursor("it's", 10L).encode();
+        assertEquals(UserSearchCursor.decode(offset).getPredicate("\"id\"", "\"name\"", asc),
+                "(\"name\" > 'it''s' OR (\"name\" = 'it''s' AND \"id\" > 10) OR \"name\" IS NULL)");
+    }
+
+    @Test
+    public void testNullSortValue()
+    {
+        String offset = new UserSearchCursor(null, "user").encode();
+        assertEquals(UserSearchCursor.decode(offset).getPredicate("\"id\"", "\"name\"", desc),
+                "(\"name\" IS NULL AND \"id\" < 'user')");
+    }
+
+    @Test
+    public void testWithoutSorting()
+    {
+        String offset = new UserSearchCursor(null, 5).encode();
+        assertEquals(UserSearchCursor.decode(offset).getPredicate("\"id\"", null, asc), "\"id\" > 5");
+        assertEquals(UserSearchCursor.getOrderBy("\"id\"", null, asc), "\"id\" ASC");
+    }
+
+    @Test
+    public void testEmptyOffset()
+    {
+        assertNull(UserSearchCursor.decode(null));
+        assertNull(UserSearchCursor.decode(""));
+    }
+
+    @Test(expectedExceptions = RakamException.class)
+    public void testInvalidOffset()
+    {
+        UserSearchCursor.decode("invalid");
+    }
+}
@@ -2,7 +2,9 @@ package org.rakam.kafka.collection;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.Scopes;
 import com.google.inject.name.Names;
+import org.rakam.analysis.metadata.StatisticsRecordingEventStore;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
 import org.rakam.plugin.stream.EventStream;
@@ -20,8 +22,11 @@ public class KafkaCollectorModule extends RakamModule  {
                 .annotatedWith(Names.named("event.store.kafka"))
                 .prefixedWith("event.store.kafka")
                 .to(KafkaConfig.class);
-        binder.bind(EventStore.class).to(KafkaEventStore.class);
+        binder.bind(EventStore.class).annotatedWith(Names.named(StatisticsRecordingEventStore.DELEGATE))
+                .to(KafkaEventStore.class).in(Scopes.SINGLETON);
+        binder.bind(EventStore.class).to(StatisticsRecordingEventStore.class).in(Scopes.SINGLETON);
         binder.bind(EventStream.class).to(KafkaStream.class);
+        binder.bind(KafkaLoader.class).asEagerSingleton();
     }
 
     @Override
@@ -4,10 +4,13 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.units.DataSize;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
 
+import javax.validation.constraints.Min;
+
 import java.util.Set;
 
 import static com.google.common.collect.Iterables.transform;
@@ -22,6 +25,9 @@ public class KafkaConfig
     private DataSize kafkaBufferSize = new DataSize(64, DataSize.Unit.KILOBYTE);
     private Duration commitInterval = Duration.valueOf("5s");
     private HostAndPort zookeeperNode;
+    private String consumerGroup = "rakam-loader";
+    private boolean loaderEnabled = true;
+    private int maxBatchMessages = 500000;
 
 //    @Size(min = 1)
     public Set<HostAndPort> getNodes()
@@ -87,6 +93,39 @@ public class KafkaConfig
         return zookeeperNode;
     }
 
+    public String getConsumerGroup() {
+        return consumerGroup;
+    }
+
+    @Config("consumer-group")
+    @ConfigDescription("The consumer group of the nodes that load the topics into the cold storage, the partitions are assigned across its members")
+    public KafkaConfig setConsumerGroup(String consumerGroup) {
+        this.consumerGroup = consumerGroup;
+        return this;
+    }
+
+    public boolean getLoaderEnabled() {
+        return loaderEnabled;
+    }
+
+    @Config("loader.enabled")
+    public KafkaConfig setLoaderEnabled(boolean loaderEnabled) {
+        this.loaderEnabled = loaderEnabled;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxBatchMessages() {
+        return maxBatchMessages;
+    }
+
+    @Config("loader.max-batch-messages")
+    @ConfigDescription("The maximum number of messages that are loaded from a partition in a single batch")
+    public KafkaConfig setMaxBatchMessages(int maxBatchMessages) {
+        this.maxBatchMessages = maxBatchMessages;
+        return this;
+    }
+
     public static ImmutableSet<HostAndPort> parseNodes(String nodes)
     {
         Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
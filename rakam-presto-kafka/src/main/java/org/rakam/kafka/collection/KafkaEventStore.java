@@ -2,10 +2,8 @@ package org.rakam.kafka.collection;
 
 import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
-import io.airlift.log.Logger;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufOutputStream;
 import io.netty.buffer.Unpooled;
@@ -18,12 +16,6 @@ import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.SourceFilteredRecordWriter;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.EncoderFactory;
-import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.framework.recipes.leader.LeaderSelector;
-import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
-import org.apache.curator.framework.state.ConnectionState;
-import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
@@ -34,22 +26,14 @@ import javax.inject.Inject;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.lang.String.format;
 
 @Singleton
-public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
-    private final static Logger LOGGER = Logger.get(KafkaEventStore.class);
-    private final static String ZK_OFFSET_PATH = "/collectionOffsets";
-
+public class KafkaEventStore implements SyncEventStore {
     private final Producer<byte[], byte[]> producer;
     private final Set<String> sourceFields;
-    private ScheduledExecutorService executorService;
 
     @Inject
     public KafkaEventStore(@Named("event.store.kafka") KafkaConfig config, FieldDependencyBuilder.FieldDependency fieldDependency) {
@@ -64,19 +48,6 @@ public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
 
         ProducerConfig producerConfig = new ProducerConfig(props);
         this.producer = new Producer(producerConfig);
-
-        CuratorFramework client = CuratorFrameworkFactory.newClient(config.getZookeeperNode().toString(),
-                new ExponentialBackoffRetry(1000, 3));
-        client.start();
-
-        try {
-            if(client.checkExists().forPath(ZK_OFFSET_PATH) == null)
-                client.create().forPath(ZK_OFFSET_PATH);
-        } catch (Exception e) {
-            LOGGER.error(e, format("Couldn't create event offset path %s", ZK_OFFSET_PATH));
-        }
-
-        new LeaderSelector(client, ZK_OFFSET_PATH, this).start();
     }
 
     @Override
@@ -106,22 +77,4 @@ public class KafkaEventStore implements SyncEventStore, LeaderSelectorListener {
         events.forEach(this::store);
         return EventStore.SUCCESSFUL_BATCH;
     }
-
-    @Override
-    public void takeLeadership(CuratorFramework curatorFramework) throws Exception {
-        if(executorService == null) {
-            ThreadFactory build = new ThreadFactoryBuilder()
-                    .setNameFormat("kafka-offset-worker").build();
-            executorService = Executors.newSingleThreadScheduledExecutor(build);
-        }
-//        executorService.scheduleAtFixedRate(kafkaManager::updateOffsets, updateInterval, updateInterval, TimeUnit.SECONDS);
-    }
-
-    @Override
-    public void stateChanged(CuratorFramework curatorFramework, ConnectionState connectionState) {
-        if (!connectionState.isConnected() && executorService != null) {
-            executorService.shutdown();
-            executorService = null;
-        }
-    }
 }
@@ -0,0 +1,254 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.rakam.analysis.metadata.Metastore;
+import org.rakam.collection.SchemaField;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.report.QueryResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static org.rakam.util.ValidationUtil.checkCollection;
+import static org.rakam.util.ValidationUtil.checkProject;
+import static org.rakam.util.ValidationUtil.checkTableColumn;
+
+/**
+ * Loads the events in the Kafka topics into the cold storage in micro batches. The partitions of the topics are
+ * assigned across the nodes by the consumer group, each node copies the new messages of its partitions with a single
+ * query per collection in every interval and checkpoints the offsets in the metadata database after the query succeeds.
+ * A batch is skipped if the stored offsets are changed by another node since the last checkpoint and the checkpoint is
+ * rejected if the partition is loaded by another node in the meantime so a node that is removed from the group during
+ * a slow batch doesn't overwrite the offsets of the new owner.
+ * The delivery is at-least-once: the batch is loaded again if the node fails before the checkpoint and a node that
+ * loses the partition while the query is running may insert the messages that are also loaded by the new owner.
+ * The messages themselves are read by Presto from the hot storage connector so the consumer is paused and only used
+ * for the partition assignment.
+ */
+@Singleton
+public class KafkaLoader {
+    private final static Logger LOGGER = Logger.get(KafkaLoader.class);
+
+    private final KafkaConfig config;
+    private final KafkaOffsetStore offsetStore;
+    private final Metastore metastore;
+    private final PrestoQueryExecutor prestoExecutor;
+    private final PrestoConfig prestoConfig;
+    private final Map<TopicPartition, Long> offsets = new HashMap<>();
+    // the stored offsets of the assigned partitions, the checkpoints succeed only if they are not changed
+    private final Map<TopicPartition, Long> checkpoints = new HashMap<>();
+    private final ExecutorService executor;
+    private volatile KafkaConsumer<byte[], byte[]> consumer;
+    private volatile boolean running;
+
+    @Inject
+    public KafkaLoader(@Named("event.store.kafka") KafkaConfig config, KafkaOffsetStore offsetStore, Metastore metastore, PrestoQueryExecutor prestoExecutor, PrestoConfig prestoConfig) {
+        this.config = config;
+        this.offsetStore = offsetStore;
+        this.metastore = metastore;
+        this.prestoExecutor = prestoExecutor;
+        this.prestoConfig = prestoConfig;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("kafka-loader").build());
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!config.getLoaderEnabled()) {
+            return;
+        }
+
+        running = true;
+        executor.execute(() -> {
+            consumer = new KafkaConsumer<>(KafkaOffsetManager.consumerProperties(config, config.getConsumerGroup()));
+            try {
+                consumer.subscribe(Pattern.compile(".+_.+"), new RebalanceListener());
+                while (running) {
+                    long startTime = System.currentTimeMillis();
+                    // the messages are not fetched since the partitions are paused, the poll keeps the node in the group
+                    consumer.poll(0);
+                    try {
+                        loadBatch();
+                    } catch (Exception e) {
+                        LOGGER.error(e, "Error while loading the events from Kafka, the batch will be retried");
+                    }
+
+                    long sleep = config.getCommitInterval().toMillis() - (System.currentTimeMillis() - startTime);
+                    if (sleep > 0) {
+                        Thread.sleep(sleep);
+                    }
+                }
+            } catch (WakeupException e) {
+                // shutting down
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                consumer.close();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (consumer != null) {
+            consumer.wakeup();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loadBatch() {
+        if (offsets.isEmpty()) {
+            return;
+        }
+
+        Map<TopicPartition, Long> endOffsets = consumer.endOffsets(offsets.keySet());
+
+        Map<String, List<TopicPartition>> topics = offsets.keySet().stream()
+                .filter(partition -> endOffsets.getOrDefault(partition, 0L) > offsets.get(partition))
+                .collect(Collectors.groupingBy(TopicPartition::topic));
+
+        for (Map.Entry<String, List<TopicPartition>> topic : topics.entrySet()) {
+            Optional<String[]> projectCollection = getProjectCollection(topic.getKey());
+            if (!projectCollection.isPresent()) {
+                continue;
+            }
+            String project = projectCollection.get()[0];
+            String collection = projectCollection.get()[1];
+
+            List<SchemaField> fields = metastore.getCollection(project, collection);
+            if (fields.isEmpty()) {
+                continue;
+            }
+
+            Map<TopicPartition, Long> batchEnd = new HashMap<>();
+            StringBuilder predicate = new StringBuilder();
+            for (TopicPartition partition : topic.getValue()) {
+                long start = offsets.get(partition);
+                long end = Math.min(endOffsets.get(partition), start + config.getMaxBatchMessages());
+                batchEnd.put(partition, end);
+
+                if (predicate.length() > 0) {
+                    predicate.append(" or ");
+                }
+                predicate.append(format("(_partition_id = %d and _offset >= %d and _offset < %d)",
+                        partition.partition(), start, end));
+                LOGGER.debug("Loading %s/%d from offset %d to %d, lag is %d", partition.topic(), partition.partition(),
+                        start, end, endOffsets.get(partition) - start);
+            }
+
+            if (!isOwner(batchEnd.keySet())) {
+                LOGGER.warn("The offsets of %s.%s are changed by another node, the batch is not loaded", project, collection);
+                continue;
+            }
+
+            QueryResult result = load(project, collection, fields, predicate.toString());
+            if (result.isFailed()) {
+                LOGGER.error("Unable to load the events of %s.%s: %s", project, collection, result.getError().message);
+                continue;
+            }
+
+            Map<TopicPartition, Long> expected = new HashMap<>();
+            for (TopicPartition partition : batchEnd.keySet()) {
+                expected.put(partition, checkpoints.get(partition));
+            }
+
+            // the messages are loaded again if the node fails before the checkpoint
+            if (!offsetStore.setOffsets(expected, batchEnd)) {
+                // the node is removed from the group during the batch, the next poll will rebalance the partitions
+                LOGGER.warn("The offsets of %s.%s are changed by another node, the batch is not checkpointed", project, collection);
+                isOwner(batchEnd.keySet());
+                continue;
+            }
+
+            checkpoints.putAll(batchEnd);
+            offsets.putAll(batchEnd);
+        }
+    }
+
+    /**
+     * Compares the stored offsets of the partitions with the last checkpoints of the node and continues from the stored
+     * offsets if another node loaded the partitions in the meantime, the next poll will rebalance the partitions.
+     */
+    private boolean isOwner(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, Long> stored = offsetStore.getOffsets(partitions);
+        boolean owner = true;
+        for (TopicPartition partition : partitions) {
+            if (!stored.get(partition).equals(checkpoints.get(partition))) {
+                checkpoints.put(partition, stored.get(partition));
+                offsets.put(partition, Math.max(stored.get(partition), offsets.get(partition)));
+                owner = false;
+            }
+        }
+        return owner;
+    }
+
+    QueryResult load(String project, String collection, List<SchemaField> fields, String predicate) {
+        String columns = fields.stream().map(field -> checkTableColumn(field.getName()))
+                .collect(Collectors.joining(", "));
+
+        return prestoExecutor.executeRawStatement(format("insert into %s.%s.%s (%s) select %s from %s.%s.%s where %s",
+                prestoConfig.getColdStorageConnector(), checkProject(project), checkCollection(collection), columns,
+                columns,
+                prestoConfig.getHotStorageConnector(), checkProject(project), checkCollection(collection),
+                predicate)).getResult().join();
+    }
+
+    private Optional<String[]> getProjectCollection(String topic) {
+        // the project names may also have underscores so the longest project that matches the topic is used
+        return metastore.getProjects().stream()
+                .filter(project -> topic.startsWith(project + "_") && topic.length() > project.length() + 1)
+                .sorted((a, b) -> Integer.compare(b.length(), a.length()))
+                .findFirst()
+                .map(project -> new String[] {project, topic.substring(project.length() + 1)});
+    }
+
+    private class RebalanceListener implements ConsumerRebalanceListener {
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            // the batches are checkpointed before the next poll so there is nothing to commit
+            offsets.keySet().removeAll(partitions);
+            checkpoints.keySet().removeAll(partitions);
+        }
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            consumer.pause(partitions);
+
+            Map<TopicPartition, Long> stored = offsetStore.getOffsets(partitions);
+            Map<TopicPartition, Long> beginning = consumer.beginningOffsets(partitions);
+            for (TopicPartition partition : partitions) {
+                // the messages that are already deleted by the retention policy are skipped
+                long offset = Math.max(stored.get(partition), beginning.getOrDefault(partition, 0L));
+                offsets.put(partition, offset);
+                checkpoints.put(partition, stored.get(partition));
+            }
+            LOGGER.info("Assigned %d partitions of the Kafka topics to the loader", partitions.size());
+        }
+    }
+}
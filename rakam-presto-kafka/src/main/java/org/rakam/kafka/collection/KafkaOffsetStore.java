@@ -0,0 +1,109 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.kafka.common.TopicPartition;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.Collection;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps the offsets of the partitions that are loaded into the cold storage in the metadata database so that the
+ * node that is assigned to a partition after a rebalance continues from the last loaded offset.
+ */
+@Singleton
+public class KafkaOffsetStore {
+    private final DBI dbi;
+
+    @Inject
+    public KafkaOffsetStore(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource) {
+        this.dbi = new DBI(dataSource);
+    }
+
+    @PostConstruct
+    public void setup() {
+        try (Handle handle = dbi.open()) {
+            handle.createStatement("CREATE TABLE IF NOT EXISTS kafka_offsets (" +
+                    "  topic VARCHAR(255) NOT NULL," +
+                    "  partition_id INTEGER NOT NULL," +
+                    "  next_offset BIGINT NOT NULL," +
+                    "  PRIMARY KEY (topic, partition_id)" +
+                    "  )")
+                    .execute();
+        }
+    }
+
+    /**
+     * @return the next offsets that will be loaded, the partitions that are not loaded yet are stored with offset 0
+     */
+    public Map<TopicPartition, Long> getOffsets(Collection<TopicPartition> partitions) {
+        ImmutableMap.Builder<TopicPartition, Long> builder = ImmutableMap.builder();
+        try (Handle handle = dbi.open()) {
+            for (TopicPartition partition : partitions) {
+                Long offset = getOffset(handle, partition);
+                if (offset == null) {
+                    // the row must exist so that the checkpoints can be compared with the offset that is read
+                    try {
+                        handle.createStatement("INSERT INTO kafka_offsets (topic, partition_id, next_offset) VALUES (:topic, :partition, 0)")
+                                .bind("topic", partition.topic())
+                                .bind("partition", partition.partition())
+                                .execute();
+                    } catch (UnableToExecuteStatementException e) {
+                        // the row is inserted by another node
+                    }
+                    offset = getOffset(handle, partition);
+                    if (offset == null) {
+                        throw new IllegalStateException(format("Unable to create the offset of %s/%d", partition.topic(), partition.partition()));
+                    }
+                }
+                builder.put(partition, offset);
+            }
+        }
+        return builder.build();
+    }
+
+    private static Long getOffset(Handle handle, TopicPartition partition) {
+        return handle.createQuery("SELECT next_offset FROM kafka_offsets WHERE topic = :topic AND partition_id = :partition")
+                .bind("topic", partition.topic())
+                .bind("partition", partition.partition())
+                .map((index, r, ctx) -> r.getLong(1)).first();
+    }
+
+    /**
+     * Moves the offsets of the partitions from the offsets that are read by the node to the new ones. A node that is
+     * removed from the group while it's loading a batch may still checkpoint it after the partition is assigned to
+     * another node so the offsets are only updated if they are not changed since they were read.
+     *
+     * @param expectedOffsets the offsets that are read by {@link #getOffsets(Collection)} or set by the last checkpoint of the node
+     * @return false if the offset of one of the partitions is changed by another node, the offsets are not updated in that case
+     */
+    public boolean setOffsets(Map<TopicPartition, Long> expectedOffsets, Map<TopicPartition, Long> offsets) {
+        try (Handle handle = dbi.open()) {
+            return handle.inTransaction((transaction, status) -> {
+                for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet()) {
+                    int updated = transaction.createStatement("UPDATE kafka_offsets SET next_offset = :offset " +
+                            "WHERE topic = :topic AND partition_id = :partition AND next_offset = :expected")
+                            .bind("topic", entry.getKey().topic())
+                            .bind("partition", entry.getKey().partition())
+                            .bind("offset", entry.getValue().longValue())
+                            .bind("expected", expectedOffsets.get(entry.getKey()).longValue())
+                            .execute();
+                    if (updated == 0) {
+                        status.setRollbackOnly();
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.rakam.kafka.collection;
 
+import org.apache.kafka.common.TopicPartition;
 import org.rakam.collection.SchemaField;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.plugin.stream.CollectionStreamQuery;
@@ -38,7 +39,7 @@ public class KafkaStream implements EventStream {
 
     public class KafkaEventSupplier implements EventStreamer {
         private final StreamResponse response;
-        private Map<String, Long> lastOffsets;
+        private Map<TopicPartition, Long> lastOffsets;
         private final List<CollectionStreamQuery> collections;
         private final Set<String> collectionNames;
         private final String project;
@@ -76,7 +77,7 @@ public class KafkaStream implements EventStream {
 
         @Override
         public void sync() {
-            Map<String, Long> offsets = offsetManager.getOffset(project, collectionNames);
+            Map<TopicPartition, Long> offsets = offsetManager.getOffset(project, collectionNames);
 
             String query = collections.stream().map(e -> {
                 String select;
@@ -99,16 +100,22 @@ public class KafkaStream implements EventStream {
                         .collect(Collectors.joining(", ")) + " }'";
 
 
-                long offsetNow = offsets.get(project + "_" + e.getCollection().toLowerCase());
-                long offsetBefore = this.lastOffsets.get(project + "_" + e.getCollection().toLowerCase());
-                if (offsetBefore == offsetNow) {
+                String topic = project + "_" + e.getCollection().toLowerCase();
+                String predicate = offsets.entrySet().stream()
+                        .filter(offset -> offset.getKey().topic().equals(topic))
+                        .filter(offset -> !offset.getValue().equals(lastOffsets.get(offset.getKey())))
+                        .map(offset -> format("(_partition_id = %d and _offset >= %d and _offset < %d)",
+                                offset.getKey().partition(),
+                                lastOffsets.getOrDefault(offset.getKey(), 0L),
+                                offset.getValue()))
+                        .collect(Collectors.joining(" or "));
+                if (predicate.isEmpty()) {
                     return null;
                 }
-                return format("select %s from %s where _offset > %d and _offset <= %d %s",
+                return format("select %s from %s where (%s) %s",
                         select,
                         prestoConfig.getHotStorageConnector() + "." + project + "." + e.getCollection(),
-                        offsetBefore,
-                        offsetNow,
+                        predicate,
                         e.getFilter() == null ? "" : " AND " + e.getFilter().toString());
 
             }).filter(d -> d != null).collect(Collectors.joining(" union all "));
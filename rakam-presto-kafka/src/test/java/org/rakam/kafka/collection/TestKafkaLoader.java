@@ -0,0 +1,183 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import io.airlift.testing.postgresql.TestingPostgreSqlServer;
+import kafka.server.KafkaServerStartable;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.rakam.analysis.InMemoryMetastore;
+import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.JDBCConfig;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestKafkaLoader {
+    private static final String PROJECT = "project";
+    private static final String COLLECTION = "pageview";
+    private static final TopicPartition PARTITION = new TopicPartition(PROJECT + "_" + COLLECTION, 0);
+
+    private NIOServerCnxnFactory zookeeper;
+    private KafkaServerStartable broker;
+    private TestingPostgreSqlServer postgresql;
+    private KafkaOffsetStore offsetStore;
+    private InMemoryMetastore metastore;
+    private KafkaConfig config;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        ZooKeeperServer zooKeeperServer = new ZooKeeperServer(Files.createTempDir(), Files.createTempDir(), 2000);
+        zookeeper = new NIOServerCnxnFactory();
+        zookeeper.configure(new InetSocketAddress("127.0.0.1", 0), 100);
+        zookeeper.startup(zooKeeperServer);
+
+        int kafkaPort = getFreePort();
+        Properties properties = new Properties();
+        properties.put("broker.id", "0");
+        properties.put("zookeeper.connect", "127.0.0.1:" + zookeeper.getLocalPort());
+        properties.put("listeners", "PLAINTEXT://127.0.0.1:" + kafkaPort);
+        properties.put("log.dirs", Files.createTempDir().getAbsolutePath());
+        properties.put("num.partitions", "1");
+        properties.put("offsets.topic.replication.factor", "1");
+        broker = new KafkaServerStartable(new kafka.server.KafkaConfig(properties));
+        broker.startup();
+
+        postgresql = new TestingPostgreSqlServer("testuser", "testdb");
+        offsetStore = new KafkaOffsetStore(JDBCPoolDataSource.getOrCreateDataSource(new JDBCConfig()
+                .setUrl(postgresql.getJdbcUrl())
+                .setUsername(postgresql.getUser())));
+        offsetStore.setup();
+
+        metastore = new InMemoryMetastore(null);
+        metastore.createProject(PROJECT);
+        metastore.getOrCreateCollectionFields(PROJECT, COLLECTION, ImmutableSet.of(new SchemaField("url", STRING)));
+
+        config = new KafkaConfig()
+                .setNodes("127.0.0.1:" + kafkaPort)
+                .setCommitInterval("1s");
+
+        // the topic is created before the loaders subscribe so that it's in their first metadata
+        produce(0);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        broker.shutdown();
+        zookeeper.shutdown();
+        postgresql.close();
+    }
+
+    @Test
+    public void testAssignLoadCheckpointReassign() throws Exception {
+        produce(10);
+
+        List<String> first = new CopyOnWriteArrayList<>();
+        KafkaLoader loader = createLoader(first);
+        loader.start();
+        try {
+            waitFor(() -> getStoredOffset() == 10);
+            assertEquals(first, ImmutableList.of("(_partition_id = 0 and _offset >= 0 and _offset < 10)"));
+        } finally {
+            loader.shutdown();
+        }
+
+        produce(5);
+
+        // the partition is assigned to the other node which continues from the checkpoint
+        List<String> second = new CopyOnWriteArrayList<>();
+        KafkaLoader otherLoader = createLoader(second);
+        otherLoader.start();
+        try {
+            waitFor(() -> getStoredOffset() == 15);
+            assertEquals(second, ImmutableList.of("(_partition_id = 0 and _offset >= 10 and _offset < 15)"));
+        } finally {
+            otherLoader.shutdown();
+        }
+
+        // the first node still has the offset that it read before the partition is reassigned
+        assertFalse(offsetStore.setOffsets(ImmutableMap.of(PARTITION, 10L), ImmutableMap.of(PARTITION, 12L)));
+        assertEquals(getStoredOffset(), 15);
+    }
+
+    @Test
+    public void testCheckpointIsFenced() {
+        TopicPartition first = new TopicPartition("fenced_collection", 0);
+        TopicPartition second = new TopicPartition("fenced_collection", 1);
+
+        assertEquals(offsetStore.getOffsets(ImmutableSet.of(first, second)), ImmutableMap.of(first, 0L, second, 0L));
+        assertTrue(offsetStore.setOffsets(ImmutableMap.of(first, 0L, second, 0L), ImmutableMap.of(first, 5L, second, 7L)));
+
+        // the offset of the second partition is moved by another node so none of the offsets are updated
+        assertTrue(offsetStore.setOffsets(ImmutableMap.of(second, 7L), ImmutableMap.of(second, 9L)));
+        assertFalse(offsetStore.setOffsets(ImmutableMap.of(first, 5L, second, 7L), ImmutableMap.of(first, 6L, second, 8L)));
+        assertEquals(offsetStore.getOffsets(ImmutableSet.of(first, second)), ImmutableMap.of(first, 5L, second, 9L));
+    }
+
+    private KafkaLoader createLoader(List<String> batches) {
+        return new KafkaLoader(config, offsetStore, metastore, null, new PrestoConfig()) {
+            @Override
+            QueryResult load(String project, String collection, List<SchemaField> fields, String predicate) {
+                batches.add(predicate);
+                return QueryResult.empty();
+            }
+        };
+    }
+
+    private long getStoredOffset() {
+        return offsetStore.getOffsets(ImmutableSet.of(PARTITION)).get(PARTITION);
+    }
+
+    private void produce(int count) {
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.getNodes().iterator().next().toString());
+        properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        try (KafkaProducer<byte[], byte[]> producer = new KafkaProducer<>(properties)) {
+            if (count == 0) {
+                producer.partitionsFor(PARTITION.topic());
+            }
+            for (int i = 0; i < count; i++) {
+                producer.send(new ProducerRecord<>(PARTITION.topic(), PARTITION.partition(), null, new byte[] {(byte) i}));
+            }
+            producer.flush();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "The loader didn't checkpoint the batch");
+            Thread.sleep(100);
+        }
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
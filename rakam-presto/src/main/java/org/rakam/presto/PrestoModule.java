@@ -4,16 +4,20 @@ import com.facebook.presto.sql.tree.QualifiedName;
 import com.google.auto.service.AutoService;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
 import com.google.inject.Binder;
 import com.google.inject.BindingAnnotation;
 import com.google.inject.Key;
+import com.google.inject.Provider;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
 import com.google.inject.multibindings.Multibinder;
 import com.google.inject.multibindings.OptionalBinder;
 import com.google.inject.name.Names;
+import io.airlift.http.client.HttpClient;
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.CachingConfigManager;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EscapeIdentifier;
@@ -51,6 +55,7 @@ import org.rakam.presto.analysis.PrestoFunnelQueryExecutor;
 import org.rakam.presto.analysis.PrestoMaterializedViewService;
 import org.rakam.presto.analysis.PrestoMetastore;
 import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.presto.analysis.PrestoQueryExecution.UserAgentRequestFilter;
 import org.rakam.presto.analysis.PrestoRetentionQueryExecutor;
 import org.rakam.presto.analysis.PrestoUserService;
 import org.rakam.presto.collection.PrestoCopyEvent;
@@ -62,6 +67,7 @@ import org.rakam.report.realtime.AggregationType;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.util.ConditionalModule;
 import org.rakam.util.RakamException;
+import org.rakam.util.SharedHttpClients;
 
 import javax.inject.Inject;
 
@@ -71,7 +77,6 @@ import java.util.List;
 import java.util.Optional;
 
 import static io.airlift.configuration.ConfigBinder.configBinder;
-import static io.airlift.http.client.HttpClientBinder.httpClientBinder;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.annotation.ElementType.FIELD;
 import static java.lang.annotation.ElementType.METHOD;
@@ -98,8 +103,16 @@ public class PrestoModule extends RakamModule {
         binder.bind(MaterializedViewService.class).to(PrestoMaterializedViewService.class);
         binder.bind(String.class).annotatedWith(TimestampToEpochFunction.class).toInstance("to_unixtime");
 
+        Provider<SharedHttpClients> httpClients = binder.getProvider(SharedHttpClients.class);
+        // the coordinator doesn't serve HTTP/2 so the client is not created with the setting of the pool
+        binder.bind(HttpClient.class).annotatedWith(ForPresto.class)
+                .toProvider(() -> httpClients.get().getClient("presto", httpClients.get().createConfig().setHttp2Enabled(false),
+                        ImmutableSet.of(new UserAgentRequestFilter("rakam"))))
+                .in(Scopes.SINGLETON);
+
         if (buildConfigObject(EventStreamConfig.class).getEventStreamEnabled()) {
-            httpClientBinder(binder).bindHttpClient("streamer", ForStreamer.class);
+            binder.bind(HttpClient.class).annotatedWith(ForStreamer.class)
+                    .toProvider(() -> httpClients.get().getClient("presto-streamer")).in(Scopes.SINGLETON);
             binder.bind(EventStream.class).to(PrestoEventStream.class).in(Scopes.SINGLETON);
         }
 
@@ -120,7 +133,9 @@ public class PrestoModule extends RakamModule {
                     .annotatedWith(Names.named("report.metadata.store.jdbc"))
                     .toInstance(metadataDataSource);
 
-            binder.bind(ConfigManager.class).to(MysqlConfigManager.class);
+            binder.bind(ConfigManager.class).annotatedWith(Names.named(CachingConfigManager.DELEGATE))
+                    .to(MysqlConfigManager.class).in(Scopes.SINGLETON);
+            binder.bind(ConfigManager.class).to(CachingConfigManager.class).in(Scopes.SINGLETON);
             binder.bind(QueryMetadataStore.class).to(JDBCQueryMetadata.class)
                     .in(Scopes.SINGLETON);
         }
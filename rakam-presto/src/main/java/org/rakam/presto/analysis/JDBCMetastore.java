@@ -49,7 +49,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -182,6 +184,15 @@ public class JDBCMetastore extends AbstractMetastore {
         }
     }
 
+    @Override
+    public CompletableFuture<List<SchemaField>> getCollectionAsync(String project, String collection, Executor executor) {
+        List<SchemaField> fields = schemaCache.getIfPresent(new ProjectCollection(project, collection));
+        if (fields != null) {
+            return CompletableFuture.completedFuture(fields);
+        }
+        return super.getCollectionAsync(project, collection, executor);
+    }
+
     public static List<SchemaField> convertToSchema(ResultSet dbColumns) throws SQLException {
         List<SchemaField> schemaFields = Lists.newArrayList();
 
@@ -16,6 +16,7 @@ package org.rakam.presto.analysis;
 import com.google.common.collect.ImmutableMap;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.eventexplorer.AbstractEventExplorer;
 import org.rakam.report.realtime.AggregationType;
@@ -41,10 +42,15 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
             .put(YEAR, "date_trunc('year', %s)")
             .build();
 
-    @Inject
     public PrestoEventExplorer(QueryExecutorService executor, ContinuousQueryService continuousQueryService,
                                MaterializedViewService materializedViewService) {
-        super(executor, materializedViewService, continuousQueryService, timestampMapping);
+        this(executor, continuousQueryService, materializedViewService, null);
+    }
+
+    @Inject
+    public PrestoEventExplorer(QueryExecutorService executor, ContinuousQueryService continuousQueryService,
+                               MaterializedViewService materializedViewService, CollectionStatisticsService statistics) {
+        super(executor, materializedViewService, continuousQueryService, statistics, timestampMapping);
     }
 
     @Override
@@ -64,6 +70,10 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
                 return "count(distinct %s)";
             case APPROXIMATE_UNIQUE:
                 return "approx_distinct(%s)";
+            case APPROXIMATE_MEDIAN:
+            case APPROXIMATE_PERCENTILE_90:
+            case APPROXIMATE_PERCENTILE_99:
+                return "approx_percentile(%s, " + aggType.getQuantile() + ")";
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
@@ -10,12 +10,15 @@ import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QuerySpecification;
 import com.facebook.presto.sql.tree.SelectItem;
 import com.facebook.presto.sql.tree.SingleColumn;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.collection.SchemaField;
 import org.rakam.plugin.MaterializedView;
+import org.rakam.report.ChainQueryExecution;
+import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QueryResult;
@@ -30,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -42,10 +46,14 @@ public class PrestoMaterializedViewService
         extends MaterializedViewService
 {
     public final static String MATERIALIZED_VIEW_PREFIX = "$materialized_";
+    private final static String STAGING_SUFFIX = "$staging";
+    private final static String OLD_SUFFIX = "$old";
     public final static SqlParser sqlParser = new SqlParser();
     protected final QueryMetadataStore database;
     protected final QueryExecutor queryExecutor;
     private final PrestoMetastore metastore;
+    // the swaps that are in progress on this node, the view table doesn't exist between the renames
+    private final Map<String, QueryExecution> swaps = new ConcurrentHashMap<>();
 
     @Inject
     public PrestoMaterializedViewService(
@@ -63,7 +71,7 @@ public class PrestoMaterializedViewService
     public Map<String, List<SchemaField>> getSchemas(String project, Optional<List<String>> names)
     {
         Stream<Map.Entry<String, List<SchemaField>>> views = metastore.getTables(project,
-                tableColumn -> tableColumn.getTable().getTableName().startsWith(MATERIALIZED_VIEW_PREFIX)).entrySet().stream();
+                tableColumn -> isMaterializedView(tableColumn.getTable().getTableName())).entrySet().stream();
         if (names.isPresent()) {
             views = views.filter(e -> names.get().contains(e.getKey()));
         }
@@ -71,6 +79,12 @@ public class PrestoMaterializedViewService
         return views.collect(Collectors.toMap(e -> e.getKey().substring(MATERIALIZED_VIEW_PREFIX.length()), e -> e.getValue()));
     }
 
+    private static boolean isMaterializedView(String tableName)
+    {
+        return tableName.startsWith(MATERIALIZED_VIEW_PREFIX)
+                && !tableName.endsWith(STAGING_SUFFIX) && !tableName.endsWith(OLD_SUFFIX);
+    }
+
     @Override
     public List<SchemaField> getSchema(String project, String tableName)
     {
@@ -142,19 +156,38 @@ public class PrestoMaterializedViewService
         Map<String, String> sessionProperties = new HashMap<>();
         if (!materializedView.incremental) {
             if (!database.updateMaterializedView(project, materializedView, f)) {
+                QueryExecution swap = swaps.get(tableName);
+                if (swap != null) {
+                    // the previous version is restored if the swap fails so the queries read the view in any case
+                    return new MaterializedViewExecution(new DelegateQueryExecution(swap, result -> QueryResult.empty()), tableName);
+                }
                 return new MaterializedViewExecution(null, tableName);
             }
 
-            QueryResult join = queryExecutor.executeRawQuery(format("DELETE FROM %s", tableName)).getResult().join();
-            if (join.isFailed()) {
-                throw new RakamException("Failed to delete table: " + join.getError().toString(), INTERNAL_SERVER_ERROR);
-            }
             StringBuilder builder = new StringBuilder();
 
             new RakamSqlFormatter.Formatter(builder, name -> queryExecutor.formatTableReference(project, name, Optional.empty(), sessionProperties, "collection"), '"').process(statement, 1);
-            QueryExecution execution = queryExecutor.executeRawStatement(format("INSERT INTO %s %s", tableName, builder.toString()), sessionProperties);
+
+            // the new version is built in a staging table and swapped with the current one when it's complete
+            String stagingTable = getTableReference(project, materializedView.tableName + STAGING_SUFFIX);
+            QueryExecution recover = recoverPreviousVersion(project, materializedView.tableName);
+            QueryExecution dropStaging = queryExecutor.executeRawStatement(format("DROP TABLE IF EXISTS %s", stagingTable));
+            QueryExecution execution = new ChainQueryExecution(ImmutableList.of(recover, dropStaging), builder.toString(), results -> {
+                for (QueryResult result : results) {
+                    if (result.isFailed()) {
+                        return QueryExecution.completedQueryExecution(null, result);
+                    }
+                }
+
+                QueryExecution build = queryExecutor.executeRawStatement(format("CREATE TABLE %s AS %s", stagingTable, builder.toString()), sessionProperties);
+                return new ChainQueryExecution(ImmutableList.of(build), builder.toString(),
+                        buildResults -> buildResults.get(0).isFailed() ? build : swap(project, materializedView.tableName));
+            });
+
             execution.getResult().thenAccept(result -> f.complete(!result.isFailed() ? Instant.now() : null));
-            return new MaterializedViewExecution(execution, tableName);
+
+            // the queries don't wait for the update if there is a complete version of the view
+            return new MaterializedViewExecution(execution, tableName, materializedView.lastUpdate == null);
         }
         else {
             List<String> referencedCollections = new ArrayList<>();
@@ -208,4 +241,59 @@ public class PrestoMaterializedViewService
             return new MaterializedViewExecution(queryExecution, reference);
         }
     }
+
+    /**
+     * The swap takes two renames so a refresh that fails between them leaves the previous version in the old table.
+     * The previous version is restored if the view table doesn't exist, otherwise the old table is dropped.
+     */
+    private QueryExecution recoverPreviousVersion(String project, String tableName)
+    {
+        if (metastore.getCollection(project, MATERIALIZED_VIEW_PREFIX + tableName + OLD_SUFFIX).isEmpty()) {
+            return QueryExecution.completedQueryExecution(null, QueryResult.empty());
+        }
+
+        String oldTable = getTableReference(project, tableName + OLD_SUFFIX);
+        if (metastore.getCollection(project, MATERIALIZED_VIEW_PREFIX + tableName).isEmpty()) {
+            return queryExecutor.executeRawStatement(format("ALTER TABLE %s RENAME TO %s", oldTable, getTableReference(project, tableName)));
+        }
+
+        return queryExecutor.executeRawStatement(format("DROP TABLE %s", oldTable));
+    }
+
+    private QueryExecution swap(String project, String tableName)
+    {
+        String table = getTableReference(project, tableName);
+        String stagingTable = getTableReference(project, tableName + STAGING_SUFFIX);
+        String oldTable = getTableReference(project, tableName + OLD_SUFFIX);
+
+        QueryExecution renameCurrent = queryExecutor.executeRawStatement(format("ALTER TABLE %s RENAME TO %s", table, oldTable));
+        QueryExecution execution = new ChainQueryExecution(ImmutableList.of(renameCurrent), renameCurrent.getQuery(), results -> {
+            if (results.get(0).isFailed()) {
+                return renameCurrent;
+            }
+
+            QueryExecution renameStaging = queryExecutor.executeRawStatement(format("ALTER TABLE %s RENAME TO %s", stagingTable, table));
+            return new ChainQueryExecution(ImmutableList.of(renameStaging), renameStaging.getQuery(), stagingResults -> {
+                if (stagingResults.get(0).isFailed()) {
+                    // the previous version is restored so that the view is still readable, the next refresh
+                    // recovers it if the rename fails as well.
+                    QueryExecution restore = queryExecutor.executeRawStatement(format("ALTER TABLE %s RENAME TO %s", oldTable, table));
+                    return new ChainQueryExecution(ImmutableList.of(restore), restore.getQuery(), restoreResults -> renameStaging);
+                }
+
+                return queryExecutor.executeRawStatement(format("DROP TABLE %s", oldTable));
+            });
+        });
+
+        // the queries that read the view while it's refreshed wait for the swap
+        swaps.put(table, execution);
+        execution.getResult().whenComplete((result, ex) -> swaps.remove(table, execution));
+        return execution;
+    }
+
+    private String getTableReference(String project, String tableName)
+    {
+        return queryExecutor.formatTableReference(project, QualifiedName.of("materialized", tableName),
+                Optional.empty(), ImmutableMap.of(), "collection");
+    }
 }
@@ -27,20 +27,28 @@ import com.facebook.presto.spi.type.VarbinaryType;
 import com.facebook.presto.spi.type.VarcharType;
 import com.facebook.presto.type.ArrayType;
 import com.facebook.presto.type.MapType;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.inject.name.Named;
+import io.airlift.http.client.HttpClient;
 import io.airlift.log.Logger;
+import io.airlift.units.Duration;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.AbstractMetastore;
+import org.rakam.analysis.metadata.SchemaEvolutionCoordinator;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.presto.ForPresto;
 import org.rakam.report.QueryResult;
 import org.rakam.util.AlreadyExistsException;
 import org.rakam.util.NotExistsException;
 import org.rakam.util.RakamException;
+import org.rakam.util.lock.LockService;
+import org.rakam.util.lock.MysqlLockService;
+import org.rakam.util.lock.PostgresqlLockService;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
@@ -52,7 +60,9 @@ import org.skife.jdbi.v2.util.StringMapper;
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 
+import java.sql.Connection;
 import java.sql.JDBCType;
+import java.sql.SQLException;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -94,19 +104,28 @@ public class PrestoMetastore
 {
     private static final Logger LOGGER = Logger.get(PrestoMetastore.class);
 
+    private static final Duration SCHEMA_CHANGE_WINDOW = new Duration(100, TimeUnit.MILLISECONDS);
+    private static final Duration SCHEMA_CHANGE_TIMEOUT = new Duration(1, TimeUnit.MINUTES);
+
     private final DBI dbi;
     private final MetadataDao dao;
     private final PrestoConfig prestoConfig;
+    private final HttpClient httpClient;
     private final ClientSession defaultSession;
 
     @Inject
     public PrestoMetastore(
             @Named("presto.metastore.jdbc") JDBCPoolDataSource prestoMetastoreDataSource,
             EventBus eventBus,
-            PrestoConfig prestoConfig)
+            PrestoConfig prestoConfig,
+            @ForPresto HttpClient httpClient)
     {
         super(eventBus);
+        this.httpClient = httpClient;
         dbi = new DBI(prestoMetastoreDataSource);
+        // the collector nodes share the Raptor metadata database so the schema changes are serialized with its locks
+        setSchemaEvolutionCoordinator(new SchemaEvolutionCoordinator(createLockService(prestoMetastoreDataSource),
+                SCHEMA_CHANGE_WINDOW, SCHEMA_CHANGE_TIMEOUT));
         dbi.registerMapper(new TableColumn.Mapper(new SignatureReferenceTypeManager()));
         this.dao = onDemandDao(dbi, MetadataDao.class);
         this.prestoConfig = prestoConfig;
@@ -123,6 +142,25 @@ public class PrestoMetastore
                 false, new com.facebook.presto.jdbc.internal.airlift.units.Duration(1, TimeUnit.MINUTES));
     }
 
+    private static LockService createLockService(JDBCPoolDataSource dataSource)
+    {
+        try (Connection connection = dataSource.getConnection()) {
+            String databaseProductName = connection.getMetaData().getDatabaseProductName();
+            if (databaseProductName.equals("MySQL")) {
+                return new MysqlLockService(dataSource);
+            }
+            if (databaseProductName.equals("PostgreSQL")) {
+                return new PostgresqlLockService(dataSource);
+            }
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+
+        LOGGER.warn("The schema changes are not serialized across the nodes since the metadata database doesn't support locks");
+        return null;
+    }
+
     @PostConstruct
     @Override
     public void setup()
@@ -188,7 +226,7 @@ public class PrestoMetastore
 
             query = format("CREATE TABLE %s.\"%s\".%s (%s) %s ",
                     prestoConfig.getColdStorageConnector(), project, checkCollection(collection), queryEnd, properties);
-            QueryResult join = new PrestoQueryExecution(defaultSession, query).getResult().join();
+            QueryResult join = new PrestoQueryExecution(httpClient, defaultSession, query).getResult().join();
             if (join.isFailed()) {
                 if (join.getError().message.contains("exists") || join.getError().message.equals("Failed to perform metadata operation")) {
                     if (tryCount > 0) {
@@ -216,24 +254,26 @@ public class PrestoMetastore
             lastFields = fields.stream().collect(Collectors.toList());
         }
         else {
-            List<SchemaField> newFields = new ArrayList<>();
-
-            fields.stream()
+            List<SchemaField> newFields = fields.stream()
                     .filter(field -> schemaFields.stream().noneMatch(f -> f.getName().equals(field.getName())))
-                    .forEach(f -> {
-                        newFields.add(f);
-                        try {
-                            addColumn(tableInformation, project, collection, f.getName(), f.getType());
-                        }
-                        catch (Exception e) {
-                            if (e.getMessage().equals("Failed to perform metadata operation")) {
-                                getOrCreateCollectionFields(project, collection, ImmutableSet.of(f), 1);
-                            }
-                            else if (!e.getMessage().contains("exists")) {
-                                throw new IllegalStateException(e.getMessage());
-                            }
+                    .collect(Collectors.toList());
+
+            if (!newFields.isEmpty()) {
+                try {
+                    addColumns(tableInformation, project, collection, newFields);
+                }
+                catch (Exception e) {
+                    if (e.getMessage().equals("Failed to perform metadata operation")) {
+                        if (tryCount > 0) {
+                            return getOrCreateCollectionFields(project, collection, fields, tryCount - 1);
                         }
-                    });
+                        throw new RakamException("Failed to add new fields to collection", INTERNAL_SERVER_ERROR);
+                    }
+                    else if (!e.getMessage().contains("exists")) {
+                        throw new IllegalStateException(e.getMessage());
+                    }
+                }
+            }
 
             lastFields = getCollection(project, collection);
         }
@@ -261,29 +301,37 @@ public class PrestoMetastore
         }
     }
 
-    private void addColumn(Table table, String schema, String tableName, String columnName, FieldType fieldType)
+    private void addColumns(Table table, String schema, String tableName, List<SchemaField> fields)
     {
         List<TableColumn> existingColumns = dao.listTableColumns(schema, tableName);
         TableColumn lastColumn = existingColumns.get(existingColumns.size() - 1);
-        long columnId = lastColumn.getColumnId() + 1;
-        int ordinalPosition = existingColumns.size();
-
-        String type = TypeSignature.parseTypeSignature(toSql(fieldType)).toString().toLowerCase(ENGLISH);
+        long firstColumnId = lastColumn.getColumnId() + 1;
+        int firstOrdinalPosition = existingColumns.size();
 
+        // the columns are added in a single transaction so that the readers see the new schema at once
         daoTransaction(dbi, MetadataDao.class, dao -> {
-            dao.insertColumn(table.getTableId(), columnId, columnName, ordinalPosition, type, null, null);
-//            dao.updateTableVersion(table.getTableId(), session.getStartTime());
+            for (int i = 0; i < fields.size(); i++) {
+                SchemaField field = fields.get(i);
+                String type = TypeSignature.parseTypeSignature(toSql(field.getType())).toString().toLowerCase(ENGLISH);
+                dao.insertColumn(table.getTableId(), firstColumnId + i, field.getName(), firstOrdinalPosition + i, type, null, null);
+            }
         });
 
-        String columnType = sqlColumnType(fieldType);
-        if (columnType == null) {
+        List<String> indexColumns = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            String columnType = sqlColumnType(fields.get(i).getType());
+            if (columnType != null) {
+                indexColumns.add(format("%s %s", minColumn(firstColumnId + i), columnType));
+                indexColumns.add(format("%s %s", maxColumn(firstColumnId + i), columnType));
+            }
+        }
+
+        if (indexColumns.isEmpty()) {
             return;
         }
 
-        String sql = format("ALTER TABLE %s ADD COLUMN (%s %s, %s %s)",
-                shardIndexTable(table.getTableId()),
-                minColumn(columnId), columnType,
-                maxColumn(columnId), columnType);
+        String sql = format("ALTER TABLE %s ADD COLUMN (%s)",
+                shardIndexTable(table.getTableId()), indexColumns.stream().collect(Collectors.joining(", ")));
 
         try (Handle handle = dbi.open()) {
             handle.execute(sql);
@@ -365,7 +413,7 @@ public class PrestoMetastore
         for (String collectionName : getCollectionNames(project)) {
             String query = format("DROP TABLE %s.\"%s\".\"%s\"", prestoConfig.getColdStorageConnector(), project, collectionName);
 
-            QueryResult join = new PrestoQueryExecution(defaultSession, query).getResult().join();
+            QueryResult join = new PrestoQueryExecution(httpClient, defaultSession, query).getResult().join();
 
             if (join.isFailed()) {
                 LOGGER.error("Error while deleting table %s.%s : %s", project, collectionName, join.getError().toString());
@@ -1,27 +1,30 @@
 package org.rakam.presto.analysis;
 
-import com.facebook.presto.jdbc.internal.airlift.http.client.HttpClientConfig;
-import com.facebook.presto.jdbc.internal.airlift.http.client.HttpRequestFilter;
-import com.facebook.presto.jdbc.internal.airlift.http.client.Request;
-import com.facebook.presto.jdbc.internal.airlift.http.client.jetty.JettyHttpClient;
-import com.facebook.presto.jdbc.internal.airlift.http.client.jetty.JettyIoPool;
-import com.facebook.presto.jdbc.internal.airlift.http.client.jetty.JettyIoPoolConfig;
-import com.facebook.presto.jdbc.internal.airlift.units.Duration;
 import com.facebook.presto.jdbc.internal.client.ClientSession;
 import com.facebook.presto.jdbc.internal.client.ClientTypeSignatureParameter;
 import com.facebook.presto.jdbc.internal.client.ErrorLocation;
+import com.facebook.presto.jdbc.internal.client.PrestoHeaders;
 import com.facebook.presto.jdbc.internal.client.QueryResults;
-import com.facebook.presto.jdbc.internal.client.StatementClient;
 import com.facebook.presto.jdbc.internal.client.StatementStats;
 import com.facebook.presto.jdbc.internal.guava.collect.ImmutableSet;
 import com.facebook.presto.jdbc.internal.guava.collect.Lists;
-import com.facebook.presto.jdbc.internal.guava.net.HostAndPort;
-import com.facebook.presto.jdbc.internal.guava.net.HttpHeaders;
 import com.facebook.presto.jdbc.internal.spi.type.StandardTypes;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.common.net.MediaType;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.http.client.HttpClient;
+import io.airlift.http.client.HttpClient.HttpResponseFuture;
+import io.airlift.http.client.HttpRequestFilter;
+import io.airlift.http.client.Request;
+import io.airlift.http.client.Response;
+import io.airlift.http.client.ResponseHandler;
 import io.airlift.log.Logger;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
 import org.rakam.report.QueryError;
@@ -31,35 +34,47 @@ import org.rakam.report.QueryStats;
 import org.rakam.util.LogUtil;
 import org.rakam.util.RakamException;
 
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.ProxySelector;
-import java.net.URI;
+import java.io.IOException;
+import java.net.ConnectException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
-import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.fromRequest;
 import static com.facebook.presto.jdbc.internal.airlift.json.JsonCodec.jsonCodec;
-import static com.facebook.presto.jdbc.internal.guava.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static io.airlift.http.client.HttpUriBuilder.uriBuilderFrom;
+import static io.airlift.http.client.Request.Builder.fromRequest;
+import static io.airlift.http.client.Request.Builder.prepareDelete;
+import static io.airlift.http.client.Request.Builder.prepareGet;
+import static io.airlift.http.client.Request.Builder.preparePost;
+import static io.airlift.http.client.StaticBodyGenerator.createStaticBodyGenerator;
+import static io.airlift.http.client.StatusResponseHandler.createStatusResponseHandler;
 import static com.facebook.presto.jdbc.internal.spi.type.ParameterKind.TYPE;
-import static com.google.common.base.Throwables.propagate;
-import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.GONE;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpResponseStatus.TOO_MANY_REQUESTS;
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.ZoneOffset.UTC;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.rakam.collection.FieldType.BINARY;
 import static org.rakam.collection.FieldType.BOOLEAN;
 import static org.rakam.collection.FieldType.DATE;
@@ -76,40 +91,50 @@ public class PrestoQueryExecution
         implements QueryExecution
 {
     private final static Logger LOGGER = Logger.get(PrestoQueryExecution.class);
-    private static final JettyHttpClient HTTP_CLIENT = new JettyHttpClient(
-            new HttpClientConfig()
-                    .setConnectTimeout(new Duration(10, SECONDS))
-                    .setSocksProxy(getSystemSocksProxy()),
-            new JettyIoPool("presto-jdbc", new JettyIoPoolConfig()),
-            ImmutableSet.of(new UserAgentRequestFilter("rakam")));
-
-    private static final ThreadPoolExecutor QUERY_EXECUTOR = new ThreadPoolExecutor(0, 60,
-            300L, TimeUnit.SECONDS,
-            new SynchronousQueue<>());
-
-    private final List<List<Object>> data = Lists.newArrayList();
+
+    // the running queries don't hold a thread but they're still bounded so that a node doesn't flood the coordinator
+    private static final int MAX_RUNNING_QUERIES = 60;
+    private static final Semaphore RUNNING_QUERIES = new Semaphore(MAX_RUNNING_QUERIES);
+
+    // retries the requests that are rejected since the coordinator is busy or that failed with a transient error
+    private static final ScheduledExecutorService RETRY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("presto-query-retry").setDaemon(true).build());
+
+    private final List<List<Object>> data = Collections.synchronizedList(Lists.newArrayList());
     private static final com.facebook.presto.jdbc.internal.airlift.json.JsonCodec<QueryResults> QUERY_RESULTS_JSON_CODEC = jsonCodec(QueryResults.class);
+    private final HttpClient httpClient;
     private final String query;
-    private List<SchemaField> columns;
+    private volatile List<SchemaField> columns;
 
     private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
     public static final DateTimeFormatter PRESTO_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
     public static final DateTimeFormatter PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS z");
 
-    private StatementClient client;
+    private final ClientSession session;
     private final Instant startTime;
+    private volatile QueryResults current;
+    private volatile boolean closed;
 
-    public PrestoQueryExecution(ClientSession session, String query)
+    // the changes of the session that are sent by the coordinator, they're applied by the caller as in StatementClient
+    private final Map<String, String> setSessionProperties = new ConcurrentHashMap<>();
+    private final Set<String> resetSessionProperties = ConcurrentHashMap.newKeySet();
+    private volatile String startedTransactionId;
+    private volatile boolean clearTransactionId;
+
+    public PrestoQueryExecution(HttpClient httpClient, ClientSession session, String query)
     {
+        this.httpClient = httpClient;
         this.startTime = Instant.now();
         this.query = query;
-        try {
-            QUERY_EXECUTOR.execute(new QueryTracker(session));
-        }
-        catch (RejectedExecutionException e) {
-            // TODO: make this configurable and optional
-            throw new RakamException("There are already 60 running queries. Please calm down.", HttpResponseStatus.TOO_MANY_REQUESTS);
+        this.session = session;
+
+        if (!RUNNING_QUERIES.tryAcquire()) {
+            throw new RakamException(format("There are already %d running queries. Please calm down.", MAX_RUNNING_QUERIES), TOO_MANY_REQUESTS);
         }
+        result.whenComplete((queryResult, ex) -> RUNNING_QUERIES.release());
+
+        // the pages are fetched asynchronously so the running queries don't hold a thread
+        execute(buildQueryRequest(session, query), true, System.nanoTime());
     }
 
     public static FieldType fromPrestoType(String rawType, Iterator<String> parameter)
@@ -152,16 +177,17 @@ public class PrestoQueryExecution
     @Override
     public QueryStats currentStats()
     {
-        if (client == null) {
-            return new QueryStats(QueryStats.State.WAITING_FOR_AVAILABLE_THREAD);
+        QueryResults current = this.current;
+        if (current == null) {
+            return new QueryStats(result.isDone() ? QueryStats.State.FAILED : QueryStats.State.WAITING_FOR_AVAILABLE_THREAD);
         }
 
-        if (client.isFailed()) {
+        if (result.isDone() && result.join().isFailed()) {
             return new QueryStats(QueryStats.State.FAILED);
         }
 
-        StatementStats stats = (!client.isValid() ? client.finalResults() : client.current())
-                .getStats();
+        // the stats are updated with every page that is fetched from the coordinator
+        StatementStats stats = current.getStats();
 
         int totalSplits = stats.getTotalSplits();
         QueryStats.State state = QueryStats.State.valueOf(stats.getState().toUpperCase(Locale.ENGLISH));
@@ -189,6 +215,40 @@ public class PrestoQueryExecution
         return result;
     }
 
+    @Override
+    public QueryResult getPartialResult(int offset)
+    {
+        List<SchemaField> columns = this.columns;
+        if (columns == null) {
+            return null;
+        }
+
+        synchronized (data) {
+            return new QueryResult(columns, offset >= data.size() ? ImmutableList.of() :
+                    ImmutableList.copyOf(data.subList(offset, data.size())));
+        }
+    }
+
+    public Map<String, String> getSetSessionProperties()
+    {
+        return ImmutableMap.copyOf(setSessionProperties);
+    }
+
+    public Set<String> getResetSessionProperties()
+    {
+        return ImmutableSet.copyOf(resetSessionProperties);
+    }
+
+    public String getStartedTransactionId()
+    {
+        return startedTransactionId;
+    }
+
+    public boolean isClearTransactionId()
+    {
+        return clearTransactionId;
+    }
+
     public static boolean isServerInactive(QueryError error)
     {
         return error.message.startsWith(SERVER_NOT_ACTIVE);
@@ -202,23 +262,199 @@ public class PrestoQueryExecution
     @Override
     public void kill()
     {
-        client.close();
+        closed = true;
+
+        QueryResults current = this.current;
+        if (current != null && current.getNextUri() != null) {
+            httpClient.executeAsync(prepareDelete().setUri(current.getNextUri()).build(), createStatusResponseHandler());
+        }
+        result.complete(QueryResult.errorResult(QueryError.create("Query aborted by user")));
+    }
+
+    private void execute(Request request, boolean initial, long startNanos)
+    {
+        HttpResponseFuture<QueryResultsResponse> future;
+        try {
+            future = httpClient.executeAsync(request, QueryResultsResponseHandler.INSTANCE);
+        }
+        catch (RuntimeException e) {
+            fail(e, initial);
+            return;
+        }
+
+        future.addListener(() -> {
+            QueryResultsResponse response;
+            try {
+                response = future.get();
+            }
+            catch (InterruptedException e) {
+                fail(e, initial);
+                return;
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (closed || result.isDone()) {
+                    return;
+                }
+                // the next pages can be fetched again but the statement is only sent again if it didn't reach the coordinator
+                if ((!initial || isConnectionRefused(cause)) && !isTimedOut(startNanos)) {
+                    LOGGER.debug(cause, "Retrying the request %s", request.getUri());
+                    RETRY_EXECUTOR.schedule(() -> execute(request, initial, startNanos), 100, MILLISECONDS);
+                    return;
+                }
+                fail(cause, initial);
+                return;
+            }
+
+            try {
+                handleResponse(request, response, initial, startNanos);
+            }
+            catch (Exception e) {
+                QueryError queryError = QueryError.create(e.getMessage());
+                LogUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
+                result.complete(QueryResult.errorResult(queryError));
+            }
+        }, Runnable::run);
     }
 
-    private static HostAndPort getSystemSocksProxy()
+    private void handleResponse(Request request, QueryResultsResponse response, boolean initial, long startNanos)
     {
-        URI uri = URI.create("socket://0.0.0.0:80");
-        for (Proxy proxy : ProxySelector.getDefault().select(uri)) {
-            if (proxy.type() == Proxy.Type.SOCKS &&
-                    proxy.address() instanceof InetSocketAddress) {
-                InetSocketAddress address = (InetSocketAddress) proxy.address();
-                return HostAndPort.fromParts(address.getHostString(), address.getPort());
+        if (closed || result.isDone()) {
+            return;
+        }
+
+        if (response.statusCode == SERVICE_UNAVAILABLE.code() && !isTimedOut(startNanos)) {
+            RETRY_EXECUTOR.schedule(() -> execute(request, initial, startNanos), 100, MILLISECONDS);
+            return;
+        }
+
+        if (response.statusCode == GONE.code()) {
+            result.complete(QueryResult.errorResult(QueryError.create("Query is gone (server restarted?)")));
+            return;
+        }
+
+        if (response.value == null) {
+            String message = format("Error fetching the results of the query: %s %s", response.statusCode, response.statusMessage);
+            if (initial) {
+                message = SERVER_NOT_ACTIVE + " " + message;
             }
+            result.complete(QueryResult.errorResult(QueryError.create(message)));
+            return;
+        }
+
+        processSessionHeaders(response);
+        QueryResults results = response.value;
+        current = results;
+
+        if (results.getError() != null) {
+            com.facebook.presto.jdbc.internal.client.QueryError error = results.getError();
+            ErrorLocation errorLocation = error.getErrorLocation();
+            QueryError queryError = new QueryError(
+                    Optional.ofNullable(error.getFailureInfo().getMessage())
+                            .orElse(error.getFailureInfo().toException().toString()),
+                    error.getSqlState(),
+                    error.getErrorCode(),
+                    errorLocation != null ? errorLocation.getLineNumber() : null,
+                    errorLocation != null ? errorLocation.getColumnNumber() : null);
+            LogUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
+            result.complete(QueryResult.errorResult(queryError));
+            return;
+        }
+
+        transformAndAdd(results);
+
+        if (results.getNextUri() == null) {
+            ImmutableMap<String, Object> stats = ImmutableMap.of(
+                    QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS));
+
+            result.complete(new QueryResult(columns, data, stats));
+        }
+        else {
+            execute(prepareGet().setUri(results.getNextUri()).build(), false, System.nanoTime());
         }
-        return null;
     }
 
-    static class UserAgentRequestFilter
+    private void processSessionHeaders(QueryResultsResponse response)
+    {
+        for (String setSession : response.setSession) {
+            List<String> keyValue = SESSION_HEADER_SPLITTER.splitToList(setSession);
+            if (keyValue.size() != 2) {
+                continue;
+            }
+            setSessionProperties.put(keyValue.get(0), keyValue.get(1));
+        }
+        resetSessionProperties.addAll(response.clearSession);
+
+        if (response.startedTransactionId != null) {
+            this.startedTransactionId = response.startedTransactionId;
+        }
+        if (response.clearTransactionId) {
+            clearTransactionId = true;
+        }
+    }
+
+    private boolean isTimedOut(long startNanos)
+    {
+        return System.nanoTime() - startNanos >= session.getClientRequestTimeout().roundTo(NANOSECONDS);
+    }
+
+    private static boolean isConnectionRefused(Throwable e)
+    {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException
+                    || (cause.getMessage() != null && cause.getMessage().startsWith("Server refused connection"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fail(Throwable e, boolean initial)
+    {
+        if (initial) {
+            String message = SERVER_NOT_ACTIVE + " " + e.getMessage();
+            LOGGER.warn(e, message);
+            result.complete(QueryResult.errorResult(QueryError.create(message)));
+        }
+        else {
+            QueryError queryError = QueryError.create(e.getMessage());
+            LogUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
+            result.complete(QueryResult.errorResult(queryError));
+        }
+    }
+
+    private static Request buildQueryRequest(ClientSession session, String query)
+    {
+        Request.Builder builder = preparePost()
+                .setUri(uriBuilderFrom(session.getServer()).replacePath("/v1/statement").build())
+                .setBodyGenerator(createStaticBodyGenerator(query, UTF_8));
+
+        if (session.getUser() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_USER, session.getUser());
+        }
+        if (session.getSource() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_SOURCE, session.getSource());
+        }
+        if (session.getCatalog() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_CATALOG, session.getCatalog());
+        }
+        if (session.getSchema() != null) {
+            builder.setHeader(PrestoHeaders.PRESTO_SCHEMA, session.getSchema());
+        }
+        builder.setHeader(PrestoHeaders.PRESTO_TIME_ZONE, session.getTimeZoneId());
+        builder.setHeader(PrestoHeaders.PRESTO_LANGUAGE, session.getLocale().toLanguageTag());
+
+        for (Map.Entry<String, String> entry : session.getProperties().entrySet()) {
+            builder.addHeader(PrestoHeaders.PRESTO_SESSION, entry.getKey() + "=" + entry.getValue());
+        }
+
+        builder.setHeader(PrestoHeaders.PRESTO_TRANSACTION_ID,
+                session.getTransactionId() == null ? "NONE" : session.getTransactionId());
+
+        return builder.build();
+    }
+
+    public static class UserAgentRequestFilter
             implements HttpRequestFilter
     {
         private final String userAgent;
@@ -237,143 +473,124 @@ public class PrestoQueryExecution
         }
     }
 
-    private static final String SERVER_NOT_ACTIVE = "Database server is not active.";
-
-    private class QueryTracker
-            implements Runnable
+    private static class QueryResultsResponse
     {
-        private final ClientSession session;
-
-        public QueryTracker(ClientSession session)
+        private final int statusCode;
+        private final String statusMessage;
+        private final QueryResults value;
+        private final List<String> setSession;
+        private final List<String> clearSession;
+        private final String startedTransactionId;
+        private final boolean clearTransactionId;
+
+        private QueryResultsResponse(Response response, QueryResults value)
         {
-            this.session = session;
+            this.statusCode = response.getStatusCode();
+            this.statusMessage = response.getStatusMessage();
+            this.value = value;
+            this.setSession = ImmutableList.copyOf(response.getHeaders(PrestoHeaders.PRESTO_SET_SESSION));
+            this.clearSession = ImmutableList.copyOf(response.getHeaders(PrestoHeaders.PRESTO_CLEAR_SESSION));
+            this.startedTransactionId = response.getHeader(PrestoHeaders.PRESTO_STARTED_TRANSACTION_ID);
+            this.clearTransactionId = response.getHeader(PrestoHeaders.PRESTO_CLEAR_TRANSACTION_ID) != null;
         }
+    }
 
-        private void waitForQuery()
-        {
-            while (client.isValid()) {
-                if (Thread.currentThread().isInterrupted()) {
-                    client.close();
-                    throw propagate(new RakamException("Query executor thread was interrupted", INTERNAL_SERVER_ERROR));
-                }
-                transformAndAdd(client.current());
+    /**
+     * The requests are sent with the shared client but the results are decoded with the codec of the Presto driver
+     * since its classes are bound to the shaded Jackson annotations. The value is missing if the response is not a
+     * valid JSON document as in the JSON response handler of the driver.
+     */
+    private static class QueryResultsResponseHandler
+            implements ResponseHandler<QueryResultsResponse, RuntimeException>
+    {
+        private static final QueryResultsResponseHandler INSTANCE = new QueryResultsResponseHandler();
+        private static final MediaType JSON = MediaType.create("application", "json");
 
-                client.advance();
-            }
+        @Override
+        public QueryResultsResponse handleException(Request request, Exception exception)
+        {
+            throw Throwables.propagate(exception);
         }
 
         @Override
-        public void run()
+        public QueryResultsResponse handle(Request request, Response response)
         {
-            try {
-                client = new StatementClient(HTTP_CLIENT, QUERY_RESULTS_JSON_CODEC, session, query);
-            }
-            catch (RuntimeException e) {
-                String message = SERVER_NOT_ACTIVE + " " + e.getMessage();
-                LOGGER.warn(e, message);
-                result.complete(QueryResult.errorResult(QueryError.create(message)));
-                return;
+            String contentType = response.getHeader(HttpHeaders.CONTENT_TYPE);
+            if (contentType == null || !MediaType.parse(contentType).is(JSON)) {
+                return new QueryResultsResponse(response, null);
             }
 
             try {
-                waitForQuery();
-
-                if (client.isClosed()) {
-                    QueryError queryError = QueryError.create("Query aborted by user");
-                    result.complete(QueryResult.errorResult(queryError));
-                }
-                else if (client.isGone()) {
-                    QueryError queryError = QueryError.create("Query is gone (server restarted?)");
-                    result.complete(QueryResult.errorResult(queryError));
-                }
-                else if (client.isFailed()) {
-                    com.facebook.presto.jdbc.internal.client.QueryError error = client.finalResults().getError();
-                    ErrorLocation errorLocation = error.getErrorLocation();
-                    QueryError queryError = new QueryError(
-                            Optional.ofNullable(error.getFailureInfo().getMessage())
-                                    .orElse(error.getFailureInfo().toException().toString()),
-                            error.getSqlState(),
-                            error.getErrorCode(),
-                            errorLocation != null ? errorLocation.getLineNumber() : null,
-                            errorLocation != null ? errorLocation.getColumnNumber() : null);
-                    LogUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
-                    result.complete(QueryResult.errorResult(queryError));
-                }
-                else {
-                    transformAndAdd(client.finalResults());
-
-                    ImmutableMap<String, Object> stats = ImmutableMap.of(
-                            QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS));
-
-                    result.complete(new QueryResult(columns, data, stats));
-                }
+                String json = new String(ByteStreams.toByteArray(response.getInputStream()), UTF_8);
+                return new QueryResultsResponse(response, QUERY_RESULTS_JSON_CODEC.fromJson(json));
             }
-            catch (Exception e) {
-                QueryError queryError = QueryError.create(e.getMessage());
-                LogUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
-                result.complete(QueryResult.errorResult(queryError));
+            catch (IOException | IllegalArgumentException e) {
+                return new QueryResultsResponse(response, null);
             }
         }
+    }
 
-        private void transformAndAdd(QueryResults result)
-        {
-            if (result.getError() != null || result.getColumns() == null) {
-                return;
-            }
+    private static final String SERVER_NOT_ACTIVE = "Database server is not active.";
+    private static final Splitter SESSION_HEADER_SPLITTER = Splitter.on('=').limit(2).trimResults();
 
-            if (columns == null) {
-                columns = result.getColumns().stream()
-                        .map(c -> {
-                            List<ClientTypeSignatureParameter> arguments = c.getTypeSignature().getArguments();
-                            return new SchemaField(c.getName(), fromPrestoType(c.getTypeSignature().getRawType(),
-                                    arguments.stream()
-                                            .filter(argument -> argument.getKind() == TYPE)
-                                            .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
-                        })
-                        .collect(Collectors.toList());
-            }
+    private void transformAndAdd(QueryResults result)
+    {
+        if (result.getError() != null || result.getColumns() == null) {
+            return;
+        }
 
-            if (result.getData() == null) {
-                return;
-            }
+        if (columns == null) {
+            columns = result.getColumns().stream()
+                    .map(c -> {
+                        List<ClientTypeSignatureParameter> arguments = c.getTypeSignature().getArguments();
+                        return new SchemaField(c.getName(), fromPrestoType(c.getTypeSignature().getRawType(),
+                                arguments.stream()
+                                        .filter(argument -> argument.getKind() == TYPE)
+                                        .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
+                    })
+                    .collect(Collectors.toList());
+        }
 
-            for (List<Object> objects : result.getData()) {
-                Object[] row = new Object[columns.size()];
-
-                for (int i = 0; i < objects.size(); i++) {
-                    String type = result.getColumns().get(i).getTypeSignature().getRawType();
-                    Object value = objects.get(i);
-                    if (value != null) {
-                        if (type.equals(StandardTypes.TIMESTAMP)) {
-                            try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
-                            }
-                            catch (Exception e) {
-                                LOGGER.error(e, "Error while parsing Presto TIMESTAMP.");
-                            }
+        if (result.getData() == null) {
+            return;
+        }
+
+        for (List<Object> objects : result.getData()) {
+            Object[] row = new Object[columns.size()];
+
+            for (int i = 0; i < objects.size(); i++) {
+                String type = result.getColumns().get(i).getTypeSignature().getRawType();
+                Object value = objects.get(i);
+                if (value != null) {
+                    if (type.equals(StandardTypes.TIMESTAMP)) {
+                        try {
+                            row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
                         }
-                        else if (type.equals(StandardTypes.TIMESTAMP_WITH_TIME_ZONE)) {
-                            try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
-                            }
-                            catch (Exception e) {
-                                LOGGER.error(e, "Error while parsing Presto TIMESTAMP WITH TIMEZONE.");
-                            }
+                        catch (Exception e) {
+                            LOGGER.error(e, "Error while parsing Presto TIMESTAMP.");
                         }
-                        else if (type.equals(StandardTypes.DATE)) {
-                            row[i] = LocalDate.parse((CharSequence) value);
+                    }
+                    else if (type.equals(StandardTypes.TIMESTAMP_WITH_TIME_ZONE)) {
+                        try {
+                            row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
                         }
-                        else {
-                            row[i] = objects.get(i);
+                        catch (Exception e) {
+                            LOGGER.error(e, "Error while parsing Presto TIMESTAMP WITH TIMEZONE.");
                         }
                     }
+                    else if (type.equals(StandardTypes.DATE)) {
+                        row[i] = LocalDate.parse((CharSequence) value);
+                    }
                     else {
                         row[i] = objects.get(i);
                     }
                 }
-
-                data.add(Arrays.asList(row));
+                else {
+                    row[i] = objects.get(i);
+                }
             }
+
+            data.add(Arrays.asList(row));
         }
     }
 }
@@ -12,18 +12,29 @@ import com.facebook.presto.sql.RakamSqlFormatter;
 import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.inject.Singleton;
+import io.airlift.http.client.HttpClient;
 import org.rakam.analysis.datasource.CustomDataSourceService;
 import org.rakam.analysis.datasource.RemoteTable;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.SchemaField;
 import org.rakam.config.JDBCConfig;
+import org.rakam.plugin.SystemEvents.CollectionCreatedEvent;
+import org.rakam.plugin.SystemEvents.CollectionFieldCreatedEvent;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
 import org.rakam.postgresql.report.PostgresqlQueryExecution;
+import org.rakam.presto.ForPresto;
 import org.rakam.presto.PrestoModule.UserConfig;
 import org.rakam.analysis.datasource.CustomDataSource;
 import org.rakam.analysis.datasource.JDBCSchemaConfig;
 import org.rakam.analysis.datasource.SupportedCustomDatabase;
+import org.rakam.report.AllCollectionsFilter;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutor;
 import org.rakam.report.QuerySampling;
@@ -38,8 +49,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
@@ -61,21 +75,29 @@ public class PrestoQueryExecutor
         implements QueryExecutor
 {
     private final PrestoConfig prestoConfig;
+    private final HttpClient httpClient;
 
     private final Metastore metastore;
     private final CustomDataSourceService customDataSource;
     private final JDBCConfig userJdbcConfig;
     private ClientSession defaultSession;
     private SqlParser sqlParser = new SqlParser();
+    // the union of the collections is generated again when the schema of the project is changed
+    private final Cache<AllCollectionsKey, String> allCollectionsCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .maximumSize(10000)
+            .build();
 
     @Inject
     public PrestoQueryExecutor(
             PrestoConfig prestoConfig,
+            @ForPresto HttpClient httpClient,
             @Nullable CustomDataSourceService customDataSource,
             @Nullable @UserConfig com.google.common.base.Optional<JDBCConfig> userJdbcConfig,
             Metastore metastore)
     {
         this.prestoConfig = prestoConfig;
+        this.httpClient = httpClient;
         this.metastore = metastore;
         this.customDataSource = customDataSource;
         this.userJdbcConfig = userJdbcConfig == null ? null : userJdbcConfig.orNull();
@@ -196,7 +218,7 @@ public class PrestoQueryExecutor
 
     public PrestoQueryExecution internalExecuteRawQuery(String query, ClientSession clientSession)
     {
-        return new PrestoQueryExecution(clientSession, query);
+        return new PrestoQueryExecution(httpClient, clientSession, query);
     }
 
     @Override
@@ -205,6 +227,84 @@ public class PrestoQueryExecutor
         return executeRawQuery(sqlQuery);
     }
 
+    @Override
+    public String formatAllCollectionsReference(String project, AllCollectionsFilter filter, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
+    {
+        return getAllCollectionsReference(project, filter, sample);
+    }
+
+    @Subscribe
+    public void onCreateCollection(CollectionCreatedEvent event)
+    {
+        invalidateAllCollections(event.project);
+    }
+
+    @Subscribe
+    public void onCreateCollectionField(CollectionFieldCreatedEvent event)
+    {
+        invalidateAllCollections(event.project);
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        invalidateAllCollections(event.project);
+    }
+
+    private void invalidateAllCollections(String project)
+    {
+        allCollectionsCache.asMap().keySet().removeIf(key -> key.project.equals(project));
+    }
+
+    private String getAllCollectionsReference(String project, AllCollectionsFilter filter, Optional<QuerySampling> sample)
+    {
+        try {
+            return allCollectionsCache.get(new AllCollectionsKey(project, filter.collections, sample),
+                    () -> generateAllCollectionsReference(project, filter, sample));
+        }
+        catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * The collections are only left out by the predicates on "$collection". The statistics of the collections don't
+     * include the events that are not flushed by the other nodes yet, so the days are not used for pruning.
+     */
+    private String generateAllCollectionsReference(String project, AllCollectionsFilter filter, Optional<QuerySampling> sample)
+    {
+        List<Map.Entry<String, List<SchemaField>>> collections = metastore.getCollections(project).entrySet().stream()
+                .filter(c -> !c.getKey().startsWith("_"))
+                .collect(Collectors.toList());
+        if (collections.isEmpty()) {
+            return "(select null as \"$collection\", null as _user, null as _time limit 0) _all";
+        }
+
+        // the columns of the table don't depend on the filter so that the query is valid for any set of collections
+        String sharedColumns = collections.get(0).getValue().stream()
+                .filter(col -> collections.stream().allMatch(list -> list.getValue().contains(col)))
+                .map(f -> f.getName())
+                .collect(Collectors.joining(", "));
+
+        List<String> readCollections = collections.stream().map(Map.Entry::getKey)
+                .filter(collection -> filter.collections.map(names -> names.contains(collection)).orElse(true))
+                .collect(Collectors.toList());
+
+        if (readCollections.isEmpty()) {
+            return format("(select '%s' as \"$collection\", %s from %s limit 0) _all",
+                    collections.get(0).getKey(),
+                    sharedColumns.isEmpty() ? "1" : sharedColumns,
+                    getTableReference(project, collections.get(0).getKey(), sample));
+        }
+
+        return "(" + readCollections.stream()
+                .map(collection -> format("select '%s' as \"$collection\", %s from %s",
+                        collection,
+                        sharedColumns.isEmpty() ? "1" : sharedColumns,
+                        getTableReference(project, collection, sample)))
+                .collect(Collectors.joining(" union all ")) + ") _all";
+    }
+
     @Override
     public String formatTableReference(String project, QualifiedName node, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema)
     {
@@ -249,25 +349,7 @@ public class PrestoQueryExecutor
             }
             // special prefix for all columns
             else if (suffix.equals("_all") && prefix == null) {
-                List<Map.Entry<String, List<SchemaField>>> collections = metastore.getCollections(project).entrySet().stream()
-                        .filter(c -> !c.getKey().startsWith("_"))
-                        .collect(Collectors.toList());
-                if (!collections.isEmpty()) {
-                    String sharedColumns = collections.get(0).getValue().stream()
-                            .filter(col -> collections.stream().allMatch(list -> list.getValue().contains(col)))
-                            .map(f -> f.getName())
-                            .collect(Collectors.joining(", "));
-
-                    return "(" + collections.stream().map(Map.Entry::getKey)
-                            .map(collection -> format("select '%s' as \"$collection\", %s from %s",
-                                    collection,
-                                    sharedColumns.isEmpty() ? "1" : sharedColumns,
-                                    getTableReference(project, collection, sample)))
-                            .collect(Collectors.joining(" union all ")) + ") _all";
-                }
-                else {
-                    return "(select null as \"$collection\", null as _user, null as _time limit 0) _all";
-                }
+                return getAllCollectionsReference(project, AllCollectionsFilter.NONE, sample);
             }
             else {
                 prefix = Optional.ofNullable(prefix).orElse(defaultSchema);
@@ -334,4 +416,37 @@ public class PrestoQueryExecutor
             return prestoConfig.getColdStorageConnector() + "." + table;
         }
     }
+
+    private static class AllCollectionsKey
+    {
+        private final String project;
+        private final Optional<Set<String>> collections;
+        private final Optional<String> sample;
+
+        public AllCollectionsKey(String project, Optional<Set<String>> collections, Optional<QuerySampling> sample)
+        {
+            this.project = project;
+            this.collections = collections;
+            this.sample = sample.map(value -> value.method + ":" + value.percentage);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof AllCollectionsKey)) {
+                return false;
+            }
+            AllCollectionsKey that = (AllCollectionsKey) o;
+            return project.equals(that.project) && collections.equals(that.collections) && sample.equals(that.sample);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, collections, sample);
+        }
+    }
 }
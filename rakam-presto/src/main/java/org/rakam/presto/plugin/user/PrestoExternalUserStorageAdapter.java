@@ -56,7 +56,7 @@ public class PrestoExternalUserStorageAdapter extends AbstractPostgresqlUserStor
                                             UserPluginConfig config,
                                             PostgresqlQueryExecutor queryExecutor,
                                             Metastore metastore) {
-        super(executorService, queryExecutor, configManager);
+        super(executorService, queryExecutor, configManager, config);
         this.executor = executor;
         this.executorService = executorService;
         this.config = config;
@@ -24,12 +24,12 @@ public class TestPrestoContinuousQueryService  {
     public void setUp() throws Exception {
         testEnvironment = new TestingEnvironment();
 
-        metastore = new PrestoMetastore(testEnvironment.getPrestoMetastore(), new EventBus(), testEnvironment.getPrestoConfig());
+        metastore = new PrestoMetastore(testEnvironment.getPrestoMetastore(), new EventBus(), testEnvironment.getPrestoConfig(), testEnvironment.getPrestoHttpClient());
         metastore.setup();
 
         InMemoryQueryMetadataStore queryMetadataStore = new InMemoryQueryMetadataStore();
 
-        PrestoQueryExecutor prestoQueryExecutor = new PrestoQueryExecutor(testEnvironment.getPrestoConfig(), null, null, metastore);
+        PrestoQueryExecutor prestoQueryExecutor = new PrestoQueryExecutor(testEnvironment.getPrestoConfig(), testEnvironment.getPrestoHttpClient(), null, null, metastore);
 
         continuousQueryService = new PrestoContinuousQueryService(queryMetadataStore, new RealTimeConfig(),
                 prestoQueryExecutor, testEnvironment.getPrestoConfig());
@@ -40,10 +40,10 @@ public class TestPrestoFunnelQueryExecutor extends TestFunnelQueryExecutor {
 
         EventBus eventBus = new EventBus();
 
-        metastore = new PrestoMetastore(testingEnvironment.getPrestoMetastore(), eventBus, prestoConfig);
+        metastore = new PrestoMetastore(testingEnvironment.getPrestoMetastore(), eventBus, prestoConfig, testingEnvironment.getPrestoHttpClient());
         metastore.setup();
 
-        PrestoQueryExecutor prestoQueryExecutor = new PrestoQueryExecutor(prestoConfig, null, null, metastore);
+        PrestoQueryExecutor prestoQueryExecutor = new PrestoQueryExecutor(prestoConfig, testingEnvironment.getPrestoHttpClient(), null, null, metastore);
 
         PrestoContinuousQueryService continuousQueryService = new PrestoContinuousQueryService(inMemoryQueryMetadataStore, new RealTimeConfig(),
                 prestoQueryExecutor, prestoConfig);
@@ -36,10 +36,10 @@ public class TestPrestoRetentionQueryExecutor extends TestRetentionQueryExecutor
         PrestoConfig prestoConfig = testingEnvironment.getPrestoConfig();
         InMemoryQueryMetadataStore queryMetadataStore = new InMemoryQueryMetadataStore();
 
-        metastore = new PrestoMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), prestoConfig);
+        metastore = new PrestoMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), prestoConfig, testingEnvironment.getPrestoHttpClient());
         metastore.setup();
 
-        PrestoQueryExecutor queryExecutor = new PrestoQueryExecutor(prestoConfig, null, null, metastore);
+        PrestoQueryExecutor queryExecutor = new PrestoQueryExecutor(prestoConfig, testingEnvironment.getPrestoHttpClient(), null, null, metastore);
         PrestoMaterializedViewService materializedViewService = new PrestoMaterializedViewService(
                 queryExecutor, metastore, queryMetadataStore);
         PrestoContinuousQueryService continuousQueryService = new PrestoContinuousQueryService(queryMetadataStore, new RealTimeConfig(), queryExecutor, prestoConfig);
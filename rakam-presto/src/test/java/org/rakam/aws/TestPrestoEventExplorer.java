@@ -51,10 +51,10 @@ public class TestPrestoEventExplorer
         metastoreDataSource = JDBCPoolDataSource.getOrCreateDataSource(postgresqlConfig);
         queryMetadataStore = new InMemoryQueryMetadataStore();
 
-        metastore = new PrestoMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), prestoConfig);
+        metastore = new PrestoMetastore(testingEnvironment.getPrestoMetastore(), new EventBus(), prestoConfig, testingEnvironment.getPrestoHttpClient());
         metastore.setup();
 
-        prestoQueryExecutor = new PrestoQueryExecutor(prestoConfig, null, null, metastore);
+        prestoQueryExecutor = new PrestoQueryExecutor(prestoConfig, testingEnvironment.getPrestoHttpClient(), null, null, metastore);
 
         continuousQueryService = new PrestoContinuousQueryService(queryMetadataStore, new RealTimeConfig(),
                 prestoQueryExecutor, prestoConfig);
@@ -16,6 +16,7 @@ import com.google.inject.Binder;
 import com.google.inject.Module;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import io.airlift.http.client.HttpClient;
 import io.airlift.testing.postgresql.TestingPostgreSqlServer;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.gaul.s3proxy.AuthenticationType;
@@ -28,8 +29,10 @@ import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.aws.AWSConfig;
+import org.rakam.config.HttpClientPoolConfig;
 import org.rakam.config.JDBCConfig;
 import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.util.SharedHttpClients;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.IDBI;
 
@@ -58,6 +61,7 @@ public class TestingEnvironment
     private static JDBCConfig postgresqlConfig;
     private static int kinesisPort;
     private static JDBCPoolDataSource metastore;
+    private static final SharedHttpClients httpClients = new SharedHttpClients(new HttpClientPoolConfig());
     private static Process kinesisProcess;
     private final S3ProxyLaunchInfo s3ProxyLaunchInfo;
     DynamoDBProxyServer dynamoDBServer;
@@ -215,6 +219,11 @@ public class TestingEnvironment
         return prestoConfig;
     }
 
+    public HttpClient getPrestoHttpClient()
+    {
+        return httpClients.getClient("presto");
+    }
+
     public void close()
             throws Exception
     {
@@ -6,12 +6,25 @@ import com.google.auto.value.AutoValue;
 
 import javax.annotation.Nullable;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public interface ApiKeyService
 {
     ProjectApiKeys createApiKeys(String project);
 
     String getProjectOfApiKey(String apiKey, AccessKeyType type);
 
+    /**
+     * Non-blocking variant of {@link #getProjectOfApiKey(String, AccessKeyType)} for the callers that run in event loop threads.
+     * The lookup is performed in the given executor, implementations that cache the keys should return a completed future
+     * when the result (or the fact that the key is invalid) is in memory.
+     */
+    default CompletableFuture<String> getProjectOfApiKeyAsync(String apiKey, AccessKeyType type, Executor executor)
+    {
+        return CompletableFuture.supplyAsync(() -> getProjectOfApiKey(apiKey, type), executor);
+    }
+
     void revokeApiKeys(String project, String masterKey);
 
     void revokeAllKeys(String project);
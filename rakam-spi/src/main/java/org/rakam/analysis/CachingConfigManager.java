@@ -0,0 +1,232 @@
+package org.rakam.analysis;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.Subscribe;
+import com.google.inject.name.Named;
+import org.rakam.config.ConfigManagerCacheConfig;
+import org.rakam.plugin.SystemEvents.ConfigChangedEvent;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+
+import javax.inject.Inject;
+import javax.validation.constraints.NotNull;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Serves the config values from memory. The values are written through the cache so the local changes are
+ * visible immediately, the changes made by the other nodes are picked up when the entry expires or when
+ * the config store publishes a {@link ConfigChangedEvent}. Missing configs are cached with a shorter ttl
+ * since they're usually set right after they're read.
+ */
+public class CachingConfigManager
+        implements ConfigManager
+{
+    public static final String DELEGATE = "config-manager.delegate";
+
+    private final ConfigManager delegate;
+    private final Cache<ConfigKey, CachedValue> cache;
+    private final long ttl;
+    private final long negativeTtl;
+
+    @Inject
+    public CachingConfigManager(@Named(DELEGATE) ConfigManager delegate, ConfigManagerCacheConfig config)
+    {
+        this.delegate = delegate;
+        this.ttl = config.getTtl().toMillis();
+        this.negativeTtl = Math.min(config.getNegativeTtl().toMillis(), ttl);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(Math.max(ttl, 1), MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public <T> T getConfig(String project, String configName, Class<T> clazz)
+    {
+        if (ttl == 0) {
+            return delegate.getConfig(project, configName, clazz);
+        }
+
+        ConfigKey key = new ConfigKey(project, configName);
+        CachedValue cached = cache.getIfPresent(key);
+        if (isFresh(cached, clazz)) {
+            return clazz.cast(cached.value);
+        }
+        if (cached != null) {
+            // only the stale entry is removed, the value that is loaded by a concurrent lookup is kept
+            cache.asMap().remove(key, cached);
+        }
+
+        try {
+            // loads through the cache so that the concurrent lookups of the same key wait for a single read
+            return clazz.cast(cache.get(key, () -> cache(delegate.getConfig(project, configName, clazz))).value);
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getConfigAsync(String project, String configName, Class<T> clazz, Executor executor)
+    {
+        if (ttl == 0) {
+            return delegate.getConfigAsync(project, configName, clazz, executor);
+        }
+
+        ConfigKey key = new ConfigKey(project, configName);
+        CachedValue cached = getIfFresh(key, clazz);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(clazz.cast(cached.value));
+        }
+
+        return delegate.getConfigAsync(project, configName, clazz, executor)
+                .thenApply(value -> {
+                    cache.put(key, cache(value));
+                    return value;
+                });
+    }
+
+    @Override
+    public <T> void setConfig(String project, String configName, @NotNull T value)
+    {
+        delegate.setConfig(project, configName, value);
+        if (ttl > 0) {
+            cache.put(new ConfigKey(project, configName), cache(value));
+        }
+    }
+
+    @Override
+    public <T> T setConfigOnce(String project, String configName, @NotNull T value)
+    {
+        CachedValue cached = ttl == 0 ? null : getIfFresh(new ConfigKey(project, configName), value.getClass());
+        if (cached != null && cached.value != null) {
+            return (T) cached.value;
+        }
+
+        T actualValue = delegate.setConfigOnce(project, configName, value);
+        if (ttl > 0) {
+            cache.put(new ConfigKey(project, configName), cache(actualValue));
+        }
+        return actualValue;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> setConfigOnceAsync(String project, String configName, @NotNull T value, Executor executor)
+    {
+        CachedValue cached = ttl == 0 ? null : getIfFresh(new ConfigKey(project, configName), value.getClass());
+        if (cached != null && cached.value != null) {
+            return CompletableFuture.completedFuture((T) cached.value);
+        }
+
+        return delegate.setConfigOnceAsync(project, configName, value, executor)
+                .thenApply(actualValue -> {
+                    if (ttl > 0) {
+                        cache.put(new ConfigKey(project, configName), cache(actualValue));
+                    }
+                    return actualValue;
+                });
+    }
+
+    @Override
+    public void clear()
+    {
+        delegate.clear();
+        cache.invalidateAll();
+    }
+
+    @Subscribe
+    public void onConfigChanged(ConfigChangedEvent event)
+    {
+        if (event.project == null) {
+            cache.invalidateAll();
+        }
+        else if (event.configName == null) {
+            invalidateProject(event.project);
+        }
+        else {
+            cache.invalidate(new ConfigKey(event.project, event.configName));
+        }
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        invalidateProject(event.project);
+    }
+
+    private void invalidateProject(String project)
+    {
+        cache.asMap().keySet().removeIf(key -> key.project.equals(project));
+    }
+
+    private CachedValue getIfFresh(ConfigKey key, Class<?> clazz)
+    {
+        CachedValue cached = cache.getIfPresent(key);
+        return isFresh(cached, clazz) ? cached : null;
+    }
+
+    private static boolean isFresh(CachedValue cached, Class<?> clazz)
+    {
+        if (cached == null || cached.expiresAt < System.currentTimeMillis()) {
+            return false;
+        }
+        // the same config is always read with the same type, a different type is read from the store
+        return cached.value == null || clazz.isInstance(cached.value);
+    }
+
+    private CachedValue cache(Object value)
+    {
+        return new CachedValue(value, System.currentTimeMillis() + (value == null ? negativeTtl : ttl));
+    }
+
+    private static class CachedValue
+    {
+        private final Object value;
+        private final long expiresAt;
+
+        private CachedValue(Object value, long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class ConfigKey
+    {
+        private final String project;
+        private final String configName;
+
+        private ConfigKey(String project, String configName)
+        {
+            this.project = project;
+            this.configName = configName;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ConfigKey)) {
+                return false;
+            }
+
+            ConfigKey configKey = (ConfigKey) o;
+            return project.equals(configKey.project) && configName.equals(configKey.configName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, configName);
+        }
+    }
+}
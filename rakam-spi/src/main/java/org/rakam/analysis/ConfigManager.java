@@ -4,6 +4,9 @@ import com.google.common.annotations.VisibleForTesting;
 
 import javax.validation.constraints.NotNull;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public interface ConfigManager {
     default void setup() {}
 
@@ -13,6 +16,14 @@ public interface ConfigManager {
 
     <T> T setConfigOnce(String project, String configName, @NotNull T clazz);
 
+    default <T> CompletableFuture<T> getConfigAsync(String project, String configName, Class<T> clazz, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getConfig(project, configName, clazz), executor);
+    }
+
+    default <T> CompletableFuture<T> setConfigOnceAsync(String project, String configName, @NotNull T value, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> setConfigOnce(project, configName, value), executor);
+    }
+
     @VisibleForTesting
     void clear();
 }
@@ -40,8 +40,26 @@ public interface EventExplorer
 
     QueryExecution analyze(String project, List<String> collections, Measure measureType, Reference grouping, Reference segment, String filterExpression, Instant startDate, Instant endDate);
 
+    /**
+     * Runs the query with the given accuracy, the implementations that can't answer the queries approximately
+     * run the exact query.
+     */
+    default QueryExecution analyze(String project, List<String> collections, Measure measureType, Reference grouping, Reference segment, String filterExpression, Instant startDate, Instant endDate, Accuracy accuracy)
+    {
+        return analyze(project, collections, measureType, grouping, segment, filterExpression, startDate, endDate);
+    }
+
     CompletableFuture<QueryResult> getEventStatistics(String project, Optional<Set<String>> collections, Optional<String> dimension, Instant startDate, Instant endDate);
 
+    /**
+     * Counts the events with the given accuracy, the implementations that can't answer the counts from the statistics
+     * scan the events.
+     */
+    default CompletableFuture<QueryResult> getEventStatistics(String project, Optional<Set<String>> collections, Optional<String> dimension, Instant startDate, Instant endDate, Accuracy accuracy)
+    {
+        return getEventStatistics(project, collections, dimension, startDate, endDate);
+    }
+
     Map<String, List<String>> getExtraDimensions(String project);
 
     default String getIntermediateForApproximateUniqueFunction()
@@ -140,6 +158,37 @@ public interface EventExplorer
         }
     }
 
+    enum Accuracy
+    {
+        /**
+         * Always scans the events, the default since the statistics may not include the recent events of the other nodes.
+         */
+        EXACT,
+        /**
+         * Answers the queries from the sketches of the collection statistics when the result is the same as
+         * the query on the events apart from the approximate aggregations.
+         */
+        APPROXIMATE,
+        /**
+         * Also rounds the date range to whole days, estimates the exact unique counts of
+         * the users and answers the sums, averages and the bounds of the numeric fields from the sketches so the
+         * queries on long date ranges don't scan the events.
+         */
+        FAST;
+
+        @JsonCreator
+        public static Accuracy get(String name)
+        {
+            return valueOf(name.toUpperCase());
+        }
+
+        @JsonProperty
+        public String value()
+        {
+            return name();
+        }
+    }
+
     enum ReferenceType
     {
         COLUMN, REFERENCE;
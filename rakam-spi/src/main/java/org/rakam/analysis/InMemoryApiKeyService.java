@@ -7,7 +7,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 public class InMemoryApiKeyService implements ApiKeyService {
     private final Map<String, List<ProjectApiKeys>> apiKeys = new ConcurrentHashMap<>();
@@ -34,6 +36,18 @@ public class InMemoryApiKeyService implements ApiKeyService {
         return project.get();
     }
 
+    @Override
+    public CompletableFuture<String> getProjectOfApiKeyAsync(String apiKey, AccessKeyType type, Executor executor) {
+        // the keys are in memory so the lookup doesn't need to be suspended
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            future.complete(getProjectOfApiKey(apiKey, type));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     @Override
     public void revokeApiKeys(String project, String masterKey) {
         apiKeys.getOrDefault(project, ImmutableList.of())
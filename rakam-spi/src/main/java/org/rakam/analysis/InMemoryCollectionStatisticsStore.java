@@ -0,0 +1,91 @@
+package org.rakam.analysis;
+
+import org.rakam.analysis.metadata.CollectionStatistics;
+import org.rakam.analysis.metadata.CollectionStatisticsStore;
+import org.rakam.util.ProjectCollection;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the statistics of the events that are collected by this node, they're lost when the node is restarted.
+ */
+public class InMemoryCollectionStatisticsStore
+        implements CollectionStatisticsStore
+{
+    private final Map<CollectionDay, CollectionStatistics> statistics = new ConcurrentHashMap<>();
+    private final Map<ProjectCollection, LocalDate> completeSince = new ConcurrentHashMap<>();
+
+    @Override
+    public void merge(Map<CollectionDay, CollectionStatistics> statistics, LocalDate completeSince)
+    {
+        statistics.forEach((key, value) -> {
+            this.completeSince.putIfAbsent(new ProjectCollection(key.project, key.collection), completeSince);
+            this.statistics.merge(key, value.copy(), (current, other) -> {
+                current.merge(other);
+                return current;
+            });
+        });
+    }
+
+    @Override
+    public Map<LocalDate, CollectionStatistics> getStatistics(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, CollectionStatistics> days = new HashMap<>();
+        for (LocalDate day = startDate; !day.isAfter(endDate); day = day.plusDays(1)) {
+            CollectionStatistics value = statistics.get(new CollectionDay(project, collection, day));
+            if (value != null) {
+                days.put(day, value.copy());
+            }
+        }
+        return days;
+    }
+
+    @Override
+    public Map<LocalDate, Long> getRowCounts(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, Long> days = new HashMap<>();
+        for (LocalDate day = startDate; !day.isAfter(endDate); day = day.plusDays(1)) {
+            CollectionStatistics value = statistics.get(new CollectionDay(project, collection, day));
+            if (value != null) {
+                days.put(day, value.getRowCount());
+            }
+        }
+        return days;
+    }
+
+    @Override
+    public Optional<LocalDate> getCompleteSince(String project, String collection)
+    {
+        return Optional.ofNullable(completeSince.get(new ProjectCollection(project, collection)));
+    }
+
+    @Override
+    public void setCompleteSince(String project, String collection, LocalDate day)
+    {
+        completeSince.put(new ProjectCollection(project, collection), day);
+    }
+
+    @Override
+    public void deleteDays(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        statistics.keySet().removeIf(key -> key.project.equals(project) && key.collection.equals(collection)
+                && !key.day.isBefore(startDate) && !key.day.isAfter(endDate));
+    }
+
+    @Override
+    public void deleteProject(String project)
+    {
+        statistics.keySet().removeIf(key -> key.project.equals(project));
+        completeSince.keySet().removeIf(key -> key.project.equals(project));
+    }
+
+    @Override
+    public boolean isShared()
+    {
+        return false;
+    }
+}
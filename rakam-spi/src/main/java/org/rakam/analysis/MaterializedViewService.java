@@ -70,10 +70,17 @@ public abstract class MaterializedViewService {
     public static class MaterializedViewExecution {
         public final QueryExecution queryExecution;
         public final String computeQuery;
+        // if it's false, the queries read the previous version of the view while it's being updated
+        public final boolean waitForUpdate;
 
         public MaterializedViewExecution(QueryExecution queryExecution, String computeQuery) {
+            this(queryExecution, computeQuery, true);
+        }
+
+        public MaterializedViewExecution(QueryExecution queryExecution, String computeQuery, boolean waitForUpdate) {
             this.queryExecution = queryExecution;
             this.computeQuery = computeQuery;
+            this.waitForUpdate = waitForUpdate;
         }
     }
 
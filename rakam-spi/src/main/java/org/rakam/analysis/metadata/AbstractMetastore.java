@@ -16,6 +16,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
@@ -25,6 +27,7 @@ public abstract class AbstractMetastore
         implements Metastore
 {
     private final EventBus eventBus;
+    private SchemaEvolutionCoordinator schemaEvolutionCoordinator;
 
     public AbstractMetastore(EventBus eventBus)
     {
@@ -56,7 +59,43 @@ public abstract class AbstractMetastore
             throws NotExistsException
     {
         ValidationUtil.checkCollectionValid(collection);
-        return getOrCreateCollectionFields(project, collection, fieldList);
+        if (schemaEvolutionCoordinator == null) {
+            return getOrCreateCollectionFields(project, collection, fieldList);
+        }
+
+        List<SchemaField> currentFields = getCollection(project, collection);
+        Set<String> names = currentFields.stream().map(SchemaField::getName).collect(Collectors.toSet());
+        if (fieldList.stream().allMatch(field -> names.contains(field.getName()))) {
+            return currentFields;
+        }
+
+        return schemaEvolutionCoordinator.apply(project, collection, fieldList, this::getOrCreateCollectionFields);
+    }
+
+    @Override
+    public CompletableFuture<List<SchemaField>> getOrCreateCollectionFieldListAsync(String project, String collection, Set<SchemaField> fieldList, Executor executor)
+    {
+        if (schemaEvolutionCoordinator == null) {
+            return Metastore.super.getOrCreateCollectionFieldListAsync(project, collection, fieldList, executor);
+        }
+
+        ValidationUtil.checkCollectionValid(collection);
+        return getCollectionAsync(project, collection, executor).thenCompose(currentFields -> {
+            Set<String> names = currentFields.stream().map(SchemaField::getName).collect(Collectors.toSet());
+            if (fieldList.stream().allMatch(field -> names.contains(field.getName()))) {
+                return CompletableFuture.completedFuture(currentFields);
+            }
+
+            return schemaEvolutionCoordinator.applyAsync(project, collection, fieldList, this::getOrCreateCollectionFields);
+        });
+    }
+
+    /**
+     * Batches the schema changes of the collections with the given coordinator instead of applying them on each call.
+     */
+    protected void setSchemaEvolutionCoordinator(SchemaEvolutionCoordinator schemaEvolutionCoordinator)
+    {
+        this.schemaEvolutionCoordinator = schemaEvolutionCoordinator;
     }
 
     public abstract List<SchemaField> getOrCreateCollectionFields(String project, String collection, Set<SchemaField> fields);
@@ -0,0 +1,284 @@
+package org.rakam.analysis.metadata;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.CollectionStatisticsConfig;
+import org.rakam.util.HyperLogLog;
+import org.rakam.util.TDigest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Statistics of the events of a collection in a day. The distinct values are estimated for the string and
+ * boolean fields, the fields that have too many distinct values are kept without a sketch so that they're
+ * not tracked again. The distributions of the numeric fields are kept in t-digests, a field that has values
+ * that are not in its digest is kept without a digest so that it's not answered from the statistics.
+ */
+public class CollectionStatistics
+{
+    // the cardinality of the dimensions is checked periodically since it's not cheap to estimate
+    private static final int CARDINALITY_CHECK_INTERVAL = 1024;
+
+    private long rowCount;
+    private long minTime;
+    private long maxTime;
+    private final HyperLogLog users;
+    private final Map<String, Long> nullCounts;
+    private final Map<String, HyperLogLog> dimensions;
+    private final Map<String, TDigest> distributions;
+
+    public CollectionStatistics()
+    {
+        this(0, Long.MAX_VALUE, Long.MIN_VALUE, new HyperLogLog(), new HashMap<>(), new HashMap<>(), new HashMap<>());
+    }
+
+    @JsonCreator
+    public CollectionStatistics(
+            @JsonProperty("rowCount") long rowCount,
+            @JsonProperty("minTime") long minTime,
+            @JsonProperty("maxTime") long maxTime,
+            @JsonProperty("users") HyperLogLog users,
+            @JsonProperty("nullCounts") Map<String, Long> nullCounts,
+            @JsonProperty("dimensions") Map<String, HyperLogLog> dimensions,
+            @JsonProperty("distributions") Map<String, TDigest> distributions)
+    {
+        this.rowCount = rowCount;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        this.users = users;
+        this.nullCounts = nullCounts;
+        this.dimensions = dimensions;
+        // the statistics that are stored before the distributions are kept don't have them
+        this.distributions = distributions == null ? new HashMap<>() : distributions;
+    }
+
+    public synchronized void add(long time, Object user, List<SchemaField> fields, Function<String, Object> values, CollectionStatisticsConfig config)
+    {
+        rowCount++;
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+
+        if (user instanceof Number) {
+            users.add(((Number) user).longValue());
+        }
+        else if (user != null) {
+            users.add(user.toString());
+        }
+
+        for (SchemaField field : fields) {
+            String name = field.getName();
+            if (name.equals("_time")) {
+                continue;
+            }
+
+            Object value = values.apply(name);
+            if (value == null) {
+                nullCounts.merge(name, 1L, Long::sum);
+                continue;
+            }
+
+            if (name.equals("_user")) {
+                continue;
+            }
+
+            if (field.getType().isNumeric()) {
+                addToDistribution(name, value, config.getMaxMeasures());
+                continue;
+            }
+
+            if (field.getType() != FieldType.STRING && field.getType() != FieldType.BOOLEAN) {
+                continue;
+            }
+
+            HyperLogLog sketch = dimensions.get(name);
+            if (sketch == null) {
+                if (dimensions.containsKey(name) || dimensions.size() >= config.getMaxDimensions()) {
+                    continue;
+                }
+                sketch = new HyperLogLog();
+                dimensions.put(name, sketch);
+            }
+            sketch.add(value.toString());
+        }
+
+        if (rowCount % CARDINALITY_CHECK_INTERVAL == 0) {
+            dimensions.replaceAll((name, sketch) -> sketch == null || sketch.cardinality() > config.getMaxDimensionCardinality() ? null : sketch);
+        }
+    }
+
+    private void addToDistribution(String name, Object value, int maxMeasures)
+    {
+        TDigest digest = distributions.get(name);
+        if (digest == null) {
+            if (distributions.containsKey(name)) {
+                return;
+            }
+            if (distributions.values().stream().filter(Objects::nonNull).count() >= maxMeasures) {
+                distributions.put(name, null);
+                return;
+            }
+            digest = new TDigest();
+            distributions.put(name, digest);
+        }
+
+        if (value instanceof Number && !Double.isNaN(((Number) value).doubleValue())) {
+            digest.add(((Number) value).doubleValue());
+        }
+        else {
+            distributions.put(name, null);
+        }
+    }
+
+    public void merge(CollectionStatistics other)
+    {
+        // the other statistics may be updated concurrently so a snapshot of them is merged
+        CollectionStatistics snapshot = other.copy();
+        synchronized (this) {
+            mergeSnapshot(snapshot);
+        }
+    }
+
+    private void mergeSnapshot(CollectionStatistics other)
+    {
+        rowCount += other.rowCount;
+        minTime = Math.min(minTime, other.minTime);
+        maxTime = Math.max(maxTime, other.maxTime);
+        users.merge(other.users);
+        other.nullCounts.forEach((name, count) -> nullCounts.merge(name, count, Long::sum));
+        other.dimensions.forEach((name, sketch) -> {
+            if (!dimensions.containsKey(name)) {
+                dimensions.put(name, sketch == null ? null : sketch.copy());
+            }
+            else {
+                HyperLogLog current = dimensions.get(name);
+                if (current != null && sketch != null) {
+                    current.merge(sketch);
+                }
+                else {
+                    dimensions.put(name, null);
+                }
+            }
+        });
+        other.distributions.forEach((name, digest) -> {
+            if (!distributions.containsKey(name)) {
+                distributions.put(name, digest == null ? null : digest.copy());
+            }
+            else {
+                TDigest current = distributions.get(name);
+                if (current != null && digest != null) {
+                    current.merge(digest);
+                }
+                else {
+                    distributions.put(name, null);
+                }
+            }
+        });
+    }
+
+    public synchronized CollectionStatistics copy()
+    {
+        return new CollectionStatistics(rowCount, minTime, maxTime, getUsers(), getNullCounts(), getDimensions(), getDistributions());
+    }
+
+    @JsonProperty
+    public synchronized long getRowCount()
+    {
+        return rowCount;
+    }
+
+    @JsonProperty
+    public synchronized long getMinTime()
+    {
+        return minTime;
+    }
+
+    @JsonProperty
+    public synchronized long getMaxTime()
+    {
+        return maxTime;
+    }
+
+    @JsonProperty
+    public synchronized HyperLogLog getUsers()
+    {
+        return users.copy();
+    }
+
+    @JsonProperty
+    public synchronized Map<String, Long> getNullCounts()
+    {
+        return new HashMap<>(nullCounts);
+    }
+
+    @JsonProperty
+    public synchronized Map<String, HyperLogLog> getDimensions()
+    {
+        Map<String, HyperLogLog> dimensions = new HashMap<>();
+        this.dimensions.forEach((name, sketch) -> dimensions.put(name, sketch == null ? null : sketch.copy()));
+        return dimensions;
+    }
+
+    @JsonProperty
+    public synchronized Map<String, TDigest> getDistributions()
+    {
+        Map<String, TDigest> distributions = new HashMap<>();
+        this.distributions.forEach((name, digest) -> distributions.put(name, digest == null ? null : digest.copy()));
+        return distributions;
+    }
+
+    @JsonIgnore
+    public synchronized long getUniqueUsers()
+    {
+        return users.cardinality();
+    }
+
+    @JsonIgnore
+    public synchronized Map<String, Double> getNullFractions()
+    {
+        Map<String, Double> fractions = new HashMap<>();
+        nullCounts.forEach((name, count) -> fractions.put(name, rowCount == 0 ? 0 : (double) count / rowCount));
+        return fractions;
+    }
+
+    /**
+     * Returns the estimated number of distinct values of the low-cardinality dimensions.
+     */
+    @JsonIgnore
+    public synchronized Map<String, Long> getDistinctValues()
+    {
+        Map<String, Long> distinctValues = new HashMap<>();
+        dimensions.forEach((name, sketch) -> {
+            if (sketch != null) {
+                distinctValues.put(name, sketch.cardinality());
+            }
+        });
+        return distinctValues;
+    }
+
+    /**
+     * Returns a copy of the distribution of the numeric field, the fields that have values in the day but don't have a
+     * digest can't be answered from the statistics.
+     *
+     * @return null if the distribution of the field is not known
+     */
+    @JsonIgnore
+    public synchronized TDigest getDistribution(String name)
+    {
+        TDigest digest = distributions.get(name);
+        if (digest != null) {
+            return digest.copy();
+        }
+        if (!distributions.containsKey(name) && (rowCount == 0 || nullCounts.getOrDefault(name, 0L) == rowCount)) {
+            // all the values of the field are null
+            return new TDigest();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,305 @@
+package org.rakam.analysis.metadata;
+
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.CollectionStatisticsStore.CollectionDay;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.CollectionStatisticsConfig;
+import org.rakam.plugin.SystemEvents.CollectionCreatedEvent;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Keeps the per-day statistics of the collections while the events are collected. The statistics are
+ * aggregated in memory and merged into the {@link CollectionStatisticsStore} periodically so the days that
+ * get their first events on the other nodes are visible after the next flush.
+ */
+public class CollectionStatisticsService
+{
+    private final static Logger LOGGER = Logger.get(CollectionStatisticsService.class);
+
+    private static final long DAY_MILLIS = DAYS.toMillis(1);
+
+    private final CollectionStatisticsStore store;
+    private final CollectionStatisticsConfig config;
+    private final Map<CollectionDay, CollectionStatistics> pending = new ConcurrentHashMap<>();
+    // the events that are collected before this node is started are not included in the statistics of the current day
+    private final LocalDate completeSince = LocalDate.now(ZoneOffset.UTC).plusDays(1);
+    private volatile boolean recordsAllWriters;
+
+    @Inject
+    public CollectionStatisticsService(CollectionStatisticsStore store, CollectionStatisticsConfig config)
+    {
+        this.store = store;
+        this.config = config;
+
+        if (config.isEnabled()) {
+            long flushInterval = Math.max(config.getFlushInterval().toMillis(), 1000);
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("collection-statistics-flush").setDaemon(true).build())
+                    .scheduleAtFixedRate(this::flush, flushInterval, flushInterval, MILLISECONDS);
+        }
+    }
+
+    /**
+     * Set when the events of all the writers are recorded, the statistics of the new collections are not
+     * marked as complete otherwise since the events that are not recorded would be missing from them.
+     */
+    public void setRecordsAllWriters(boolean recordsAllWriters)
+    {
+        this.recordsAllWriters = recordsAllWriters;
+    }
+
+    public void record(List<Event> events)
+    {
+        for (Event event : events) {
+            record(event);
+        }
+    }
+
+    public void record(Event event)
+    {
+        if (event.schema() != null) {
+            record(event.project(), event.collection(), event.schema(), name -> event.properties().get(name));
+        }
+    }
+
+    public void record(String project, String collection, List<SchemaField> fields, Function<String, Object> values)
+    {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        Object time = values.apply("_time");
+        long timestamp = time instanceof Number ? ((Number) time).longValue() : Instant.now().toEpochMilli();
+        Object user = values.apply("_user");
+
+        CollectionDay key = new CollectionDay(project, collection, LocalDate.ofEpochDay(Math.floorDiv(timestamp, DAY_MILLIS)));
+        // the statistics are updated inside compute so that a flush doesn't remove them while they're updated
+        pending.compute(key, (k, statistics) -> {
+            if (statistics == null) {
+                statistics = new CollectionStatistics();
+            }
+            statistics.add(timestamp, user, fields, values, config);
+            return statistics;
+        });
+    }
+
+    @PreDestroy
+    public synchronized void flush()
+    {
+        Map<CollectionDay, CollectionStatistics> batch = new HashMap<>();
+        for (CollectionDay key : pending.keySet()) {
+            CollectionStatistics statistics = pending.remove(key);
+            if (statistics != null) {
+                batch.put(key, statistics);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            store.merge(batch, completeSince);
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while flushing the statistics of %d collection days", batch.size());
+            // keep them for the next flush
+            batch.forEach((key, statistics) -> pending.merge(key, statistics, (current, other) -> {
+                current.merge(other);
+                return current;
+            }));
+        }
+    }
+
+    public Map<LocalDate, CollectionStatistics> getStatistics(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, CollectionStatistics> days = new HashMap<>(store.getStatistics(project, collection, startDate, endDate));
+        getPending(project, collection, startDate, endDate).forEach((day, statistics) -> days.merge(day, statistics, (current, other) -> {
+            current.merge(other);
+            return current;
+        }));
+        return days;
+    }
+
+    public Map<LocalDate, Long> getRowCounts(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, Long> days = new HashMap<>(store.getRowCounts(project, collection, startDate, endDate));
+        getPending(project, collection, startDate, endDate)
+                .forEach((day, statistics) -> days.merge(day, statistics.getRowCount(), Long::sum));
+        return days;
+    }
+
+    /**
+     * Whether all the events of the collections in the days starting from the given day are included in the
+     * statistics, the queries can be answered from the statistics only if they're complete.
+     */
+    public boolean isComplete(String project, Collection<String> collections, LocalDate startDate)
+    {
+        if (!config.isEnabled() || !config.isPruneQueries() || !store.isShared()) {
+            return false;
+        }
+
+        for (String collection : collections) {
+            Optional<LocalDate> since = store.getCompleteSince(project, collection);
+            if (!since.isPresent() || since.get().isAfter(startDate)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Narrows the date range to the days that may have events of the collections. The days at the both ends of the
+     * range that are known to be empty are skipped, the days that the statistics are not complete are kept.
+     *
+     * @return empty if none of the days in the range have events
+     */
+    public Optional<DateRange> getDataRange(String project, Collection<String> collections, LocalDate startDate, LocalDate endDate)
+    {
+        DateRange range = new DateRange(startDate, endDate);
+        if (!config.isEnabled() || !config.isPruneQueries() || !store.isShared()) {
+            return Optional.of(range);
+        }
+
+        LocalDate first = null;
+        LocalDate last = null;
+        for (String collection : collections) {
+            Optional<LocalDate> since = store.getCompleteSince(project, collection);
+            if (!since.isPresent()) {
+                return Optional.of(range);
+            }
+
+            LocalDate knownStart = startDate;
+            if (since.get().isAfter(startDate)) {
+                first = startDate;
+                LocalDate unknownEnd = since.get().minusDays(1);
+                last = max(last, unknownEnd.isAfter(endDate) ? endDate : unknownEnd);
+                knownStart = since.get();
+            }
+
+            if (knownStart.isAfter(endDate)) {
+                continue;
+            }
+
+            for (Map.Entry<LocalDate, Long> day : getRowCounts(project, collection, knownStart, endDate).entrySet()) {
+                if (day.getValue() > 0) {
+                    first = first == null || day.getKey().isBefore(first) ? day.getKey() : first;
+                    last = max(last, day.getKey());
+                }
+            }
+        }
+
+        return first == null ? Optional.empty() : Optional.of(new DateRange(first, last));
+    }
+
+    public Map<String, CollectionSummary> getSummary(String project, Collection<String> collections, LocalDate startDate, LocalDate endDate)
+    {
+        Map<String, CollectionSummary> summaries = new HashMap<>();
+        for (String collection : collections) {
+            CollectionStatistics merged = new CollectionStatistics();
+            getStatistics(project, collection, startDate, endDate).values().forEach(merged::merge);
+            Optional<LocalDate> since = store.getCompleteSince(project, collection);
+            summaries.put(collection, new CollectionSummary(merged, since.isPresent() && !since.get().isAfter(startDate)));
+        }
+        return summaries;
+    }
+
+    /**
+     * Deletes the statistics of the days between the given days, inclusive, when the events of these days are
+     * deleted from the collection.
+     */
+    public void deleteDays(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        pending.keySet().removeIf(key -> key.project.equals(project) && key.collection.equals(collection)
+                && !key.day.isBefore(startDate) && !key.day.isAfter(endDate));
+        store.deleteDays(project, collection, startDate, endDate);
+    }
+
+    @Subscribe
+    public void onCreateCollection(CollectionCreatedEvent event)
+    {
+        if (config.isEnabled() && recordsAllWriters) {
+            // the collection doesn't have any events that are collected before the statistics are enabled
+            store.setCompleteSince(event.project, event.collection, LocalDate.ofEpochDay(0));
+        }
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        pending.keySet().removeIf(key -> key.project.equals(event.project));
+        store.deleteProject(event.project);
+    }
+
+    private Map<LocalDate, CollectionStatistics> getPending(String project, String collection, LocalDate startDate, LocalDate endDate)
+    {
+        Map<LocalDate, CollectionStatistics> days = new HashMap<>();
+        pending.forEach((key, statistics) -> {
+            if (key.project.equals(project) && key.collection.equals(collection)
+                    && !key.day.isBefore(startDate) && !key.day.isAfter(endDate)) {
+                days.put(key.day, statistics.copy());
+            }
+        });
+        return days;
+    }
+
+    private static LocalDate max(LocalDate first, LocalDate second)
+    {
+        return first == null || second.isAfter(first) ? second : first;
+    }
+
+    public static class DateRange
+    {
+        public final LocalDate startDate;
+        public final LocalDate endDate;
+
+        public DateRange(LocalDate startDate, LocalDate endDate)
+        {
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+    }
+
+    public static class CollectionSummary
+    {
+        public final long rowCount;
+        public final Instant minTime;
+        public final Instant maxTime;
+        public final long uniqueUsers;
+        public final Map<String, Double> nullFractions;
+        public final Map<String, Long> distinctValues;
+        public final boolean complete;
+
+        public CollectionSummary(CollectionStatistics statistics, boolean complete)
+        {
+            this.rowCount = statistics.getRowCount();
+            this.minTime = statistics.getRowCount() == 0 ? null : Instant.ofEpochMilli(statistics.getMinTime());
+            this.maxTime = statistics.getRowCount() == 0 ? null : Instant.ofEpochMilli(statistics.getMaxTime());
+            this.uniqueUsers = statistics.getUniqueUsers();
+            this.nullFractions = statistics.getNullFractions();
+            this.distinctValues = statistics.getDistinctValues();
+            this.complete = complete;
+        }
+    }
+}
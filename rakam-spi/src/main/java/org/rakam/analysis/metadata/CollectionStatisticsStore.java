@@ -0,0 +1,72 @@
+package org.rakam.analysis.metadata;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+public interface CollectionStatisticsStore
+{
+    /**
+     * Merges the statistics into the stored ones. The collections that don't have statistics yet are
+     * marked as complete from the given day.
+     */
+    void merge(Map<CollectionDay, CollectionStatistics> statistics, LocalDate completeSince);
+
+    Map<LocalDate, CollectionStatistics> getStatistics(String project, String collection, LocalDate startDate, LocalDate endDate);
+
+    Map<LocalDate, Long> getRowCounts(String project, String collection, LocalDate startDate, LocalDate endDate);
+
+    /**
+     * Returns the first day that all the events of the collection are included in the statistics.
+     */
+    Optional<LocalDate> getCompleteSince(String project, String collection);
+
+    void setCompleteSince(String project, String collection, LocalDate day);
+
+    /**
+     * Deletes the statistics of the days between the given days, inclusive.
+     */
+    void deleteDays(String project, String collection, LocalDate startDate, LocalDate endDate);
+
+    void deleteProject(String project);
+
+    /**
+     * Whether the statistics of all the nodes are kept in this store.
+     */
+    boolean isShared();
+
+    class CollectionDay
+    {
+        public final String project;
+        public final String collection;
+        public final LocalDate day;
+
+        public CollectionDay(String project, String collection, LocalDate day)
+        {
+            this.project = project;
+            this.collection = collection;
+            this.day = day;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CollectionDay)) {
+                return false;
+            }
+
+            CollectionDay that = (CollectionDay) o;
+            return project.equals(that.project) && collection.equals(that.collection) && day.equals(that.day);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, collection, day);
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 
 public interface Metastore {
@@ -22,6 +24,18 @@ public interface Metastore {
 
     List<SchemaField> getOrCreateCollectionFieldList(String project, String collection, Set<SchemaField> fields) throws NotExistsException;
 
+    /**
+     * Non-blocking variant of {@link #getCollection(String, String)}, the lookup is performed in the given executor
+     * unless the implementation has the schema in memory.
+     */
+    default CompletableFuture<List<SchemaField>> getCollectionAsync(String project, String collection, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getCollection(project, collection), executor);
+    }
+
+    default CompletableFuture<List<SchemaField>> getOrCreateCollectionFieldListAsync(String project, String collection, Set<SchemaField> fields, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> getOrCreateCollectionFieldList(project, collection, fields), executor);
+    }
+
     void deleteProject(String project);
 
     Map<String, Stats> getStats(Collection<String> projects);
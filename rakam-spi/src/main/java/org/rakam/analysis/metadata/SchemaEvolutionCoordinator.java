@@ -0,0 +1,160 @@
+package org.rakam.analysis.metadata;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.airlift.units.Duration;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.ProjectCollection;
+import org.rakam.util.RakamException;
+import org.rakam.util.lock.LockService;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Gathers the new fields of a collection that are sent in a short window and applies them in a single schema change.
+ * The schema changes of a collection are serialized across the nodes with the lock service: the node that holds the
+ * lock reads the current schema and adds the fields that are still missing, the other nodes retry the lock and
+ * find their fields already created when the fields are the same. The window and the retries are scheduled on the
+ * executor so the threads of the requests are not blocked unless they use {@link #apply}.
+ */
+public class SchemaEvolutionCoordinator
+{
+    private final static Logger LOGGER = Logger.get(SchemaEvolutionCoordinator.class);
+    // the threads are only busy while the schema changes are being applied, the metastores share them
+    private static final ScheduledExecutorService SHARED_EXECUTOR = Executors.newScheduledThreadPool(4,
+            new ThreadFactoryBuilder().setNameFormat("schema-evolution-%d").setDaemon(true).build());
+
+    private final LockService lockService;
+    private final long windowMillis;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService executor;
+    private final Map<ProjectCollection, Batch> batches = new HashMap<>();
+
+    /**
+     * @param lockService the lock service that is shared by the nodes, the changes are only serialized within the node if it's null
+     */
+    public SchemaEvolutionCoordinator(LockService lockService, Duration window, Duration timeout)
+    {
+        this(lockService, window, timeout, SHARED_EXECUTOR);
+    }
+
+    public SchemaEvolutionCoordinator(LockService lockService, Duration window, Duration timeout, ScheduledExecutorService executor)
+    {
+        this.lockService = lockService;
+        this.windowMillis = window.toMillis();
+        this.timeoutMillis = timeout.toMillis();
+        this.executor = executor;
+    }
+
+    public List<SchemaField> apply(String project, String collection, Set<SchemaField> fields, SchemaChange schemaChange)
+    {
+        try {
+            return applyAsync(project, collection, fields, schemaChange).join();
+        }
+        catch (CompletionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    public CompletableFuture<List<SchemaField>> applyAsync(String project, String collection, Set<SchemaField> fields, SchemaChange schemaChange)
+    {
+        ProjectCollection key = new ProjectCollection(project, collection);
+
+        Batch batch;
+        boolean leader;
+        synchronized (batches) {
+            batch = batches.get(key);
+            leader = batch == null;
+            if (leader) {
+                batch = new Batch();
+                batches.put(key, batch);
+            }
+            // the first type of a field wins if the requests in the window have different types for it
+            for (SchemaField field : fields) {
+                batch.fields.putIfAbsent(field.getName(), field);
+            }
+        }
+
+        if (leader) {
+            // the other requests that have new fields for the collection join the batch in the meantime
+            Batch leaderBatch = batch;
+            executor.schedule(() -> {
+                Set<SchemaField> batchFields;
+                synchronized (batches) {
+                    batches.remove(key);
+                    batchFields = ImmutableSet.copyOf(leaderBatch.fields.values());
+                }
+                applyLocked(project, collection, batchFields, schemaChange, leaderBatch.result, System.currentTimeMillis());
+            }, windowMillis, MILLISECONDS);
+        }
+
+        return batch.result;
+    }
+
+    private void applyLocked(String project, String collection, Set<SchemaField> fields, SchemaChange schemaChange,
+            CompletableFuture<List<SchemaField>> result, long startTime)
+    {
+        try {
+            if (lockService == null) {
+                result.complete(schemaChange.apply(project, collection, fields));
+                return;
+            }
+
+            LockService.Lock lock = lockService.tryLock(format("schema.%s.%s", project, collection));
+            if (lock != null) {
+                List<SchemaField> schema;
+                try {
+                    schema = schemaChange.apply(project, collection, fields);
+                }
+                finally {
+                    lock.release();
+                }
+                // the lock is released before the waiting requests continue
+                result.complete(schema);
+                return;
+            }
+
+            if (System.currentTimeMillis() - startTime > timeoutMillis) {
+                LOGGER.warn("Timed out while waiting for the schema change of %s.%s on another node", project, collection);
+                result.completeExceptionally(new RakamException(format("Unable to add the fields to %s.%s, the schema is being changed by another node",
+                        project, collection), INTERNAL_SERVER_ERROR));
+                return;
+            }
+
+            // another node is changing the schema, the missing fields are added when it's done
+            executor.schedule(() -> applyLocked(project, collection, fields, schemaChange, result, startTime), windowMillis, MILLISECONDS);
+        }
+        catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface SchemaChange
+    {
+        /**
+         * Adds the fields that don't exist in the collection in a single operation and returns the new schema.
+         */
+        List<SchemaField> apply(String project, String collection, Set<SchemaField> fields);
+    }
+
+    private static class Batch
+    {
+        private final Map<String, SchemaField> fields = new LinkedHashMap<>();
+        private final CompletableFuture<List<SchemaField>> result = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,89 @@
+package org.rakam.analysis.metadata;
+
+import com.google.inject.name.Named;
+import org.rakam.collection.Event;
+import org.rakam.plugin.EventStore;
+
+import javax.inject.Inject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records the collection statistics of the events that are stored successfully. All the writers use the bound
+ * {@link EventStore} so the statistics include the events of the collection API, webhooks, user actions and the
+ * scheduled tasks. The backend modules bind their event store with the {@link #DELEGATE} name.
+ */
+public class StatisticsRecordingEventStore
+        implements EventStore
+{
+    public static final String DELEGATE = "event-store.delegate";
+
+    private final EventStore delegate;
+    private final CollectionStatisticsService statistics;
+
+    @Inject
+    public StatisticsRecordingEventStore(@Named(DELEGATE) EventStore delegate, CollectionStatisticsService statistics)
+    {
+        this.delegate = delegate;
+        this.statistics = statistics;
+        statistics.setRecordsAllWriters(true);
+    }
+
+    @Override
+    public void store(Event event)
+    {
+        delegate.store(event);
+        statistics.record(event);
+    }
+
+    @Override
+    public int[] storeBatch(List<Event> events)
+    {
+        int[] failed = delegate.storeBatch(events);
+        record(events, failed);
+        return failed;
+    }
+
+    @Override
+    public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+    {
+        return delegate.storeBatchAsync(events).thenApply(failed -> {
+            record(events, failed);
+            return failed;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> storeAsync(Event event)
+    {
+        return delegate.storeAsync(event).thenApply(result -> {
+            statistics.record(event);
+            return result;
+        });
+    }
+
+    @Override
+    public void storeBulk(List<Event> events)
+    {
+        delegate.storeBulk(events);
+        statistics.record(events);
+    }
+
+    private void record(List<Event> events, int[] failed)
+    {
+        if (failed.length == 0) {
+            statistics.record(events);
+            return;
+        }
+
+        int[] sorted = failed.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < events.size(); i++) {
+            if (Arrays.binarySearch(sorted, i) < 0) {
+                statistics.record(events.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+public class CollectionStatisticsConfig
+{
+    private boolean enabled = true;
+    private Duration flushInterval = Duration.valueOf("1m");
+    private int maxDimensions = 20;
+    private long maxDimensionCardinality = 1000;
+    private int maxMeasures = 10;
+    private boolean pruneQueries;
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Config("collection.statistics.enabled")
+    @ConfigDescription("Keeps the per-day statistics of the collections while the events are collected")
+    public CollectionStatisticsConfig setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public Duration getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+    @Config("collection.statistics.flush-interval")
+    @ConfigDescription("How often the statistics that are collected in memory are merged into the statistics store")
+    public CollectionStatisticsConfig setFlushInterval(String flushInterval)
+    {
+        this.flushInterval = Duration.valueOf(flushInterval);
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxDimensions()
+    {
+        return maxDimensions;
+    }
+
+    @Config("collection.statistics.max-dimensions")
+    @ConfigDescription("Maximum number of string and boolean fields of a collection that the distinct values are estimated for")
+    public CollectionStatisticsConfig setMaxDimensions(int maxDimensions)
+    {
+        this.maxDimensions = maxDimensions;
+        return this;
+    }
+
+    @Min(1)
+    public long getMaxDimensionCardinality()
+    {
+        return maxDimensionCardinality;
+    }
+
+    @Config("collection.statistics.max-dimension-cardinality")
+    @ConfigDescription("The fields that have more distinct values than this in a day are not tracked as dimensions")
+    public CollectionStatisticsConfig setMaxDimensionCardinality(long maxDimensionCardinality)
+    {
+        this.maxDimensionCardinality = maxDimensionCardinality;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxMeasures()
+    {
+        return maxMeasures;
+    }
+
+    @Config("collection.statistics.max-measures")
+    @ConfigDescription("Maximum number of numeric fields of a collection that a t-digest is kept for, " +
+            "the approximate percentiles, sums and averages of these fields are answered from the digests")
+    public CollectionStatisticsConfig setMaxMeasures(int maxMeasures)
+    {
+        this.maxMeasures = maxMeasures;
+        return this;
+    }
+
+    public boolean isPruneQueries()
+    {
+        return pruneQueries;
+    }
+
+    @Config("collection.statistics.prune-queries")
+    @ConfigDescription("Skips the days that are known to be empty and answers the simple event explorer queries from the statistics. " +
+            "The statistics of the events that are not flushed yet by the other nodes are not visible and the unflushed " +
+            "statistics are lost if a node crashes, so the pruned queries may miss events.")
+    public CollectionStatisticsConfig setPruneQueries(boolean pruneQueries)
+    {
+        this.pruneQueries = pruneQueries;
+        return this;
+    }
+}
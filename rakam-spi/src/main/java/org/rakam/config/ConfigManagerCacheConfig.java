@@ -0,0 +1,53 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+public class ConfigManagerCacheConfig
+{
+    private Duration ttl = Duration.valueOf("5m");
+    private Duration negativeTtl = Duration.valueOf("30s");
+    private long maximumSize = 100000;
+
+    public Duration getTtl()
+    {
+        return ttl;
+    }
+
+    @Config("config-manager.cache.ttl")
+    @ConfigDescription("How long a config value is served from memory before it's read from the config store again, 0s disables the cache")
+    public ConfigManagerCacheConfig setTtl(String ttl)
+    {
+        this.ttl = Duration.valueOf(ttl);
+        return this;
+    }
+
+    public Duration getNegativeTtl()
+    {
+        return negativeTtl;
+    }
+
+    @Config("config-manager.cache.negative-ttl")
+    @ConfigDescription("How long a missing config is remembered, it's usually set shortly after it's read so it should be lower than the ttl")
+    public ConfigManagerCacheConfig setNegativeTtl(String negativeTtl)
+    {
+        this.negativeTtl = Duration.valueOf(negativeTtl);
+        return this;
+    }
+
+    @Min(1)
+    public long getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    @Config("config-manager.cache.maximum-size")
+    public ConfigManagerCacheConfig setMaximumSize(long maximumSize)
+    {
+        this.maximumSize = maximumSize;
+        return this;
+    }
+}
@@ -0,0 +1,97 @@
+package org.rakam.config;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+public class HttpClientPoolConfig
+{
+    private int ioThreads = 64;
+    private int maxConnectionsPerDestination = 50;
+    private int maxQueuedRequestsPerDestination = 1024;
+    private Duration connectTimeout = Duration.valueOf("10s");
+    private Duration idleTimeout = Duration.valueOf("1m");
+    private boolean http2Enabled;
+
+    @Min(2)
+    public int getIoThreads()
+    {
+        return ioThreads;
+    }
+
+    @Config("http-client.io-threads")
+    @ConfigDescription("Maximum number of threads that are shared by the HTTP clients of the backend connectors")
+    public HttpClientPoolConfig setIoThreads(int ioThreads)
+    {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConnectionsPerDestination()
+    {
+        return maxConnectionsPerDestination;
+    }
+
+    @Config("http-client.max-connections-per-destination")
+    @ConfigDescription("Maximum number of connections that each HTTP client opens to a single server")
+    public HttpClientPoolConfig setMaxConnectionsPerDestination(int maxConnectionsPerDestination)
+    {
+        this.maxConnectionsPerDestination = maxConnectionsPerDestination;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxQueuedRequestsPerDestination()
+    {
+        return maxQueuedRequestsPerDestination;
+    }
+
+    @Config("http-client.max-queued-requests-per-destination")
+    @ConfigDescription("Maximum number of requests that wait for a connection to a single server, the requests over the limit are rejected")
+    public HttpClientPoolConfig setMaxQueuedRequestsPerDestination(int maxQueuedRequestsPerDestination)
+    {
+        this.maxQueuedRequestsPerDestination = maxQueuedRequestsPerDestination;
+        return this;
+    }
+
+    public Duration getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    @Config("http-client.connect-timeout")
+    public HttpClientPoolConfig setConnectTimeout(String connectTimeout)
+    {
+        this.connectTimeout = Duration.valueOf(connectTimeout);
+        return this;
+    }
+
+    public Duration getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    @Config("http-client.idle-timeout")
+    @ConfigDescription("How long the idle connections are kept alive for the next requests")
+    public HttpClientPoolConfig setIdleTimeout(String idleTimeout)
+    {
+        this.idleTimeout = Duration.valueOf(idleTimeout);
+        return this;
+    }
+
+    public boolean isHttp2Enabled()
+    {
+        return http2Enabled;
+    }
+
+    @Config("http-client.http2.enabled")
+    @ConfigDescription("Uses HTTP/2 for the backends that support it")
+    public HttpClientPoolConfig setHttp2Enabled(boolean http2Enabled)
+    {
+        this.http2Enabled = http2Enabled;
+        return this;
+    }
+}
@@ -59,4 +59,17 @@ public final class SystemEvents {
             this.fields = fields;
         }
     }
+
+    /**
+     * Posted when a config value is changed on another node, null project invalidates all configs.
+     */
+    public static class ConfigChangedEvent {
+        public final String project;
+        public final String configName;
+
+        public ConfigChangedEvent(String project, String configName) {
+            this.project = project;
+            this.configName = configName;
+        }
+    }
 }
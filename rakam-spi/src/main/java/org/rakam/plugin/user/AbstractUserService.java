@@ -54,6 +54,10 @@ public abstract class AbstractUserService {
         return storage.searchUsers(project, columns, filterExpression, eventFilter, sorting, limit, offset);
     }
 
+    public CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<UserStorage.EventFilter> eventFilter, String segment, UserStorage.Sorting sorting, int limit, String offset) {
+        return storage.searchUsers(project, columns, filterExpression, eventFilter, segment, sorting, limit, offset);
+    }
+
     public void createSegment(String project, String name, String tableName, Expression filterExpression, List<UserStorage.EventFilter> eventFilter, Duration interval) {
         storage.createSegment(project, name, tableName, filterExpression, eventFilter, interval);
     }
@@ -0,0 +1,315 @@
+package org.rakam.plugin.user;
+
+import com.facebook.presto.sql.tree.Expression;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.rakam.report.QueryResult;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Serves the user profiles that are looked up by the id from memory. The profiles that are changed through this
+ * storage are invalidated, the changes made by the other nodes are picked up when the entries expire. The search
+ * and segment operations are not cached.
+ */
+public class CachingUserStorage
+        implements UserStorage
+{
+    private final static Logger LOGGER = Logger.get(CachingUserStorage.class);
+
+    public static final String DELEGATE = "user-storage.delegate";
+
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final UserStorage delegate;
+    private final Cache<UserKey, User> cache;
+    // the loads that are not invalidated yet, a load that is invalidated while it's running is not cached
+    private final Map<UserKey, Object> pendingLoads = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService statsExecutor;
+
+    @Inject
+    public CachingUserStorage(@Named(DELEGATE) UserStorage delegate, UserPluginConfig config)
+    {
+        this.delegate = delegate;
+        long maximumWeight = config.getProfileCacheSize().toBytes();
+        this.cache = maximumWeight == 0 ? null : CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .<UserKey, User>weigher((key, user) -> ENTRY_OVERHEAD + key.weight() + weigh(user.properties))
+                .expireAfterWrite(Math.max(config.getProfileCacheTtl().toMillis(), 1), MILLISECONDS)
+                .recordStats()
+                .build();
+
+        long reportInterval = config.getProfileCacheStatsInterval().toMillis();
+        if (cache != null && reportInterval > 0) {
+            statsExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("user-profile-cache-stats").setDaemon(true).build());
+            statsExecutor.scheduleAtFixedRate(this::reportStats, reportInterval, reportInterval, MILLISECONDS);
+        }
+        else {
+            statsExecutor = null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (statsExecutor != null) {
+            statsExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public CompletableFuture<User> getUser(String project, Object userId)
+    {
+        if (cache == null) {
+            return delegate.getUser(project, userId);
+        }
+
+        UserKey key = new UserKey(project, userId);
+        User cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(copy(cached));
+        }
+
+        Object token = new Object();
+        pendingLoads.put(key, token);
+        return delegate.getUser(project, userId).whenComplete((user, ex) -> {
+            if (pendingLoads.remove(key, token) && user != null && ex == null) {
+                cache.put(key, copy(user));
+            }
+        });
+    }
+
+    public CacheStats getStats()
+    {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    @Override
+    public Object create(String project, Object id, ObjectNode properties)
+    {
+        Object user = delegate.create(project, id, properties);
+        invalidate(project, user);
+        return user;
+    }
+
+    @Override
+    public List<Object> batchCreate(String project, List<User> users)
+    {
+        List<Object> ids = delegate.batchCreate(project, users);
+        if (ids != null) {
+            ids.forEach(id -> invalidate(project, id));
+        }
+        users.forEach(user -> invalidate(project, user.id));
+        return ids;
+    }
+
+    @Override
+    public void batch(String project, List<? extends ISingleUserBatchOperation> operations)
+    {
+        delegate.batch(project, operations);
+        operations.forEach(operation -> invalidate(project, operation.getUser()));
+    }
+
+    @Override
+    public void applyOperations(String project, List<? extends ISingleUserBatchOperation> operations)
+    {
+        delegate.applyOperations(project, operations);
+        operations.forEach(operation -> invalidate(project, operation.getUser()));
+    }
+
+    @Override
+    public void setUserProperties(String project, Object user, ObjectNode properties)
+    {
+        delegate.setUserProperties(project, user, properties);
+        invalidate(project, user);
+    }
+
+    @Override
+    public void setUserPropertiesOnce(String project, Object user, ObjectNode properties)
+    {
+        delegate.setUserPropertiesOnce(project, user, properties);
+        invalidate(project, user);
+    }
+
+    @Override
+    public void incrementProperty(String project, Object user, String property, double value)
+    {
+        delegate.incrementProperty(project, user, property, value);
+        invalidate(project, user);
+    }
+
+    @Override
+    public void unsetProperties(String project, Object user, List<String> properties)
+    {
+        delegate.unsetProperties(project, user, properties);
+        invalidate(project, user);
+    }
+
+    @Override
+    public void dropProjectIfExists(String project)
+    {
+        delegate.dropProjectIfExists(project);
+        invalidateProject(project);
+    }
+
+    @Override
+    public void createProjectIfNotExists(String project, boolean isNumeric)
+    {
+        delegate.createProjectIfNotExists(project, isNumeric);
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset)
+    {
+        return delegate.searchUsers(project, columns, filterExpression, eventFilter, sortColumn, limit, offset);
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, String segment, Sorting sortColumn, long limit, String offset)
+    {
+        return delegate.searchUsers(project, columns, filterExpression, eventFilter, segment, sortColumn, limit, offset);
+    }
+
+    @Override
+    public void createSegment(String project, String name, String tableName, Expression filterExpression, List<EventFilter> eventFilter, Duration interval)
+    {
+        delegate.createSegment(project, name, tableName, filterExpression, eventFilter, interval);
+    }
+
+    @Override
+    public List<SchemaField> getMetadata(String project)
+    {
+        return delegate.getMetadata(project);
+    }
+
+    @Subscribe
+    public void onDeleteProject(ProjectDeletedEvent event)
+    {
+        invalidateProject(event.project);
+    }
+
+    private void invalidate(String project, Object user)
+    {
+        if (cache == null || user == null) {
+            return;
+        }
+        UserKey key = new UserKey(project, user);
+        pendingLoads.remove(key);
+        cache.invalidate(key);
+    }
+
+    private void invalidateProject(String project)
+    {
+        if (cache == null) {
+            return;
+        }
+        pendingLoads.keySet().removeIf(key -> key.project.equals(project));
+        cache.asMap().keySet().removeIf(key -> key.project.equals(project));
+    }
+
+    private void reportStats()
+    {
+        CacheStats stats = cache.stats();
+        LOGGER.info("User profile cache: hit rate %.2f (%d requests, %d entries, %d evictions)",
+                stats.hitRate(), stats.requestCount(), cache.size(), stats.evictionCount());
+    }
+
+    /**
+     * The callers may modify the properties of the user so the cached profiles are not shared.
+     */
+    private static User copy(User user)
+    {
+        return new User(user.id, user.api, user.properties == null ? null : user.properties.deepCopy());
+    }
+
+    /**
+     * Approximate memory used by the properties, the strings are counted with two bytes per character.
+     */
+    private static int weigh(JsonNode node)
+    {
+        if (node == null) {
+            return 0;
+        }
+        if (node.isTextual()) {
+            return 40 + node.textValue().length() * 2;
+        }
+        if (node.isObject()) {
+            int weight = 48;
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                weight += 40 + field.getKey().length() * 2 + weigh(field.getValue());
+            }
+            return weight;
+        }
+        if (node.isArray()) {
+            int weight = 48;
+            for (JsonNode item : node) {
+                weight += 8 + weigh(item);
+            }
+            return weight;
+        }
+        return 16;
+    }
+
+    private static class UserKey
+    {
+        private final String project;
+        private final String user;
+
+        private UserKey(String project, Object user)
+        {
+            this.project = project;
+            // the ids of the events may be numbers or strings for the same user
+            this.user = user instanceof Number ? String.valueOf(((Number) user).longValue()) : user.toString();
+        }
+
+        private int weight()
+        {
+            return (project.length() + user.length()) * 2;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof UserKey)) {
+                return false;
+            }
+
+            UserKey userKey = (UserKey) o;
+            return project.equals(userKey.project) && user.equals(userKey.user);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(project, user);
+        }
+    }
+}
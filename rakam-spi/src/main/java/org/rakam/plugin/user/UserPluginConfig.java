@@ -3,6 +3,9 @@ package org.rakam.plugin.user;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import io.airlift.units.Duration;
 
 import java.util.List;
 
@@ -20,6 +23,13 @@ public class UserPluginConfig {
     private Iterable<String> actions;
     private boolean automationEnabled;
     private boolean abTestingEnabled;
+    private Duration searchCountRefreshInterval = Duration.valueOf("1m");
+    private long searchEstimatedCountThreshold = 1000000;
+    private boolean searchAutoIndex;
+    private int searchAutoIndexThreshold = 100;
+    private DataSize profileCacheSize = new DataSize(64, DataSize.Unit.MEGABYTE);
+    private Duration profileCacheTtl = Duration.valueOf("1m");
+    private Duration profileCacheStatsInterval = Duration.valueOf("10m");
 
     @Config("plugin.user.storage.identifier-column")
     public UserPluginConfig setIdentifierColumn(String colName) {
@@ -130,4 +140,80 @@ public class UserPluginConfig {
     public String getStorageModule() {
         return storageModule;
     }
+
+    @Config("plugin.user.search.count-refresh-interval")
+    @ConfigDescription("The total user count of a search is cached and refreshed in the background with this interval")
+    public UserPluginConfig setSearchCountRefreshInterval(String interval) {
+        this.searchCountRefreshInterval = Duration.valueOf(interval);
+        return this;
+    }
+
+    public Duration getSearchCountRefreshInterval() {
+        return searchCountRefreshInterval;
+    }
+
+    @Config("plugin.user.search.estimated-count-threshold")
+    @ConfigDescription("The table statistics are used instead of counting the users when the estimated user count of the project exceeds this value")
+    public UserPluginConfig setSearchEstimatedCountThreshold(long threshold) {
+        this.searchEstimatedCountThreshold = threshold;
+        return this;
+    }
+
+    public long getSearchEstimatedCountThreshold() {
+        return searchEstimatedCountThreshold;
+    }
+
+    @Config("plugin.user.search.auto-index")
+    @ConfigDescription("Create indexes for the user properties that are frequently used for filtering and sorting, the suggestions are only logged when it's disabled")
+    public UserPluginConfig setSearchAutoIndex(boolean searchAutoIndex) {
+        this.searchAutoIndex = searchAutoIndex;
+        return this;
+    }
+
+    public boolean getSearchAutoIndex() {
+        return searchAutoIndex;
+    }
+
+    @Config("plugin.user.search.auto-index-threshold")
+    public UserPluginConfig setSearchAutoIndexThreshold(int threshold) {
+        this.searchAutoIndexThreshold = threshold;
+        return this;
+    }
+
+    public int getSearchAutoIndexThreshold() {
+        return searchAutoIndexThreshold;
+    }
+
+    @Config("plugin.user.profile-cache.size")
+    @ConfigDescription("Approximate memory used for caching the user profiles that are looked up by the automation actions and mappers, 0B disables the cache")
+    public UserPluginConfig setProfileCacheSize(String profileCacheSize) {
+        this.profileCacheSize = DataSize.valueOf(profileCacheSize);
+        return this;
+    }
+
+    public DataSize getProfileCacheSize() {
+        return profileCacheSize;
+    }
+
+    @Config("plugin.user.profile-cache.ttl")
+    @ConfigDescription("The cached user profiles expire after this duration so that the changes made by the other nodes are picked up")
+    public UserPluginConfig setProfileCacheTtl(String profileCacheTtl) {
+        this.profileCacheTtl = Duration.valueOf(profileCacheTtl);
+        return this;
+    }
+
+    public Duration getProfileCacheTtl() {
+        return profileCacheTtl;
+    }
+
+    @Config("plugin.user.profile-cache.stats-interval")
+    @ConfigDescription("Interval for logging the hit rate of the user profile cache, 0s disables it")
+    public UserPluginConfig setProfileCacheStatsInterval(String profileCacheStatsInterval) {
+        this.profileCacheStatsInterval = Duration.valueOf(profileCacheStatsInterval);
+        return this;
+    }
+
+    public Duration getProfileCacheStatsInterval() {
+        return profileCacheStatsInterval;
+    }
 }
@@ -49,6 +49,18 @@ public interface UserStorage {
 
     CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset);
 
+    /**
+     * Searches the users in the segment that is created with {@link #createSegment}. The members of the segment are
+     * read from the storage of the segment instead of evaluating its filters.
+     */
+    default CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, String segment, Sorting sortColumn, long limit, String offset)
+    {
+        if (segment != null) {
+            throw new RakamException("Segments are not supported by the user storage", HttpResponseStatus.BAD_REQUEST);
+        }
+        return searchUsers(project, columns, filterExpression, eventFilter, sortColumn, limit, offset);
+    }
+
     void createSegment(String project, String name, String tableName, Expression filterExpression, List<EventFilter> eventFilter, Duration interval);
 
     List<SchemaField> getMetadata(String project);
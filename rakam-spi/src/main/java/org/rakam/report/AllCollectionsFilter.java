@@ -0,0 +1,174 @@
+package org.rakam.report;
+
+import com.facebook.presto.sql.tree.AliasedRelation;
+import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.ComparisonExpressionType;
+import com.facebook.presto.sql.tree.DefaultTraversalVisitor;
+import com.facebook.presto.sql.tree.DereferenceExpression;
+import com.facebook.presto.sql.tree.Expression;
+import com.facebook.presto.sql.tree.InListExpression;
+import com.facebook.presto.sql.tree.InPredicate;
+import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.QualifiedName;
+import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Relation;
+import com.facebook.presto.sql.tree.Statement;
+import com.facebook.presto.sql.tree.StringLiteral;
+import com.facebook.presto.sql.tree.Table;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.facebook.presto.sql.tree.LogicalBinaryExpression.Type.AND;
+
+/**
+ * The collections that the queries read from the _all table. The executors use it to leave the collections that
+ * can't match the query out of the _all table instead of scanning all the collections of the project.
+ */
+public class AllCollectionsFilter
+{
+    public static final AllCollectionsFilter NONE = new AllCollectionsFilter(Optional.empty());
+
+    public final Optional<Set<String>> collections;
+
+    public AllCollectionsFilter(Optional<Set<String>> collections)
+    {
+        this.collections = collections;
+    }
+
+    public static boolean isAllCollections(QualifiedName name)
+    {
+        return name.getSuffix().equals("_all") && !name.getPrefix().isPresent();
+    }
+
+    /**
+     * Extracts the predicates on "$collection" from the queries that read the _all table. The predicates are
+     * only used if every reference of the _all table is filtered, since the table has a single reference in the query.
+     */
+    public static AllCollectionsFilter extract(Statement statement)
+    {
+        List<AllCollectionsFilter> filters = new ArrayList<>();
+        int[] references = new int[1];
+
+        new DefaultTraversalVisitor<Void, Void>()
+        {
+            @Override
+            protected Void visitTable(Table node, Void context)
+            {
+                if (isAllCollections(node.getName())) {
+                    references[0]++;
+                }
+                return null;
+            }
+
+            @Override
+            protected Void visitQuerySpecification(QuerySpecification node, Void context)
+            {
+                if (node.getFrom().isPresent() && isAllCollections(node.getFrom().get()) && node.getWhere().isPresent()) {
+                    filters.add(fromPredicate(node.getWhere().get()));
+                }
+                return super.visitQuerySpecification(node, context);
+            }
+        }.process(statement, null);
+
+        if (references[0] == 0 || filters.size() != references[0]) {
+            return NONE;
+        }
+
+        AllCollectionsFilter merged = filters.get(0);
+        for (AllCollectionsFilter filter : filters.subList(1, filters.size())) {
+            merged = merged.union(filter);
+        }
+        return merged;
+    }
+
+    private AllCollectionsFilter union(AllCollectionsFilter other)
+    {
+        Optional<Set<String>> collections = Optional.empty();
+        if (this.collections.isPresent() && other.collections.isPresent()) {
+            collections = Optional.of(ImmutableSet.<String>builder().addAll(this.collections.get()).addAll(other.collections.get()).build());
+        }
+
+        return new AllCollectionsFilter(collections);
+    }
+
+    private static boolean isAllCollections(Relation relation)
+    {
+        if (relation instanceof AliasedRelation) {
+            relation = ((AliasedRelation) relation).getRelation();
+        }
+        return relation instanceof Table && isAllCollections(((Table) relation).getName());
+    }
+
+    private static AllCollectionsFilter fromPredicate(Expression where)
+    {
+        List<Expression> conjuncts = new ArrayList<>();
+        addConjuncts(where, conjuncts);
+
+        Set<String> collections = null;
+
+        for (Expression conjunct : conjuncts) {
+            if (conjunct instanceof ComparisonExpression) {
+                ComparisonExpression comparison = (ComparisonExpression) conjunct;
+                String column = getColumn(comparison.getLeft());
+                if ("$collection".equals(column) && comparison.getType() == ComparisonExpressionType.EQUAL
+                        && comparison.getRight() instanceof StringLiteral) {
+                    collections = intersect(collections, ImmutableSet.of(((StringLiteral) comparison.getRight()).getValue()));
+                }
+            }
+            else if (conjunct instanceof InPredicate && "$collection".equals(getColumn(((InPredicate) conjunct).getValue()))
+                    && ((InPredicate) conjunct).getValueList() instanceof InListExpression) {
+                Set<String> values = new HashSet<>();
+                for (Expression value : ((InListExpression) ((InPredicate) conjunct).getValueList()).getValues()) {
+                    if (!(value instanceof StringLiteral)) {
+                        values = null;
+                        break;
+                    }
+                    values.add(((StringLiteral) value).getValue());
+                }
+                if (values != null) {
+                    collections = intersect(collections, values);
+                }
+            }
+        }
+
+        return new AllCollectionsFilter(Optional.ofNullable(collections));
+    }
+
+    private static void addConjuncts(Expression expression, List<Expression> conjuncts)
+    {
+        if (expression instanceof LogicalBinaryExpression && ((LogicalBinaryExpression) expression).getType() == AND) {
+            addConjuncts(((LogicalBinaryExpression) expression).getLeft(), conjuncts);
+            addConjuncts(((LogicalBinaryExpression) expression).getRight(), conjuncts);
+        }
+        else {
+            conjuncts.add(expression);
+        }
+    }
+
+    private static Set<String> intersect(Set<String> current, Set<String> values)
+    {
+        if (current == null) {
+            return values;
+        }
+        Set<String> intersection = new HashSet<>(current);
+        intersection.retainAll(values);
+        return intersection;
+    }
+
+    private static String getColumn(Expression expression)
+    {
+        if (expression instanceof QualifiedNameReference) {
+            return ((QualifiedNameReference) expression).getName().getSuffix();
+        }
+        if (expression instanceof DereferenceExpression) {
+            return ((DereferenceExpression) expression).getFieldName();
+        }
+        return null;
+    }
+}
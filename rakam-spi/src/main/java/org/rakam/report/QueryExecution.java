@@ -8,6 +8,14 @@ public interface QueryExecution {
     QueryStats currentStats();
     boolean isFinished();
     CompletableFuture<QueryResult> getResult();
+
+    /**
+     * Returns the rows after the offset that are fetched while the query is running,
+     * null if the execution doesn't support partial results.
+     */
+    default QueryResult getPartialResult(int offset) {
+        return null;
+    }
     String getQuery();
     void kill();
 
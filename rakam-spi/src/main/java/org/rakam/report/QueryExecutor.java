@@ -20,4 +20,12 @@ public interface QueryExecutor
     QueryExecution executeRawStatement(String sqlQuery);
 
     String formatTableReference(String project, QualifiedName name, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema);
+
+    /**
+     * Formats the reference of the _all table for a query that only reads the collections and the days in the filter,
+     * the executors that can't prune the collections ignore the filter.
+     */
+    default String formatAllCollectionsReference(String project, AllCollectionsFilter filter, Optional<QuerySampling> sample, Map<String, String> sessionParameters, String defaultSchema) {
+        return formatTableReference(project, QualifiedName.of("_all"), sample, sessionParameters, defaultSchema);
+    }
 }
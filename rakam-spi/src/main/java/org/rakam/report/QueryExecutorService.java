@@ -80,7 +80,7 @@ public class QueryExecutorService
         long startTime = System.currentTimeMillis();
 
         List<MaterializedViewExecution> queryExecutions = materializedViews.values().stream()
-                .filter(m -> m.queryExecution != null)
+                .filter(m -> m.queryExecution != null && m.waitForUpdate)
                 .collect(Collectors.toList());
 
         if (queryExecutions.isEmpty()) {
@@ -167,7 +167,6 @@ public class QueryExecutorService
     public String buildQuery(String project, String query, Optional<QuerySampling> sample, String defaultSchema, Integer maxLimit, Map<MaterializedView, MaterializedViewExecution> materializedViews, Map<String, String> sessionParameters)
     {
         Query statement;
-        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters);
         synchronized (parser) {
             Statement queryStatement = parser.createStatement(query);
             if ((queryStatement instanceof Query)) {
@@ -175,7 +174,7 @@ public class QueryExecutorService
             }
             else if ((queryStatement instanceof Call)) {
                 StringBuilder builder = new StringBuilder();
-                new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
+                new RakamSqlFormatter.Formatter(builder, tableNameMapper(project, materializedViews, sample, defaultSchema, sessionParameters, AllCollectionsFilter.NONE), escapeIdentifier)
                         .process(queryStatement, 1);
                 return builder.toString();
             }
@@ -184,6 +183,10 @@ public class QueryExecutorService
             }
         }
 
+        // the collections that the query can't read are left out of the _all table
+        Function<QualifiedName, String> tableNameMapper = tableNameMapper(project, materializedViews, sample, defaultSchema,
+                sessionParameters, AllCollectionsFilter.extract(statement));
+
         StringBuilder builder = new StringBuilder();
         new RakamSqlFormatter.Formatter(builder, tableNameMapper, escapeIdentifier)
                 .process(statement, 1);
@@ -209,7 +212,7 @@ public class QueryExecutorService
         return builder.toString();
     }
 
-    private Function<QualifiedName, String> tableNameMapper(String project, Map<MaterializedView, MaterializedViewExecution> materializedViews, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters)
+    private Function<QualifiedName, String> tableNameMapper(String project, Map<MaterializedView, MaterializedViewExecution> materializedViews, Optional<QuerySampling> sample, String defaultSchema, Map<String, String> sessionParameters, AllCollectionsFilter allCollectionsFilter)
     {
         return (node) -> {
             if (node.getPrefix().isPresent() && node.getPrefix().get().toString().equals("materialized")) {
@@ -229,6 +232,10 @@ public class QueryExecutorService
                 return materializedViewExecution.computeQuery;
             }
 
+            if (AllCollectionsFilter.isAllCollections(node)) {
+                return executor.formatAllCollectionsReference(project, allCollectionsFilter, sample, sessionParameters, defaultSchema);
+            }
+
             return executor.formatTableReference(project, node, sample, sessionParameters, defaultSchema);
         };
     }
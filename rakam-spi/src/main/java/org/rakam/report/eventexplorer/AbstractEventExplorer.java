@@ -4,10 +4,17 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.DefaultExpressionTraversalVisitor;
 import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.QualifiedNameReference;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.metadata.CollectionStatistics;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
+import org.rakam.analysis.metadata.CollectionStatisticsService.DateRange;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
@@ -15,12 +22,15 @@ import org.rakam.report.QueryResult;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.util.JsonHelper;
 import org.rakam.util.RakamException;
+import org.rakam.util.TDigest;
 
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,12 +44,17 @@ import java.util.stream.Stream;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
 import static java.time.temporal.ChronoUnit.DAYS;
+import static org.rakam.analysis.EventExplorer.Accuracy.EXACT;
+import static org.rakam.analysis.EventExplorer.Accuracy.FAST;
 import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
 import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
+import static org.rakam.analysis.EventExplorer.TimestampTransformation.DAY;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.fromString;
 import static org.rakam.collection.SchemaField.stripName;
+import static org.rakam.report.realtime.AggregationType.APPROXIMATE_UNIQUE;
 import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.COUNT_UNIQUE;
 import static org.rakam.util.DateTimeUtils.TIMESTAMP_FORMATTER;
 import static org.rakam.util.ValidationUtil.checkCollection;
 import static org.rakam.util.ValidationUtil.checkProject;
@@ -59,16 +74,27 @@ public abstract class AbstractEventExplorer
     private final Map<TimestampTransformation, String> timestampMapping;
     private final MaterializedViewService materializedViewService;
     private final ContinuousQueryService continuousQueryService;
+    private final CollectionStatisticsService statistics;
 
     public AbstractEventExplorer(QueryExecutorService executor,
             MaterializedViewService materializedViewService,
             ContinuousQueryService continuousQueryService,
             Map<TimestampTransformation, String> timestampMapping)
+    {
+        this(executor, materializedViewService, continuousQueryService, null, timestampMapping);
+    }
+
+    public AbstractEventExplorer(QueryExecutorService executor,
+            MaterializedViewService materializedViewService,
+            ContinuousQueryService continuousQueryService,
+            CollectionStatisticsService statistics,
+            Map<TimestampTransformation, String> timestampMapping)
     {
         this.executor = executor;
         this.timestampMapping = timestampMapping;
         this.materializedViewService = materializedViewService;
         this.continuousQueryService = continuousQueryService;
+        this.statistics = statistics;
     }
 
     public static void checkReference(Map<TimestampTransformation, String> timestampMapping, String refValue, Instant startDate, Instant endDate, int size)
@@ -152,9 +178,46 @@ public abstract class AbstractEventExplorer
             String filterExpression,
             Instant startDate,
             Instant endDate)
+    {
+        return analyze(project, collections, measure, grouping, segmentValue2, filterExpression, startDate, endDate, EXACT);
+    }
+
+    @Override
+    public QueryExecution analyze(
+            String project,
+            List<String> collections,
+            Measure measure, Reference grouping,
+            Reference segmentValue2,
+            String filterExpression,
+            Instant startDate,
+            Instant endDate,
+            Accuracy accuracy)
     {
         Reference segment = segmentValue2 == null ? DEFAULT_SEGMENT : segmentValue2;
 
+        if (accuracy == FAST) {
+            // the time filter already includes the whole day of the end date
+            startDate = startDate.truncatedTo(DAYS);
+            endDate = endDate.truncatedTo(DAYS);
+        }
+
+        if (statistics != null && accuracy != EXACT) {
+            // the days at the both ends of the range that don't have any events are not scanned
+            Optional<DateRange> dataRange = statistics.getDataRange(project, collections,
+                    toDate(startDate), toDate(endDate).plusDays(1));
+            if (!dataRange.isPresent()) {
+                return QueryExecution.completedQueryExecution(null, QueryResult.empty());
+            }
+            Instant dataStart = dataRange.get().startDate.atStartOfDay(ZoneOffset.UTC).toInstant();
+            Instant dataEnd = dataRange.get().endDate.atStartOfDay(ZoneOffset.UTC).toInstant();
+            // the time filter includes the day after the end date
+            if (dataStart.isAfter(endDate)) {
+                dataStart = endDate;
+            }
+            startDate = dataStart.isAfter(startDate) ? dataStart : startDate;
+            endDate = dataEnd.isBefore(endDate) ? dataEnd : endDate;
+        }
+
         if (grouping != null && grouping.type == REFERENCE) {
             checkReference(timestampMapping, grouping.value, startDate, endDate, collections.size());
         }
@@ -162,6 +225,12 @@ public abstract class AbstractEventExplorer
             checkReference(timestampMapping, segment.value, startDate, endDate, collections.size());
         }
 
+        Optional<QueryResult> statisticsResult = getResultFromStatistics(project, collections, measure,
+                grouping, segment, filterExpression, startDate, endDate, accuracy);
+        if (statisticsResult.isPresent()) {
+            return QueryExecution.completedQueryExecution(null, statisticsResult.get());
+        }
+
         Predicate<OLAPTable> groupedMetricsPredicate = options -> {
             Expression filterExp;
             if (filterExpression != null) {
@@ -341,6 +410,187 @@ public abstract class AbstractEventExplorer
         });
     }
 
+    /**
+     * Answers the queries on the collections in whole days from the statistics that are collected at ingestion time.
+     * The events are counted from the row counts, the users are estimated from the HyperLogLog sketches and the
+     * numeric fields are answered from the t-digests of the days which are merged if the query is not grouped by day.
+     */
+    private Optional<QueryResult> getResultFromStatistics(String project, List<String> collections, Measure measure,
+            Reference grouping, Reference segment, String filterExpression, Instant startDate, Instant endDate, Accuracy accuracy)
+    {
+        AggregationType aggregation = measure == null || measure.aggregation == null ? COUNT : measure.aggregation;
+        String column = measure == null ? null : measure.column;
+        boolean count = aggregation == COUNT && column == null;
+        boolean daily = grouping != null && grouping.type == REFERENCE && fromString(grouping.value.replace(" ", "_")) == DAY;
+
+        if (statistics == null || accuracy == EXACT || filterExpression != null || (grouping != null && !daily)
+                || !(count || canAnswerFromSketches(aggregation, column, accuracy))
+                || segment == null || segment.type != COLUMN || !segment.value.equals(DEFAULT_SEGMENT.value)
+                || !isStartOfDay(startDate) || !isStartOfDay(endDate)
+                || !statistics.isComplete(project, collections, toDate(startDate))) {
+            return Optional.empty();
+        }
+
+        LocalDate startDay = toDate(startDate);
+        LocalDate endDay = toDate(endDate);
+        List<List<Object>> rows = new ArrayList<>();
+        for (String collection : collections) {
+            if (count) {
+                Map<LocalDate, Long> values = statistics.getRowCounts(project, collection, startDay, endDay);
+                if (daily) {
+                    values.forEach((day, value) -> rows.add(ImmutableList.of(day, collection, value)));
+                }
+                else {
+                    long total = values.values().stream().mapToLong(Long::longValue).sum();
+                    if (total > 0) {
+                        rows.add(ImmutableList.of(collection, total));
+                    }
+                }
+                continue;
+            }
+
+            Map<LocalDate, CollectionStatistics> days = statistics.getStatistics(project, collection, startDay, endDay);
+            if (!daily) {
+                CollectionStatistics merged = new CollectionStatistics();
+                days.values().forEach(merged::merge);
+                days = ImmutableMap.of(startDay, merged);
+            }
+
+            for (Map.Entry<LocalDate, CollectionStatistics> day : days.entrySet()) {
+                if (day.getValue().getRowCount() == 0) {
+                    continue;
+                }
+
+                Number value;
+                if (column.equals("_user")) {
+                    value = day.getValue().getUniqueUsers();
+                }
+                else {
+                    TDigest digest = day.getValue().getDistribution(column);
+                    if (digest == null) {
+                        return Optional.empty();
+                    }
+                    value = getValueFromDigest(digest, aggregation);
+                }
+
+                if (value != null) {
+                    rows.add(daily ? ImmutableList.of(day.getKey(), collection, value) : ImmutableList.of(collection, value));
+                }
+            }
+        }
+        rows.sort(Comparator.comparing((List<Object> row) -> ((Number) row.get(row.size() - 1)).doubleValue()).reversed());
+
+        FieldType valueType = count || column.equals("_user") ? FieldType.LONG : FieldType.DOUBLE;
+        List<SchemaField> metadata = daily ?
+                ImmutableList.of(new SchemaField("_time_group", FieldType.DATE),
+                        new SchemaField("_collection_segment", FieldType.STRING),
+                        new SchemaField("value", valueType)) :
+                ImmutableList.of(new SchemaField("_collection_segment", FieldType.STRING),
+                        new SchemaField("value", valueType));
+        QueryResult result = new QueryResult(metadata, rows);
+        result.setProperty("collectionStatistics", true);
+        return Optional.of(result);
+    }
+
+    private static boolean canAnswerFromSketches(AggregationType aggregation, String column, Accuracy accuracy)
+    {
+        if (column == null) {
+            return false;
+        }
+
+        if (column.equals("_user")) {
+            return aggregation == APPROXIMATE_UNIQUE || (aggregation == COUNT_UNIQUE && accuracy == FAST);
+        }
+
+        switch (aggregation) {
+            case APPROXIMATE_MEDIAN:
+            case APPROXIMATE_PERCENTILE_90:
+            case APPROXIMATE_PERCENTILE_99:
+                return true;
+            case COUNT:
+            case SUM:
+            case AVERAGE:
+            case MINIMUM:
+            case MAXIMUM:
+                // the digests keep the sums in floating point
+                return accuracy == FAST;
+            default:
+                return false;
+        }
+    }
+
+    private static Number getValueFromDigest(TDigest digest, AggregationType aggregation)
+    {
+        if (aggregation == COUNT) {
+            return digest.getCount();
+        }
+        if (digest.getCount() == 0) {
+            return null;
+        }
+
+        switch (aggregation) {
+            case SUM:
+                return digest.getSum();
+            case AVERAGE:
+                return digest.getSum() / digest.getCount();
+            case MINIMUM:
+                return digest.getMin();
+            case MAXIMUM:
+                return digest.getMax();
+            default:
+                return digest.quantile(aggregation.getQuantile());
+        }
+    }
+
+    /**
+     * Answers the event counts of the collections in whole days from the statistics that are collected at ingestion time.
+     */
+    protected Optional<QueryResult> getEventStatisticsFromStatistics(String project,
+            Optional<Set<String>> collections,
+            Optional<String> dimension, Instant startDate, Instant endDate, Accuracy accuracy)
+    {
+        boolean daily = dimension.isPresent() && TimestampTransformation.fromPrettyName(dimension.get()).orElse(null) == DAY;
+        if (statistics == null || accuracy == EXACT || !collections.isPresent() || (dimension.isPresent() && !daily)
+                || !isStartOfDay(startDate) || !isStartOfDay(endDate)
+                || !statistics.isComplete(project, collections.get(), toDate(startDate))) {
+            return Optional.empty();
+        }
+
+        List<List<Object>> rows = new ArrayList<>();
+        for (String collection : collections.get()) {
+            Map<LocalDate, Long> counts = statistics.getRowCounts(project, collection, toDate(startDate), toDate(endDate));
+            if (daily) {
+                counts.forEach((day, count) -> rows.add(ImmutableList.of(collection, day, count)));
+            }
+            else {
+                rows.add(ImmutableList.of(collection, counts.values().stream().mapToLong(Long::longValue).sum()));
+            }
+        }
+
+        List<SchemaField> metadata = daily ?
+                ImmutableList.of(new SchemaField("collection", FieldType.STRING),
+                        new SchemaField("day", FieldType.DATE),
+                        new SchemaField("total", FieldType.LONG)) :
+                ImmutableList.of(new SchemaField("collection", FieldType.STRING),
+                        new SchemaField("total", FieldType.LONG));
+        if (daily) {
+            rows.sort(Comparator.comparing((List<Object> row) -> (LocalDate) row.get(1)).reversed());
+        }
+        QueryResult result = new QueryResult(metadata, rows);
+        result.setProperty("collectionStatistics", true);
+        return Optional.of(result);
+    }
+
+    private static boolean isStartOfDay(Instant instant)
+    {
+        return instant.truncatedTo(DAYS).equals(instant);
+    }
+
+    private static LocalDate toDate(Instant instant)
+    {
+        return instant.atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
     protected String generateComputeQuery(Reference grouping, Reference segment, String collection)
     {
         StringBuilder selectBuilder = new StringBuilder();
@@ -407,6 +657,14 @@ public abstract class AbstractEventExplorer
     public CompletableFuture<QueryResult> getEventStatistics(String project,
             Optional<Set<String>> collections,
             Optional<String> dimension, Instant startDate, Instant endDate)
+    {
+        return getEventStatistics(project, collections, dimension, startDate, endDate, EXACT);
+    }
+
+    @Override
+    public CompletableFuture<QueryResult> getEventStatistics(String project,
+            Optional<Set<String>> collections,
+            Optional<String> dimension, Instant startDate, Instant endDate, Accuracy accuracy)
     {
         checkProject(project);
 
@@ -418,6 +676,11 @@ public abstract class AbstractEventExplorer
             checkReference(timestampMapping, dimension.get(), startDate, endDate, collections.map(v -> v.size()).orElse(10));
         }
 
+        Optional<QueryResult> statisticsResult = getEventStatisticsFromStatistics(project, collections, dimension, startDate, endDate, accuracy);
+        if (statisticsResult.isPresent()) {
+            return CompletableFuture.completedFuture(statisticsResult.get());
+        }
+
         String timePredicate = format("\"week\" between cast(date_trunc('week', timestamp '%s') as date) and cast(date_trunc('week', timestamp '%s') as date) and \n" +
                         "\"_time\" between timestamp '%s' and timestamp '%s' + interval '1' day",
                 TIMESTAMP_FORMATTER.format(startDate), TIMESTAMP_FORMATTER.format(endDate),
@@ -11,7 +11,27 @@ public enum AggregationType {
     MINIMUM,
     MAXIMUM,
     AVERAGE,
-    APPROXIMATE_UNIQUE;
+    APPROXIMATE_UNIQUE,
+    APPROXIMATE_MEDIAN(.5),
+    APPROXIMATE_PERCENTILE_90(.9),
+    APPROXIMATE_PERCENTILE_99(.99);
+
+    private final Double quantile;
+
+    AggregationType() {
+        this(null);
+    }
+
+    AggregationType(Double quantile) {
+        this.quantile = quantile;
+    }
+
+    /**
+     * Returns the quantile that is estimated by the percentile aggregations.
+     */
+    public Double getQuantile() {
+        return quantile;
+    }
 
     @JsonCreator
     public static AggregationType get(String name) {
@@ -0,0 +1,129 @@
+package org.rakam.util;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps a local copy of the lookup databases such as the GeoIP files, the gzipped databases are extracted
+ * next to the downloaded file.
+ */
+public final class DatabaseDownloader
+{
+    public static final File DEFAULT_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "rakam");
+
+    private DatabaseDownloader()
+    {
+    }
+
+    public static File downloadOrGetFile(URL url)
+            throws Exception
+    {
+        return downloadOrGetFile(url, DEFAULT_DIRECTORY);
+    }
+
+    public static File downloadOrGetFile(URL url, File directory)
+            throws Exception
+    {
+        if ("file".equals(url.getProtocol())) {
+            return new File(url.toString().substring("file:/".length()));
+        }
+
+        File data = new File(directory, getFileName(url));
+        directory.mkdirs();
+
+        if (isGzip(data)) {
+            File extractedFile = new File(directory, Files.getNameWithoutExtension(data.getName()));
+            if (extractedFile.exists()) {
+                return extractedFile;
+            }
+
+            if (!data.exists()) {
+                new HttpDownloadHelper().download(url, data.toPath(), new HttpDownloadHelper.VerboseProgress(System.out));
+            }
+
+            extract(data, extractedFile);
+            data.delete();
+
+            return extractedFile;
+        }
+
+        if (!data.exists()) {
+            new HttpDownloadHelper().download(url, data.toPath(), new HttpDownloadHelper.VerboseProgress(System.out));
+        }
+
+        return data;
+    }
+
+    public static File downloadIfModified(URL url, long lastModified)
+            throws Exception
+    {
+        return downloadIfModified(url, DEFAULT_DIRECTORY, lastModified);
+    }
+
+    /**
+     * Fetches the database only if the remote file is modified after the given timestamp and replaces the local copy
+     * atomically, the readers that map the previous file are not affected. Returns null if the database is not modified.
+     */
+    public static File downloadIfModified(URL url, File directory, long lastModified)
+            throws Exception
+    {
+        if ("file".equals(url.getProtocol())) {
+            File file = new File(url.toString().substring("file:/".length()));
+            return file.lastModified() > lastModified ? file : null;
+        }
+
+        String name = getFileName(url);
+        directory.mkdirs();
+
+        File download = new File(directory, name + ".download");
+        if (!new HttpDownloadHelper().downloadIfModified(url, download.toPath(), lastModified, null)) {
+            return null;
+        }
+
+        File target = new File(directory, name);
+        if (isGzip(target)) {
+            target = new File(directory, Files.getNameWithoutExtension(name));
+
+            File extracted = new File(directory, target.getName() + ".download");
+            extract(download, extracted);
+            extracted.setLastModified(download.lastModified());
+            download.delete();
+            download = extracted;
+        }
+
+        java.nio.file.Files.move(download.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        return target;
+    }
+
+    private static String getFileName(URL url)
+    {
+        return url.getFile().substring(url.getFile().lastIndexOf('/') + 1);
+    }
+
+    private static boolean isGzip(File file)
+    {
+        return Files.getFileExtension(file.getName()).equals("gz");
+    }
+
+    private static void extract(File gzipFile, File target)
+            throws IOException
+    {
+        try (GZIPInputStream gzipInputStream = new GZIPInputStream(new FileInputStream(gzipFile));
+                FileOutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = gzipInputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.rakam.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The request and response counters of a named HTTP client since the server is started.
+ */
+public class HttpClientStats
+{
+    private final AtomicLong successful = new AtomicLong();
+    private final AtomicLong clientErrors = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong activeRequests = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void requestStarted()
+    {
+        activeRequests.incrementAndGet();
+    }
+
+    public void responseReceived(int statusCode, long startNanos)
+    {
+        if (statusCode >= 500) {
+            serverErrors.incrementAndGet();
+        }
+        else if (statusCode >= 400) {
+            clientErrors.incrementAndGet();
+        }
+        else {
+            successful.incrementAndGet();
+        }
+        finish(startNanos);
+    }
+
+    public void requestFailed(long startNanos)
+    {
+        failures.incrementAndGet();
+        finish(startNanos);
+    }
+
+    private void finish(long startNanos)
+    {
+        activeRequests.decrementAndGet();
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    public StatsSnapshot snapshot()
+    {
+        long successful = this.successful.get();
+        long clientErrors = this.clientErrors.get();
+        long serverErrors = this.serverErrors.get();
+        long failures = this.failures.get();
+        long count = successful + clientErrors + serverErrors + failures;
+        long totalMicros = this.totalMicros.get();
+        return new StatsSnapshot(count, successful, clientErrors, serverErrors, failures, activeRequests.get(),
+                count == 0 ? 0 : totalMicros / count, maxMicros.get());
+    }
+
+    public static class StatsSnapshot
+    {
+        public final long count;
+        public final long successful;
+        public final long clientErrors;
+        public final long serverErrors;
+        public final long failures;
+        public final long activeRequests;
+        public final long averageMicros;
+        public final long maxMicros;
+
+        public StatsSnapshot(long count, long successful, long clientErrors, long serverErrors, long failures, long activeRequests, long averageMicros, long maxMicros)
+        {
+            this.count = count;
+            this.successful = successful;
+            this.clientErrors = clientErrors;
+            this.serverErrors = serverErrors;
+            this.failures = failures;
+            this.activeRequests = activeRequests;
+            this.averageMicros = averageMicros;
+            this.maxMicros = maxMicros;
+        }
+    }
+}
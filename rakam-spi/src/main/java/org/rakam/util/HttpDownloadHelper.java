@@ -16,7 +16,7 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-package org.rakam.collection.mapper.geoip.maxmind;
+package org.rakam.util;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -51,11 +51,6 @@ public class HttpDownloadHelper
             return true;
         }
 
-        //don't do any progress, unless asked
-        if (progress == null) {
-            progress = new NullProgress();
-        }
-
         //set the timestamp to the file date.
         long timestamp = 0;
 
@@ -65,6 +60,28 @@ public class HttpDownloadHelper
             hasTimestamp = true;
         }
 
+        return download(source, dest, hasTimestamp, timestamp, progress);
+    }
+
+    /**
+     * Downloads the source only if it's modified after the given timestamp, the downloaded file gets the
+     * timestamp of the remote file. Returns false if the remote file is not modified.
+     */
+    public boolean downloadIfModified(URL source, Path dest, long ifModifiedSince, DownloadProgress progress)
+            throws Exception
+    {
+        useTimestamp = true;
+        return download(source, dest, true, ifModifiedSince, progress);
+    }
+
+    private boolean download(URL source, Path dest, boolean hasTimestamp, long timestamp, DownloadProgress progress)
+            throws Exception
+    {
+        //don't do any progress, unless asked
+        if (progress == null) {
+            progress = new NullProgress();
+        }
+
         GetThread getThread = new GetThread(source, dest, hasTimestamp, timestamp, progress);
 
         try {
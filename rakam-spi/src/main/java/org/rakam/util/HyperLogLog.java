@@ -0,0 +1,115 @@
+package org.rakam.util;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Dense HyperLogLog sketch that estimates the number of distinct values with a fixed amount of memory. The
+ * sketches that have the same precision can be merged, the standard error is 1.04 / sqrt(2 ^ precision).
+ */
+public class HyperLogLog
+{
+    public static final int DEFAULT_PRECISION = 11;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final byte[] registers;
+    private final int precision;
+
+    public HyperLogLog()
+    {
+        this(DEFAULT_PRECISION);
+    }
+
+    public HyperLogLog(int precision)
+    {
+        checkArgument(precision >= 4 && precision <= 16, "precision must be between 4 and 16");
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    private HyperLogLog(int precision, byte[] registers)
+    {
+        this.precision = precision;
+        this.registers = registers;
+    }
+
+    public void add(String value)
+    {
+        addHash(HASH_FUNCTION.hashString(value, UTF_8).asLong());
+    }
+
+    public void add(long value)
+    {
+        addHash(HASH_FUNCTION.hashLong(value).asLong());
+    }
+
+    public void addHash(long hash)
+    {
+        int index = (int) (hash >>> (64 - precision));
+        // the guard bit limits the rank to the number of bits that are not used by the index
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    public void merge(HyperLogLog other)
+    {
+        checkArgument(other.precision == precision, "Sketches with different precisions cannot be merged");
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long cardinality()
+    {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = (0.7213 / (1 + 1.079 / m)) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate for the small cardinalities
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public HyperLogLog copy()
+    {
+        return new HyperLogLog(precision, registers.clone());
+    }
+
+    @JsonValue
+    public byte[] toBytes()
+    {
+        byte[] bytes = new byte[registers.length + 1];
+        bytes[0] = (byte) precision;
+        System.arraycopy(registers, 0, bytes, 1, registers.length);
+        return bytes;
+    }
+
+    @JsonCreator
+    public static HyperLogLog fromBytes(byte[] bytes)
+    {
+        int precision = bytes[0];
+        checkArgument(precision >= 4 && precision <= 16 && bytes.length == (1 << precision) + 1, "Invalid sketch");
+        return new HyperLogLog(precision, Arrays.copyOfRange(bytes, 1, bytes.length));
+    }
+}
@@ -0,0 +1,184 @@
+package org.rakam.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import io.airlift.http.client.HttpClientConfig;
+import io.airlift.http.client.HttpClient.HttpResponseFuture;
+import io.airlift.http.client.HttpRequestFilter;
+import io.airlift.http.client.Request;
+import io.airlift.http.client.Response;
+import io.airlift.http.client.ResponseHandler;
+import io.airlift.http.client.jetty.JettyHttpClient;
+import io.airlift.http.client.jetty.JettyIoPool;
+import io.airlift.http.client.jetty.JettyIoPoolConfig;
+import org.rakam.config.HttpClientPoolConfig;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HTTP clients of the backend connectors. The clients are created once for each name and share a single IO
+ * thread pool so that the number of threads and sockets doesn't grow with the number of connectors. The connection
+ * pool of each client is bounded for each destination and the requests over the limit are queued up to a limit.
+ * The instance is a singleton of the injector so the clients are closed when the server is stopped.
+ */
+public class SharedHttpClients
+{
+    private final Map<String, JettyHttpClient> clients = new ConcurrentHashMap<>();
+    private final Map<String, HttpClientStats> stats = new ConcurrentHashMap<>();
+    private final HttpClientPoolConfig poolConfig;
+    private JettyIoPool ioPool;
+
+    @Inject
+    public SharedHttpClients(HttpClientPoolConfig poolConfig)
+    {
+        this.poolConfig = poolConfig;
+    }
+
+    public HttpClientPoolConfig getPoolConfig()
+    {
+        return poolConfig;
+    }
+
+    /**
+     * @return the configuration of the clients with the limits of the pool, the connectors may override the timeouts
+     */
+    public HttpClientConfig createConfig()
+    {
+        return new HttpClientConfig()
+                .setConnectTimeout(poolConfig.getConnectTimeout())
+                .setIdleTimeout(poolConfig.getIdleTimeout())
+                .setMaxConnectionsPerServer(poolConfig.getMaxConnectionsPerDestination())
+                .setMaxRequestsQueuedPerDestination(poolConfig.getMaxQueuedRequestsPerDestination())
+                .setHttp2Enabled(poolConfig.isHttp2Enabled())
+                .setSocksProxy(getSystemSocksProxy());
+    }
+
+    public JettyHttpClient getClient(String name)
+    {
+        return getClient(name, createConfig(), ImmutableSet.of());
+    }
+
+    /**
+     * Returns the client with the given name, the configuration is only used when the client is created for the first time.
+     */
+    public synchronized JettyHttpClient getClient(String name, HttpClientConfig config, Iterable<? extends HttpRequestFilter> filters)
+    {
+        JettyHttpClient client = clients.get(name);
+        if (client == null) {
+            if (ioPool == null) {
+                ioPool = new JettyIoPool("rakam-http-client", new JettyIoPoolConfig()
+                        .setMaxThreads(poolConfig.getIoThreads())
+                        .setMinThreads(Math.min(8, poolConfig.getIoThreads())));
+            }
+            client = new InstrumentedHttpClient(config, ioPool, filters, getStats(name));
+            clients.put(name, client);
+        }
+        return client;
+    }
+
+    /**
+     * Returns the counters of the client with the given name, the clients that are not created by this class
+     * record their requests to it.
+     */
+    public HttpClientStats getStats(String name)
+    {
+        return stats.computeIfAbsent(name, key -> new HttpClientStats());
+    }
+
+    public Map<String, HttpClientStats.StatsSnapshot> getStats()
+    {
+        ImmutableMap.Builder<String, HttpClientStats.StatsSnapshot> builder = ImmutableMap.builder();
+        stats.forEach((name, clientStats) -> builder.put(name, clientStats.snapshot()));
+        return builder.build();
+    }
+
+    @PreDestroy
+    public synchronized void close()
+    {
+        clients.values().forEach(JettyHttpClient::close);
+        clients.clear();
+        if (ioPool != null) {
+            ioPool.close();
+            ioPool = null;
+        }
+    }
+
+    public static HostAndPort getSystemSocksProxy()
+    {
+        URI uri = URI.create("socket://0.0.0.0:80");
+        for (Proxy proxy : ProxySelector.getDefault().select(uri)) {
+            if (proxy.type() == Proxy.Type.SOCKS &&
+                    proxy.address() instanceof InetSocketAddress) {
+                InetSocketAddress address = (InetSocketAddress) proxy.address();
+                return HostAndPort.fromParts(address.getHostString(), address.getPort());
+            }
+        }
+        return null;
+    }
+
+    private static class InstrumentedHttpClient
+            extends JettyHttpClient
+    {
+        private final HttpClientStats stats;
+
+        public InstrumentedHttpClient(HttpClientConfig config, JettyIoPool ioPool, Iterable<? extends HttpRequestFilter> filters, HttpClientStats stats)
+        {
+            super(config, ioPool, filters);
+            this.stats = stats;
+        }
+
+        @Override
+        public <T, E extends Exception> T execute(Request request, ResponseHandler<T, E> responseHandler)
+                throws E
+        {
+            return super.execute(request, new StatsResponseHandler<>(responseHandler, stats));
+        }
+
+        @Override
+        public <T, E extends Exception> HttpResponseFuture<T> executeAsync(Request request, ResponseHandler<T, E> responseHandler)
+        {
+            return super.executeAsync(request, new StatsResponseHandler<>(responseHandler, stats));
+        }
+    }
+
+    private static class StatsResponseHandler<T, E extends Exception>
+            implements ResponseHandler<T, E>
+    {
+        private final ResponseHandler<T, E> delegate;
+        private final HttpClientStats stats;
+        private final long startNanos;
+
+        public StatsResponseHandler(ResponseHandler<T, E> delegate, HttpClientStats stats)
+        {
+            this.delegate = delegate;
+            this.stats = stats;
+            this.startNanos = System.nanoTime();
+            stats.requestStarted();
+        }
+
+        @Override
+        public T handleException(Request request, Exception exception)
+                throws E
+        {
+            stats.requestFailed(startNanos);
+            return delegate.handleException(request, exception);
+        }
+
+        @Override
+        public T handle(Request request, Response response)
+                throws E
+        {
+            stats.responseReceived(response.getStatusCode(), startNanos);
+            return delegate.handle(request, response);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.rakam.util;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Merging t-digest that estimates the quantiles of a distribution with a bounded number of centroids. The
+ * centroids near the tails are kept small so the extreme quantiles are more accurate than the median, the
+ * digests can be merged without losing more accuracy than the compression allows.
+ */
+public class TDigest
+{
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private final double compression;
+    private double[] means;
+    private long[] counts;
+    private int size;
+
+    private final double[] buffer;
+    private int bufferSize;
+
+    private long totalCount;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest()
+    {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(double compression)
+    {
+        checkArgument(compression >= 10, "compression must be at least 10");
+        this.compression = compression;
+        // the number of centroids can't be more than ceil(compression * pi / 2) with the scale that is used
+        this.means = new double[(int) Math.ceil(compression * 2)];
+        this.counts = new long[means.length];
+        this.buffer = new double[(int) compression * 5];
+    }
+
+    public void add(double value)
+    {
+        checkArgument(!Double.isNaN(value), "value cannot be NaN");
+        if (bufferSize == buffer.length) {
+            compress();
+        }
+        buffer[bufferSize++] = value;
+        totalCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(TDigest other)
+    {
+        other.compress();
+        if (other.size == 0) {
+            return;
+        }
+        compress();
+        merge(other.means, other.counts, other.size);
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount()
+    {
+        return totalCount;
+    }
+
+    public double getMin()
+    {
+        return min;
+    }
+
+    public double getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns the sum of the values, it's exact apart from the floating point errors since the centroids keep their means.
+     */
+    public double getSum()
+    {
+        compress();
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += means[i] * counts[i];
+        }
+        return sum;
+    }
+
+    public double quantile(double quantile)
+    {
+        checkArgument(quantile >= 0 && quantile <= 1, "quantile must be between 0 and 1");
+        compress();
+        if (size == 0) {
+            return Double.NaN;
+        }
+        if (size == 1) {
+            return means[0];
+        }
+
+        double index = quantile * totalCount;
+        if (index <= counts[0] / 2.0) {
+            // interpolate between the minimum and the center of the first centroid
+            return min + (means[0] - min) * index / (counts[0] / 2.0);
+        }
+
+        double weightSoFar = counts[0] / 2.0;
+        for (int i = 0; i < size - 1; i++) {
+            double distance = (counts[i] + counts[i + 1]) / 2.0;
+            if (weightSoFar + distance >= index) {
+                double fraction = (index - weightSoFar) / distance;
+                return means[i] + (means[i + 1] - means[i]) * fraction;
+            }
+            weightSoFar += distance;
+        }
+
+        double lastHalf = counts[size - 1] / 2.0;
+        double fraction = Math.min(1, (index - weightSoFar) / lastHalf);
+        return means[size - 1] + (max - means[size - 1]) * fraction;
+    }
+
+    public TDigest copy()
+    {
+        compress();
+        TDigest copy = new TDigest(compression);
+        copy.means = Arrays.copyOf(means, means.length);
+        copy.counts = Arrays.copyOf(counts, counts.length);
+        copy.size = size;
+        copy.totalCount = totalCount;
+        copy.min = min;
+        copy.max = max;
+        return copy;
+    }
+
+    private void compress()
+    {
+        if (bufferSize == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, bufferSize);
+        long[] ones = new long[bufferSize];
+        Arrays.fill(ones, 1);
+        int added = bufferSize;
+        bufferSize = 0;
+        merge(Arrays.copyOf(buffer, added), ones, added);
+    }
+
+    private void merge(double[] otherMeans, long[] otherCounts, int otherSize)
+    {
+        int total = size + otherSize;
+        double[] sortedMeans = new double[total];
+        long[] sortedCounts = new long[total];
+
+        // both of the centroid lists are sorted by their means
+        int i = 0, j = 0, k = 0;
+        while (i < size || j < otherSize) {
+            if (j >= otherSize || (i < size && means[i] <= otherMeans[j])) {
+                sortedMeans[k] = means[i];
+                sortedCounts[k++] = counts[i++];
+            }
+            else {
+                sortedMeans[k] = otherMeans[j];
+                sortedCounts[k++] = otherCounts[j++];
+            }
+        }
+
+        long weight = 0;
+        for (int c = 0; c < total; c++) {
+            weight += sortedCounts[c];
+        }
+
+        double[] newMeans = new double[means.length];
+        long[] newCounts = new long[counts.length];
+        int newSize = 0;
+        newMeans[0] = sortedMeans[0];
+        newCounts[0] = sortedCounts[0];
+        long weightSoFar = 0;
+        for (int c = 1; c < total; c++) {
+            long proposed = newCounts[newSize] + sortedCounts[c];
+            double q = (weightSoFar + proposed / 2.0) / weight;
+            double limit = 4 * weight * q * (1 - q) / compression;
+
+            if (proposed <= Math.max(1, limit)) {
+                newMeans[newSize] += (sortedMeans[c] - newMeans[newSize]) * sortedCounts[c] / proposed;
+                newCounts[newSize] = proposed;
+            }
+            else {
+                weightSoFar += newCounts[newSize];
+                newSize++;
+                if (newSize == newMeans.length) {
+                    newMeans = Arrays.copyOf(newMeans, newMeans.length * 2);
+                    newCounts = Arrays.copyOf(newCounts, newCounts.length * 2);
+                }
+                newMeans[newSize] = sortedMeans[c];
+                newCounts[newSize] = sortedCounts[c];
+            }
+        }
+
+        means = newMeans;
+        counts = newCounts;
+        size = newSize + 1;
+    }
+
+    @JsonValue
+    public byte[] toBytes()
+    {
+        compress();
+        ByteBuffer bytes = ByteBuffer.allocate(8 * 4 + 4 + size * 16);
+        bytes.putDouble(compression);
+        bytes.putLong(totalCount);
+        bytes.putDouble(min);
+        bytes.putDouble(max);
+        bytes.putInt(size);
+        for (int i = 0; i < size; i++) {
+            bytes.putDouble(means[i]);
+            bytes.putLong(counts[i]);
+        }
+        return bytes.array();
+    }
+
+    @JsonCreator
+    public static TDigest fromBytes(byte[] bytes)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        TDigest digest = new TDigest(buffer.getDouble());
+        digest.totalCount = buffer.getLong();
+        digest.min = buffer.getDouble();
+        digest.max = buffer.getDouble();
+        int size = buffer.getInt();
+        if (size > digest.means.length) {
+            digest.means = new double[size];
+            digest.counts = new long[size];
+        }
+        for (int i = 0; i < size; i++) {
+            digest.means[i] = buffer.getDouble();
+            digest.counts[i] = buffer.getLong();
+        }
+        digest.size = size;
+        return digest;
+    }
+}
@@ -0,0 +1,90 @@
+package org.rakam.analysis;
+
+import com.facebook.presto.sql.parser.SqlParser;
+import com.google.common.collect.ImmutableSet;
+import org.rakam.report.AllCollectionsFilter;
+import org.testng.annotations.Test;
+
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestAllCollectionsFilter
+{
+    private static AllCollectionsFilter extract(String query)
+    {
+        return AllCollectionsFilter.extract(new SqlParser().createStatement(query));
+    }
+
+    @Test
+    public void testCollectionEquality()
+    {
+        AllCollectionsFilter filter = extract("select count(*) from _all where \"$collection\" = 'pageview'");
+        assertEquals(filter.collections, Optional.of(ImmutableSet.of("pageview")));
+    }
+
+    @Test
+    public void testCollectionInList()
+    {
+        AllCollectionsFilter filter = extract("select count(*) from _all where \"$collection\" in ('pageview', 'purchase') " +
+                "and \"$collection\" in ('purchase', 'signup')");
+        assertEquals(filter.collections, Optional.of(ImmutableSet.of("purchase")));
+    }
+
+    @Test
+    public void testInListWithExpressionIsIgnored()
+    {
+        AllCollectionsFilter filter = extract("select count(*) from _all where \"$collection\" in ('pageview', lower(platform))");
+        assertFalse(filter.collections.isPresent());
+    }
+
+    @Test
+    public void testDisjunctionIsIgnored()
+    {
+        AllCollectionsFilter filter = extract("select count(*) from _all where \"$collection\" = 'pageview' or platform = 'ios'");
+        assertFalse(filter.collections.isPresent());
+    }
+
+    @Test
+    public void testNestedConjuncts()
+    {
+        AllCollectionsFilter filter = extract("select count(*) from _all where (platform = 'ios' and \"$collection\" = 'pageview') " +
+                "and _time >= timestamp '2016-10-01 00:00:00'");
+        assertEquals(filter.collections, Optional.of(ImmutableSet.of("pageview")));
+    }
+
+    @Test
+    public void testUnionOfReferences()
+    {
+        AllCollectionsFilter filter = extract("select * from (select count(*) from _all where \"$collection\" = 'pageview' " +
+                "and _time between date '2016-10-01' and date '2016-10-05') a cross join " +
+                "(select count(*) from _all where \"$collection\" = 'purchase' " +
+                "and _time between date '2016-10-03' and date '2016-10-08') b");
+        assertEquals(filter.collections, Optional.of(ImmutableSet.of("pageview", "purchase")));
+    }
+
+    @Test
+    public void testUnfilteredReference()
+    {
+        // one of the references reads all the collections
+        AllCollectionsFilter filter = extract("select * from (select count(*) from _all where \"$collection\" = 'pageview') a " +
+                "cross join (select count(*) from _all) b");
+        assertEquals(filter, AllCollectionsFilter.NONE);
+    }
+
+    @Test
+    public void testJoinedReference()
+    {
+        // the predicates of a join may be on the other table
+        AllCollectionsFilter filter = extract("select count(*) from _all join users on (users.id = _all._user) " +
+                "where \"$collection\" = 'pageview'");
+        assertEquals(filter, AllCollectionsFilter.NONE);
+    }
+
+    @Test
+    public void testQueryWithoutAllCollections()
+    {
+        assertEquals(extract("select count(*) from pageview where \"$collection\" = 'pageview'"), AllCollectionsFilter.NONE);
+    }
+}
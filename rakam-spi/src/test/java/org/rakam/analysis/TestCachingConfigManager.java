@@ -0,0 +1,140 @@
+package org.rakam.analysis;
+
+import org.rakam.TestingConfigManager;
+import org.rakam.config.ConfigManagerCacheConfig;
+import org.rakam.plugin.SystemEvents.ConfigChangedEvent;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestCachingConfigManager
+{
+    private CountingConfigManager delegate;
+    private CachingConfigManager configManager;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        delegate = new CountingConfigManager();
+        configManager = new CachingConfigManager(delegate, new ConfigManagerCacheConfig());
+    }
+
+    @Test
+    public void testReadsAreCached()
+    {
+        delegate.setConfig("project", "config", "value");
+
+        assertEquals(configManager.getConfig("project", "config", String.class), "value");
+        assertEquals(configManager.getConfig("project", "config", String.class), "value");
+        assertEquals(delegate.reads.get(), 1);
+    }
+
+    @Test
+    public void testMissingConfigIsCached()
+    {
+        assertNull(configManager.getConfig("project", "config", String.class));
+        assertNull(configManager.getConfig("project", "config", String.class));
+        assertEquals(delegate.reads.get(), 1);
+    }
+
+    @Test
+    public void testWriteThrough()
+    {
+        assertNull(configManager.getConfig("project", "config", String.class));
+        configManager.setConfig("project", "config", "value");
+
+        assertEquals(configManager.getConfig("project", "config", String.class), "value");
+        assertEquals(configManager.setConfigOnce("project", "config", "other"), "value");
+        assertEquals(delegate.reads.get(), 1);
+    }
+
+    @Test
+    public void testInvalidation()
+    {
+        delegate.setConfig("project", "config", "value");
+        assertEquals(configManager.getConfig("project", "config", String.class), "value");
+
+        delegate.setConfig("project", "config", "changed");
+        configManager.onConfigChanged(new ConfigChangedEvent("project", "config"));
+
+        assertEquals(configManager.getConfig("project", "config", String.class), "changed");
+        assertEquals(delegate.reads.get(), 2);
+    }
+
+    @Test
+    public void testExpiredMissingConfigIsReloaded()
+            throws InterruptedException
+    {
+        configManager = new CachingConfigManager(delegate, new ConfigManagerCacheConfig().setNegativeTtl("1ms"));
+        assertNull(configManager.getConfig("project", "config", String.class));
+        delegate.setConfig("project", "config", "value");
+        Thread.sleep(10);
+
+        assertEquals(configManager.getConfig("project", "config", String.class), "value");
+        assertEquals(configManager.getConfig("project", "config", String.class), "value");
+        assertEquals(delegate.reads.get(), 2);
+    }
+
+    @Test
+    public void testConcurrentLookupsReadOnce()
+            throws Exception
+    {
+        delegate.setConfig("project", "config", "value");
+        // the lookups overlap while the first read is in progress
+        delegate.delay = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> lookups = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                lookups.add(executor.submit(() -> configManager.getConfig("project", "config", String.class)));
+            }
+            for (Future<String> lookup : lookups) {
+                assertEquals(lookup.get(), "value");
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertEquals(delegate.reads.get(), 1);
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        configManager = new CachingConfigManager(delegate, new ConfigManagerCacheConfig().setTtl("0s"));
+        configManager.getConfig("project", "config", String.class);
+        configManager.getConfig("project", "config", String.class);
+        assertEquals(delegate.reads.get(), 2);
+    }
+
+    private static class CountingConfigManager
+            extends TestingConfigManager
+    {
+        private final AtomicInteger reads = new AtomicInteger();
+        private volatile long delay;
+
+        @Override
+        public synchronized <T> T getConfig(String project, String configName, Class<T> clazz)
+        {
+            reads.incrementAndGet();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getConfig(project, configName, clazz);
+        }
+    }
+}
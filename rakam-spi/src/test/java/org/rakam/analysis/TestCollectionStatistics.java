@@ -0,0 +1,285 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.avro.generic.GenericData;
+import org.rakam.analysis.metadata.CollectionStatistics;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
+import org.rakam.analysis.metadata.CollectionStatisticsService.DateRange;
+import org.rakam.analysis.metadata.StatisticsRecordingEventStore;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.config.CollectionStatisticsConfig;
+import org.rakam.plugin.EventStore;
+import org.rakam.plugin.SystemEvents.CollectionCreatedEvent;
+import org.rakam.util.AvroUtil;
+import org.rakam.util.HyperLogLog;
+import org.rakam.util.JsonHelper;
+import org.rakam.util.TDigest;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestCollectionStatistics
+{
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("_time", FieldType.TIMESTAMP),
+            new SchemaField("_user", FieldType.STRING),
+            new SchemaField("platform", FieldType.STRING),
+            new SchemaField("url", FieldType.STRING));
+    private static final LocalDate DAY = LocalDate.of(2016, 10, 1);
+
+    private SharedInMemoryStore store;
+    private CollectionStatisticsService service;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        store = new SharedInMemoryStore();
+        service = new CollectionStatisticsService(store, new CollectionStatisticsConfig()
+                .setFlushInterval("1h")
+                .setPruneQueries(true)
+                .setMaxDimensionCardinality(100));
+    }
+
+    @Test
+    public void testHyperLogLog()
+    {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (int i = 0; i < 100000; i++) {
+            (i % 2 == 0 ? first : second).add("user" + i);
+        }
+
+        first.merge(second);
+        assertEquals(first.cardinality(), 100000, 100000 * 0.05);
+
+        HyperLogLog small = new HyperLogLog();
+        for (int i = 0; i < 50; i++) {
+            small.add(i);
+            small.add(i);
+        }
+        assertEquals(small.cardinality(), 50, 2);
+        assertEquals(HyperLogLog.fromBytes(small.toBytes()).cardinality(), small.cardinality());
+    }
+
+    @Test
+    public void testStatistics()
+    {
+        for (int i = 0; i < 2048; i++) {
+            record("pageview", DAY, "user" + (i % 10), i % 4 == 0 ? null : "web", "/page/" + i);
+        }
+        service.flush();
+
+        CollectionStatistics statistics = service.getStatistics("project", "pageview", DAY, DAY).get(DAY);
+        assertEquals(statistics.getRowCount(), 2048);
+        assertEquals(statistics.getUniqueUsers(), 10);
+        assertEquals(statistics.getNullFractions().get("platform"), .25);
+        // the url has more distinct values than the limit
+        assertEquals(statistics.getDistinctValues(), ImmutableMap.of("platform", 1L));
+
+        CollectionStatistics decoded = JsonHelper.read(JsonHelper.encode(statistics), CollectionStatistics.class);
+        assertEquals(decoded.getRowCount(), 2048);
+        assertEquals(decoded.getUniqueUsers(), 10);
+        assertEquals(decoded.getDistinctValues(), ImmutableMap.of("platform", 1L));
+    }
+
+    @Test
+    public void testPendingStatisticsAreMerged()
+    {
+        record("pageview", DAY, "user1", "web", null);
+        service.flush();
+        record("pageview", DAY, "user2", "ios", null);
+
+        CollectionStatistics statistics = service.getStatistics("project", "pageview", DAY, DAY).get(DAY);
+        assertEquals(statistics.getRowCount(), 2);
+        assertEquals(statistics.getUniqueUsers(), 2);
+        assertEquals(statistics.getNullFractions().get("url"), 1.0);
+    }
+
+    @Test
+    public void testDataRange()
+    {
+        store.setCompleteSince("project", "pageview", DAY);
+        record("pageview", DAY.plusDays(3), "user", "web", null);
+        record("pageview", DAY.plusDays(5), "user", "web", null);
+        service.flush();
+
+        DateRange range = service.getDataRange("project", ImmutableList.of("pageview"), DAY, DAY.plusDays(30)).get();
+        assertEquals(range.startDate, DAY.plusDays(3));
+        assertEquals(range.endDate, DAY.plusDays(5));
+
+        assertFalse(service.getDataRange("project", ImmutableList.of("pageview"), DAY.plusDays(6), DAY.plusDays(30)).isPresent());
+        assertTrue(service.isComplete("project", ImmutableList.of("pageview"), DAY));
+    }
+
+    @Test
+    public void testIncompleteDaysAreNotPruned()
+    {
+        store.setCompleteSince("project", "pageview", DAY.plusDays(2));
+        record("pageview", DAY.plusDays(5), "user", "web", null);
+        service.flush();
+
+        DateRange range = service.getDataRange("project", ImmutableList.of("pageview"), DAY, DAY.plusDays(30)).get();
+        assertEquals(range.startDate, DAY);
+        assertEquals(range.endDate, DAY.plusDays(5));
+
+        assertFalse(service.isComplete("project", ImmutableList.of("pageview"), DAY));
+
+        // the collections that don't have statistics are not pruned
+        range = service.getDataRange("project", ImmutableList.of("other"), DAY, DAY.plusDays(30)).get();
+        assertEquals(range.startDate, DAY);
+        assertEquals(range.endDate, DAY.plusDays(30));
+    }
+
+    @Test
+    public void testDeleteDays()
+    {
+        store.setCompleteSince("project", "pageview", DAY);
+        record("pageview", DAY, "user", "web", null);
+        record("pageview", DAY.plusDays(1), "user", "web", null);
+        service.flush();
+        record("pageview", DAY.plusDays(1), "user", "web", null);
+        record("pageview", DAY.plusDays(2), "user", "web", null);
+        record("other", DAY, "user", "web", null);
+
+        // both the flushed and the pending statistics of the days are deleted
+        service.deleteDays("project", "pageview", DAY, DAY.plusDays(1));
+        assertEquals(service.getRowCounts("project", "pageview", DAY, DAY.plusDays(30)), ImmutableMap.of(DAY.plusDays(2), 1L));
+        assertEquals(service.getRowCounts("project", "other", DAY, DAY), ImmutableMap.of(DAY, 1L));
+
+        DateRange range = service.getDataRange("project", ImmutableList.of("pageview"), DAY, DAY.plusDays(30)).get();
+        assertEquals(range.startDate, DAY.plusDays(2));
+    }
+
+    @Test
+    public void testTDigest()
+    {
+        TDigest first = new TDigest();
+        TDigest second = new TDigest();
+        for (int i = 0; i < 100000; i++) {
+            (i % 2 == 0 ? first : second).add(i);
+        }
+
+        first.merge(second);
+        assertEquals(first.getCount(), 100000);
+        assertEquals(first.getMin(), 0.0);
+        assertEquals(first.getMax(), 99999.0);
+        assertEquals(first.getSum(), 99999L * 100000 / 2.0, 1);
+        assertEquals(first.quantile(.5), 50000, 100000 * 0.01);
+        assertEquals(first.quantile(.99), 99000, 100000 * 0.005);
+
+        TDigest decoded = TDigest.fromBytes(first.toBytes());
+        assertEquals(decoded.getCount(), first.getCount());
+        assertEquals(decoded.quantile(.9), first.quantile(.9));
+    }
+
+    @Test
+    public void testDistributions()
+    {
+        List<SchemaField> fields = ImmutableList.of(
+                new SchemaField("_time", FieldType.TIMESTAMP),
+                new SchemaField("price", FieldType.DOUBLE),
+                new SchemaField("quantity", FieldType.LONG),
+                new SchemaField("discount", FieldType.DOUBLE));
+        service = new CollectionStatisticsService(store, new CollectionStatisticsConfig()
+                .setFlushInterval("1h")
+                .setPruneQueries(true)
+                .setMaxMeasures(1));
+
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> values = new HashMap<>();
+            values.put("_time", DAY.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() + i);
+            values.put("price", (double) i);
+            values.put("quantity", 1L);
+            service.record("project", "purchase", fields, values::get);
+        }
+        service.flush();
+
+        CollectionStatistics statistics = service.getStatistics("project", "purchase", DAY, DAY).get(DAY);
+        TDigest price = statistics.getDistribution("price");
+        assertEquals(price.getCount(), 1000);
+        assertEquals(price.quantile(.5), 500, 10);
+        // the limit is reached so the values of the field are not known
+        assertNull(statistics.getDistribution("quantity"));
+        assertEquals(statistics.getDistribution("discount").getCount(), 0);
+
+        CollectionStatistics decoded = JsonHelper.read(JsonHelper.encode(statistics), CollectionStatistics.class);
+        assertEquals(decoded.getDistribution("price").quantile(.5), price.quantile(.5));
+        assertNull(decoded.getDistribution("quantity"));
+    }
+
+    @Test
+    public void testRecordingEventStore()
+    {
+        EventStore delegate = new EventStore()
+        {
+            @Override
+            public CompletableFuture<int[]> storeBatchAsync(List<Event> events)
+            {
+                return CompletableFuture.completedFuture(new int[] {1});
+            }
+
+            @Override
+            public CompletableFuture<Void> storeAsync(Event event)
+            {
+                return COMPLETED_FUTURE;
+            }
+        };
+
+        service.onCreateCollection(new CollectionCreatedEvent("project", "pageview", FIELDS));
+        // the writers that don't use the recording event store are not visible to the statistics
+        assertFalse(store.getCompleteSince("project", "pageview").isPresent());
+
+        EventStore eventStore = new StatisticsRecordingEventStore(delegate, service);
+        service.onCreateCollection(new CollectionCreatedEvent("project", "pageview", FIELDS));
+        assertTrue(store.getCompleteSince("project", "pageview").isPresent());
+
+        eventStore.storeBatch(ImmutableList.of(event(DAY), event(DAY), event(DAY.plusDays(1))));
+        eventStore.store(event(DAY));
+
+        // the second event is failed
+        Map<LocalDate, Long> rowCounts = service.getRowCounts("project", "pageview", DAY, DAY.plusDays(1));
+        assertEquals(rowCounts, ImmutableMap.of(DAY, 2L, DAY.plusDays(1), 1L));
+    }
+
+    private Event event(LocalDate day)
+    {
+        GenericData.Record record = new GenericData.Record(AvroUtil.convertAvroSchema(FIELDS));
+        record.put("_time", day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() + 1000);
+        record.put("_user", "user");
+        return new Event("project", "pageview", Event.EventContext.empty(), FIELDS, record);
+    }
+
+    private void record(String collection, LocalDate day, String user, String platform, String url)
+    {
+        Map<String, Object> values = new HashMap<>();
+        values.put("_time", day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() + 1000);
+        values.put("_user", user);
+        values.put("platform", platform);
+        values.put("url", url);
+        service.record("project", collection, FIELDS, values::get);
+    }
+
+    private static class SharedInMemoryStore
+            extends InMemoryCollectionStatisticsStore
+    {
+        @Override
+        public boolean isShared()
+        {
+            return true;
+        }
+    }
+}
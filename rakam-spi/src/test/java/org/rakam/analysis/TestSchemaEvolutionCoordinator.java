@@ -0,0 +1,146 @@
+package org.rakam.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.airlift.units.Duration;
+import org.rakam.analysis.metadata.SchemaEvolutionCoordinator;
+import org.rakam.analysis.metadata.SchemaEvolutionCoordinator.SchemaChange;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.RakamException;
+import org.rakam.util.lock.LockService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestSchemaEvolutionCoordinator
+{
+    private static final Duration WINDOW = new Duration(200, MILLISECONDS);
+    private static final Duration TIMEOUT = new Duration(10, SECONDS);
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+
+    @AfterClass
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testBatching()
+    {
+        List<Set<SchemaField>> changes = new CopyOnWriteArrayList<>();
+        SchemaChange schemaChange = (project, collection, fields) -> {
+            changes.add(fields);
+            return ImmutableList.copyOf(fields);
+        };
+        SchemaEvolutionCoordinator coordinator = new SchemaEvolutionCoordinator(null, WINDOW, TIMEOUT, executor);
+
+        CompletableFuture<List<SchemaField>> leader = coordinator.applyAsync("project", "pageview",
+                ImmutableSet.of(new SchemaField("a", STRING)), schemaChange);
+        // the request is not blocked during the window
+        assertFalse(leader.isDone());
+        CompletableFuture<List<SchemaField>> follower = coordinator.applyAsync("project", "pageview",
+                ImmutableSet.of(new SchemaField("a", LONG), new SchemaField("b", LONG)), schemaChange);
+        CompletableFuture<List<SchemaField>> otherCollection = coordinator.applyAsync("project", "purchase",
+                ImmutableSet.of(new SchemaField("c", STRING)), schemaChange);
+
+        // the first type of the field wins
+        List<SchemaField> expected = ImmutableList.of(new SchemaField("a", STRING), new SchemaField("b", LONG));
+        assertEquals(leader.join(), expected);
+        assertEquals(follower.join(), expected);
+        assertEquals(otherCollection.join(), ImmutableList.of(new SchemaField("c", STRING)));
+        assertEquals(changes.size(), 2);
+
+        // the next request starts a new batch
+        coordinator.apply("project", "pageview", ImmutableSet.of(new SchemaField("d", STRING)), schemaChange);
+        assertEquals(changes.size(), 3);
+    }
+
+    @Test
+    public void testFailureIsPropagated()
+    {
+        RakamException exception = new RakamException("Unable to alter the table", INTERNAL_SERVER_ERROR);
+        SchemaEvolutionCoordinator coordinator = new SchemaEvolutionCoordinator(null, WINDOW, TIMEOUT, executor);
+        SchemaChange schemaChange = (project, collection, fields) -> {
+            throw exception;
+        };
+
+        CompletableFuture<List<SchemaField>> leader = coordinator.applyAsync("project", "pageview",
+                ImmutableSet.of(new SchemaField("a", STRING)), schemaChange);
+        CompletableFuture<List<SchemaField>> follower = coordinator.applyAsync("project", "pageview",
+                ImmutableSet.of(new SchemaField("b", STRING)), schemaChange);
+
+        for (CompletableFuture<List<SchemaField>> future : ImmutableList.of(leader, follower)) {
+            try {
+                future.join();
+                fail();
+            }
+            catch (CompletionException e) {
+                assertSame(e.getCause(), exception);
+            }
+        }
+
+        try {
+            coordinator.apply("project", "pageview", ImmutableSet.of(new SchemaField("a", STRING)), schemaChange);
+            fail();
+        }
+        catch (RakamException e) {
+            assertSame(e, exception);
+        }
+    }
+
+    @Test
+    public void testLockIsRetried()
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger releases = new AtomicInteger();
+        // another node holds the lock for the first two attempts
+        LockService lockService = name -> attempts.incrementAndGet() <= 2 ? null : releases::incrementAndGet;
+        SchemaEvolutionCoordinator coordinator = new SchemaEvolutionCoordinator(lockService, new Duration(10, MILLISECONDS), TIMEOUT, executor);
+
+        List<SchemaField> result = coordinator.apply("project", "pageview", ImmutableSet.of(new SchemaField("a", STRING)),
+                (project, collection, fields) -> ImmutableList.copyOf(fields));
+        assertEquals(result, ImmutableList.of(new SchemaField("a", STRING)));
+        assertEquals(attempts.get(), 3);
+        assertEquals(releases.get(), 1);
+    }
+
+    @Test
+    public void testLockTimeout()
+    {
+        AtomicInteger changes = new AtomicInteger();
+        SchemaEvolutionCoordinator coordinator = new SchemaEvolutionCoordinator(name -> null,
+                new Duration(10, MILLISECONDS), new Duration(100, MILLISECONDS), executor);
+
+        try {
+            coordinator.apply("project", "pageview", ImmutableSet.of(new SchemaField("a", STRING)), (project, collection, fields) -> {
+                changes.incrementAndGet();
+                return ImmutableList.copyOf(fields);
+            });
+            fail();
+        }
+        catch (RakamException e) {
+            assertTrue(e.getMessage().contains("being changed by another node"));
+        }
+        assertEquals(changes.get(), 0);
+    }
+}
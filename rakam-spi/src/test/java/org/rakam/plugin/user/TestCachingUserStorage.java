@@ -0,0 +1,187 @@
+package org.rakam.plugin.user;
+
+import com.facebook.presto.sql.tree.Expression;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.SystemEvents.ProjectDeletedEvent;
+import org.rakam.report.QueryResult;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TestCachingUserStorage
+{
+    private InMemoryUserStorage delegate;
+    private CachingUserStorage storage;
+
+    @BeforeMethod
+    public void setUp()
+    {
+        delegate = new InMemoryUserStorage();
+        storage = new CachingUserStorage(delegate, new UserPluginConfig());
+    }
+
+    @Test
+    public void testLookupsAreCached()
+    {
+        storage.create("project", "user", properties("name", "value"));
+
+        assertEquals(storage.getUser("project", "user").join().properties.get("name").asText(), "value");
+        assertEquals(storage.getUser("project", "user").join().properties.get("name").asText(), "value");
+        assertEquals(delegate.reads.get(), 1);
+        assertEquals(storage.getStats().hitCount(), 1);
+    }
+
+    @Test
+    public void testNumericAndStringIdsShareEntry()
+    {
+        storage.create("project", 1L, properties("name", "value"));
+
+        storage.getUser("project", 1).join();
+        storage.getUser("project", "1").join();
+        assertEquals(delegate.reads.get(), 1);
+    }
+
+    @Test
+    public void testMissingUserIsNotCached()
+    {
+        assertNull(storage.getUser("project", "user").join());
+        storage.create("project", "user", properties("name", "value"));
+
+        assertEquals(storage.getUser("project", "user").join().properties.get("name").asText(), "value");
+        assertEquals(delegate.reads.get(), 2);
+    }
+
+    @Test
+    public void testWritesInvalidate()
+    {
+        storage.create("project", "user", properties("name", "value"));
+        storage.getUser("project", "user").join();
+
+        storage.setUserProperties("project", "user", properties("name", "other"));
+        assertEquals(storage.getUser("project", "user").join().properties.get("name").asText(), "other");
+
+        storage.incrementProperty("project", "user", "count", 1);
+        assertEquals(storage.getUser("project", "user").join().properties.get("count").asDouble(), 1.0);
+        assertEquals(delegate.reads.get(), 3);
+    }
+
+    @Test
+    public void testCachedProfileIsNotShared()
+    {
+        storage.create("project", "user", properties("name", "value"));
+        storage.getUser("project", "user").join().properties.put("name", "modified");
+
+        assertEquals(storage.getUser("project", "user").join().properties.get("name").asText(), "value");
+    }
+
+    @Test
+    public void testProjectDeletion()
+    {
+        storage.create("project", "user", properties("name", "value"));
+        storage.getUser("project", "user").join();
+
+        storage.onDeleteProject(new ProjectDeletedEvent("project"));
+        storage.getUser("project", "user").join();
+        assertEquals(delegate.reads.get(), 2);
+    }
+
+    private static ObjectNode properties(String name, String value)
+    {
+        ObjectNode properties = JsonHelper.jsonObject();
+        properties.put(name, value);
+        return properties;
+    }
+
+    private static class InMemoryUserStorage
+            implements UserStorage
+    {
+        private final Map<String, ObjectNode> users = new HashMap<>();
+        private final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        public Object create(String project, Object id, ObjectNode properties)
+        {
+            users.put(project + "|" + id, properties.deepCopy());
+            return id;
+        }
+
+        @Override
+        public List<Object> batchCreate(String project, List<User> users)
+        {
+            users.forEach(user -> create(project, user.id, user.properties));
+            return ImmutableList.of();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> searchUsers(String project, List<String> columns, Expression filterExpression, List<EventFilter> eventFilter, Sorting sortColumn, long limit, String offset)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createSegment(String project, String name, String tableName, Expression filterExpression, List<EventFilter> eventFilter, Duration interval)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<SchemaField> getMetadata(String project)
+        {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public CompletableFuture<User> getUser(String project, Object userId)
+        {
+            reads.incrementAndGet();
+            ObjectNode properties = users.get(project + "|" + userId);
+            return CompletableFuture.completedFuture(properties == null ? null : new User(userId, null, properties.deepCopy()));
+        }
+
+        @Override
+        public void setUserProperties(String project, Object user, ObjectNode properties)
+        {
+            users.computeIfAbsent(project + "|" + user, key -> JsonHelper.jsonObject()).setAll(properties);
+        }
+
+        @Override
+        public void setUserPropertiesOnce(String project, Object user, ObjectNode properties)
+        {
+            setUserProperties(project, user, properties);
+        }
+
+        @Override
+        public void incrementProperty(String project, Object user, String property, double value)
+        {
+            ObjectNode properties = users.computeIfAbsent(project + "|" + user, key -> JsonHelper.jsonObject());
+            properties.put(property, properties.path(property).asDouble() + value);
+        }
+
+        @Override
+        public void dropProjectIfExists(String project)
+        {
+            users.keySet().removeIf(key -> key.startsWith(project + "|"));
+        }
+
+        @Override
+        public void unsetProperties(String project, Object user, List<String> properties)
+        {
+            ObjectNode node = users.get(project + "|" + user);
+            if (node != null) {
+                node.remove(properties);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.rakam.util;
+
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+public class TestDatabaseDownloader
+{
+    private static final long LAST_MODIFIED = 1475316000000L;
+
+    private HttpServer server;
+    private File directory;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String content;
+    private volatile long lastModified;
+
+    @BeforeClass
+    public void setUp()
+            throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            if (ifModifiedSince != null && ZonedDateTime.parse(ifModifiedSince, RFC_1123_DATE_TIME).toInstant().toEpochMilli() >= lastModified) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+
+            byte[] body = content.getBytes(UTF_8);
+            if (exchange.getRequestURI().getPath().endsWith(".gz")) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(body);
+                }
+                body = out.toByteArray();
+            }
+
+            exchange.getResponseHeaders().add("Last-Modified", RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC)));
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    @BeforeMethod
+    public void createDirectory()
+    {
+        directory = Files.createTempDir();
+        requests.set(0);
+        content = "first";
+        lastModified = LAST_MODIFIED;
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+    {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testGzipIsExtracted()
+            throws Exception
+    {
+        File file = DatabaseDownloader.downloadOrGetFile(url("/GeoLite2-City.mmdb.gz"), directory);
+        assertEquals(file, new File(directory, "GeoLite2-City.mmdb"));
+        assertEquals(Files.toString(file, UTF_8), "first");
+        // the compressed file is removed after the extraction
+        assertFalse(new File(directory, "GeoLite2-City.mmdb.gz").exists());
+
+        // the local copy is used
+        content = "second";
+        assertEquals(DatabaseDownloader.downloadOrGetFile(url("/GeoLite2-City.mmdb.gz"), directory), file);
+        assertEquals(Files.toString(file, UTF_8), "first");
+        assertEquals(requests.get(), 1);
+    }
+
+    @Test
+    public void testDownloadIfModified()
+            throws Exception
+    {
+        File file = DatabaseDownloader.downloadOrGetFile(url("/IP2LOCATION.csv"), directory);
+        assertEquals(Files.toString(file, UTF_8), "first");
+
+        assertNull(DatabaseDownloader.downloadIfModified(url("/IP2LOCATION.csv"), directory, LAST_MODIFIED));
+
+        content = "second";
+        lastModified = LAST_MODIFIED + 60000;
+        File modified = DatabaseDownloader.downloadIfModified(url("/IP2LOCATION.csv"), directory, LAST_MODIFIED);
+        assertEquals(modified, file);
+        assertEquals(Files.toString(modified, UTF_8), "second");
+        // the timestamp of the remote file is used for the next check
+        assertEquals(modified.lastModified(), lastModified);
+        assertFalse(new File(directory, "IP2LOCATION.csv.download").exists());
+    }
+
+    @Test
+    public void testModifiedGzipIsExtracted()
+            throws Exception
+    {
+        File file = DatabaseDownloader.downloadOrGetFile(url("/GeoIP2-ISP.mmdb.gz"), directory);
+
+        content = "second";
+        lastModified = LAST_MODIFIED + 60000;
+        File modified = DatabaseDownloader.downloadIfModified(url("/GeoIP2-ISP.mmdb.gz"), directory, LAST_MODIFIED);
+        assertEquals(modified, file);
+        assertEquals(Files.toString(modified, UTF_8), "second");
+        assertEquals(modified.lastModified(), lastModified);
+        assertEquals(directory.list().length, 1);
+    }
+
+    private URL url(String path)
+            throws IOException
+    {
+        return new URL("http", "localhost", server.getAddress().getPort(), path);
+    }
+}
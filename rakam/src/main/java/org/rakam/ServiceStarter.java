@@ -31,18 +31,28 @@ import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.ContinuousQueryHttpService;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.CustomParameter;
+import org.rakam.analysis.InMemoryCollectionStatisticsStore;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.MaterializedViewHttpService;
 import org.rakam.analysis.ProjectHttpService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.analysis.RequestPreProcessorItem;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
+import org.rakam.analysis.metadata.CollectionStatisticsStore;
 import org.rakam.analysis.metadata.SchemaChecker;
 import org.rakam.bootstrap.Bootstrap;
+import org.rakam.collection.CollectorConfig;
 import org.rakam.collection.EventCollectionHttpService;
+import org.rakam.collection.EventMapperConfig;
+import org.rakam.collection.EventMapperPipeline;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.collection.MetadataLookupExecutor;
 import org.rakam.collection.WebHookHttpService;
+import org.rakam.config.CollectionStatisticsConfig;
+import org.rakam.config.ConfigManagerCacheConfig;
 import org.rakam.config.EncryptionConfig;
+import org.rakam.config.HttpClientPoolConfig;
 import org.rakam.config.JDBCConfig;
 import org.rakam.config.MetadataConfig;
 import org.rakam.config.ProjectConfig;
@@ -64,6 +74,7 @@ import org.rakam.server.http.HttpService;
 import org.rakam.server.http.WebSocketService;
 import org.rakam.ui.RakamUIModule;
 import org.rakam.util.NotFoundHandler;
+import org.rakam.util.SharedHttpClients;
 
 import javax.inject.Inject;
 
@@ -196,6 +207,8 @@ public final class ServiceStarter
             OptionalBinder.newOptionalBinder(binder, ContinuousQueryService.class);
             OptionalBinder.newOptionalBinder(binder, UserStorage.class);
             OptionalBinder.newOptionalBinder(binder, UserMailboxStorage.class);
+            OptionalBinder.newOptionalBinder(binder, CollectionStatisticsStore.class)
+                    .setDefault().to(InMemoryCollectionStatisticsStore.class).in(Scopes.SINGLETON);
 
             EventBus eventBus = new EventBus(new SubscriberExceptionHandler()
             {
@@ -248,13 +261,27 @@ public final class ServiceStarter
             configBinder(binder).bindConfig(HttpServerConfig.class);
             configBinder(binder).bindConfig(ProjectConfig.class);
             configBinder(binder).bindConfig(EncryptionConfig.class);
+            configBinder(binder).bindConfig(EventMapperConfig.class);
+            configBinder(binder).bindConfig(CollectorConfig.class);
+            configBinder(binder).bindConfig(ConfigManagerCacheConfig.class);
+            configBinder(binder).bindConfig(CollectionStatisticsConfig.class);
+
+            binder.bind(EventMapperPipeline.class).in(Scopes.SINGLETON);
+            binder.bind(MetadataLookupExecutor.class).in(Scopes.SINGLETON);
+            binder.bind(CollectionStatisticsService.class).in(Scopes.SINGLETON);
 
             binder.bind(SchemaChecker.class).asEagerSingleton();
 
+            // the clients of the backend connectors are created with the limits of the shared pool
+            HttpClientPoolConfig httpClientPoolConfig = buildConfigObject(HttpClientPoolConfig.class);
+            binder.bind(SharedHttpClients.class).in(Scopes.SINGLETON);
+            Provider<SharedHttpClients> httpClients = binder.getProvider(SharedHttpClients.class);
+
             binder.bind(RAsyncHttpClient.class)
                     .annotatedWith(Names.named("rakam-client"))
                     .toProvider(() -> {
-                        return RAsyncHttpClient.create(1000 * 60 * 10, "rakam-custom-script");
+                        return RAsyncHttpClient.create(1000 * 60 * 10, "rakam-custom-script", httpClientPoolConfig,
+                                httpClients.get().getStats("rakam-custom-script"));
                     })
                     .in(Scopes.SINGLETON);
 
@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import org.rakam.Mapper;
 import org.rakam.bootstrap.SystemRegistry;
 import org.rakam.bootstrap.SystemRegistry.ModuleDescriptor;
+import org.rakam.collection.EventMapperPipeline;
+import org.rakam.collection.EventMapperPipeline.MapperStatsSnapshot;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
@@ -18,6 +20,8 @@ import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
 import org.rakam.ui.ActiveModuleListBuilder;
 import org.rakam.ui.ActiveModuleListBuilder.ActiveModuleList;
+import org.rakam.util.HttpClientStats.StatsSnapshot;
+import org.rakam.util.SharedHttpClients;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
@@ -39,13 +43,17 @@ public class AdminHttpService
     private final ActiveModuleList activeModules;
     private final ProjectConfig projectConfig;
     private final Set<EventMapper> eventMappers;
+    private final EventMapperPipeline eventMapperPipeline;
+    private final SharedHttpClients httpClients;
 
     @Inject
-    public AdminHttpService(SystemRegistry systemRegistry, Set<EventMapper> eventMappers, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder)
+    public AdminHttpService(SystemRegistry systemRegistry, Set<EventMapper> eventMappers, EventMapperPipeline eventMapperPipeline, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder, SharedHttpClients httpClients)
     {
+        this.httpClients = httpClients;
         this.systemRegistry = systemRegistry;
         this.projectConfig = projectConfig;
         this.eventMappers = eventMappers;
+        this.eventMapperPipeline = eventMapperPipeline;
         activeModules = activeModuleListBuilder.build();
     }
 
@@ -90,6 +98,30 @@ public class AdminHttpService
         }).collect(Collectors.toList());
     }
 
+    @ApiOperation(value = "Get event mapper statistics",
+            notes = "Returns the execution time of the event mappers for each collection since the server is started.",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @GET
+    @Path("/event_mappers/stats")
+    @JsonRequest
+    public Map<String, Map<String, MapperStatsSnapshot>> getEventMapperStats()
+    {
+        return eventMapperPipeline.getStats();
+    }
+
+    @ApiOperation(value = "Get HTTP client statistics",
+            notes = "Returns the requests of the HTTP clients that are used by the connectors since the server is started.",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @GET
+    @Path("/http_clients/stats")
+    @JsonRequest
+    public Map<String, StatsSnapshot> getHttpClientStats()
+    {
+        return httpClients.getStats();
+    }
+
     public static class EventMapperDescription
     {
         public final String name;
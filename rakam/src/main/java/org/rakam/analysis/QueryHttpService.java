@@ -288,6 +288,8 @@ public class QueryHttpService
 
         eventLoopGroup.schedule(new Runnable()
         {
+            private int sentRows;
+
             @Override
             public void run()
             {
@@ -297,6 +299,16 @@ public class QueryHttpService
                 }
                 else if (!finished) {
                     if (!response.isClosed()) {
+                        // the rows are sent as they are fetched so that the clients can render the partial results
+                        QueryResult page = query.getPartialResult(sentRows);
+                        if (page != null && !page.getResult().isEmpty()) {
+                            response.send("page", encode(jsonObject()
+                                    .put("offset", sentRows)
+                                    .putPOJO("result", page.getResult())
+                                    .putPOJO("metadata", page.getMetadata())));
+                            sentRows += page.getResult().size();
+                        }
+
                         QueryStats stats = query.currentStats();
                         response.send("stats", encode(stats));
                         if (stats.state == QueryStats.State.FINISHED) {
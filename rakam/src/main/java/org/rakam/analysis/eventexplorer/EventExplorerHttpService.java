@@ -20,6 +20,8 @@ import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.EventExplorer.OLAPTable;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.QueryHttpService;
+import org.rakam.analysis.metadata.CollectionStatisticsService;
+import org.rakam.analysis.metadata.CollectionStatisticsService.CollectionSummary;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.report.QueryResult;
 import org.rakam.report.realtime.AggregationType;
@@ -61,16 +63,19 @@ public class EventExplorerHttpService
     private final EventExplorer eventExplorer;
     private final QueryHttpService queryService;
     private final MaterializedViewService materializedViewService;
+    private final CollectionStatisticsService collectionStatistics;
 
     @Inject
     public EventExplorerHttpService(
             EventExplorer eventExplorer,
             MaterializedViewService materializedViewService,
-            QueryHttpService queryService)
+            QueryHttpService queryService,
+            CollectionStatisticsService collectionStatistics)
     {
         this.eventExplorer = eventExplorer;
         this.queryService = queryService;
         this.materializedViewService = materializedViewService;
+        this.collectionStatistics = collectionStatistics;
     }
 
     @ApiOperation(value = "Event statistics",
@@ -82,12 +87,30 @@ public class EventExplorerHttpService
             @ApiParam(value = "collections", required = false) Set<String> collections,
             @ApiParam(value = "dimension", required = false) String dimension,
             @ApiParam("startDate") Instant startDate,
-            @ApiParam("endDate") Instant endDate)
+            @ApiParam("endDate") Instant endDate,
+            @ApiParam(value = "accuracy", required = false) EventExplorer.Accuracy accuracy)
     {
         return eventExplorer.getEventStatistics(project,
                 Optional.ofNullable(collections),
                 Optional.ofNullable(dimension),
-                startDate, endDate);
+                startDate, endDate, accuracy == null ? EventExplorer.Accuracy.EXACT : accuracy);
+    }
+
+    @ApiOperation(value = "Collection statistics",
+            notes = "Returns the statistics that are collected while the events are collected. " +
+                    "The distinct values are estimated for the low-cardinality string and boolean fields.",
+            authorizations = @Authorization(value = "read_key")
+    )
+    @JsonRequest
+    @Path("/collection_statistics")
+    public Map<String, CollectionSummary> getCollectionStatistics(@Named("project") String project,
+            @ApiParam("collections") Set<String> collections,
+            @ApiParam("startDate") LocalDate startDate,
+            @ApiParam("endDate") LocalDate endDate)
+    {
+        checkArgument(!endDate.isBefore(startDate), "startDate must be before endDate");
+        checkArgument(!endDate.isAfter(startDate.plusYears(1)), "Date interval is too big");
+        return collectionStatistics.getSummary(project, collections, startDate, endDate);
     }
 
     @GET
@@ -115,7 +138,7 @@ public class EventExplorerHttpService
         return eventExplorer.analyze(project, analyzeRequest.collections,
                 analyzeRequest.measure, analyzeRequest.grouping,
                 analyzeRequest.segment, analyzeRequest.filterExpression,
-                analyzeRequest.startDate, analyzeRequest.endDate).getResult();
+                analyzeRequest.startDate, analyzeRequest.endDate, analyzeRequest.accuracy).getResult();
     }
 
     public static class PrecalculatedTable
@@ -219,7 +242,7 @@ public class EventExplorerHttpService
             return eventExplorer.analyze(project, analyzeRequest.collections,
                     analyzeRequest.measure, analyzeRequest.grouping,
                     analyzeRequest.segment, analyzeRequest.filterExpression,
-                    analyzeRequest.startDate, analyzeRequest.endDate);
+                    analyzeRequest.startDate, analyzeRequest.endDate, analyzeRequest.accuracy);
         });
     }
 
@@ -232,6 +255,7 @@ public class EventExplorerHttpService
         public final Instant startDate;
         public final Instant endDate;
         public final List<String> collections;
+        public final EventExplorer.Accuracy accuracy;
 
         @JsonCreator
         public AnalyzeRequest(@ApiParam(value = "measure", required = false) EventExplorer.Measure measure,
@@ -240,7 +264,8 @@ public class EventExplorerHttpService
                 @ApiParam(value = "filterExpression", required = false) String filterExpression,
                 @ApiParam("startDate") Instant startDate,
                 @ApiParam("endDate") Instant endDate,
-                @ApiParam("collections") List<String> collections)
+                @ApiParam("collections") List<String> collections,
+                @ApiParam(value = "accuracy", required = false) EventExplorer.Accuracy accuracy)
         {
             this.measure = measure;
             this.grouping = grouping;
@@ -249,6 +274,7 @@ public class EventExplorerHttpService
             this.startDate = startDate;
             this.endDate = endDate;
             this.collections = collections;
+            this.accuracy = accuracy == null ? EventExplorer.Accuracy.EXACT : accuracy;
         }
     }
 }
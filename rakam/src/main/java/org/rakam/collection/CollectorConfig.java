@@ -0,0 +1,25 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+import javax.validation.constraints.Min;
+
+public class CollectorConfig
+{
+    private int metadataLookupThreadCount = 16;
+
+    @Config("collector.metadata-lookup.thread-count")
+    @ConfigDescription("The threads that fetch the api keys, schemas and configs that are not in memory so that the event loop is not blocked")
+    public CollectorConfig setMetadataLookupThreadCount(int metadataLookupThreadCount)
+    {
+        this.metadataLookupThreadCount = metadataLookupThreadCount;
+        return this;
+    }
+
+    @Min(1)
+    public int getMetadataLookupThreadCount()
+    {
+        return metadataLookupThreadCount;
+    }
+}
@@ -7,11 +7,11 @@ import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.Version;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.cfg.ContextAttributes;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
 import io.airlift.log.Logger;
@@ -27,10 +27,10 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cookie.Cookie;
 import org.apache.avro.generic.GenericData;
-import org.rakam.analysis.ApiKeyService;
 import org.rakam.analysis.QueryHttpService;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.Event.EventContext;
+import org.rakam.collection.MetadataLookupExecutor.PendingLookupException;
 import org.rakam.plugin.CopyEvent;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventStore;
@@ -78,8 +78,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -125,33 +125,35 @@ public class EventCollectionHttpService
     private final ObjectMapper jsonMapper;
     private final ObjectMapper csvMapper;
     private final EventStore eventStore;
-    private final List<EventMapper> eventMappers;
-    private final ApiKeyService apiKeyService;
+    private final EventMapperPipeline eventMapperPipeline;
     private final AvroEventDeserializer avroEventDeserializer;
     private final Metastore metastore;
     private final QueryHttpService queryHttpService;
     private final com.google.common.base.Optional<CopyEvent> copyEvent;
     private final JsonEventDeserializer jsonEventDeserializer;
+    private final MetadataLookupExecutor lookupExecutor;
+    private final ObjectReader nonBlockingEventReader;
+    private final ObjectReader nonBlockingEventListReader;
 
     @Inject
     public EventCollectionHttpService(
             EventStore eventStore,
             com.google.common.base.Optional<CopyEvent> copyEvent,
-            ApiKeyService apiKeyService,
             JsonEventDeserializer deserializer,
             QueryHttpService queryHttpService,
             AvroEventDeserializer avroEventDeserializer,
             EventListDeserializer eventListDeserializer,
             CsvEventDeserializer csvEventDeserializer,
             Metastore metastore,
-            Set<EventMapper> mappers)
+            EventMapperPipeline eventMapperPipeline,
+            MetadataLookupExecutor lookupExecutor)
     {
         this.eventStore = eventStore;
-        this.eventMappers = ImmutableList.copyOf(mappers);
-        this.apiKeyService = apiKeyService;
+        this.eventMapperPipeline = eventMapperPipeline;
         this.queryHttpService = queryHttpService;
         this.metastore = metastore;
         this.copyEvent = copyEvent;
+        this.lookupExecutor = lookupExecutor;
 
         jsonMapper = new ObjectMapper();
         SimpleModule module = new SimpleModule();
@@ -170,6 +172,9 @@ public class EventCollectionHttpService
 
         this.avroEventDeserializer = avroEventDeserializer;
         this.jsonEventDeserializer = deserializer;
+        // the request handlers run in event loop threads, see JsonEventDeserializer.isBlocking
+        nonBlockingEventReader = jsonMapper.readerFor(Event.class).withAttribute("non_blocking", true);
+        nonBlockingEventListReader = jsonMapper.readerFor(EventList.class).withAttribute("non_blocking", true);
         csvMapper = new CsvMapper();
         csvMapper.registerModule(new SimpleModule().addDeserializer(EventList.class, csvEventDeserializer));
     }
@@ -232,73 +237,122 @@ public class EventCollectionHttpService
     @Path("/collect")
     public void collectEvent(RakamHttpRequest request)
     {
-        String socketAddress = request.getRemoteAddress();
-
-        request.bodyHandler(buff -> {
-            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(OK_MESSAGE));
+        request.bodyHandler(buff -> collectEvent(request, buff, false));
+    }
 
-            CompletableFuture<List<Cookie>> cookiesFuture;
+    private void collectEvent(RakamHttpRequest request, InputStream buff, boolean blocking)
+    {
+        String socketAddress = request.getRemoteAddress();
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, Unpooled.wrappedBuffer(OK_MESSAGE));
 
-            try {
-                Event event = jsonMapper.readValue(buff, Event.class);
+        CompletableFuture<List<Cookie>> cookiesFuture;
 
-                EventContext context = event.api();
+        try {
+            Event event = blocking ? jsonMapper.readValue(buff, Event.class) : nonBlockingEventReader.readValue(buff);
 
-                if (context.checksum != null && !validateChecksum(request, context.checksum, buff)) {
-                    return;
-                }
+            EventContext context = event.api();
 
-                cookiesFuture = mapEvent(eventMappers, (mapper) -> mapper.mapAsync(event, new HttpRequestParams(request),
-                        getRemoteAddress(socketAddress), response.trailingHeaders()));
-                cookiesFuture.thenAccept(v -> eventStore.store(event));
-            }
-            catch (JsonMappingException e) {
-                String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
-                returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
-                return;
-            }
-            catch (IOException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
-                return;
-            }
-            catch (RakamException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), e.getStatusCode());
+            if (context.checksum != null && !validateChecksum(request, context.checksum, buff)) {
                 return;
             }
-            catch (HttpRequestException e) {
-                returnError(request, e.getMessage(), e.getStatusCode());
+
+            cookiesFuture = eventMapperPipeline.map(event, new HttpRequestParams(request),
+                    getRemoteAddress(socketAddress), response.trailingHeaders());
+            cookiesFuture.thenAccept(v -> eventStore.store(event));
+        }
+        catch (PendingLookupException e) {
+            resumeAfterLookup(request, buff, e, () -> collectEvent(request, buff, true));
+            return;
+        }
+        catch (JsonMappingException e) {
+            String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+            returnError(request, "JSON couldn't parsed: " + message, BAD_REQUEST);
+            return;
+        }
+        catch (IOException e) {
+            returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+            return;
+        }
+        catch (RakamException e) {
+            LogUtil.logException(request, e);
+            returnError(request, e.getMessage(), e.getStatusCode());
+            return;
+        }
+        catch (HttpRequestException e) {
+            returnError(request, e.getMessage(), e.getStatusCode());
+            return;
+        }
+        catch (IllegalArgumentException e) {
+            LogUtil.logException(request, e);
+            returnError(request, e.getMessage(), BAD_REQUEST);
+            return;
+        }
+        catch (Exception e) {
+            LOGGER.error(e, "Error while collecting event");
+
+            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        String headerList = getHeaderList(response.headers().iterator());
+        if (headerList != null) {
+            response.headers().set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
+        }
+        if (request.headers().contains(ORIGIN)) {
+            response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+        }
+
+        cookiesFuture.whenComplete((cookies, ex) -> {
+            if (ex != null) {
+                returnMapperError(request, ex);
                 return;
             }
-            catch (IllegalArgumentException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), BAD_REQUEST);
-                return;
+            if (cookies != null) {
+                response.headers().add(SET_COOKIE, STRICT.encode(cookies));
             }
-            catch (Exception e) {
-                LOGGER.error(e, "Error while collecting event");
+            request.response(response).end();
+        });
+    }
 
+    /**
+     * Suspends the request until the metadata lookup that is not in memory completes, then parses the request again
+     * in the resume pool of the lookup executor so that the event loop thread is not blocked by the metadata services.
+     */
+    private void resumeAfterLookup(RakamHttpRequest request, InputStream buff, PendingLookupException e, Runnable retry)
+    {
+        lookupExecutor.resumeAfter(e.getLookup(), () -> {
+            try {
+                buff.reset();
+            }
+            catch (IOException ioException) {
+                LOGGER.error(ioException, "Error while resuming the request");
                 returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
                 return;
             }
-
-            String headerList = getHeaderList(response.headers().iterator());
-            if (headerList != null) {
-                response.headers().set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
-            }
-            if (request.headers().contains(ORIGIN)) {
-                response.headers().set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
-            }
-
-            cookiesFuture.thenAccept(cookies -> {
-                if (cookies != null) {
-                    response.headers().add(SET_COOKIE, STRICT.encode(cookies));
-                }
-                request.response(response).end();
-            });
+            retry.run();
         });
     }
 
+    private static void returnMapperError(RakamHttpRequest request, Throwable ex)
+    {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (cause instanceof RakamException) {
+            LogUtil.logException(request, (RakamException) cause);
+            returnError(request, cause.getMessage(), ((RakamException) cause).getStatusCode());
+        }
+        else if (cause instanceof HttpRequestException) {
+            returnError(request, cause.getMessage(), ((HttpRequestException) cause).getStatusCode());
+        }
+        else if (cause instanceof IllegalArgumentException) {
+            LogUtil.logException(request, cause);
+            returnError(request, cause.getMessage(), BAD_REQUEST);
+        }
+        else {
+            LOGGER.error(cause, "Error while mapping event");
+            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+        }
+    }
+
     public static InetAddress getRemoteAddress(String socketAddress)
     {
         try {
@@ -321,11 +375,11 @@ public class EventCollectionHttpService
     public void bulkEvents(RakamHttpRequest request, boolean mapEvents)
     {
         storeEventsSync(request,
-                buff -> {
+                (buff, blocking) -> {
                     String contentType = request.headers().get(CONTENT_TYPE);
                     if (contentType == null || "application/json".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
-                        String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
+                        String project = jsonEventDeserializer.getProjectOfApiKey(apiKey, MASTER_KEY, blocking);
                         String collection = getParam(request.params(), "collection");
 
                         JsonParser parser = jsonMapper.getFactory().createParser(buff);
@@ -334,7 +388,7 @@ public class EventCollectionHttpService
                         JsonToken t = parser.nextToken();
                         if (t == JsonToken.START_OBJECT) {
                             while (t == JsonToken.START_OBJECT) {
-                                Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true);
+                                Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true, blocking);
                                 events.add(new Event(project, collection, null, entry.getKey(), entry.getValue()));
                                 t = parser.nextToken();
                             }
@@ -343,7 +397,7 @@ public class EventCollectionHttpService
                             t = parser.nextToken();
 
                             for (; t == START_OBJECT; t = parser.nextToken()) {
-                                Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true);
+                                Map.Entry<List<SchemaField>, GenericData.Record> entry = jsonEventDeserializer.parseProperties(project, collection, parser, true, blocking);
                                 events.add(new Event(project, collection, null, entry.getKey(), entry.getValue()));
                             }
                         }
@@ -355,14 +409,14 @@ public class EventCollectionHttpService
                     }
                     else if ("application/avro".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
-                        String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
+                        String project = jsonEventDeserializer.getProjectOfApiKey(apiKey, MASTER_KEY, blocking);
                         String collection = getParam(request.params(), "collection");
 
                         return avroEventDeserializer.deserialize(project, collection, new InputStreamSliceInput(buff));
                     }
                     else if ("text/csv".equals(contentType)) {
                         String apiKey = getParam(request.params(), MASTER_KEY.getKey());
-                        String project = apiKeyService.getProjectOfApiKey(apiKey, MASTER_KEY);
+                        String project = jsonEventDeserializer.getProjectOfApiKey(apiKey, MASTER_KEY, blocking);
                         String collection = getParam(request.params(), "collection");
 
                         CsvSchema.Builder builder = CsvSchema.builder();
@@ -451,12 +505,12 @@ public class EventCollectionHttpService
     public void bulkEventsRemote(RakamHttpRequest request, boolean mapEvents)
     {
         storeEventsSync(request,
-                buff -> {
+                (buff, blocking) -> {
                     BulkEventRemote query = JsonHelper.read(buff, BulkEventRemote.class);
                     String masterKey = Optional.ofNullable(request.params().get("master_key"))
                             .map((v) -> v.get(0))
                             .orElseGet(() -> request.headers().get("master_key"));
-                    String project = apiKeyService.getProjectOfApiKey(masterKey, MASTER_KEY);
+                    String project = jsonEventDeserializer.getProjectOfApiKey(masterKey, MASTER_KEY, blocking);
 
                     checkCollection(query.collection);
 
@@ -547,7 +601,7 @@ public class EventCollectionHttpService
     @Path("/batch")
     public void batchEvents(RakamHttpRequest request)
     {
-        storeEvents(request, buff -> jsonMapper.readValue(buff, EventList.class),
+        storeEvents(request, (buff, blocking) -> blocking ? jsonMapper.readValue(buff, EventList.class) : nonBlockingEventListReader.readValue(buff),
                 (events, responseHeaders) -> {
                     CompletableFuture<int[]> errorIndexes;
 
@@ -598,89 +652,92 @@ public class EventCollectionHttpService
 
     public void storeEvents(RakamHttpRequest request, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, CompletableFuture<FullHttpResponse>> responseFunction, boolean mapEvents)
     {
-        request.bodyHandler(buff -> {
-            DefaultHttpHeaders responseHeaders = new DefaultHttpHeaders();
-            responseHeaders.set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
-            if (request.headers().contains(ORIGIN)) {
-                responseHeaders.set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
-            }
-
-            CompletableFuture<FullHttpResponse> response;
-            CompletableFuture<List<Cookie>> entries;
-            try {
-                EventList events = mapper.apply(buff);
-
-                EventContext context = events.api;
-                if (context.checksum != null && !validateChecksum(request, context.checksum, buff)) {
-                    return;
-                }
+        request.bodyHandler(buff -> storeEvents(request, buff, mapper, responseFunction, mapEvents, false));
+    }
 
-                InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
+    private void storeEvents(RakamHttpRequest request, InputStream buff, ThrowableFunction mapper, BiFunction<List<Event>, HttpHeaders, CompletableFuture<FullHttpResponse>> responseFunction, boolean mapEvents, boolean blocking)
+    {
+        DefaultHttpHeaders responseHeaders = new DefaultHttpHeaders();
+        responseHeaders.set(ACCESS_CONTROL_ALLOW_CREDENTIALS, "true");
+        if (request.headers().contains(ORIGIN)) {
+            responseHeaders.set(ACCESS_CONTROL_ALLOW_ORIGIN, request.headers().get(ORIGIN));
+        }
 
-                if (mapEvents) {
-                    entries = mapEvent(eventMappers, (m) -> m.mapAsync(events, new HttpRequestParams(request),
-                            remoteAddress, responseHeaders));
-                }
-                else {
-                    entries = EventMapper.COMPLETED_EMPTY_FUTURE;
-                }
+        CompletableFuture<FullHttpResponse> response;
+        CompletableFuture<List<Cookie>> entries;
+        try {
+            EventList events = mapper.apply(buff, blocking);
 
-                response = responseFunction.apply(events.events, responseHeaders);
-            }
-            catch (JsonMappingException | JsonParseException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
-                return;
-            }
-            catch (IOException e) {
-                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+            EventContext context = events.api;
+            if (context.checksum != null && !validateChecksum(request, context.checksum, buff)) {
                 return;
             }
-            catch (RakamException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), e.getStatusCode());
-                return;
-            }
-            catch (HttpRequestException e) {
-                returnError(request, e.getMessage(), e.getStatusCode());
-                return;
+
+            InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
+
+            if (mapEvents) {
+                entries = eventMapperPipeline.map(events, new HttpRequestParams(request),
+                        remoteAddress, responseHeaders);
             }
-            catch (IllegalArgumentException e) {
-                LogUtil.logException(request, e);
-                returnError(request, e.getMessage(), BAD_REQUEST);
-                return;
+            else {
+                entries = EventMapper.COMPLETED_EMPTY_FUTURE;
             }
-            catch (Throwable e) {
-                LOGGER.error(e, "Error while collecting event");
 
-                returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
-                return;
-            }
+            // the mappers may run in another thread, the events must be stored after they're processed.
+            response = entries.isDone() && !entries.isCompletedExceptionally() ?
+                    responseFunction.apply(events.events, responseHeaders) :
+                    entries.thenCompose(v -> responseFunction.apply(events.events, responseHeaders));
+        }
+        catch (PendingLookupException e) {
+            resumeAfterLookup(request, buff, e, () -> storeEvents(request, buff, mapper, responseFunction, mapEvents, true));
+            return;
+        }
+        catch (JsonMappingException | JsonParseException e) {
+            returnError(request, "JSON couldn't parsed: " + e.getOriginalMessage(), BAD_REQUEST);
+            return;
+        }
+        catch (IOException e) {
+            returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+            return;
+        }
+        catch (RakamException e) {
+            LogUtil.logException(request, e);
+            returnError(request, e.getMessage(), e.getStatusCode());
+            return;
+        }
+        catch (HttpRequestException e) {
+            returnError(request, e.getMessage(), e.getStatusCode());
+            return;
+        }
+        catch (IllegalArgumentException e) {
+            LogUtil.logException(request, e);
+            returnError(request, e.getMessage(), BAD_REQUEST);
+            return;
+        }
+        catch (Throwable e) {
+            LOGGER.error(e, "Error while collecting event");
 
-            String headerList = getHeaderList(responseHeaders.iterator());
-            if (headerList != null) {
-                responseHeaders.set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
-            }
+            returnError(request, "An error occurred", INTERNAL_SERVER_ERROR);
+            return;
+        }
 
-            responseHeaders.add(CONTENT_TYPE, "application/json");
+        String headerList = getHeaderList(responseHeaders.iterator());
+        if (headerList != null) {
+            responseHeaders.set(ACCESS_CONTROL_EXPOSE_HEADERS, headerList);
+        }
 
-            entries.thenAccept(value -> {
-                if (value != null) {
-                    responseHeaders.add(SET_COOKIE, STRICT.encode(value));
-                }
-                if (response.isDone()) {
-                    request.response(response.join()).end();
-                }
-            });
+        responseHeaders.add(CONTENT_TYPE, "application/json");
 
-            response.thenAccept(resp -> {
-                if (entries.isDone()) {
-                    List<Cookie> join = entries.join();
-                    if (join != null) {
-                        responseHeaders.add(SET_COOKIE, STRICT.encode(join));
-                    }
-                }
-                request.response(resp).end();
-            });
+        response.whenComplete((resp, ex) -> {
+            if (ex != null) {
+                returnMapperError(request, ex);
+                return;
+            }
+            List<Cookie> join = entries.join();
+            if (join != null) {
+                responseHeaders.add(SET_COOKIE, STRICT.encode(join));
+            }
+            request.response(resp).end();
         });
     }
 
@@ -724,7 +781,7 @@ public class EventCollectionHttpService
 
     interface ThrowableFunction
     {
-        EventList apply(InputStream buffer)
+        EventList apply(InputStream buffer, boolean blocking)
                 throws IOException;
     }
 
@@ -114,6 +114,7 @@ public class EventListDeserializer
         JsonToken t = jp.nextToken();
 
         Object apiKey = deserializationContext.getAttribute("apiKey");
+        boolean blocking = JsonEventDeserializer.isBlocking(deserializationContext);
         String project = null;
         boolean masterKey = false;
 
@@ -122,8 +123,8 @@ public class EventListDeserializer
                 throw new RakamException("api parameter is required", BAD_REQUEST);
             }
             try {
-                project = apiKeyService.getProjectOfApiKey(context.apiKey,
-                        apiKey == null ? WRITE_KEY : (ApiKeyService.AccessKeyType) apiKey);
+                project = eventDeserializer.getProjectOfApiKey(context.apiKey,
+                        apiKey == null ? WRITE_KEY : (ApiKeyService.AccessKeyType) apiKey, blocking);
             }
             catch (RakamException e) {
                 masterKey = true;
@@ -133,7 +134,7 @@ public class EventListDeserializer
         if (project == null) {
             masterKey = true;
             try {
-                project = apiKeyService.getProjectOfApiKey(context.apiKey, MASTER_KEY);
+                project = eventDeserializer.getProjectOfApiKey(context.apiKey, MASTER_KEY, blocking);
             }
             catch (RakamException e) {
                 if (e.getStatusCode() == FORBIDDEN) {
@@ -145,7 +146,7 @@ public class EventListDeserializer
         }
 
         for (; t == START_OBJECT; t = jp.nextToken()) {
-            list.add(eventDeserializer.deserializeWithProject(jp, project, context, masterKey));
+            list.add(eventDeserializer.deserializeWithProject(jp, project, context, masterKey, blocking));
         }
 
         return new EventList(context, project, list);
@@ -0,0 +1,70 @@
+package org.rakam.collection;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+import io.airlift.units.MinDuration;
+
+import javax.validation.constraints.Min;
+
+public class EventMapperConfig
+{
+    private boolean parallel = true;
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+    private int maxQueuedTasks = 10000;
+    private Duration timeout = Duration.valueOf("5s");
+
+    @Config("event-mapper.parallel")
+    @ConfigDescription("Run the event mappers that don't depend on each other in parallel")
+    public EventMapperConfig setParallel(boolean parallel)
+    {
+        this.parallel = parallel;
+        return this;
+    }
+
+    public boolean getParallel()
+    {
+        return parallel;
+    }
+
+    @Config("event-mapper.thread-count")
+    public EventMapperConfig setThreadCount(int threadCount)
+    {
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    @Min(1)
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    @Config("event-mapper.max-queued-tasks")
+    @ConfigDescription("The requests are rejected when the queue of the mappers is full")
+    public EventMapperConfig setMaxQueuedTasks(int maxQueuedTasks)
+    {
+        this.maxQueuedTasks = maxQueuedTasks;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxQueuedTasks()
+    {
+        return maxQueuedTasks;
+    }
+
+    @Config("event-mapper.timeout")
+    @ConfigDescription("The requests fail when a mapper doesn't complete in the timeout")
+    public EventMapperConfig setTimeout(String timeout)
+    {
+        this.timeout = Duration.valueOf(timeout);
+        return this;
+    }
+
+    @MinDuration("1ms")
+    public Duration getTimeout()
+    {
+        return timeout;
+    }
+}
@@ -0,0 +1,410 @@
+package org.rakam.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.rakam.Mapper;
+import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.plugin.EventMapper;
+import org.rakam.plugin.EventMapper.RequestParams;
+import org.rakam.util.RakamException;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.rakam.plugin.EventMapper.COMPLETED_EMPTY_FUTURE;
+
+/**
+ * Executes the event mappers as a dependency graph built from the fields that they declare in
+ * {@link EventMapper#addFieldDependency(FieldDependencyBuilder)}. A mapper waits for the mappers that are registered
+ * before it only if it reads a field that they write, or they read or write a field that it writes, so the result
+ * is the same as executing them in registration order. The mappers that don't declare any field may touch any
+ * attribute of the event so they're executed in isolation.
+ * <p>
+ * The timeout starts when the mapper starts on the pool and covers both the synchronous and the asynchronous part
+ * of the mapper. The request fails when a mapper times out since the mapper may still be changing the event.
+ */
+public class EventMapperPipeline
+{
+    private final static Logger LOGGER = Logger.get(EventMapperPipeline.class);
+    private static final String MIXED_COLLECTIONS = "_mixed";
+
+    private final List<EventMapper> mappers;
+    private final String[] names;
+    private final int[][] dependencies;
+    private final boolean parallel;
+    private final long timeoutMillis;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timeoutExecutor;
+    private final List<Map<String, MapperStats>> stats;
+
+    @Inject
+    public EventMapperPipeline(Set<EventMapper> mappers, EventMapperConfig config)
+    {
+        this.mappers = ImmutableList.copyOf(mappers);
+        this.names = this.mappers.stream().map(EventMapperPipeline::getName).toArray(String[]::new);
+        this.dependencies = buildDependencyGraph(this.mappers);
+        this.parallel = config.getParallel();
+        this.timeoutMillis = config.getTimeout().toMillis();
+        this.stats = this.mappers.stream()
+                .map(mapper -> new ConcurrentHashMap<String, MapperStats>())
+                .collect(Collectors.toList());
+
+        // the queue is bounded, the requests are rejected when the pool can't keep up so that the mappers are never
+        // executed on the event loop.
+        this.executor = new ThreadPoolExecutor(config.getThreadCount(), config.getThreadCount(), 0L, MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getMaxQueuedTasks()),
+                new ThreadFactoryBuilder().setNameFormat("event-mapper-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("event-mapper-timeout").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        executor.shutdown();
+        timeoutExecutor.shutdown();
+    }
+
+    public List<EventMapper> getMappers()
+    {
+        return mappers;
+    }
+
+    public CompletableFuture<List<Cookie>> map(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        return execute(event.collection(), mapper -> mapper.mapAsync(event, requestParams, sourceAddress, responseHeaders));
+    }
+
+    public CompletableFuture<List<Cookie>> map(EventList events, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+    {
+        return execute(getCollection(events), mapper -> mapper.mapAsync(events, requestParams, sourceAddress, responseHeaders));
+    }
+
+    /**
+     * Returns the execution statistics of the mappers grouped by the mapper name and the collection.
+     */
+    public Map<String, Map<String, MapperStatsSnapshot>> getStats()
+    {
+        ImmutableMap.Builder<String, Map<String, MapperStatsSnapshot>> builder = ImmutableMap.builder();
+        for (int i = 0; i < mappers.size(); i++) {
+            builder.put(names[i] + (isNameUnique(i) ? "" : "#" + i), stats.get(i).entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().snapshot())));
+        }
+        return builder.build();
+    }
+
+    private CompletableFuture<List<Cookie>> execute(String collection, Function<EventMapper, CompletableFuture<List<Cookie>>> mapperFunction)
+    {
+        if (mappers.isEmpty()) {
+            return COMPLETED_EMPTY_FUTURE;
+        }
+
+        if (!parallel) {
+            return executeSequentially(collection, mapperFunction);
+        }
+
+        CompletableFuture<List<Cookie>>[] futures = new CompletableFuture[mappers.size()];
+        for (int i = 0; i < mappers.size(); i++) {
+            int mapperIndex = i;
+            int[] mapperDependencies = dependencies[i];
+
+            CompletableFuture<?> ready;
+            if (mapperDependencies.length == 0) {
+                ready = CompletableFuture.completedFuture(null);
+            }
+            else if (mapperDependencies.length == 1) {
+                ready = futures[mapperDependencies[0]];
+            }
+            else {
+                ready = CompletableFuture.allOf(IntStream.of(mapperDependencies)
+                        .mapToObj(idx -> futures[idx]).toArray(CompletableFuture[]::new));
+            }
+
+            // if one of the dependencies fails, the request fails so the dependent mappers are not executed.
+            futures[i] = ready.thenCompose(v -> run(mapperIndex, collection, mapperFunction));
+        }
+
+        return CompletableFuture.allOf(futures).thenApply(v -> {
+            List<Cookie> cookies = null;
+            for (CompletableFuture<List<Cookie>> future : futures) {
+                List<Cookie> mapperCookies = future.join();
+                if (mapperCookies != null && !mapperCookies.isEmpty()) {
+                    if (cookies == null) {
+                        cookies = new ArrayList<>();
+                    }
+                    cookies.addAll(mapperCookies);
+                }
+            }
+            return cookies;
+        });
+    }
+
+    private CompletableFuture<List<Cookie>> executeSequentially(String collection, Function<EventMapper, CompletableFuture<List<Cookie>>> mapperFunction)
+    {
+        List<Cookie> cookies = new ArrayList<>();
+        CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < mappers.size(); i++) {
+            int mapperIndex = i;
+            future = future.thenCompose(v -> run(mapperIndex, collection, mapperFunction)).thenAccept(value -> {
+                if (value != null) {
+                    cookies.addAll(value);
+                }
+            });
+        }
+
+        return future.thenApply(v -> cookies);
+    }
+
+    private CompletableFuture<List<Cookie>> run(int mapperIndex, String collection, Function<EventMapper, CompletableFuture<List<Cookie>>> mapperFunction)
+    {
+        MapperTask task = new MapperTask(mapperIndex, collection, mapperFunction);
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            task.result.completeExceptionally(new RakamException("The server is too busy to process the events", SERVICE_UNAVAILABLE));
+        }
+        return task.result;
+    }
+
+    private class MapperTask
+            implements Runnable
+    {
+        private final int mapperIndex;
+        private final String collection;
+        private final Function<EventMapper, CompletableFuture<List<Cookie>>> mapperFunction;
+        private final MapperStats mapperStats;
+        private final CompletableFuture<List<Cookie>> result = new CompletableFuture<>();
+        private Thread thread;
+
+        public MapperTask(int mapperIndex, String collection, Function<EventMapper, CompletableFuture<List<Cookie>>> mapperFunction)
+        {
+            this.mapperIndex = mapperIndex;
+            this.collection = collection;
+            this.mapperFunction = mapperFunction;
+            this.mapperStats = stats.get(mapperIndex).computeIfAbsent(collection, k -> new MapperStats());
+        }
+
+        @Override
+        public void run()
+        {
+            long startTime = System.nanoTime();
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            ScheduledFuture<?> timeout = timeoutExecutor.schedule(() -> timeout(startTime), timeoutMillis, MILLISECONDS);
+
+            CompletableFuture<List<Cookie>> future;
+            try {
+                future = mapperFunction.apply(mappers.get(mapperIndex));
+            }
+            catch (Throwable e) {
+                timeout.cancel(false);
+                complete(null, e, startTime);
+                return;
+            }
+            finally {
+                synchronized (this) {
+                    thread = null;
+                    // the interrupt of the timeout must not leak to the next task of the thread
+                    Thread.interrupted();
+                }
+            }
+
+            if (future == null) {
+                timeout.cancel(false);
+                complete(null, null, startTime);
+                return;
+            }
+
+            future.whenComplete((cookies, ex) -> {
+                timeout.cancel(false);
+                complete(cookies, ex, startTime);
+            });
+        }
+
+        private void complete(List<Cookie> cookies, Throwable ex, long startTime)
+        {
+            if (ex != null) {
+                if (result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex)) {
+                    mapperStats.record(System.nanoTime() - startTime, true);
+                }
+            }
+            else if (result.complete(cookies)) {
+                mapperStats.record(System.nanoTime() - startTime, false);
+            }
+        }
+
+        private void timeout(long startTime)
+        {
+            if (result.completeExceptionally(new RakamException(format("Event mapper %s timed out", names[mapperIndex]), SERVICE_UNAVAILABLE))) {
+                mapperStats.recordTimeout(System.nanoTime() - startTime);
+                LOGGER.warn("Event mapper %s timed out for collection %s, the request is failed", names[mapperIndex], collection);
+                synchronized (this) {
+                    if (thread != null) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    private static int[][] buildDependencyGraph(List<EventMapper> mappers)
+    {
+        List<Set<String>> reads = new ArrayList<>();
+        List<Set<String>> writes = new ArrayList<>();
+        for (EventMapper mapper : mappers) {
+            FieldDependencyBuilder builder = new FieldDependencyBuilder();
+            mapper.addFieldDependency(builder);
+            FieldDependency dependency = builder.build();
+
+            Set<String> written = new HashSet<>();
+            dependency.constantFields.forEach(field -> written.add(field.getName()));
+            dependency.dependentFields.values().forEach(fields -> fields.forEach(field -> written.add(field.getName())));
+
+            reads.add(ImmutableSet.copyOf(dependency.dependentFields.keySet()));
+            writes.add(written);
+        }
+
+        int[][] graph = new int[mappers.size()][];
+        for (int i = 0; i < mappers.size(); i++) {
+            List<Integer> dependencies = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                if (conflicts(reads.get(i), writes.get(i), reads.get(j), writes.get(j))) {
+                    dependencies.add(j);
+                }
+            }
+            graph[i] = dependencies.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        return graph;
+    }
+
+    private static boolean conflicts(Set<String> reads, Set<String> writes, Set<String> otherReads, Set<String> otherWrites)
+    {
+        if ((reads.isEmpty() && writes.isEmpty()) || (otherReads.isEmpty() && otherWrites.isEmpty())) {
+            return true;
+        }
+
+        return !Collections.disjoint(reads, otherWrites)
+                || !Collections.disjoint(writes, otherReads)
+                || !Collections.disjoint(writes, otherWrites);
+    }
+
+    private static String getCollection(EventList events)
+    {
+        String collection = null;
+        for (Event event : events.events) {
+            if (collection == null) {
+                collection = event.collection();
+            }
+            else if (!collection.equals(event.collection())) {
+                return MIXED_COLLECTIONS;
+            }
+        }
+        return collection == null ? MIXED_COLLECTIONS : collection;
+    }
+
+    private boolean isNameUnique(int index)
+    {
+        for (int i = 0; i < names.length; i++) {
+            if (i != index && names[i].equals(names[index])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getName(EventMapper mapper)
+    {
+        Mapper annotation = mapper.getClass().getAnnotation(Mapper.class);
+        return annotation != null ? annotation.name() : mapper.getClass().getSimpleName();
+    }
+
+    private static class MapperStats
+    {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos, boolean failed)
+        {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        void recordTimeout(long nanos)
+        {
+            timeouts.increment();
+            record(nanos, false);
+        }
+
+        MapperStatsSnapshot snapshot()
+        {
+            long count = this.count.sum();
+            long totalNanos = this.totalNanos.sum();
+            return new MapperStatsSnapshot(count, errors.sum(), timeouts.sum(),
+                    TimeUnit.NANOSECONDS.toMicros(totalNanos),
+                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos / count),
+                    TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+        }
+    }
+
+    public static class MapperStatsSnapshot
+    {
+        public final long count;
+        public final long errors;
+        public final long timeouts;
+        public final long totalMicros;
+        public final long averageMicros;
+        public final long maxMicros;
+
+        public MapperStatsSnapshot(long count, long errors, long timeouts, long totalMicros, long averageMicros, long maxMicros)
+        {
+            this.count = count;
+            this.errors = errors;
+            this.timeouts = timeouts;
+            this.totalMicros = totalMicros;
+            this.averageMicros = averageMicros;
+            this.maxMicros = maxMicros;
+        }
+    }
+}
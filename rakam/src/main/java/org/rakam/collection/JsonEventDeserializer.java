@@ -11,15 +11,18 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaParseException;
 import org.apache.avro.generic.GenericData;
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.ApiKeyService.AccessKeyType;
 import org.rakam.analysis.ConfigManager;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.SchemaChecker;
 import org.rakam.collection.Event.EventContext;
 import org.rakam.collection.FieldDependencyBuilder.FieldDependency;
+import org.rakam.collection.MetadataLookupExecutor.PendingLookupException;
 import org.rakam.util.AvroUtil;
 import org.rakam.util.DateTimeUtils;
 import org.rakam.util.JsonHelper;
@@ -38,6 +41,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import static com.fasterxml.jackson.core.JsonToken.END_ARRAY;
@@ -59,6 +64,7 @@ import static org.rakam.analysis.InternalConfig.USER_TYPE;
 import static org.rakam.collection.FieldType.ARRAY_STRING;
 import static org.rakam.collection.FieldType.MAP_STRING;
 import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.collection.MetadataLookupExecutor.await;
 import static org.rakam.collection.SchemaField.stripName;
 import static org.rakam.util.AvroUtil.convertAvroSchema;
 import static org.rakam.util.ValidationUtil.checkCollection;
@@ -77,15 +83,37 @@ public class JsonEventDeserializer
     private final ApiKeyService apiKeyService;
     private final ConfigManager configManager;
     private final SchemaChecker schemaChecker;
+    private final Executor lookupExecutor;
 
-    @Inject
     public JsonEventDeserializer(Metastore metastore,
             ApiKeyService apiKeyService,
             ConfigManager configManager,
             SchemaChecker schemaChecker,
             FieldDependency fieldDependency)
+    {
+        this(metastore, apiKeyService, configManager, schemaChecker, fieldDependency, MoreExecutors.directExecutor());
+    }
+
+    @Inject
+    public JsonEventDeserializer(Metastore metastore,
+            ApiKeyService apiKeyService,
+            ConfigManager configManager,
+            SchemaChecker schemaChecker,
+            FieldDependency fieldDependency,
+            MetadataLookupExecutor lookupExecutor)
+    {
+        this(metastore, apiKeyService, configManager, schemaChecker, fieldDependency, (Executor) lookupExecutor);
+    }
+
+    private JsonEventDeserializer(Metastore metastore,
+            ApiKeyService apiKeyService,
+            ConfigManager configManager,
+            SchemaChecker schemaChecker,
+            FieldDependency fieldDependency,
+            Executor lookupExecutor)
     {
         this.metastore = metastore;
+        this.lookupExecutor = lookupExecutor;
         this.conditionalMagicFields = fieldDependency.dependentFields;
         this.apiKeyService = apiKeyService;
         this.schemaChecker = schemaChecker;
@@ -103,11 +131,27 @@ public class JsonEventDeserializer
                 jp,
                 project != null ? project.toString() : null,
                 null,
-                Boolean.TRUE.equals(masterKey));
+                Boolean.TRUE.equals(masterKey),
+                isBlocking(ctx));
+    }
+
+    /**
+     * The collector sets the "non_blocking" attribute when it parses the request in an event loop thread,
+     * in that case a {@link PendingLookupException} is thrown if a metadata lookup is not in memory.
+     */
+    public static boolean isBlocking(DeserializationContext ctx)
+    {
+        return !TRUE.equals(ctx.getAttribute("non_blocking"));
     }
 
     public Event deserializeWithProject(JsonParser jp, String project, EventContext api, boolean masterKey)
             throws IOException, RakamException
+    {
+        return deserializeWithProject(jp, project, api, masterKey, true);
+    }
+
+    public Event deserializeWithProject(JsonParser jp, String project, EventContext api, boolean masterKey, boolean blocking)
+            throws IOException, RakamException
     {
         Map.Entry<List<SchemaField>, GenericData.Record> properties = null;
         String collection = null;
@@ -154,11 +198,14 @@ public class JsonEventDeserializer
                                 throw new RakamException("api.api_key is required", BAD_REQUEST);
                             }
                             try {
-                                project = apiKeyService.getProjectOfApiKey(api.apiKey, WRITE_KEY);
+                                project = getProjectOfApiKey(api.apiKey, WRITE_KEY, blocking);
                             }
                             catch (RakamException e) {
                                 try {
-                                    project = apiKeyService.getProjectOfApiKey(api.apiKey, MASTER_KEY);
+                                    project = getProjectOfApiKey(api.apiKey, MASTER_KEY, blocking);
+                                }
+                                catch (PendingLookupException e1) {
+                                    throw e1;
                                 }
                                 catch (Exception e1) {
                                     if (e.getStatusCode() == FORBIDDEN) {
@@ -175,7 +222,7 @@ public class JsonEventDeserializer
                             throw new RakamException("Collection is not set.", BAD_REQUEST);
                         }
 
-                        properties = parseProperties(project, collection, jp, masterKey);
+                        properties = parseProperties(project, collection, jp, masterKey, blocking);
 
                         t = jp.getCurrentToken();
 
@@ -197,17 +244,17 @@ public class JsonEventDeserializer
             if (propertiesBuffer != null) {
                 if (project == null) {
                     try {
-                        project = apiKeyService.getProjectOfApiKey(api.apiKey, WRITE_KEY);
+                        project = getProjectOfApiKey(api.apiKey, WRITE_KEY, blocking);
                     }
                     catch (RakamException e) {
-                        project = apiKeyService.getProjectOfApiKey(api.apiKey, MASTER_KEY);
+                        project = getProjectOfApiKey(api.apiKey, MASTER_KEY, blocking);
                         masterKey = true;
                     }
                 }
                 JsonParser fakeJp = propertiesBuffer.asParser(jp);
                 // pass START_OBJECT
                 fakeJp.nextToken();
-                properties = parseProperties(project, collection, fakeJp, masterKey);
+                properties = parseProperties(project, collection, fakeJp, masterKey, blocking);
             }
             else {
                 throw new JsonMappingException(jp, "properties is null");
@@ -216,20 +263,36 @@ public class JsonEventDeserializer
         return new Event(project, collection, api, properties.getKey(), properties.getValue());
     }
 
+    public String getProjectOfApiKey(String apiKey, AccessKeyType type, boolean blocking)
+    {
+        return await(apiKeyService.getProjectOfApiKeyAsync(apiKey, type, lookupExecutor), blocking);
+    }
+
     public Map.Entry<List<SchemaField>, GenericData.Record> parseProperties(String project, String collection, JsonParser jp, boolean masterKey)
             throws IOException, NotExistsException
+    {
+        return parseProperties(project, collection, jp, masterKey, true);
+    }
+
+    public Map.Entry<List<SchemaField>, GenericData.Record> parseProperties(String project, String collection, JsonParser jp, boolean masterKey, boolean blocking)
+            throws IOException, NotExistsException
     {
         ProjectCollection key = new ProjectCollection(project, collection);
         Map.Entry<List<SchemaField>, Schema> schema = schemaCache.getIfPresent(key);
-        boolean isNew = schema == null;
         if (schema == null) {
-            List<SchemaField> rakamSchema = metastore.getCollection(project, collection);
-
-            schema = new SimpleImmutableEntry<>(rakamSchema, convertAvroSchema(
-                    rakamSchema == null ? ImmutableList.copyOf(constantFields) : rakamSchema,
-                    conditionalMagicFields));
-            schemaCache.put(key, schema);
+            // the schema is cached when the lookup completes so that the suspended request finds it when it's resumed
+            CompletableFuture<Map.Entry<List<SchemaField>, Schema>> lookup = metastore.getCollectionAsync(project, collection, lookupExecutor)
+                    .thenApply(rakamSchema -> {
+                        Map.Entry<List<SchemaField>, Schema> entry = new SimpleImmutableEntry<>(rakamSchema, convertAvroSchema(
+                                rakamSchema == null ? ImmutableList.copyOf(constantFields) : rakamSchema,
+                                conditionalMagicFields));
+                        schemaCache.put(key, entry);
+                        return entry;
+                    });
+            schema = await(lookup, blocking);
         }
+        // the schema may have been cached by a suspended attempt so check the fields instead of the cache
+        boolean isNew = schema.getKey() == null || schema.getKey().isEmpty();
 
         Schema avroSchema = schema.getValue();
         List<SchemaField> rakamSchema = schema.getKey();
@@ -263,7 +326,7 @@ public class JsonEventDeserializer
                             }
                             final FieldType eventUserType = type.isNumeric() ? (type != FieldType.INTEGER ? FieldType.LONG : FieldType.INTEGER) :
                                     STRING;
-                            type = configManager.setConfigOnce(project, USER_TYPE.name(), eventUserType);
+                            type = await(configManager.setConfigOnceAsync(project, USER_TYPE.name(), eventUserType, lookupExecutor), blocking);
                         }
 
                         SchemaField newField = new SchemaField(fieldName, type);
@@ -317,21 +380,26 @@ public class JsonEventDeserializer
         }
 
         if (newFields != null) {
-            if (!masterKey && TRUE.equals(configManager.getConfig(project, FIXED_SCHEMA.name(), Boolean.class))) {
+            if (!masterKey && TRUE.equals(await(configManager.getConfigAsync(project, FIXED_SCHEMA.name(), Boolean.class, lookupExecutor), blocking))) {
                 throw new RakamException("Schema is invalid", BAD_REQUEST);
             }
 
             if (isNew) {
                 if (!newFields.stream().anyMatch(e -> e.getName().equals("_user"))) {
-                    newFields.add(new SchemaField("_user", configManager.setConfigOnce(project, USER_TYPE.name(), STRING)));
+                    newFields.add(new SchemaField("_user", await(configManager.setConfigOnceAsync(project, USER_TYPE.name(), STRING, lookupExecutor), blocking)));
                 }
             }
 
-            rakamSchema = metastore.getOrCreateCollectionFieldList(project, collection,
-                    schemaChecker.checkNewFields(collection, ImmutableSet.copyOf(newFields)));
-            Schema newAvroSchema = convertAvroSchema(rakamSchema, conditionalMagicFields);
-
-            schemaCache.put(key, new SimpleImmutableEntry<>(rakamSchema, newAvroSchema));
+            CompletableFuture<Map.Entry<List<SchemaField>, Schema>> lookup = metastore.getOrCreateCollectionFieldListAsync(project, collection,
+                    schemaChecker.checkNewFields(collection, ImmutableSet.copyOf(newFields)), lookupExecutor)
+                    .thenApply(fields -> {
+                        Map.Entry<List<SchemaField>, Schema> entry = new SimpleImmutableEntry<>(fields, convertAvroSchema(fields, conditionalMagicFields));
+                        schemaCache.put(key, entry);
+                        return entry;
+                    });
+            Map.Entry<List<SchemaField>, Schema> newSchema = await(lookup, blocking);
+            rakamSchema = newSchema.getKey();
+            Schema newAvroSchema = newSchema.getValue();
             GenericData.Record newRecord = new GenericData.Record(newAvroSchema);
 
             for (Schema.Field field : record.getSchema().getFields()) {
@@ -0,0 +1,94 @@
+package org.rakam.collection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Dedicated pool for the metadata lookups (api keys, collection schemas and configs) of the collector.
+ * The collector parses the requests in event loop threads and uses the async variants of the metadata services,
+ * when a lookup is not in memory the request is suspended and resumed once the lookup is done.
+ * The resumed requests block on their lookups so they run in a separate pool, a resumed request that waits
+ * for a lookup queued behind it in the same pool would never complete.
+ */
+public class MetadataLookupExecutor
+        implements Executor
+{
+    private final ExecutorService executor;
+    private final ExecutorService resumeExecutor;
+
+    @Inject
+    public MetadataLookupExecutor(CollectorConfig config)
+    {
+        executor = Executors.newFixedThreadPool(config.getMetadataLookupThreadCount(),
+                new ThreadFactoryBuilder().setNameFormat("metadata-lookup-%d").setDaemon(true).build());
+        resumeExecutor = Executors.newFixedThreadPool(config.getMetadataLookupThreadCount(),
+                new ThreadFactoryBuilder().setNameFormat("metadata-lookup-resume-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        executor.execute(command);
+    }
+
+    /**
+     * Runs the task in the resume pool once the lookup completes, the task may block on the lookups of this executor.
+     */
+    public void resumeAfter(CompletableFuture<?> lookup, Runnable task)
+    {
+        lookup.whenCompleteAsync((result, ex) -> task.run(), resumeExecutor);
+    }
+
+    /**
+     * Returns the result of the lookup if it's done or the caller is allowed to block,
+     * otherwise throws {@link PendingLookupException} so that the caller can suspend the request.
+     */
+    public static <T> T await(CompletableFuture<T> lookup, boolean blocking)
+    {
+        if (!blocking && !lookup.isDone()) {
+            throw new PendingLookupException(lookup);
+        }
+
+        try {
+            return lookup.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void destroy()
+    {
+        executor.shutdown();
+        resumeExecutor.shutdown();
+    }
+
+    public static class PendingLookupException
+            extends RuntimeException
+    {
+        private final CompletableFuture<?> lookup;
+
+        public PendingLookupException(CompletableFuture<?> lookup)
+        {
+            super("Metadata lookup is not completed", null, false, false);
+            this.lookup = lookup;
+        }
+
+        public CompletableFuture<?> getLookup()
+        {
+            return lookup;
+        }
+    }
+}
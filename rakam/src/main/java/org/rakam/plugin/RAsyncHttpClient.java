@@ -1,17 +1,23 @@
 package org.rakam.plugin;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.FormBody;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import org.asynchttpclient.Response;
 import org.asynchttpclient.cookie.Cookie;
 import org.asynchttpclient.uri.Uri;
+import org.rakam.config.HttpClientPoolConfig;
+import org.rakam.util.HttpClientStats;
 import org.rakam.util.RakamException;
 
 import java.io.ByteArrayInputStream;
@@ -44,13 +50,42 @@ public class RAsyncHttpClient
 
     public static RAsyncHttpClient create(int timeoutInMillis, String userAgent)
     {
-        OkHttpClient client = new OkHttpClient.Builder()
+        return create(timeoutInMillis, userAgent, new HttpClientPoolConfig(), new HttpClientStats());
+    }
+
+    public static RAsyncHttpClient create(int timeoutInMillis, String userAgent, HttpClientPoolConfig poolConfig, HttpClientStats stats)
+    {
+        // the scripts may send requests to any server so the connections are bounded for each host and in total
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(poolConfig.getMaxConnectionsPerDestination());
+        dispatcher.setMaxRequests(poolConfig.getMaxConnectionsPerDestination() * 4);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(poolConfig.getMaxConnectionsPerDestination(),
+                        poolConfig.getIdleTimeout().toMillis(), TimeUnit.MILLISECONDS))
+                .addInterceptor(chain -> {
+                    long startNanos = System.nanoTime();
+                    stats.requestStarted();
+                    try {
+                        okhttp3.Response response = chain.proceed(chain.request());
+                        stats.responseReceived(response.code(), startNanos);
+                        return response;
+                    }
+                    catch (IOException | RuntimeException e) {
+                        stats.requestFailed(startNanos);
+                        throw e;
+                    }
+                })
                 .connectTimeout(timeoutInMillis, TimeUnit.MILLISECONDS)
                 .readTimeout(timeoutInMillis, TimeUnit.MILLISECONDS)
-                .writeTimeout(timeoutInMillis, TimeUnit.MILLISECONDS)
-                .build();
+                .writeTimeout(timeoutInMillis, TimeUnit.MILLISECONDS);
+
+        if (!poolConfig.isHttp2Enabled()) {
+            builder.protocols(ImmutableList.of(Protocol.HTTP_1_1));
+        }
 
-        return new RAsyncHttpClient(client);
+        return new RAsyncHttpClient(builder.build());
     }
 
     public NashornHttpRequest get(String url)
@@ -174,15 +174,16 @@ public class UserHttpService
             @ApiParam(value = "columns", required = false) List<String> columns,
             @ApiParam(value = "filter", required = false) String filter,
             @ApiParam(value = "event_filters", required = false) List<UserStorage.EventFilter> event_filter,
+            @ApiParam(value = "segment", description = "The table name of the segment that the users are searched in", required = false) String segment,
             @ApiParam(value = "sorting", required = false) Sorting sorting,
-            @ApiParam(value = "offset", required = false) String offset,
+            @ApiParam(value = "offset", description = "The nextOffset property of the previous page", required = false) String offset,
             @ApiParam(value = "limit", required = false) Integer limit)
     {
         Expression expression = parseExpression(filter);
 
         limit = limit == null ? 100 : Math.min(5000, limit);
 
-        return service.searchUsers(project, columns, expression, event_filter, sorting, limit, offset);
+        return service.searchUsers(project, columns, expression, event_filter, segment, sorting, limit, offset);
     }
 
     @POST
@@ -52,13 +52,14 @@ public class UserMailboxActionService extends UserActionService<UserMailboxActio
     public CompletableFuture<Long> batchSendMessages(@Named("project") String project,
                                                      @ApiParam(value = "filter", required = false) String filter,
                                                      @ApiParam(value = "event_filters", required = false) List<EventFilter> event_filter,
+                                                     @ApiParam(value = "segment", required = false) String segment,
                                                      @ApiParam("config") MailAction config) {
         List<String> variables = new StringTemplate(config.message).getVariables();
         variables.add(UserStorage.PRIMARY_KEY);
 
         Expression expression = parseExpression(filter);
 
-        CompletableFuture<QueryResult> future = userService.searchUsers(project, variables, expression, event_filter, null, 100000, null);
+        CompletableFuture<QueryResult> future = userService.searchUsers(project, variables, expression, event_filter, segment, null, 100000, null);
         return batch(project, future, config);
     }
 
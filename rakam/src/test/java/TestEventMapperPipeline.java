@@ -0,0 +1,174 @@
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.rakam.collection.Event;
+import org.rakam.collection.EventMapperConfig;
+import org.rakam.collection.EventMapperPipeline;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventMapper;
+import org.rakam.plugin.SyncEventMapper;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.plugin.EventMapper.RequestParams.EMPTY_PARAMS;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestEventMapperPipeline
+{
+    private static final Event EVENT = new Event("test", "test", null, null, null);
+
+    @Test
+    public void testDependentMappersRunInOrder()
+            throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<>());
+
+        // the mapper that reads the field must wait for the mapper that generates it.
+        EventMapper reader = new TestMapper("reader", executions, "_city", "_city_name", () -> {});
+        EventMapper writer = new TestMapper("writer", executions, "_ip", "_city", () -> sleep(50));
+
+        for (int i = 0; i < 10; i++) {
+            executions.clear();
+            EventMapperPipeline pipeline = new EventMapperPipeline(ImmutableSet.of(writer, reader), new EventMapperConfig());
+            pipeline.map(EVENT, EMPTY_PARAMS, InetAddress.getLoopbackAddress(), HttpHeaders.EMPTY_HEADERS).join();
+            assertEquals(executions, ImmutableList.of("writer", "reader"));
+        }
+    }
+
+    @Test
+    public void testIndependentMappersRunInParallel()
+            throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<>());
+
+        // the slow mapper can only complete after the fast mapper so they must be executed at the same time.
+        CountDownLatch latch = new CountDownLatch(1);
+        EventMapper slow = new TestMapper("slow", executions, "_ip", "_city", () -> await(latch));
+        EventMapper fast = new TestMapper("fast", executions, "_user_agent", "_os", latch::countDown);
+
+        EventMapperPipeline pipeline = new EventMapperPipeline(ImmutableSet.of(slow, fast), new EventMapperConfig().setThreadCount(2));
+        pipeline.map(EVENT, EMPTY_PARAMS, InetAddress.getLoopbackAddress(), HttpHeaders.EMPTY_HEADERS).join();
+        assertEquals(executions, ImmutableList.of("fast", "slow"));
+    }
+
+    @Test
+    public void testMapperError()
+            throws Exception
+    {
+        SyncEventMapper failing = (event, requestParams, sourceAddress, responseHeaders) -> {
+            throw new RakamException("_user cannot be null", BAD_REQUEST);
+        };
+
+        EventMapperPipeline pipeline = new EventMapperPipeline(ImmutableSet.of(failing), new EventMapperConfig());
+        try {
+            pipeline.map(EVENT, EMPTY_PARAMS, InetAddress.getLoopbackAddress(), HttpHeaders.EMPTY_HEADERS).join();
+            fail();
+        }
+        catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RakamException);
+        }
+    }
+
+    @Test
+    public void testTimeout()
+            throws Exception
+    {
+        EventMapper neverCompletes = (event, requestParams, sourceAddress, responseHeaders) -> new CompletableFuture<>();
+
+        EventMapperPipeline pipeline = new EventMapperPipeline(ImmutableSet.of(neverCompletes), new EventMapperConfig().setTimeout("100ms"));
+        assertTimedOut(pipeline);
+    }
+
+    @Test
+    public void testBlockingMapperTimeout()
+            throws Exception
+    {
+        List<String> executions = Collections.synchronizedList(new ArrayList<>());
+        EventMapper blocking = new TestMapper("blocking", executions, "_ip", "_city", () -> sleep(10000));
+
+        EventMapperPipeline pipeline = new EventMapperPipeline(ImmutableSet.of(blocking), new EventMapperConfig().setTimeout("100ms"));
+        assertTimedOut(pipeline);
+        // the mapper is interrupted so it never completes
+        assertEquals(executions, ImmutableList.of());
+    }
+
+    private static void assertTimedOut(EventMapperPipeline pipeline)
+    {
+        try {
+            pipeline.map(EVENT, EMPTY_PARAMS, InetAddress.getLoopbackAddress(), HttpHeaders.EMPTY_HEADERS).join();
+            fail();
+        }
+        catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof RakamException);
+        }
+        assertEquals(pipeline.getStats().values().iterator().next().get("test").timeouts, 1);
+    }
+
+    private static void sleep(long millis)
+    {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try {
+            assertTrue(latch.await(10, SECONDS));
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class TestMapper
+            implements SyncEventMapper
+    {
+        private final String name;
+        private final List<String> executions;
+        private final String source;
+        private final String target;
+        private final Runnable action;
+
+        private TestMapper(String name, List<String> executions, String source, String target, Runnable action)
+        {
+            this.name = name;
+            this.executions = executions;
+            this.source = source;
+            this.target = target;
+            this.action = action;
+        }
+
+        @Override
+        public List<Cookie> map(Event event, RequestParams requestParams, InetAddress sourceAddress, HttpHeaders responseHeaders)
+        {
+            action.run();
+            executions.add(name);
+            return null;
+        }
+
+        @Override
+        public void addFieldDependency(FieldDependencyBuilder builder)
+        {
+            builder.addFields(source, ImmutableList.of(new SchemaField(target, STRING)));
+        }
+    }
+}
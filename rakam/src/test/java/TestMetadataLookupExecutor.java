@@ -0,0 +1,70 @@
+import org.rakam.collection.CollectorConfig;
+import org.rakam.collection.MetadataLookupExecutor;
+import org.rakam.collection.MetadataLookupExecutor.PendingLookupException;
+import org.rakam.util.RakamException;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+import static org.rakam.collection.MetadataLookupExecutor.await;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+public class TestMetadataLookupExecutor
+{
+    @Test
+    public void testCompletedLookup()
+    {
+        assertEquals(await(CompletableFuture.completedFuture("project"), false), "project");
+    }
+
+    @Test
+    public void testPendingLookup()
+    {
+        CompletableFuture<String> lookup = new CompletableFuture<>();
+        try {
+            await(lookup, false);
+            fail();
+        }
+        catch (PendingLookupException e) {
+            assertSame(e.getLookup(), lookup);
+        }
+    }
+
+    @Test
+    public void testFailedLookup()
+    {
+        CompletableFuture<String> lookup = CompletableFuture.supplyAsync(() -> {
+            throw new RakamException("api_key is invalid", FORBIDDEN);
+        });
+
+        try {
+            await(lookup, true);
+            fail();
+        }
+        catch (RakamException e) {
+            assertEquals(e.getStatusCode(), FORBIDDEN);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testResumedTasksDontBlockLookupPool()
+            throws Exception
+    {
+        MetadataLookupExecutor executor = new MetadataLookupExecutor(new CollectorConfig().setMetadataLookupThreadCount(1));
+        try {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            CompletableFuture<String> lookup = CompletableFuture.supplyAsync(() -> "project", executor);
+            // the resumed request makes another lookup in the single lookup thread and waits for it
+            executor.resumeAfter(lookup, () -> result.complete(await(CompletableFuture.supplyAsync(() -> "schema", executor), true)));
+
+            assertEquals(result.get(5, TimeUnit.SECONDS), "schema");
+        }
+        finally {
+            executor.destroy();
+        }
+    }
+}